@@ -0,0 +1,2 @@
+CREATE INDEX i_user_type_update ON events (user_id, event_type, last_update);
+DROP INDEX i_user_type ON events;
@@ -22,6 +22,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
 
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
@@ -49,6 +51,9 @@ public class AnonymizationRulesSingleton {
 
 	private Map<String, List<String>> tagsToDeleteForManufacturer;
 
+	/** Same as tagsToDeleteForManufacturer, with sorted int tags */
+	private Map<String, int[]> compiledTagsToDeleteForManufacturer;
+
 	private AnonymizationRulesSingleton() {
 		this.profiles = new HashMap<>();
 		this.tagsToDeleteForManufacturer = new HashMap<>();
@@ -91,7 +96,7 @@ public class AnonymizationRulesSingleton {
 							for (Iterator<Profile> iterator = profilesColl.iterator(); iterator.hasNext();) {
 								Profile profile = iterator.next();
 								Cell actionCell = row.getCell(profile.getProfileColumn());
-								profile.getAnonymizationMap().put(tagString, actionCell.getStringCellValue());
+								profile.setAction(tagString, actionCell.getStringCellValue());
 							}
 						}
 					}
@@ -129,10 +134,18 @@ public class AnonymizationRulesSingleton {
 
 			myWorkBook.close();
 
+			for (Profile profile : profiles.values()) {
+				profile.compile();
+			}
+
 		} catch (IOException e) {
 			LOG.error("Unable to read anonymization file: {}", e);
 		}
-
+		this.compiledTagsToDeleteForManufacturer = new HashMap<>();
+		for (Entry<String, List<String>> entry : tagsToDeleteForManufacturer.entrySet()) {
+			int[] tags = entry.getValue().stream().map(Profile::parseTag).filter(Objects::nonNull).mapToInt(Integer::intValue).sorted().toArray();
+			compiledTagsToDeleteForManufacturer.put(entry.getKey(), tags);
+		}
 	}
 
 	public static AnonymizationRulesSingleton getInstance() {
@@ -147,4 +160,12 @@ public class AnonymizationRulesSingleton {
 		return tagsToDeleteForManufacturer;
 	}
 
+	/**
+	 * @param manufacturer
+	 * @return the sorted tags to delete for the manufacturer, or null
+	 */
+	public int[] getCompiledTagsToDeleteForManufacturer(String manufacturer) {
+		return manufacturer != null ? compiledTagsToDeleteForManufacturer.get(manufacturer) : null;
+	}
+
 }
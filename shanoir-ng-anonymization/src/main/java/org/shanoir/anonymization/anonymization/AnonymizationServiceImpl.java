@@ -14,21 +14,35 @@
 
 package org.shanoir.anonymization.anonymization;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che3.io.DicomOutputStream;
 import org.shanoir.ng.anonymization.uid.generation.UIDGeneration;
 import org.slf4j.Logger;
@@ -47,38 +61,32 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 
 	private static final Logger LOG = LoggerFactory.getLogger(AnonymizationServiceImpl.class);
 
-	private static final String PRIVATE_TAGS = "0xggggeeee";
-	private static final String CURVE_DATA_TAGS = "0x50xxxxxx";
-	private static final String OVERLAY_COMMENTS_TAGS = "0x60xx4000";
-	private static final String OVERLAY_DATA_TAGS = "0x60xx3000";
-	
-	private Random rand = new Random();
-	
-	private static Map<String, List<String>> tagsToDeleteForManufacturer;
+	/** Key of the files without a value in the UID maps, that do not accept null keys */
+	private static final String NO_VALUE = "";
+
+	private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+	/** Pool anonymizing the files in parallel, null to anonymize them in the calling thread */
+	private final ExecutorService executor;
+
+	/**
+	 * Anonymizes the files one after the other, in the calling thread.
+	 */
+	public AnonymizationServiceImpl() {
+		this(null);
+	}
+
+	/**
+	 * @param executor bounded pool, shared by all the calls, that anonymizes the files in
+	 *            parallel: it is owned, and shut down, by the caller
+	 */
+	public AnonymizationServiceImpl(ExecutorService executor) {
+		this.executor = executor;
+	}
 
 	@Override
 	public void anonymize(ArrayList<File> dicomFiles, String profile) throws Exception {
-		long startTime = System.currentTimeMillis();
-		final int totalAmount = dicomFiles.size();
-		LOG.info("Start anonymization, for {} DICOM files.", totalAmount);
-		Map<String, Profile> profiles = AnonymizationRulesSingleton.getInstance().getProfiles();
-		Map<String, String> anonymizationMap = profiles.get(profile).getAnonymizationMap();
-		tagsToDeleteForManufacturer = AnonymizationRulesSingleton.getInstance().getTagsToDeleteForManufacturer();
-		// init here for multi-threading reasons
-		Map<String, String> seriesInstanceUIDs = new HashMap<>();
-		Map<String, String> studyInstanceUIDs = new HashMap<>();
-		Map<String, String> studyIds = new HashMap<>();
-		LOG.debug("anonymize : totalAmount={}", totalAmount);
-		int current = 0;
-		for (int i = 0; i < dicomFiles.size(); ++i) {
-			final File file = dicomFiles.get(i);
-			// Perform the anonymization
-			performAnonymization(file, anonymizationMap, false, "", "", seriesInstanceUIDs, studyInstanceUIDs, studyIds);
-			current++;
-			final int currentPercent = current * 100 / totalAmount;
-			LOG.debug("anonymize : anonymization current percent= {} %", currentPercent);
-		}
-		logInfos("End anonymization", startTime);
+		anonymizeFiles(dicomFiles, profile, false, "", "");
 	}
 
 	@Override
@@ -90,29 +98,58 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 
 	@Override
 	public void anonymizeForShanoir(ArrayList<File> dicomFiles, String profile, String patientName, String patientID) throws Exception {
+		anonymizeFiles(dicomFiles, profile, true, patientName, patientID);
+	}
+
+	private void anonymizeFiles(List<File> dicomFiles, String profile, boolean isShanoirAnonymization,
+			String patientName, String patientID) throws Exception {
 		long startTime = System.currentTimeMillis();
 		final int totalAmount = dicomFiles.size();
 		LOG.info("Start anonymization, for {} DICOM files.", totalAmount);
-		Map<String, Profile> profiles = AnonymizationRulesSingleton.getInstance().getProfiles();
-		Map<String, String> anonymizationMap = profiles.get(profile).getAnonymizationMap();
-		tagsToDeleteForManufacturer = AnonymizationRulesSingleton.getInstance().getTagsToDeleteForManufacturer();
-		// init here for multi-threading reasons
-
-		Map<String, String> seriesInstanceUIDs = new HashMap<>();
-		Map<String, String> studyInstanceUIDs = new HashMap<>();
-		Map<String, String> studyIds = new HashMap<>();
+		Profile anonymizationProfile = AnonymizationRulesSingleton.getInstance().getProfiles().get(profile);
+		// init here for multi-threading reasons: the files of one call share the same new UIDs
+		Map<String, String> seriesInstanceUIDs = new ConcurrentHashMap<>();
+		Map<String, String> studyInstanceUIDs = new ConcurrentHashMap<>();
+		Map<String, String> studyIds = new ConcurrentHashMap<>();
 		LOG.debug("anonymize : totalAmount={}", totalAmount);
-		int current = 0;
-		for (int i = 0; i < dicomFiles.size(); ++i) {
-			final File file = dicomFiles.get(i);
-			// Perform the anonymization
-			performAnonymization(file, anonymizationMap, true, patientName, patientID, seriesInstanceUIDs, studyInstanceUIDs, studyIds);
-			current++;
-			final int currentPercent = current * 100 / totalAmount;
-			LOG.debug("anonymize : anonymization current percent= {} %", currentPercent);
+		AtomicInteger current = new AtomicInteger();
+		if (executor == null || totalAmount <= 1) {
+			for (File file : dicomFiles) {
+				performAnonymization(file, anonymizationProfile, isShanoirAnonymization, patientName, patientID, seriesInstanceUIDs, studyInstanceUIDs, studyIds);
+				logProgress(current.incrementAndGet(), totalAmount);
+			}
+		} else {
+			List<Future<?>> futures = new ArrayList<>();
+			try {
+				for (File file : dicomFiles) {
+					futures.add(executor.submit(() -> {
+						performAnonymization(file, anonymizationProfile, isShanoirAnonymization, patientName, patientID, seriesInstanceUIDs, studyInstanceUIDs, studyIds);
+						logProgress(current.incrementAndGet(), totalAmount);
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			} finally {
+				// after an error, the queued files of this call are skipped and the running ones interrupted
+				for (Future<?> future : futures) {
+					future.cancel(true);
+				}
+			}
 		}
 		logInfos("End anonymization", startTime);
 	}
+
+	private void logProgress(int current, int totalAmount) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("anonymize : anonymization current percent= {} %", current * 100 / totalAmount);
+		}
+	}
 	
 	private void logInfos(final String methodName, long startTime) {
 		long stopTime = System.currentTimeMillis();
@@ -149,13 +186,18 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 	 * Further does each part of an UID has to start with a non-zero value, see
 	 * UIDGeneration code.
 	 * 
+	 * The pixel data are not loaded in memory: the anonymized file is written into
+	 * a temporary file, into which the pixel data are copied from the original file,
+	 * and which then replaces the original file. Only deflated files, that can not
+	 * be read partially, are fully loaded and rewritten in place.
+	 * 
 	 * @param dicomFile
 	 *            the image path
 	 * @param profile
 	 *            anonymization profile
 	 * @throws Exception
 	 */
-	public void performAnonymization(final File dicomFile, Map<String, String> anonymizationMap, boolean isShanoirAnonymization,
+	public void performAnonymization(final File dicomFile, Profile profile, boolean isShanoirAnonymization,
 			String patientName, String patientID, Map<String, String> seriesInstanceUIDs,
 			Map<String, String> studyInstanceUIDs, Map<String, String> studyIds) throws Exception {
 		DicomInputStream din = null;
@@ -167,10 +209,10 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 			 * DICOM "header"/meta-information fields: read tags
 			 */
 			Attributes metaInformationAttributes = din.readFileMetaInformation();
+			final boolean streaming = !isDeflated(din.getTransferSyntax());
 			for (int tagInt : metaInformationAttributes.tags()) {
-				String tagString = String.format("0x%08x", Integer.valueOf(tagInt));
-				if (anonymizationMap.containsKey(tagString)) {
-					final String action = anonymizationMap.get(tagString);
+				final String action = profile.getAction(tagInt);
+				if (action != null) {
 					anonymizeTag(tagInt, action, metaInformationAttributes);
 				}
 			}
@@ -180,6 +222,12 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 			/**
 			 * DICOM "body": read tags
 			 */
+			if (streaming) {
+				// only reference the pixel data, by their position in the file
+				din.setIncludeBulkData(IncludeBulkData.URI);
+				din.setBulkDataDescriptor((itemPointer, privateCreator, tag, vr, length) ->
+						tag == Tag.PixelData && itemPointer.isEmpty());
+			}
 			Attributes datasetAttributes = din.readDataset(-1, -1);
 			
 			// temporarily keep the patient credentials in memory to search in private tags
@@ -192,46 +240,42 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 			String patientBirthNameAttr = datasetAttributes.getString(Tag.PatientBirthName);
 			// temporarily keep the patient birth date for isShanoirAnonymization
 			String patientBirthDateAttr = datasetAttributes.getString(Tag.PatientBirthDate);
+			int[] tagsToDeleteForManufacturer = AnonymizationRulesSingleton.getInstance()
+					.getCompiledTagsToDeleteForManufacturer(datasetAttributes.getString(Tag.Manufacturer));
 
 			// anonymize DICOM files according to selected profile
 			for (int tagInt : datasetAttributes.tags()) {
-				String tagString = String.format("0x%08X", Integer.valueOf(tagInt));
-				String gggg = tagString.substring(2, 6);
-				Integer intgggg = Integer.decode("0x" + gggg);
-				// odd: for private tags
-				if (intgggg % 2 == 1) {
-					String action = anonymizationMap.get(PRIVATE_TAGS);
+				// odd group: for private tags
+				if (((tagInt >>> 16) & 1) == 1) {
+					String action = profile.getPrivateTagsAction();
 					String value = datasetAttributes.getString(tagInt);
 					// only act below in case of K: keep, if X: delete for private tags, no need
 					if (value != null && !value.isEmpty() && action.equals("K")) {
 						action = checkForPHIInPrivateTags(patientNameArrayAttr, patientIDAttr, patientBirthNameAttr, patientBirthDateAttr, tagInt, value, action);
-						action = handleTagsToDeleteForManufacturer(datasetAttributes, tagString, action);
+						action = handleTagsToDeleteForManufacturer(tagsToDeleteForManufacturer, tagInt, action);
 					}
 					anonymizeTag(tagInt, action, datasetAttributes);
 				// even: public tags
-				} else if (anonymizationMap.containsKey(tagString)) {
-					if (tagInt == Tag.SOPInstanceUID) {
-						anonymizeSOPInstanceUID(tagInt, datasetAttributes, mediaStorageSOPInstanceUIDGenerated);
-					} else if (tagInt == Tag.SeriesInstanceUID) {
-						anonymizeSeriesInstanceUID(tagInt, datasetAttributes, seriesInstanceUIDs);
-					} else if (tagInt == Tag.StudyInstanceUID) {
-						anonymizeStudyInstanceUID(tagInt, datasetAttributes, studyInstanceUIDs);
-					} else if (tagInt == Tag.StudyID) {
-						anonymizeStudyId(tagInt, datasetAttributes, studyIds);
-					} else {
-						final String action = anonymizationMap.get(tagString);
-						anonymizeTag(tagInt, action, datasetAttributes);
-					}
 				} else {
-					if (0x50000000 <= tagInt && tagInt <= 0x50FFFFFF) {
-						final String action = anonymizationMap.get(CURVE_DATA_TAGS);
-						anonymizeTag(tagInt, action, datasetAttributes);
+					final String action = profile.getAction(tagInt);
+					if (action != null) {
+						if (tagInt == Tag.SOPInstanceUID) {
+							anonymizeSOPInstanceUID(tagInt, datasetAttributes, mediaStorageSOPInstanceUIDGenerated);
+						} else if (tagInt == Tag.SeriesInstanceUID) {
+							anonymizeSeriesInstanceUID(tagInt, datasetAttributes, seriesInstanceUIDs);
+						} else if (tagInt == Tag.StudyInstanceUID) {
+							anonymizeStudyInstanceUID(tagInt, datasetAttributes, studyInstanceUIDs);
+						} else if (tagInt == Tag.StudyID) {
+							anonymizeStudyId(tagInt, datasetAttributes, studyIds);
+						} else {
+							anonymizeTag(tagInt, action, datasetAttributes);
+						}
+					} else if (0x50000000 <= tagInt && tagInt <= 0x50FFFFFF) {
+						anonymizeTag(tagInt, profile.getCurveDataTagsAction(), datasetAttributes);
 					} else if (0x60004000 <= tagInt && tagInt <= 0x60FF4000) {
-						final String action = anonymizationMap.get(OVERLAY_COMMENTS_TAGS);
-						anonymizeTag(tagInt, action, datasetAttributes);
+						anonymizeTag(tagInt, profile.getOverlayCommentsTagsAction(), datasetAttributes);
 					} else if (0x60003000 <= tagInt && tagInt <= 0x60FF3000) {
-						final String action = anonymizationMap.get(OVERLAY_DATA_TAGS);
-						anonymizeTag(tagInt, action, datasetAttributes);
+						anonymizeTag(tagInt, profile.getOverlayDataTagsAction(), datasetAttributes);
 					}
 				}
 			}
@@ -240,8 +284,14 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 				anonymizePatientMetaData(datasetAttributes, patientName, patientID, patientBirthDateAttr);
 			}
 			LOG.debug("finish anonymization: begin storage");
-			dos = new DicomOutputStream(dicomFile);
-			dos.writeDataset(metaInformationAttributes, datasetAttributes);
+			if (streaming) {
+				din.close();
+				din = null;
+				writeWithPixelDataCopy(dicomFile, metaInformationAttributes, datasetAttributes);
+			} else {
+				dos = new DicomOutputStream(dicomFile);
+				dos.writeDataset(metaInformationAttributes, datasetAttributes);
+			}
 			LOG.debug("finish anonymization: end storage");
 		} catch (final IOException exc) {
 			LOG.error("performAnonymization : error while anonimizing file " + dicomFile.toString() + " : ", exc);
@@ -259,25 +309,82 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 		}
 	}
 
+	private boolean isDeflated(String transferSyntaxUID) {
+		return UID.DeflatedExplicitVRLittleEndian.equals(transferSyntaxUID)
+				|| UID.JPIPReferencedDeflate.equals(transferSyntaxUID);
+	}
+
+	/**
+	 * Writes the anonymized attributes into a temporary file, next to the DICOM file,
+	 * and replaces the DICOM file with it. Native pixel data are copied from the DICOM
+	 * file by the file system, encapsulated pixel data are streamed by dcm4che.
+	 * 
+	 * @param dicomFile
+	 * @param metaInformationAttributes
+	 * @param datasetAttributes with the pixel data read as bulk data
+	 * @throws IOException
+	 */
+	private void writeWithPixelDataCopy(File dicomFile, Attributes metaInformationAttributes,
+			Attributes datasetAttributes) throws IOException {
+		File tempFile = File.createTempFile(dicomFile.getName(), ".tmp", dicomFile.getAbsoluteFile().getParentFile());
+		try {
+			Object pixelData = datasetAttributes.getValue(Tag.PixelData);
+			try (FileOutputStream fos = new FileOutputStream(tempFile);
+					DicomOutputStream dos = new DicomOutputStream(new BufferedOutputStream(fos), UID.ExplicitVRLittleEndian)) {
+				if (pixelData instanceof BulkData && !datasetAttributes.bigEndian()) {
+					BulkData bulkData = (BulkData) pixelData;
+					VR vr = datasetAttributes.getVR(Tag.PixelData);
+					// the attributes after the pixel data, e.g. the padding, are written after the copy
+					Attributes trailingAttributes = new Attributes(datasetAttributes.bigEndian());
+					for (int tagInt : datasetAttributes.tags()) {
+						if (Integer.compareUnsigned(tagInt, Tag.PixelData) > 0) {
+							trailingAttributes.addSelected(datasetAttributes, tagInt);
+							datasetAttributes.remove(tagInt);
+						}
+					}
+					datasetAttributes.remove(Tag.PixelData);
+					dos.writeDataset(metaInformationAttributes, datasetAttributes);
+					long length = bulkData.length();
+					dos.writeHeader(Tag.PixelData, vr, (int) length);
+					dos.flush();
+					try (FileChannel source = FileChannel.open(dicomFile.toPath(), StandardOpenOption.READ)) {
+						FileChannel target = fos.getChannel();
+						long position = bulkData.offset();
+						long end = position + length;
+						while (position < end) {
+							long transferred = source.transferTo(position, end - position, target);
+							if (transferred <= 0) {
+								throw new IOException("Truncated pixel data in file " + dicomFile);
+							}
+							position += transferred;
+						}
+					}
+					trailingAttributes.writeTo(dos);
+				} else {
+					dos.writeDataset(metaInformationAttributes, datasetAttributes);
+				}
+			}
+			try {
+				Files.move(tempFile.toPath(), dicomFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), dicomFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
 	/**
 	 * Handle tags to delete for manufacturer here
 	 * 
-	 * @param datasetAttributes
-	 * @param tagString
+	 * @param tagsToDelete sorted tags to delete for the manufacturer of the file, can be null
+	 * @param tagInt
 	 * @param action
 	 * @return
 	 */
-	private String handleTagsToDeleteForManufacturer(Attributes datasetAttributes, String tagString, String action) {
-		String manufacturer = datasetAttributes.getString(Tag.Manufacturer);
-		List<String> tagsToDelete = tagsToDeleteForManufacturer.get(manufacturer);
-		if (tagsToDelete != null) {
-			for (Iterator<String> iterator = tagsToDelete.iterator(); iterator.hasNext();) {
-				String tagToDelete = iterator.next();
-				if (tagString.equals(tagToDelete)) {
-					action = "X";
-					break;
-				}
-			}
+	private String handleTagsToDeleteForManufacturer(int[] tagsToDelete, int tagInt, String action) {
+		if (tagsToDelete != null && Arrays.binarySearch(tagsToDelete, tagInt) >= 0) {
+			return "X";
 		}
 		return action;
 	}
@@ -332,7 +439,7 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 	 * @param attributes
 	 *            : the list of dicom attributes to modify
 	 */
-	private void anonymizeTag(Integer tagInt, String action, Attributes attributes) {
+	private void anonymizeTag(int tagInt, String action, Attributes attributes) {
 		String value = getFinalValueForTag(action);
 		if (value == null) {
 			attributes.remove(tagInt);
@@ -348,30 +455,19 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 	}
 
 	private void anonymizeSeriesInstanceUID(int tagInt, Attributes attributes, Map<String, String> seriesInstanceUIDs) {
-		String value;
-		if (seriesInstanceUIDs != null && seriesInstanceUIDs.size() != 0
-				&& seriesInstanceUIDs.get(attributes.getString(tagInt)) != null) {
-			value = seriesInstanceUIDs.get(attributes.getString(tagInt));
-		} else {
-			UIDGeneration generator = new UIDGeneration();
-			String newUID = null;
-			try {
-				newUID = generator.getNewUID();
-			} catch (Exception e) {
-				LOG.error(e.getMessage());
-			}
-			value = newUID;
-			seriesInstanceUIDs.put(attributes.getString(tagInt), value);
-		}
-		anonymizeTagAccordingToVR(attributes, tagInt, value);
+		anonymizeTagAccordingToVR(attributes, tagInt, getOrCreateUID(seriesInstanceUIDs, attributes.getString(tagInt)));
 	}
 
 	private void anonymizeStudyInstanceUID(int tagInt, Attributes attributes, Map<String, String> studyInstanceUIDs) {
-		String value;
-		if (studyInstanceUIDs != null && studyInstanceUIDs.size() != 0
-				&& studyInstanceUIDs.get(attributes.getString(tagInt)) != null) {
-			value = studyInstanceUIDs.get(attributes.getString(tagInt));
-		} else {
+		anonymizeTagAccordingToVR(attributes, tagInt, getOrCreateUID(studyInstanceUIDs, attributes.getString(tagInt)));
+	}
+
+	/**
+	 * Returns the new UID replacing an UID, created at the first call, so that the
+	 * files of a serie or a study, even anonymized in parallel, share the same one.
+	 */
+	private String getOrCreateUID(Map<String, String> newUIDs, String uid) {
+		return newUIDs.computeIfAbsent(uid != null ? uid : NO_VALUE, key -> {
 			UIDGeneration generator = new UIDGeneration();
 			String newUID = null;
 			try {
@@ -379,27 +475,21 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 			} catch (Exception e) {
 				LOG.error(e.getMessage());
 			}
-			value = newUID;
-			studyInstanceUIDs.put(attributes.getString(tagInt), value);
-		}
-		anonymizeTagAccordingToVR(attributes, tagInt, value);
+			return newUID;
+		});
 	}
 
 	private void anonymizeStudyId(int tagInt, Attributes attributes, Map<String, String> studyIds) {
-		String value;
-		if (studyIds != null && studyIds.size() != 0 && studyIds.get(attributes.getString(tagInt)) != null) {
-			value = studyIds.get(attributes.getString(tagInt));
-		} else {
+		String studyId = attributes.getString(tagInt);
+		String value = studyIds.computeIfAbsent(studyId != null ? studyId : NO_VALUE, key -> {
 			char[] chars = "abcdefghijklmnopqrstuvwxyz".toCharArray();
 			StringBuilder sb = new StringBuilder();
 			for (int i = 0; i < 10; i++) {
-				char c = chars[rand.nextInt(chars.length)];
+				char c = chars[ThreadLocalRandom.current().nextInt(chars.length)];
 				sb.append(c);
 			}
-			String output = sb.toString();
-			value = output.toString();
-			studyIds.put(attributes.getString(tagInt), value);
-		}
+			return sb.toString();
+		});
 		anonymizeTagAccordingToVR(attributes, tagInt, value);
 	}
 
@@ -418,8 +508,7 @@ public class AnonymizationServiceImpl implements AnonymizationService {
 			} else if (action.equals("Z")) {
 				result = "";
 			} else if (action.equals("D")) {
-				SecureRandom random = new SecureRandom();
-				result = new BigInteger(130, random).toString(32);
+				result = new BigInteger(130, SECURE_RANDOM).toString(32);
 			} else if (action.equals("U")) {
 				UIDGeneration generator = new UIDGeneration();
 				String newUID = null;
@@ -1,30 +1,164 @@
 package org.shanoir.anonymization.anonymization;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Profile {
 
+	static final String PRIVATE_TAGS = "0xggggeeee";
+	static final String CURVE_DATA_TAGS = "0x50xxxxxx";
+	static final String OVERLAY_COMMENTS_TAGS = "0x60xx4000";
+	static final String OVERLAY_DATA_TAGS = "0x60xx3000";
+
 	private Integer profileColumn;
-	
-	private Map<String, String> anonymizationMap;
+
+	private final Map<String, String> anonymizationMap = new ConcurrentHashMap<>();
+
+	/** Table of the anonymization map, null after a change of the map until the next search */
+	private volatile CompiledActions compiledActions;
 
 	public Profile(Integer profileColumn) {
 		super();
 		this.profileColumn = profileColumn;
-		anonymizationMap = new HashMap<>();
 	}
 
 	public Integer getProfileColumn() {
 		return profileColumn;
 	}
 
+	/**
+	 * @return a read-only view of the actions, to change with setAction()
+	 */
 	public Map<String, String> getAnonymizationMap() {
-		return anonymizationMap;
+		return Collections.unmodifiableMap(anonymizationMap);
+	}
+
+	public synchronized void setAnonymizationMap(Map<String, String> anonymizationMap) {
+		Map<String, String> actions = new HashMap<>();
+		for (Entry<String, String> entry : anonymizationMap.entrySet()) {
+			if (entry.getValue() != null) {
+				actions.put(entry.getKey(), entry.getValue());
+			}
+		}
+		this.anonymizationMap.clear();
+		this.anonymizationMap.putAll(actions);
+		compiledActions = null;
+	}
+
+	/**
+	 * Sets the action of a tag, as 0x00100010, or of a group of tags, as 0xggggeeee.
+	 *
+	 * @param tagString
+	 * @param action the action, or null to remove the tag from the profile
+	 */
+	public synchronized void setAction(String tagString, String action) {
+		if (action != null) {
+			anonymizationMap.put(tagString, action);
+		} else {
+			anonymizationMap.remove(tagString);
+		}
+		compiledActions = null;
 	}
 
-	public void setAnonymizationMap(Map<String, String> anonymizationMap) {
-		this.anonymizationMap = anonymizationMap;
+	/**
+	 * Builds the tag table from the anonymization map, if it has changed since the
+	 * last build. It is also built at the first search after a change of the map.
+	 * The wildcard entries, as 0xggggeeee, stay in the map.
+	 */
+	public void compile() {
+		getCompiledActions();
+	}
+
+	private CompiledActions getCompiledActions() {
+		CompiledActions compiled = compiledActions;
+		if (compiled == null) {
+			synchronized (this) {
+				compiled = compiledActions;
+				if (compiled == null) {
+					compiled = new CompiledActions(anonymizationMap);
+					compiledActions = compiled;
+				}
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * @param tag
+	 * @return the action of the tag, or null if the tag is not in the profile
+	 */
+	public String getAction(int tag) {
+		return getCompiledActions().getAction(tag);
+	}
+
+	public String getPrivateTagsAction() {
+		return anonymizationMap.get(PRIVATE_TAGS);
+	}
+
+	public String getCurveDataTagsAction() {
+		return anonymizationMap.get(CURVE_DATA_TAGS);
+	}
+
+	public String getOverlayCommentsTagsAction() {
+		return anonymizationMap.get(OVERLAY_COMMENTS_TAGS);
+	}
+
+	public String getOverlayDataTagsAction() {
+		return anonymizationMap.get(OVERLAY_DATA_TAGS);
+	}
+
+	/**
+	 * @param tagString as 0x00100010
+	 * @return the tag, or null if the string is not an hexadecimal tag
+	 */
+	static Integer parseTag(String tagString) {
+		if (tagString == null || tagString.length() != 10 || !tagString.startsWith("0x")) {
+			return null;
+		}
+		try {
+			return Integer.parseUnsignedInt(tagString.substring(2), 16);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tags of an anonymization map, sorted, to search an action without creating strings.
+	 */
+	private static class CompiledActions {
+
+		private final int[] tags;
+
+		/** Actions of the tags, at the same index */
+		private final String[] actions;
+
+		CompiledActions(Map<String, String> anonymizationMap) {
+			TreeMap<Integer, String> sortedActions = new TreeMap<>();
+			for (Entry<String, String> entry : anonymizationMap.entrySet()) {
+				Integer tag = parseTag(entry.getKey());
+				if (tag != null) {
+					sortedActions.put(tag, entry.getValue());
+				}
+			}
+			tags = new int[sortedActions.size()];
+			actions = new String[sortedActions.size()];
+			int i = 0;
+			for (Entry<Integer, String> entry : sortedActions.entrySet()) {
+				tags[i] = entry.getKey();
+				actions[i] = entry.getValue();
+				i++;
+			}
+		}
+
+		String getAction(int tag) {
+			int index = Arrays.binarySearch(tags, tag);
+			return index >= 0 ? actions[index] : null;
+		}
 	}
 
-}
\ No newline at end of file
+}
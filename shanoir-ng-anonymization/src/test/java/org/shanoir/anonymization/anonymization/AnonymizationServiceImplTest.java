@@ -0,0 +1,127 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.anonymization.anonymization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AnonymizationServiceImplTest {
+
+	private static final String SERIES_INSTANCE_UID = "1.2.3.4";
+
+	private static final byte[] PIXEL_DATA = new byte[] { 1, 2, 3, 4 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testFilesAreAnonymizedInParallel() throws Exception {
+		AnonymizationServiceImpl service = new AnonymizationServiceImpl(pool);
+		ArrayList<File> files = new ArrayList<>();
+		for (int i = 1; i <= 4; i++) {
+			files.add(writeDicom(folder.newFile(i + ".dcm"), "1.2.3.4." + i));
+		}
+		service.anonymizeForShanoir(files, "Profile Neurinfo", "subject", "subject");
+		Set<String> seriesInstanceUIDs = new HashSet<>();
+		for (File file : files) {
+			Attributes attributes = read(file);
+			assertEquals("subject", attributes.getString(Tag.PatientName));
+			assertFalse(attributes.contains(Tag.AcquisitionComments));
+			assertEquals("T1", attributes.getString(Tag.SeriesDescription));
+			assertArrayEquals(PIXEL_DATA, attributes.getBytes(Tag.PixelData));
+			seriesInstanceUIDs.add(attributes.getString(Tag.SeriesInstanceUID));
+		}
+		// the files of a serie share the same new UID
+		assertEquals(1, seriesInstanceUIDs.size());
+		assertNotEquals(SERIES_INSTANCE_UID, seriesInstanceUIDs.iterator().next());
+	}
+
+	@Test
+	public void testChangeOfTheProfileIsApplied() throws Exception {
+		AnonymizationServiceImpl service = new AnonymizationServiceImpl();
+		Profile profile = new Profile(0);
+		profile.setAction("0x00184000", "X");
+		File first = writeDicom(folder.newFile("1.dcm"), "1.2.3.4.1");
+		anonymize(service, first, profile);
+		assertFalse(read(first).contains(Tag.AcquisitionComments));
+		profile.setAction("0x00184000", "K");
+		File second = writeDicom(folder.newFile("2.dcm"), "1.2.3.4.2");
+		anonymize(service, second, profile);
+		assertTrue(read(second).contains(Tag.AcquisitionComments));
+	}
+
+	private void anonymize(AnonymizationServiceImpl service, File file, Profile profile) throws Exception {
+		service.performAnonymization(file, profile, false, "", "", new ConcurrentHashMap<>(),
+				new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+	}
+
+	private File writeDicom(File file, String sopInstanceUID) throws IOException {
+		Attributes attributes = new Attributes();
+		attributes.setString(Tag.SOPClassUID, VR.UI, UID.MRImageStorage);
+		attributes.setString(Tag.SOPInstanceUID, VR.UI, sopInstanceUID);
+		attributes.setString(Tag.AccessionNumber, VR.SH, "1234");
+		attributes.setString(Tag.SeriesDescription, VR.LO, "T1");
+		attributes.setString(Tag.PatientName, VR.PN, "Name^Firstname");
+		attributes.setString(Tag.PatientID, VR.LO, "1234");
+		attributes.setString(Tag.AcquisitionComments, VR.LT, "comment");
+		attributes.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+		attributes.setString(Tag.SeriesInstanceUID, VR.UI, SERIES_INSTANCE_UID);
+		attributes.setInt(Tag.Rows, VR.US, 2);
+		attributes.setInt(Tag.Columns, VR.US, 2);
+		attributes.setInt(Tag.BitsAllocated, VR.US, 8);
+		attributes.setBytes(Tag.PixelData, VR.OB, PIXEL_DATA);
+		try (DicomOutputStream dos = new DicomOutputStream(file)) {
+			dos.writeDataset(attributes.createFileMetaInformation(UID.ExplicitVRLittleEndian), attributes);
+		}
+		return file;
+	}
+
+	private Attributes read(File file) throws IOException {
+		try (DicomInputStream din = new DicomInputStream(file)) {
+			return din.readDataset(-1, -1);
+		}
+	}
+
+}
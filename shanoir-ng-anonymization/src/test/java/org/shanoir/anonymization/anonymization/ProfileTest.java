@@ -0,0 +1,66 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.anonymization.anonymization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.dcm4che3.data.Tag;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProfileTest {
+
+	private Profile profile;
+
+	@Before
+	public void setUp() {
+		profile = new Profile(0);
+		profile.setAction("0x00184000", "X");
+		profile.setAction(Profile.PRIVATE_TAGS, "K");
+		profile.compile();
+	}
+
+	@Test
+	public void testActionIsFoundByTag() {
+		assertEquals("X", profile.getAction(Tag.AcquisitionComments));
+		assertNull(profile.getAction(Tag.SeriesDescription));
+		// the wildcard entries are not in the tag table
+		assertEquals("K", profile.getPrivateTagsAction());
+		assertEquals(2, profile.getAnonymizationMap().size());
+	}
+
+	@Test
+	public void testTableIsRebuiltAfterAChange() {
+		profile.setAction("0x00184000", "K");
+		profile.setAction("0x0008103E", "X");
+		assertEquals("K", profile.getAction(Tag.AcquisitionComments));
+		assertEquals("X", profile.getAction(Tag.SeriesDescription));
+		profile.setAction("0x00184000", null);
+		assertNull(profile.getAction(Tag.AcquisitionComments));
+		profile.setAnonymizationMap(Collections.singletonMap("0x00080050", "Z"));
+		assertEquals("Z", profile.getAction(Tag.AccessionNumber));
+		assertNull(profile.getAction(Tag.SeriesDescription));
+		assertNull(profile.getPrivateTagsAction());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testMapCanOnlyBeChangedByTheProfile() {
+		profile.getAnonymizationMap().put("0x00184000", "K");
+	}
+
+}
@@ -37,6 +37,7 @@ import java.util.zip.ZipOutputStream;
 
 import javax.annotation.PostConstruct;
 import javax.mail.MessagingException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
@@ -135,6 +136,13 @@ public class DatasetApiController implements DatasetApi {
 	/** Number of downloadable datasets. */
 	private static final int DATASET_LIMIT = 500;
 
+	private final HttpServletRequest request;
+
+	@Autowired
+	public DatasetApiController(final HttpServletRequest request) {
+		this.request = request;
+	}
+
 	@PostConstruct
 	private void initialize() {
 		// Set timeout to 1mn (consider nifti reconversion can take some time)
@@ -359,7 +367,7 @@ public class DatasetApiController implements DatasetApi {
 		// STEP 1: Retrieve all datasets all in one with only the one we can see
 		List<Dataset> datasets = datasetService.findByIdIn(datasetIds);
 
-		datasetDownloaderService.massiveDownload(format, datasets, response, false);
+		datasetDownloaderService.massiveDownload(format, datasets, response, false, request.getHeader(HttpHeaders.RANGE), request.getHeader(HttpHeaders.IF_RANGE));
 	}	
 
 	@Override
@@ -381,7 +389,7 @@ public class DatasetApiController implements DatasetApi {
 					new ErrorModel(HttpStatus.FORBIDDEN.value(), "This study has more than " + DATASET_LIMIT + " datasets, that is the limit. Please download them from solr search." ));
 		}
 
-		datasetDownloaderService.massiveDownload(format, datasets, response, false);
+		datasetDownloaderService.massiveDownload(format, datasets, response, false, request.getHeader(HttpHeaders.RANGE), request.getHeader(HttpHeaders.IF_RANGE));
 	}
 
 	@Override
@@ -403,7 +411,7 @@ public class DatasetApiController implements DatasetApi {
 					new ErrorModel(HttpStatus.FORBIDDEN.value(), "You can't download more than " + DATASET_LIMIT + " datasets."));
 		}
 
-		datasetDownloaderService.massiveDownload(format, datasets, response, true);
+		datasetDownloaderService.massiveDownload(format, datasets, response, true, request.getHeader(HttpHeaders.RANGE), request.getHeader(HttpHeaders.IF_RANGE));
 	}
 
 	/**
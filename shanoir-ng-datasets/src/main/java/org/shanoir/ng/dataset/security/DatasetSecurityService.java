@@ -16,6 +16,7 @@ package org.shanoir.ng.dataset.security;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -394,8 +395,9 @@ public class DatasetSecurityService {
 		}
     	
     	// Also check for centers    	
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (DatasetAcquisition acq : datasetAcquisitions) {
-			if (!this.hasRightOnStudyCenter(acq.getExamination().getCenterId(), acq.getExamination().getStudyId(), rightStr)) {
+			if (!checker.hasRight(acq.getExamination().getCenterId(), acq.getExamination().getStudyId())) {
 				return false;
 			}
     	}
@@ -452,24 +454,40 @@ public class DatasetSecurityService {
     	
     	Iterable<Dataset> datasets = datasetRepository.findAllById(datasetIds);
     	 
-    	boolean hasRight = true;
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (Dataset dataset : datasets) {
-            if (dataset.getDatasetAcquisition() == null 
-                    || dataset.getDatasetAcquisition().getExamination() == null
-                    || dataset.getDatasetAcquisition().getExamination().getStudyId() == null) {
-                
-                if (dataset.getDatasetProcessing() != null && dataset.getDatasetProcessing().getInputDatasets() != null) {
-                    for (Dataset inputDs : dataset.getDatasetProcessing().getInputDatasets()) {
-                    	hasRight &= hasRightOnTrustedDataset(inputDs, rightStr);
+    		if (!hasRightOnEveryParentOfDataset(dataset, checker)) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * Check the right on the examination of an acquired dataset, or on every input of a processed dataset.
+     * 
+     * @param dataset the dataset
+     * @param checker the checker of the current page or list
+     * @return true or false
+     */
+    private boolean hasRightOnEveryParentOfDataset(Dataset dataset, StudyCenterRightsChecker checker) {
+        if (dataset.getDatasetAcquisition() == null 
+                || dataset.getDatasetAcquisition().getExamination() == null
+                || dataset.getDatasetAcquisition().getExamination().getStudyId() == null) {
+            
+            if (dataset.getDatasetProcessing() != null && dataset.getDatasetProcessing().getInputDatasets() != null) {
+                for (Dataset inputDs : dataset.getDatasetProcessing().getInputDatasets()) {
+                    if (!hasRightOnTrustedDataset(inputDs, checker)) {
+                        return false;
                     }
-                } else {
-                    throw new IllegalStateException("Cannot check dataset n°" + dataset.getId() + " rights, this dataset has neither examination nor processing parent !");                
                 }
+                return true;
             } else {
-            	hasRight &= this.hasRightOnStudyCenter(dataset.getDatasetAcquisition().getExamination().getCenterId(), dataset.getDatasetAcquisition().getExamination().getStudyId(), rightStr);
+                throw new IllegalStateException("Cannot check dataset n°" + dataset.getId() + " rights, this dataset has neither examination nor processing parent !");                
             }
-    	}
-    	return hasRight;
+        } else {
+            return checker.hasRight(dataset.getDatasetAcquisition().getExamination().getCenterId(), dataset.getDatasetAcquisition().getExamination().getStudyId());
+        }
     }
 
     /**
@@ -486,13 +504,17 @@ public class DatasetSecurityService {
         if (dataset == null) {
 			throw new IllegalArgumentException("Dataset cannot be null here.");
 		}
+        return hasRightOnTrustedDataset(dataset, new StudyCenterRightsChecker(rightStr));
+    }
+
+    private boolean hasRightOnTrustedDataset(Dataset dataset, StudyCenterRightsChecker checker) {
         if (dataset.getDatasetAcquisition() == null 
                 || dataset.getDatasetAcquisition().getExamination() == null
                 || dataset.getDatasetAcquisition().getExamination().getStudyId() == null) {
             
             if (dataset.getDatasetProcessing() != null && dataset.getDatasetProcessing().getInputDatasets() != null) {
                 for (Dataset inputDs : dataset.getDatasetProcessing().getInputDatasets()) {
-                    if (hasRightOnTrustedDataset(inputDs, rightStr)) {
+                    if (hasRightOnTrustedDataset(inputDs, checker)) {
                         return true;
                     }
                 }
@@ -501,14 +523,7 @@ public class DatasetSecurityService {
                 throw new IllegalStateException("Cannot check dataset n°" + dataset.getId() + " rights, this dataset has neither examination nor processing parent !");                
             }
 		} else {
-		    Long studyId = dataset.getDatasetAcquisition().getExamination().getStudyId();
-		    Set<Long> studies = new HashSet<>();
-		    studies.add(studyId);
-		    List<Long> studiesRelated = studyRepository.findByDatasetId(studyId).stream().map(BigInteger::longValue).collect(Collectors.toList());
-		    if (studiesRelated != null && !studiesRelated.isEmpty()) {
-		        studies.addAll(studiesRelated);
-		    }
-		    return hasRightOnStudiesCenter(dataset.getDatasetAcquisition().getExamination().getCenterId(), studies, rightStr);
+		    return checker.hasRightWithRelatedStudies(dataset.getDatasetAcquisition().getExamination().getCenterId(), dataset.getDatasetAcquisition().getExamination().getStudyId());
 		}
     }
 
@@ -668,11 +683,12 @@ public class DatasetSecurityService {
     	Set<Long> checkedIds = commService.hasRightOnStudies(studyIds, rightStr); //
     	
     	// Also check for centers    	
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (Dataset dataset : page) {
     		if (!checkedIds.contains(dataset.getStudyId())) {
     			return false;
     		} else {
-    			if (!this.hasRightOnStudyCenter(dataset.getDatasetAcquisition().getExamination().getCenterId(), dataset.getDatasetAcquisition().getExamination().getStudyId(), rightStr)) {
+    			if (!checker.hasRight(dataset.getDatasetAcquisition().getExamination().getCenterId(), dataset.getDatasetAcquisition().getExamination().getStudyId())) {
     				return false;
     			}
     		}
@@ -693,11 +709,12 @@ public class DatasetSecurityService {
     	Set<Long> checkedIds = commService.hasRightOnStudies(studyIds, rightStr); //
     	
     	// Also check for centers    	
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (DatasetDTO dataset : page) {
     		if (!checkedIds.contains(dataset.getStudyId())) {
     			return false;
     		} else {
-    			if (!this.hasRightOnStudyCenter(dataset.getCenterId(), dataset.getStudyId(), rightStr)) {
+    			if (!checker.hasRight(dataset.getCenterId(), dataset.getStudyId())) {
     				return false;
     			}
     		}
@@ -713,23 +730,10 @@ public class DatasetSecurityService {
      * @return true
      */
     public boolean filterDatasetList(List<Dataset> list, String rightStr) {
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<Dataset> toRemove = new HashSet<>();
     	list.forEach((Dataset ds) -> {
-            if (ds.getDatasetAcquisition() == null 
-                    || ds.getDatasetAcquisition().getExamination() == null
-                    || ds.getDatasetAcquisition().getExamination().getStudyId() == null) {
-                
-                if (ds.getDatasetProcessing() != null && ds.getDatasetProcessing().getInputDatasets() != null) {
-                    for (Dataset inputDs : ds.getDatasetProcessing().getInputDatasets()) {
-                        if (!hasRightOnTrustedDataset(inputDs, rightStr)) {
-                        	toRemove.add(ds);
-                        }
-                    }
-                } else {
-                    throw new IllegalStateException("Cannot check dataset n°" + ds.getId() + " rights, this dataset has neither examination nor processing parent !");                
-                }
-            }
-            else if (!this.hasRightOnStudyCenter(ds.getDatasetAcquisition().getExamination().getCenterId(), ds.getDatasetAcquisition().getExamination().getStudyId(), rightStr)) {
+    		if (!hasRightOnEveryParentOfDataset(ds, checker)) {
         		toRemove.add(ds);
         	}
     	});
@@ -777,11 +781,12 @@ public class DatasetSecurityService {
     	Set<Long> studyIds = new HashSet<>();
     	page.forEach((Examination exam) -> studyIds.add(exam.getStudyId()));
     	Set<Long> checkedIds = commService.hasRightOnStudies(studyIds, rightStr);
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (Examination exam : page) {
     		if (!checkedIds.contains(exam.getStudyId())) {
 				return false;
 			} else {
-    			if (!this.hasRightOnStudyCenter(exam.getCenterId(), exam.getStudyId(), rightStr)) {
+    			if (!checker.hasRight(exam.getCenterId(), exam.getStudyId())) {
     				return false;
     			}
     		}
@@ -797,9 +802,10 @@ public class DatasetSecurityService {
      * @return true
      */
     public boolean filterExaminationList(List<Examination> list, String rightStr) {
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<Examination> toRemove = new HashSet<>();
     	list.forEach((Examination exam) -> {
-        	if (!this.hasRightOnStudyCenter(exam.getCenterId(), exam.getStudyId(), rightStr)) {
+        	if (!checker.hasRight(exam.getCenterId(), exam.getStudyId())) {
         		toRemove.add(exam);
         	}
     	});
@@ -818,13 +824,19 @@ public class DatasetSecurityService {
     	if (list == null) {
 			return true;
 		}
-    	Set<DatasetDTO> dsRemove = new HashSet<>();
-    	for(DatasetDTO dto : list) {
-    		if (!this.hasRightOnDataset(dto.getId(), rightStr)) {
-    			dsRemove.add(dto);
-        	}
+    	if (KeycloakUtil.getTokenRoles().contains(ROLE_ADMIN)) {
+			return true;
+		}
+    	// load all the datasets at once, instead of one by one
+    	List<Long> ids = list.stream().map(DatasetDTO::getId).distinct().collect(Collectors.toList());
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
+    	Set<Long> checkedIds = new HashSet<>();
+    	for (Dataset dataset : datasetRepository.findAllById(ids)) {
+    		if (hasRightOnTrustedDataset(dataset, checker)) {
+    			checkedIds.add(dataset.getId());
+    		}
     	}
-    	list.removeAll(dsRemove);
+    	list.removeIf((DatasetDTO dto) -> !checkedIds.contains(dto.getId()));
     	return true;
     }
     
@@ -838,9 +850,10 @@ public class DatasetSecurityService {
      */
     public boolean filterDatasetAcquisitionList(List<DatasetAcquisition> list, String rightStr) {
         if (list == null) return true;
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<DatasetAcquisition> toRemove = new HashSet<>();
     	list.forEach((DatasetAcquisition ds) -> {
-        	if (!this.hasRightOnStudyCenter(ds.getExamination().getCenterId(), ds.getExamination().getStudyId(), rightStr)) {
+        	if (!checker.hasRight(ds.getExamination().getCenterId(), ds.getExamination().getStudyId())) {
         		toRemove.add(ds);
         	}
     	});
@@ -859,9 +872,10 @@ public class DatasetSecurityService {
     	if (list == null) {
 			return true;
 		}
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<DatasetAcquisitionDTO> acqsToRemove = new HashSet<>();
     	list.forEach((DatasetAcquisitionDTO dsa) -> {
-        	if (!this.hasRightOnStudyCenter(dsa.getExamination().getCenterId(), dsa.getExamination().getStudyId(), rightStr)) {
+        	if (!checker.hasRight(dsa.getExamination().getCenterId(), dsa.getExamination().getStudyId())) {
         		acqsToRemove.add(dsa);
         	}
     	});
@@ -882,8 +896,9 @@ public class DatasetSecurityService {
 	                   return true;
 	           }
 	   Set<Long> checkedIds = new HashSet<Long>();
+	   Set<Long> examinationIds = new HashSet<Long>();
 	   for (ExaminationDatasetAcquisitionDTO edsa : list) {
-		   if (hasRightOnExamination(edsa.getExaminationId(), rightStr)) {
+		   if (examinationIds.add(edsa.getExaminationId()) && hasRightOnExamination(edsa.getExaminationId(), rightStr)) {
 			   checkedIds.add(edsa.getExaminationId());
 		   }
 	   }
@@ -903,8 +918,9 @@ public class DatasetSecurityService {
     	if (page == null) {
 			return true;
 		}
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (DatasetAcquisitionDTO acquisition : page) {
-    		if (!hasRightOnStudyCenter(acquisition.getExamination().getCenterId(), acquisition.getExamination().getStudyId(), rightStr)) {
+    		if (!checker.hasRight(acquisition.getExamination().getCenterId(), acquisition.getExamination().getStudyId())) {
 				return false;
 			}
     	}
@@ -922,8 +938,9 @@ public class DatasetSecurityService {
     	if (page == null) {
 			return true;
 		}
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (DatasetAcquisition acquisition : page) {
-    		if (!hasRightOnStudyCenter(acquisition.getExamination().getCenterId(), acquisition.getExamination().getStudyId(), rightStr)) {
+    		if (!checker.hasRight(acquisition.getExamination().getCenterId(), acquisition.getExamination().getStudyId())) {
 				return false;
 			}
     	}
@@ -962,8 +979,9 @@ public class DatasetSecurityService {
     	if (page == null) {
 			return true;
 		}
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	for (ExaminationDTO exam : page) {
-    		if (!this.hasRightOnStudyCenter(exam.getCenterId(), exam.getStudyId(), rightStr)) {
+    		if (!checker.hasRight(exam.getCenterId(), exam.getStudyId())) {
 				return false;
 			}
     	}
@@ -979,9 +997,10 @@ public class DatasetSecurityService {
      */
     public boolean filterExaminationDTOList(List<ExaminationDTO> list, String rightStr) {
 	if (list == null) return true;
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<ExaminationDTO> examsToRemove = new HashSet<>();
     	for(ExaminationDTO exam : list) {
-    		if (!hasRightOnStudyCenter(exam.getCenterId(), exam.getStudyId(), rightStr)) {
+    		if (!checker.hasRight(exam.getCenterId(), exam.getStudyId())) {
     			examsToRemove.add(exam);
 			}
     	}
@@ -998,9 +1017,10 @@ public class DatasetSecurityService {
      */
     public boolean filterSubjectExaminationDTOList(List<SubjectExaminationDTO> list, String rightStr) {
 	if (list == null) return true;
+    	StudyCenterRightsChecker checker = new StudyCenterRightsChecker(rightStr);
     	Set<SubjectExaminationDTO> examsToRemove = new HashSet<>();
     	for(SubjectExaminationDTO exam : list) {
-    		if (!hasRightOnStudyCenter(exam.getCenterId(), exam.getStudyId(), rightStr)) {
+    		if (!checker.hasRight(exam.getCenterId(), exam.getStudyId())) {
     			examsToRemove.add(exam);
 			}
     	}
@@ -1057,5 +1077,48 @@ public class DatasetSecurityService {
 		Long id = studyInstanceUIDHandler.extractExaminationId(examinationUID);
 		return hasRightOnExamination(id, rightStr);
     }
+
+    /**
+     * Checks a right on the studies and centers of the entities of a page or a list:
+     * each study and each study/center pair is checked only once, however many
+     * entities share them.
+     */
+    private class StudyCenterRightsChecker {
+
+    	private final String rightStr;
+
+    	private final Map<Long, Boolean> studyRights = new HashMap<>();
+
+    	private final Map<List<Long>, Boolean> studyCenterRights = new HashMap<>();
+
+    	private final Map<List<Long>, Boolean> relatedStudiesCenterRights = new HashMap<>();
+
+    	StudyCenterRightsChecker(String rightStr) {
+    		this.rightStr = rightStr;
+    	}
+
+    	/**
+    	 * Same as hasRightOnStudyCenter()
+    	 */
+    	boolean hasRight(Long centerId, Long studyId) {
+    		return studyRights.computeIfAbsent(studyId, id -> commService.hasRightOnStudy(id, rightStr))
+    				&& studyCenterRights.computeIfAbsent(Arrays.asList(studyId, centerId), key -> commService.hasRightOnCenter(studyId, centerId));
+    	}
+
+    	/**
+    	 * Same as hasRightOnStudyCenter(), the right can also be given by a study related to the given one.
+    	 */
+    	boolean hasRightWithRelatedStudies(Long centerId, Long studyId) {
+    		return relatedStudiesCenterRights.computeIfAbsent(Arrays.asList(studyId, centerId), key -> {
+    			Set<Long> studies = new HashSet<>();
+    			studies.add(studyId);
+    			List<Long> studiesRelated = studyRepository.findByDatasetId(studyId).stream().map(BigInteger::longValue).collect(Collectors.toList());
+    			if (studiesRelated != null && !studiesRelated.isEmpty()) {
+    				studies.addAll(studiesRelated);
+    			}
+    			return hasRightOnStudiesCenter(centerId, studies, rightStr);
+    		});
+    	}
+    }
    
 }
@@ -2,6 +2,7 @@ package org.shanoir.ng.dataset.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -80,6 +81,9 @@ public class DatasetDownloaderServiceImpl {
 	@Autowired
 	ShanoirEventService eventService;
 
+	@Autowired
+	private DatasetExportCacheService exportCacheService;
+
 	public void downloadDatasetById(Long datasetId, Long converterId, String format, HttpServletResponse response, boolean withManifest) throws RestServiceException {
 
 		final Dataset dataset = datasetService.findById(datasetId);
@@ -205,14 +209,31 @@ public class DatasetDownloaderServiceImpl {
 	}
 
 	public void massiveDownload(String format, List<Dataset> datasets, HttpServletResponse response, boolean withInputFile) throws EntityNotFoundException, RestServiceException, IOException {
+		massiveDownload(format, datasets, response, withInputFile, null, null);
+	}
+
+	/**
+	 * Downloads the given datasets in one zip. When the export cache is enabled, the zip is
+	 * built once on disk and the requested byte range of it is sent, so that an interrupted
+	 * download can be resumed and a download of the same datasets is served from the disk.
+	 *
+	 * @param format
+	 * @param datasets
+	 * @param response
+	 * @param withInputFile
+	 * @param range value of the Range header of the request, can be null
+	 * @param ifRange value of the If-Range header of the request, can be null
+	 * @throws EntityNotFoundException
+	 * @throws RestServiceException
+	 * @throws IOException
+	 */
+	public void massiveDownload(String format, List<Dataset> datasets, HttpServletResponse response, boolean withInputFile, String range, String ifRange) throws EntityNotFoundException, RestServiceException, IOException {
 		// STEP 3: Get the data
 		// Check rights on at least one of the datasets and filter the datasetIds list
-
-		boolean isEmpty = true;
-		// Get the data
-		List<Dataset> failingDatasets = new ArrayList<Dataset>();
-
-		Map<Long, List<String>> filesByAcquisitionId = new HashMap<>();
+		if (exportCacheService.isEnabled()) {
+			massiveDownloadFromCache(format, datasets, response, withInputFile, range, ifRange);
+			return;
+		}
 
 		response.setContentType("application/zip");
 		// Add timestamp to get a difference
@@ -220,130 +241,190 @@ public class DatasetDownloaderServiceImpl {
 		response.setHeader("Content-Disposition", "attachment;filename=" + "Datasets" + formatter.format(new DateTime().toDate()));
 
 		try(ZipOutputStream zipOutputStream = new ZipOutputStream(response.getOutputStream())) {
+			writeDatasetsToZip(format, datasets, zipOutputStream, withInputFile);
+			publishMassiveDownloadEvent(format, datasets);
+		} catch (Exception e) {
+			LOG.error("Unexpected error while downloading dataset files.", e);
+			throw new RestServiceException(
+					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "Unexpected error while downloading dataset files"));
+		}
+	}
 
-			for (Dataset dataset : datasets) {
-				if (!dataset.isDownloadable()) {
-					continue;
-				}
+	private void massiveDownloadFromCache(String format, List<Dataset> datasets, HttpServletResponse response, boolean withInputFile, String range, String ifRange) throws RestServiceException {
+		String key = exportCacheService.computeKey(datasets, format, withInputFile);
+		List<Long> datasetIds = datasets.stream().map(Dataset::getId).collect(Collectors.toList());
+		try (DatasetExportCacheService.Archive archive = exportCacheService.getOrCreate(key, datasetIds, outputStream -> {
+				ErrorRecordingZipOutputStream zipOutputStream = new ErrorRecordingZipOutputStream(outputStream);
 				try {
+					writeDatasetsToZip(format, datasets, zipOutputStream, withInputFile);
+				} finally {
+					zipOutputStream.close();
+				}
+				return !zipOutputStream.hasErrors();
+			})) {
+			response.setHeader("Content-Disposition", "attachment;filename=" + "Datasets_" + key + ZIP);
+			exportCacheService.sendArchive(archive, range, ifRange, response);
+			// a resumed download has already been notified
+			if (range == null) {
+				publishMassiveDownloadEvent(format, datasets);
+			}
+		} catch (Exception e) {
+			LOG.error("Unexpected error while downloading dataset files.", e);
+			throw new RestServiceException(
+					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "Unexpected error while downloading dataset files"));
+		}
+	}
 
-					List<String> datasetFiles = new ArrayList<>();
+	/**
+	 * Records if an error entry has been written: the list of the failing datasets,
+	 * or an error file for an instance the PACS did not send.
+	 */
+	private static final class ErrorRecordingZipOutputStream extends ZipOutputStream {
 
-					// Ignore non adapted datasets
-					if (EEG.equals(format) && ! (dataset instanceof EegDataset)) {
-						continue;
-					}
-					if (!EEG.equals(format) &&  (dataset instanceof EegDataset)) {
-						continue;
-					}
-					// Create a new folder organized by subject / examination
-					String subjectName = subjectRepository.findById(dataset.getSubjectId()).orElse(null).getName();
-					if (subjectName.contains(File.separator)) {
-						subjectName = subjectName.replaceAll(File.separator, "_");
-					}
-					String studyName = studyRepository.findById(dataset.getStudyId()).orElse(null).getName();
+		private boolean errors;
 
-					Examination exam;
-					if (dataset.getDatasetAcquisition() == null && dataset.getDatasetProcessing() != null) {
-						exam = dataset.getDatasetProcessing().getInputDatasets().get(0).getDatasetAcquisition().getExamination();
-					} else {
-						exam = dataset.getDatasetAcquisition().getExamination();
-					}
+		private ErrorRecordingZipOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
 
-					String datasetFilePath = studyName + "_" + subjectName + "_Exam-" + exam.getId();
-					if (exam.getComment() != null) {
-						datasetFilePath += "-" + exam.getComment();
-					}
-					datasetFilePath = datasetFilePath. replaceAll("[^a-zA-Z0-9_\\-]", "_");
-					if(datasetFilePath.length() > 255 ){
-						datasetFilePath = datasetFilePath.substring(0, 254);
-					}
+		@Override
+		public void putNextEntry(ZipEntry entry) throws IOException {
+			errors = errors || FAILURES_TXT.equals(entry.getName()) || entry.getName().startsWith(WADODownloaderService.ERROR);
+			super.putNextEntry(entry);
+		}
 
-					List<URL> pathURLs = new ArrayList<>();
+		private boolean hasErrors() {
+			return errors;
+		}
+	}
 
-					if (dataset instanceof EegDataset) {
-						DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.EEG);
-						List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, false, datasetFilePath);
-						datasetFiles.addAll(files);
-					} else if (DCM.equals(format)) {
-						if (dataset.getDatasetProcessing() != null) {
-							// Do not load dicom for processed dataset
-							continue;
-						}
-						DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.DICOM);
-						List<String> files = downloader.downloadDicomFilesForURLsAsZip(pathURLs, zipOutputStream, subjectName, dataset, datasetFilePath);
-						datasetFiles.addAll(files);
+	private void writeDatasetsToZip(String format, List<Dataset> datasets, ZipOutputStream zipOutputStream, boolean withInputFile) throws RestServiceException, IOException {
+		boolean isEmpty = true;
+		// Get the data
+		List<Dataset> failingDatasets = new ArrayList<Dataset>();
 
-						if(withInputFile){
-							filesByAcquisitionId.putIfAbsent(dataset.getDatasetAcquisition().getId(), new ArrayList<>());
-							filesByAcquisitionId.get(dataset.getDatasetAcquisition().getId()).addAll(datasetFiles);
-						}
+		Map<Long, List<String>> filesByAcquisitionId = new HashMap<>();
 
-					} else if (NII.equals(format)) {
-						DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.NIFTI_SINGLE_FILE);
-						List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, false, datasetFilePath);
-						datasetFiles.addAll(files);
-					} else if (BIDS.equals(format)) {
-						DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.BIDS);
-						List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, true, datasetFilePath);
-						datasetFiles.addAll(files);
-					} else {
-						throw new RestServiceException(
-								new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "Please choose either nifti, dicom or eeg file type.", null));
+		for (Dataset dataset : datasets) {
+			if (!dataset.isDownloadable()) {
+				continue;
+			}
+			try {
+
+				List<String> datasetFiles = new ArrayList<>();
+
+				// Ignore non adapted datasets
+				if (EEG.equals(format) && ! (dataset instanceof EegDataset)) {
+					continue;
+				}
+				if (!EEG.equals(format) &&  (dataset instanceof EegDataset)) {
+					continue;
+				}
+				// Create a new folder organized by subject / examination
+				String subjectName = subjectRepository.findById(dataset.getSubjectId()).orElse(null).getName();
+				if (subjectName.contains(File.separator)) {
+					subjectName = subjectName.replaceAll(File.separator, "_");
+				}
+				String studyName = studyRepository.findById(dataset.getStudyId()).orElse(null).getName();
+
+				Examination exam;
+				if (dataset.getDatasetAcquisition() == null && dataset.getDatasetProcessing() != null) {
+					exam = dataset.getDatasetProcessing().getInputDatasets().get(0).getDatasetAcquisition().getExamination();
+				} else {
+					exam = dataset.getDatasetAcquisition().getExamination();
+				}
+
+				String datasetFilePath = studyName + "_" + subjectName + "_Exam-" + exam.getId();
+				if (exam.getComment() != null) {
+					datasetFilePath += "-" + exam.getComment();
+				}
+				datasetFilePath = datasetFilePath. replaceAll("[^a-zA-Z0-9_\\-]", "_");
+				if(datasetFilePath.length() > 255 ){
+					datasetFilePath = datasetFilePath.substring(0, 254);
+				}
+
+				List<URL> pathURLs = new ArrayList<>();
+
+				if (dataset instanceof EegDataset) {
+					DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.EEG);
+					List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, false, datasetFilePath);
+					datasetFiles.addAll(files);
+				} else if (DCM.equals(format)) {
+					if (dataset.getDatasetProcessing() != null) {
+						// Do not load dicom for processed dataset
+						continue;
 					}
-					isEmpty = isEmpty && pathURLs.isEmpty();
-					if (pathURLs.isEmpty()) {
-						failingDatasets.add(dataset);
+					DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.DICOM);
+					List<String> files = downloader.downloadDicomFilesForURLsAsZip(pathURLs, zipOutputStream, subjectName, dataset, datasetFilePath);
+					datasetFiles.addAll(files);
+
+					if(withInputFile){
+						filesByAcquisitionId.putIfAbsent(dataset.getDatasetAcquisition().getId(), new ArrayList<>());
+						filesByAcquisitionId.get(dataset.getDatasetAcquisition().getId()).addAll(datasetFiles);
 					}
-				} catch(OutOfMemoryError error) {
-					LOG.error("Out of memory error while copying files: ", error);
+
+				} else if (NII.equals(format)) {
+					DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.NIFTI_SINGLE_FILE);
+					List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, false, datasetFilePath);
+					datasetFiles.addAll(files);
+				} else if (BIDS.equals(format)) {
+					DatasetFileUtils.getDatasetFilePathURLs(dataset, pathURLs, DatasetExpressionFormat.BIDS);
+					List<String> files = DatasetFileUtils.copyNiftiFilesForURLs(pathURLs, zipOutputStream, dataset, subjectName, true, datasetFilePath);
+					datasetFiles.addAll(files);
+				} else {
 					throw new RestServiceException(
-							new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "The size of data you tried to download is too Important. Please split your download.", error));
-				} catch (Exception e) {
-					// Here we just keep in memory the list of failing files
-					LOG.error("Error while copying files: ", e);
+							new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "Please choose either nifti, dicom or eeg file type.", null));
+				}
+				isEmpty = isEmpty && pathURLs.isEmpty();
+				if (pathURLs.isEmpty()) {
 					failingDatasets.add(dataset);
 				}
-			}
-
-			// Check emptiness => no data at all
-			if (isEmpty) {
-				// Folder is empty => return an error
-				LOG.error("No files could be found for the dataset(s).");
+			} catch(OutOfMemoryError error) {
+				LOG.error("Out of memory error while copying files: ", error);
 				throw new RestServiceException(
-						new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "No files could be found for the dataset(s)."));
+						new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "The size of data you tried to download is too Important. Please split your download.", error));
+			} catch (Exception e) {
+				// Here we just keep in memory the list of failing files
+				LOG.error("Error while copying files: ", e);
+				failingDatasets.add(dataset);
 			}
+		}
 
-			// Check for errors
-			if (!failingDatasets.isEmpty()) {
-				StringBuilder listOfDatasets = new StringBuilder();
-				for (Dataset dataset : failingDatasets) {
-					listOfDatasets.append("(ID = ").append(dataset.getId())
-					.append(") ")
-					.append(dataset.getName())
-					.append("\n");
-				}
+		// Check emptiness => no data at all
+		if (isEmpty) {
+			// Folder is empty => return an error
+			LOG.error("No files could be found for the dataset(s).");
+			throw new RestServiceException(
+					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "No files could be found for the dataset(s)."));
+		}
 
-				ZipEntry zipEntry = new ZipEntry(FAILURES_TXT);
-				zipEntry.setTime(System.currentTimeMillis());
-				zipOutputStream.putNextEntry(zipEntry);
-				zipOutputStream.write(listOfDatasets.toString().getBytes());
-				zipOutputStream.closeEntry();
+		// Check for errors
+		if (!failingDatasets.isEmpty()) {
+			StringBuilder listOfDatasets = new StringBuilder();
+			for (Dataset dataset : failingDatasets) {
+				listOfDatasets.append("(ID = ").append(dataset.getId())
+				.append(") ")
+				.append(dataset.getName())
+				.append("\n");
 			}
 
-			if(!filesByAcquisitionId.isEmpty()){
-				DatasetFileUtils.writeManifestForExport(zipOutputStream, filesByAcquisitionId);
-			}
+			ZipEntry zipEntry = new ZipEntry(FAILURES_TXT);
+			zipEntry.setTime(System.currentTimeMillis());
+			zipOutputStream.putNextEntry(zipEntry);
+			zipOutputStream.write(listOfDatasets.toString().getBytes());
+			zipOutputStream.closeEntry();
+		}
 
-			String ids = String.join(",", datasets.stream().map(dataset -> dataset.getId().toString()).collect(Collectors.toList()));
-			ShanoirEvent event = new ShanoirEvent(ShanoirEventType.DOWNLOAD_DATASET_EVENT, ids, KeycloakUtil.getTokenUserId(), ids + "." + format, ShanoirEvent.IN_PROGRESS);
-			event.setStatus(ShanoirEvent.SUCCESS);
-			eventService.publishEvent(event);
-		} catch (Exception e) {
-			LOG.error("Unexpected error while downloading dataset files.", e);
-			throw new RestServiceException(
-					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "Unexpected error while downloading dataset files"));
+		if(!filesByAcquisitionId.isEmpty()){
+			DatasetFileUtils.writeManifestForExport(zipOutputStream, filesByAcquisitionId);
 		}
 	}
 
+	private void publishMassiveDownloadEvent(String format, List<Dataset> datasets) {
+		String ids = String.join(",", datasets.stream().map(dataset -> dataset.getId().toString()).collect(Collectors.toList()));
+		ShanoirEvent event = new ShanoirEvent(ShanoirEventType.DOWNLOAD_DATASET_EVENT, ids, KeycloakUtil.getTokenUserId(), ids + "." + format, ShanoirEvent.IN_PROGRESS);
+		event.setStatus(ShanoirEvent.SUCCESS);
+		eventService.publishEvent(event);
+	}
+
 }
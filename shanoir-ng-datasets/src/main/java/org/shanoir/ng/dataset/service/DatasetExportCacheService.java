@@ -0,0 +1,450 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.dataset.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletResponse;
+
+import org.shanoir.ng.dataset.model.Dataset;
+import org.shanoir.ng.shared.exception.RestServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+/**
+ * This service keeps the zip archives of massive downloads on disk, so that
+ * a download of the same datasets in the same format is served from the disk
+ * instead of being rebuilt from the PACS, and that an interrupted download can
+ * be resumed with a HTTP Range request.
+ *
+ * Archives are identified by a hash of their content definition (dataset ids,
+ * format and options), and a version of an archive by its ETag, built from its
+ * creation date and size. An archive with errors is sent once and not cached,
+ * the archives of a dataset are deleted when the dataset is updated or deleted,
+ * and when the cache exceeds its maximum size, the least recently used archives
+ * are deleted.
+ */
+@Service
+public class DatasetExportCacheService {
+
+	private static final String ZIP = ".zip";
+
+	private static final String PART = ".part";
+
+	/** The ids of the datasets of an archive, to delete it when one of them changes */
+	private static final String IDS = ".ids";
+
+	private static final String BYTES = "bytes";
+
+	private static final long MEGA_BYTE = 1024L * 1024L;
+
+	private static final Logger LOG = LoggerFactory.getLogger(DatasetExportCacheService.class);
+
+	@Value("${export-cache.enabled:false}")
+	private boolean enabled;
+
+	@Value("${export-cache.folder:/var/datasets-data/export-cache}")
+	private String cacheFolder;
+
+	@Value("${export-cache.max-size-mb:51200}")
+	private long maxSizeMb;
+
+	/** The archives being built, so that the same archive is not built twice at the same time */
+	private final ConcurrentMap<String, CompletableFuture<Void>> builds = new ConcurrentHashMap<>();
+
+	/** Incremented by each invalidation: an archive built meanwhile may be outdated, and is not cached */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Writes the content of an archive.
+	 */
+	@FunctionalInterface
+	public interface ArchiveWriter {
+
+		/**
+		 * @return false if some files could not be written into the archive: it is then not cached
+		 */
+		boolean write(OutputStream outputStream) throws IOException, RestServiceException;
+	}
+
+	/**
+	 * An archive open for sending: it stays readable until it is closed, even if it
+	 * is deleted from the cache in the meantime.
+	 */
+	public static final class Archive implements Closeable {
+
+		private final FileChannel channel;
+
+		private final long length;
+
+		private final long lastModified;
+
+		private final String eTag;
+
+		/** The file of an archive not cached, deleted on close */
+		private final Path temporaryFile;
+
+		private Archive(final FileChannel channel, final long lastModified, final String key, final Path temporaryFile) throws IOException {
+			this.channel = channel;
+			this.length = channel.size();
+			this.lastModified = lastModified;
+			this.eTag = "\"" + key + "-" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+			this.temporaryFile = temporaryFile;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public boolean isCached() {
+			return temporaryFile == null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				if (temporaryFile != null) {
+					Files.deleteIfExists(temporaryFile);
+				}
+			}
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			File folder = new File(cacheFolder);
+			if (!folder.exists() && !folder.mkdirs()) {
+				LOG.error("Export cache folder {} could not be created.", cacheFolder);
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Computes the key of the archive of the given datasets: the order of the datasets does not matter.
+	 *
+	 * @param datasets
+	 * @param format
+	 * @param options other parameters that change the content of the archive
+	 * @return
+	 */
+	public String computeKey(final List<Dataset> datasets, final String format, final Object... options) {
+		String ids = datasets.stream().map(Dataset::getId).sorted().map(String::valueOf).collect(Collectors.joining(","));
+		String definition = ids + "|" + format + "|" + Arrays.toString(options);
+		return DigestUtils.md5DigestAsHex(definition.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the archive of the given key, after creating it with the writer if it is not in the cache.
+	 * The archive is written in a temporary file, that is renamed once complete,
+	 * so that an incomplete archive is never served. An archive written with errors,
+	 * or while one of the datasets was changed, is returned without being cached.
+	 * A request of an archive being built waits for the end of the build, then
+	 * gets the archive from the cache, or builds it again if it was not cached.
+	 *
+	 * @param key
+	 * @param datasetIds the ids of the datasets of the archive
+	 * @param writer
+	 * @return the archive, to close once sent
+	 * @throws IOException
+	 * @throws RestServiceException
+	 */
+	public Archive getOrCreate(final String key, final Collection<Long> datasetIds, final ArchiveWriter writer) throws IOException, RestServiceException {
+		Path archivePath = Paths.get(cacheFolder, key + ZIP);
+		while (true) {
+			Archive archive = openCached(archivePath, key);
+			if (archive != null) {
+				return archive;
+			}
+			CompletableFuture<Void> build = new CompletableFuture<>();
+			CompletableFuture<Void> runningBuild = builds.putIfAbsent(key, build);
+			if (runningBuild != null) {
+				// served from the cache once built, or built again if it could not be cached
+				runningBuild.join();
+				continue;
+			}
+			try {
+				// cached by a build ended between the first look and the registration of this one
+				archive = openCached(archivePath, key);
+				if (archive != null) {
+					return archive;
+				}
+				archive = build(archivePath, key, datasetIds, writer);
+			} finally {
+				builds.remove(key, build);
+				build.complete(null);
+			}
+			if (archive.isCached()) {
+				evict(archivePath.toFile());
+			}
+			return archive;
+		}
+	}
+
+	/**
+	 * @return the archive of the cache, or null if it is not in the cache
+	 */
+	private Archive openCached(final Path archivePath, final String key) throws IOException {
+		Archive archive = open(archivePath, key, null);
+		if (archive != null) {
+			LOG.info("Export archive {} served from the cache.", key);
+			// used by the eviction, the last modified date is the one of the ETag
+			try {
+				Files.getFileAttributeView(archivePath, BasicFileAttributeView.class).setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+			} catch (IOException e) {
+				LOG.debug("Access time of export archive {} not updated.", key, e);
+			}
+		}
+		return archive;
+	}
+
+	/**
+	 * Writes the archive, and puts it into the cache if it is complete and none of its datasets has changed meanwhile.
+	 */
+	private Archive build(final Path archivePath, final String key, final Collection<Long> datasetIds, final ArchiveWriter writer) throws IOException, RestServiceException {
+		final long invalidation = invalidations.get();
+		Path part = Files.createTempFile(Paths.get(cacheFolder), key, PART);
+		boolean complete;
+		try (OutputStream outputStream = Files.newOutputStream(part)) {
+			complete = writer.write(outputStream);
+		} catch (IOException | RestServiceException | RuntimeException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+		if (!complete || invalidation != invalidations.get()) {
+			LOG.info("Export archive {} not cached: {}.", key, complete ? "a dataset has changed meanwhile" : "some files could not be written");
+			return open(part, key, part);
+		}
+		// opened before the rename, so that an eviction can not delete it before it is sent
+		Archive archive = open(part, key, null);
+		Files.write(Paths.get(cacheFolder, key + IDS), datasetIds.stream().map(String::valueOf).collect(Collectors.joining(",")).getBytes(StandardCharsets.UTF_8));
+		Files.move(part, archivePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return archive;
+	}
+
+	/**
+	 * @return the opened archive, or null if the file does not exist (anymore)
+	 */
+	private Archive open(final Path path, final String key, final Path temporaryFile) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			long lastModified = Files.getLastModifiedTime(path).toMillis();
+			return new Archive(channel, lastModified, key, temporaryFile);
+		} catch (NoSuchFileException e) {
+			channel.close();
+			return null;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the archives containing one of the given datasets.
+	 *
+	 * @param datasetIds
+	 */
+	public void invalidate(final Collection<Long> datasetIds) {
+		if (!enabled) {
+			return;
+		}
+		invalidations.incrementAndGet();
+		Set<String> ids = datasetIds.stream().map(String::valueOf).collect(Collectors.toCollection(HashSet::new));
+		File[] idsFiles = new File(cacheFolder).listFiles((dir, name) -> name.endsWith(IDS));
+		if (idsFiles == null) {
+			return;
+		}
+		for (File idsFile : idsFiles) {
+			try {
+				String content = new String(Files.readAllBytes(idsFile.toPath()), StandardCharsets.UTF_8);
+				if (Arrays.stream(content.split(",")).anyMatch(ids::contains)) {
+					String key = idsFile.getName().substring(0, idsFile.getName().length() - IDS.length());
+					delete(new File(cacheFolder, key + ZIP));
+					LOG.info("Export archive {} invalidated.", key);
+				}
+			} catch (NoSuchFileException e) {
+				// deleted meanwhile
+			} catch (IOException e) {
+				LOG.error("Export archive of {} could not be invalidated.", idsFile.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the archive in the response, or only the requested part of it
+	 * if a single byte range is requested, and if the If-Range condition, if any,
+	 * matches the version of the archive.
+	 *
+	 * @param archive
+	 * @param range value of the Range header, can be null
+	 * @param ifRange value of the If-Range header, can be null
+	 * @param response
+	 * @throws IOException
+	 */
+	public void sendArchive(final Archive archive, final String range, final String ifRange, final HttpServletResponse response) throws IOException {
+		long length = archive.getLength();
+		long start = 0;
+		long end = length - 1;
+		response.setContentType("application/zip");
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES);
+		response.setHeader(HttpHeaders.ETAG, archive.getETag());
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, archive.getLastModified());
+		if (range != null && matchesIfRange(archive, ifRange)) {
+			List<HttpRange> ranges;
+			try {
+				ranges = HttpRange.parseRanges(range);
+			} catch (IllegalArgumentException e) {
+				ranges = new ArrayList<>();
+			}
+			// multipart/byteranges answers are not supported: the whole archive is sent
+			if (ranges.size() == 1) {
+				start = ranges.get(0).getRangeStart(length);
+				if (start >= length) {
+					response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+					response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES + " */" + length);
+					return;
+				}
+				end = ranges.get(0).getRangeEnd(length);
+				response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+				response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES + " " + start + "-" + end + "/" + length);
+			}
+		}
+		response.setContentLengthLong(end - start + 1);
+		WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+		long position = start;
+		while (position <= end) {
+			position += archive.channel.transferTo(position, end - position + 1, out);
+		}
+		response.flushBuffer();
+	}
+
+	/**
+	 * A range of another version of the archive must not be resumed with this one:
+	 * the If-Range condition is a strong ETag, or a date compared at the second.
+	 */
+	private boolean matchesIfRange(final Archive archive, final String ifRange) {
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(archive.getETag());
+		}
+		try {
+			HttpHeaders headers = new HttpHeaders();
+			headers.set(HttpHeaders.IF_RANGE, ifRange);
+			return headers.getFirstDate(HttpHeaders.IF_RANGE) / 1000 == archive.getLastModified() / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used archives until the cache is smaller than its maximum size.
+	 *
+	 * @param kept archive that is never deleted, as it is about to be sent
+	 */
+	private void evict(final File kept) {
+		File[] archives = new File(cacheFolder).listFiles((dir, name) -> name.endsWith(ZIP));
+		if (archives == null) {
+			return;
+		}
+		long size = 0;
+		for (File archive : archives) {
+			size += archive.length();
+		}
+		Arrays.sort(archives, Comparator.comparingLong(DatasetExportCacheService::lastAccessTime));
+		for (File archive : archives) {
+			if (size <= maxSizeMb * MEGA_BYTE) {
+				break;
+			}
+			if (!archive.equals(kept)) {
+				long archiveSize = archive.length();
+				if (delete(archive)) {
+					size -= archiveSize;
+					LOG.info("Export archive {} evicted from the cache.", archive.getName());
+				}
+			}
+		}
+	}
+
+	private boolean delete(final File archive) {
+		String name = archive.getName();
+		new File(archive.getParentFile(), name.substring(0, name.length() - ZIP.length()) + IDS).delete();
+		return archive.delete();
+	}
+
+	private static long lastAccessTime(final File archive) {
+		try {
+			return Files.readAttributes(archive.toPath(), BasicFileAttributes.class).lastAccessTime().toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+}
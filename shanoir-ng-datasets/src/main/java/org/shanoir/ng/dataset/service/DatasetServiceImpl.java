@@ -17,6 +17,7 @@ package org.shanoir.ng.dataset.service;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +35,7 @@ import org.shanoir.ng.dataset.model.DatasetExpressionFormat;
 import org.shanoir.ng.dataset.repository.DatasetRepository;
 import org.shanoir.ng.datasetfile.DatasetFile;
 import org.shanoir.ng.dicom.web.service.DICOMWebService;
+import org.shanoir.ng.download.DicomAttributesCacheService;
 import org.shanoir.ng.shared.event.ShanoirEvent;
 import org.shanoir.ng.shared.event.ShanoirEventService;
 import org.shanoir.ng.shared.event.ShanoirEventType;
@@ -81,6 +83,12 @@ public class DatasetServiceImpl implements DatasetService {
 	@Autowired
 	private DICOMWebService dicomWebService;
 
+	@Autowired
+	private DicomAttributesCacheService dicomAttributesCache;
+
+	@Autowired
+	private DatasetExportCacheService exportCache;
+
 	@Value("${dcm4chee-arc.dicom.web}")
 	private boolean dicomWeb;
 
@@ -92,12 +100,14 @@ public class DatasetServiceImpl implements DatasetService {
 		}
 		repository.deleteById(id);
 		solrService.deleteFromIndex(id);
+		exportCache.invalidate(Collections.singletonList(id));
 		this.deleteDatasetFromPacs(datasetDb);
 		shanoirEventService.publishEvent(new ShanoirEvent(ShanoirEventType.DELETE_DATASET_EVENT, id.toString(), KeycloakUtil.getTokenUserId(), "", ShanoirEvent.SUCCESS, datasetDb.getStudyId()));
 	}
 
 	@Override
 	public void deleteDatasetFromPacs(Dataset dataset) throws ShanoirException {
+		dicomAttributesCache.evict(dataset);
 		if (dicomWeb) {
 			for (DatasetExpression expression : dataset.getDatasetExpressions()) {
 				if (DatasetExpressionFormat.DICOM.equals(expression.getDatasetExpressionFormat())) {
@@ -132,9 +142,11 @@ public class DatasetServiceImpl implements DatasetService {
 		Map<Long, Long> datasetStudyMap = new HashMap<>();
 		for (Dataset ds : dss) {
 			datasetStudyMap.put(ds.getId(), ds.getStudyId());
+			dicomAttributesCache.evict(ds);
 		}
 		repository.deleteByIdIn(ids);
 		solrService.deleteFromIndex(ids);
+		exportCache.invalidate(ids);
 		for (Long id : ids) {
 			shanoirEventService.publishEvent(new ShanoirEvent(ShanoirEventType.DELETE_DATASET_EVENT, id.toString(), KeycloakUtil.getTokenUserId(), "", ShanoirEvent.SUCCESS, datasetStudyMap.get(id)));
 		}
@@ -169,6 +181,7 @@ public class DatasetServiceImpl implements DatasetService {
 		}
 		updateDatasetValues(datasetDb, dataset);
 		Dataset ds = repository.save(datasetDb);
+		exportCache.invalidate(Collections.singletonList(ds.getId()));
 		shanoirEventService.publishEvent(new ShanoirEvent(ShanoirEventType.UPDATE_DATASET_EVENT, ds.getId().toString(), KeycloakUtil.getTokenUserId(), "", ShanoirEvent.SUCCESS, datasetDb.getStudyId()));
 		return ds;
 	}
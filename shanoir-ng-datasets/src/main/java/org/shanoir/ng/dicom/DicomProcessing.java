@@ -2,12 +2,12 @@
  * Shanoir NG - Import, manage and share neuroimaging data
  * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
  * Contact us on https://project.inria.fr/shanoir/
- * 
+ *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU General Public License as published by
  * the Free Software Foundation, either version 3 of the License, or
  * (at your option) any later version.
- * 
+ *
  * You should have received a copy of the GNU General Public License
  * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
  */
@@ -16,28 +16,120 @@ package org.shanoir.ng.dicom;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 import org.shanoir.ng.importer.dto.DatasetFile;
 import org.springframework.stereotype.Service;
 
+/**
+ * Reads the DICOM attributes of the imported files. The pixel data are never loaded.
+ *
+ * During an import, between startImportCache() and clearImportCache(), the headers
+ * are cached by file path and reading mode, so that the first file of a serie, used by
+ * the study cards, the quality cards and the dataset creation, is read only once.
+ * clearImportCache() must be called in a finally block, as the threads are pooled.
+ */
 @Service
 public class DicomProcessing {
-	
+
+	/** Import cache of the current thread, null outside an import */
+	private final ThreadLocal<ImportCache> importCache = new ThreadLocal<>();
+
+	/**
+	 * Starts to cache the headers read by the current thread.
+	 */
+	public void startImportCache() {
+		importCache.set(new ImportCache());
+	}
+
+	/**
+	 * Stops to cache the headers read by the current thread, and releases them.
+	 */
+	public void clearImportCache() {
+		importCache.remove();
+	}
+
+	/**
+	 * Returns all the attributes of the file, except the pixel data.
+	 *
+	 * @param image
+	 * @param isEnhancedMR
+	 * @return
+	 * @throws IOException
+	 */
 	public Attributes getDicomObjectAttributes(DatasetFile image, Boolean isEnhancedMR) throws IOException {
-		File dicomFile = new File(image.getPath());
+		boolean withBulkData = isEnhancedMR != null && isEnhancedMR;
+		ImportCache cache = importCache.get();
+		Attributes datasetAttributes = cache != null ? cache.get(withBulkData).get(image.getPath()) : null;
+		if (datasetAttributes == null) {
+			datasetAttributes = readHeader(new File(image.getPath()), withBulkData);
+			if (cache != null) {
+				cache.get(withBulkData).put(image.getPath(), datasetAttributes);
+			}
+		}
+		return datasetAttributes;
+	}
+
+	/**
+	 * Returns only the selected attributes of the file, for the files whose other
+	 * attributes are not needed: they are not kept in the import cache.
+	 *
+	 * @param image
+	 * @param selection the tags to return, that must be before the pixel data
+	 * @return
+	 * @throws IOException
+	 */
+	public Attributes getSelectedDicomObjectAttributes(DatasetFile image, int... selection) throws IOException {
+		// the selected tags are read in both modes
+		ImportCache cache = importCache.get();
+		Attributes datasetAttributes = null;
+		if (cache != null) {
+			datasetAttributes = cache.get(false).get(image.getPath());
+			if (datasetAttributes == null) {
+				datasetAttributes = cache.get(true).get(image.getPath());
+			}
+		}
+		if (datasetAttributes == null) {
+			datasetAttributes = readHeader(new File(image.getPath()), false);
+		}
+		int[] sortedSelection = selection.clone();
+		Arrays.sort(sortedSelection);
+		Attributes selectedAttributes = new Attributes(sortedSelection.length);
+		selectedAttributes.addSelected(datasetAttributes, sortedSelection);
+		return selectedAttributes;
+	}
+
+	private Attributes readHeader(File dicomFile, boolean withBulkData) throws IOException {
 		try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
-			Attributes datasetAttributes;
-			if (isEnhancedMR != null && isEnhancedMR) {
-				// In case of Enhanced MR, we need to the pixel data in order to use Dcm4chee emf extract method.
-				datasetAttributes = dIS.readDataset(-1);
-			} else {
-				// Else we do not load the picture in Ram for faster performance.
-				datasetAttributes = dIS.readDataset(Tag.PixelData);
+			if (withBulkData) {
+				// In case of Enhanced MR, the Dcm4chee emf extract method needs the pixel data:
+				// they are only referenced, not loaded in Ram.
+				dIS.setIncludeBulkData(IncludeBulkData.URI);
+				return dIS.readDataset(-1, -1);
 			}
-			return datasetAttributes;
+			// Else we stop before the picture for faster performance.
+			return dIS.readDataset(-1, Tag.PixelData);
+		}
+	}
+
+	/**
+	 * The headers read with the references to the bulk data, for the Enhanced MR,
+	 * are cached apart from the headers read up to the pixel data.
+	 */
+	private static class ImportCache {
+
+		private final Map<String, Attributes> headers = new HashMap<>();
+
+		private final Map<String, Attributes> headersWithBulkData = new HashMap<>();
+
+		Map<String, Attributes> get(boolean withBulkData) {
+			return withBulkData ? headersWithBulkData : headers;
 		}
 	}
 
@@ -0,0 +1,221 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+
+import org.shanoir.ng.dataset.model.Dataset;
+import org.shanoir.ng.dataset.model.DatasetExpressionFormat;
+import org.shanoir.ng.dataset.service.DatasetUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * This service keeps on disk the DICOM metadata (WADO-RS JSON) read from the PACS
+ * for the study cards and the quality cards, by series instance UID, so that
+ * applying a card again does not request the PACS for each acquisition.
+ *
+ * An entry expires ttl-hours after having been read from the PACS. When the cache
+ * has more than max-entries, the least recently used entries are deleted. The
+ * entries of a dataset are deleted with the dataset.
+ */
+@Service
+public class DicomAttributesCacheService {
+
+	private static final String JSON = ".json";
+
+	private static final String PART = ".part";
+
+	private static final Pattern WADO_RS_SERIES = Pattern.compile("/series/([0-9.]+)");
+
+	private static final Pattern WADO_URI_SERIES = Pattern.compile("seriesUID=([0-9.]+)");
+
+	private static final Logger LOG = LoggerFactory.getLogger(DicomAttributesCacheService.class);
+
+	@Value("${dicom-attributes-cache.enabled:true}")
+	private boolean enabled;
+
+	@Value("${dicom-attributes-cache.folder:/var/datasets-data/dicom-attributes-cache}")
+	private String cacheFolder;
+
+	@Value("${dicom-attributes-cache.max-entries:100000}")
+	private int maxEntries;
+
+	@Value("${dicom-attributes-cache.ttl-hours:720}")
+	private long ttlHours;
+
+	/** Last access time of the entries, by series instance UID. The file date is the PACS read date */
+	private final Map<String, Long> lastAccesses = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			File folder = new File(cacheFolder);
+			if (!folder.exists() && !folder.mkdirs()) {
+				LOG.error("DICOM attributes cache folder {} could not be created, cache disabled.", cacheFolder);
+				enabled = false;
+				return;
+			}
+			File[] entries = folder.listFiles((dir, name) -> name.endsWith(JSON));
+			if (entries != null) {
+				for (File entry : entries) {
+					lastAccesses.put(entry.getName().substring(0, entry.getName().length() - JSON.length()), entry.lastModified());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached metadata of a series.
+	 *
+	 * @param seriesInstanceUID can be null
+	 * @return the WADO-RS JSON metadata, or null if not cached or expired
+	 */
+	public String get(final String seriesInstanceUID) {
+		if (!enabled || seriesInstanceUID == null || !lastAccesses.containsKey(seriesInstanceUID)) {
+			return null;
+		}
+		File entry = new File(cacheFolder, seriesInstanceUID + JSON);
+		if (System.currentTimeMillis() - entry.lastModified() > TimeUnit.HOURS.toMillis(ttlHours)) {
+			evict(seriesInstanceUID);
+			return null;
+		}
+		try {
+			String json = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+			lastAccesses.put(seriesInstanceUID, System.currentTimeMillis());
+			return json;
+		} catch (IOException e) {
+			// deleted meanwhile
+			lastAccesses.remove(seriesInstanceUID);
+			return null;
+		}
+	}
+
+	/**
+	 * Caches the metadata of a series. The entry is written in a temporary file,
+	 * that is renamed once complete, so that an incomplete entry is never read.
+	 *
+	 * @param seriesInstanceUID can be null: nothing is cached
+	 * @param json
+	 */
+	public void put(final String seriesInstanceUID, final String json) {
+		if (!enabled || seriesInstanceUID == null || json == null) {
+			return;
+		}
+		try {
+			Path part = Files.createTempFile(Paths.get(cacheFolder), seriesInstanceUID, PART);
+			try {
+				Files.write(part, json.getBytes(StandardCharsets.UTF_8));
+				Files.move(part, Paths.get(cacheFolder, seriesInstanceUID + JSON), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(part);
+			}
+			lastAccesses.put(seriesInstanceUID, System.currentTimeMillis());
+		} catch (IOException e) {
+			LOG.warn("DICOM attributes of series {} could not be cached.", seriesInstanceUID, e);
+			return;
+		}
+		if (lastAccesses.size() > maxEntries) {
+			evictLeastRecentlyUsed();
+		}
+	}
+
+	/**
+	 * Deletes the entries of the series of a dataset.
+	 *
+	 * @param dataset
+	 */
+	public void evict(final Dataset dataset) {
+		if (!enabled) {
+			return;
+		}
+		List<URL> urls = new ArrayList<>();
+		try {
+			DatasetUtils.getDatasetFilePathURLs(dataset, urls, DatasetExpressionFormat.DICOM);
+		} catch (MalformedURLException e) {
+			LOG.warn("DICOM attributes of dataset {} could not be evicted from the cache.", dataset.getId(), e);
+		}
+		for (URL url : urls) {
+			String seriesInstanceUID = getSeriesInstanceUID(url);
+			if (seriesInstanceUID != null) {
+				evict(seriesInstanceUID);
+			}
+		}
+	}
+
+	/**
+	 * @param url a WADO-RS or WADO-URI url
+	 * @return the series instance UID of the url, or null if not found
+	 */
+	public String getSeriesInstanceUID(final URL url) {
+		String urlStr = url.toString();
+		Matcher matcher = WADO_RS_SERIES.matcher(urlStr);
+		if (matcher.find()) {
+			return matcher.group(1);
+		}
+		matcher = WADO_URI_SERIES.matcher(urlStr);
+		if (matcher.find()) {
+			return matcher.group(1);
+		}
+		return null;
+	}
+
+	private void evict(final String seriesInstanceUID) {
+		if (lastAccesses.remove(seriesInstanceUID) != null) {
+			try {
+				Files.deleteIfExists(Paths.get(cacheFolder, seriesInstanceUID + JSON));
+			} catch (IOException e) {
+				LOG.warn("DICOM attributes of series {} could not be evicted from the cache.", seriesInstanceUID, e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used tenth of the entries, to not sort them at each new entry.
+	 */
+	private synchronized void evictLeastRecentlyUsed() {
+		int toEvict = lastAccesses.size() - maxEntries + maxEntries / 10;
+		if (toEvict <= 0) {
+			return;
+		}
+		List<Entry<String, Long>> entries = new ArrayList<>(lastAccesses.entrySet());
+		entries.sort(Entry.comparingByValue());
+		for (int i = 0; i < toEvict && i < entries.size(); i++) {
+			evict(entries.get(i).getKey());
+		}
+		LOG.info("{} DICOM attributes evicted from the cache.", toEvict);
+	}
+
+}
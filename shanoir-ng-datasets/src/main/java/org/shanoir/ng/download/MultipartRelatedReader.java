@@ -0,0 +1,270 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.download;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class reads a multipart/related message, as returned by a PACS for WADO-RS
+ * requests, directly from its stream: the body of each part is given as a stream,
+ * that ends at the next boundary. Only a fixed size buffer is kept in memory,
+ * whatever the size of the parts.
+ *
+ * Usage:
+ * 	while (reader.nextPart()) {
+ * 		reader.getPartContentType();
+ * 		reader.getPartInputStream();
+ * 	}
+ *
+ * The underlying stream is not closed by this class.
+ */
+public class MultipartRelatedReader {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final String BOUNDARY = "boundary=";
+
+	private final InputStream in;
+
+	/** CRLF + "--" + boundary */
+	private final byte[] delimiter;
+
+	private final byte[] buffer;
+
+	private int pos;
+
+	private int limit;
+
+	/** end of the underlying stream reached */
+	private boolean eof;
+
+	/** body of the current part (or the preamble) entirely read */
+	private boolean partEnded;
+
+	/** closing delimiter read */
+	private boolean lastPart;
+
+	private String partContentType;
+
+	private final InputStream partInputStream = new PartInputStream();
+
+	public MultipartRelatedReader(final InputStream in, final String boundary) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+		this.buffer = new byte[Math.max(BUFFER_SIZE, 2 * delimiter.length)];
+		// the first boundary is not preceded by a line break: add one to find it as the others
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		this.limit = 2;
+	}
+
+	/**
+	 * Extracts the boundary parameter from a multipart Content-Type header value.
+	 *
+	 * @param contentType
+	 * @return the boundary, null if not found
+	 */
+	public static String extractBoundary(final String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		for (String parameter : contentType.split(";")) {
+			String trimmed = parameter.trim();
+			if (trimmed.regionMatches(true, 0, BOUNDARY, 0, BOUNDARY.length())) {
+				String boundary = trimmed.substring(BOUNDARY.length()).trim();
+				if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+					boundary = boundary.substring(1, boundary.length() - 1);
+				}
+				return boundary;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Skips what remains of the current part and reads the headers of the next one.
+	 *
+	 * @return false if there is no more part
+	 * @throws IOException
+	 */
+	public boolean nextPart() throws IOException {
+		if (lastPart) {
+			return false;
+		}
+		while (readPartBody(null, 0, buffer.length) != -1) {
+			// skip the end of the current part, or the preamble
+		}
+		if (!fill(2)) {
+			throw new EOFException("Unexpected end of multipart message.");
+		}
+		// the closing delimiter is followed by "--"
+		if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+			pos += 2;
+			lastPart = true;
+			return false;
+		}
+		// ignore transport padding, until the end of the delimiter line
+		readLine();
+		partContentType = null;
+		String header = readLine();
+		while (!header.isEmpty()) {
+			int colon = header.indexOf(':');
+			if (colon > 0 && "Content-Type".equalsIgnoreCase(header.substring(0, colon).trim())) {
+				partContentType = header.substring(colon + 1).trim();
+			}
+			header = readLine();
+		}
+		partEnded = false;
+		return true;
+	}
+
+	/**
+	 * @return the Content-Type header of the current part, null if none
+	 */
+	public String getPartContentType() {
+		return partContentType;
+	}
+
+	/**
+	 * @return the stream of the body of the current part, that ends at the next boundary.
+	 */
+	public InputStream getPartInputStream() {
+		return partInputStream;
+	}
+
+	/**
+	 * Reads (or skips if b is null) bytes of the current part body.
+	 *
+	 * @return the number of bytes read, -1 at the end of the part
+	 * @throws IOException
+	 */
+	private int readPartBody(final byte[] b, final int off, final int len) throws IOException {
+		if (partEnded) {
+			return -1;
+		}
+		fill(delimiter.length);
+		int available = limit - pos;
+		int index = indexOfDelimiter();
+		int readable;
+		if (index == pos) {
+			pos += delimiter.length;
+			partEnded = true;
+			return -1;
+		} else if (index > pos) {
+			readable = index - pos;
+		} else if (eof) {
+			if (available == 0) {
+				throw new EOFException("Unexpected end of multipart message.");
+			}
+			readable = available;
+		} else {
+			// keep the bytes that could be the beginning of a delimiter
+			readable = available - (delimiter.length - 1);
+		}
+		int count = Math.min(len, readable);
+		if (b != null) {
+			System.arraycopy(buffer, pos, b, off, count);
+		}
+		pos += count;
+		return count;
+	}
+
+	private int indexOfDelimiter() {
+		for (int i = pos; i <= limit - delimiter.length; i++) {
+			int j = 0;
+			while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+				j++;
+			}
+			if (j == delimiter.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads from the underlying stream until at least count bytes are available in the buffer.
+	 *
+	 * @return false if the end of the stream has been reached before
+	 * @throws IOException
+	 */
+	private boolean fill(final int count) throws IOException {
+		if (limit - pos >= count) {
+			return true;
+		}
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (!eof && limit < count) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read == -1) {
+				eof = true;
+			} else {
+				limit += read;
+			}
+		}
+		return limit - pos >= count;
+	}
+
+	/**
+	 * Reads a header line, without its line break.
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			if (!fill(1)) {
+				throw new EOFException("Unexpected end of multipart message.");
+			}
+			byte current = buffer[pos++];
+			if (current == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) (current & 0xFF));
+		}
+	}
+
+	private class PartInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read == -1 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			return readPartBody(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			// the underlying stream is managed by the caller
+		}
+	}
+
+}
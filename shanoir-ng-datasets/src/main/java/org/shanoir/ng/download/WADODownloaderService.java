@@ -14,33 +14,39 @@
 
 package org.shanoir.ng.download;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.json.Json;
 import javax.json.stream.JsonParser;
-import javax.mail.BodyPart;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.json.JSONReader;
@@ -55,13 +61,18 @@ import org.shanoir.ng.shared.model.Study;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
@@ -121,16 +132,38 @@ public class WADODownloaderService {
 
 	private static final String TXT = ".txt";
 
-	private static final String ERROR = "0000_ERROR_";
+	/** Prefix of the zip entry written for an instance that could not be downloaded */
+	public static final String ERROR = "0000_ERROR_";
+
+	private static final String WADO_TMP_FILE_PREFIX = "wado-";
 
 	private static final Logger LOG = LoggerFactory.getLogger(WADODownloaderService.class);
 
 	@Autowired
 	private RestTemplate restTemplate;
 
+	@Autowired
+	private DicomAttributesCacheService dicomAttributesCache;
+
+	/** Number of instances downloaded at the same time for one zip download */
+	@Value("${dcm4chee-arc.dicom.wado.download.parallel:4}")
+	private int wadoDownloadParallel;
+
+	/** Number of download threads shared by all zip downloads */
+	@Value("${dcm4chee-arc.dicom.wado.download.threads:32}")
+	private int wadoDownloadThreads;
+
+	private ExecutorService wadoDownloadExecutor;
+
 	@PostConstruct
 	public void initRestTemplate() {
 		restTemplate.getMessageConverters().add(new ByteArrayHttpMessageConverter());
+		wadoDownloadExecutor = Executors.newFixedThreadPool(Math.max(1, wadoDownloadThreads), new CustomizableThreadFactory("wado-download-"));
+	}
+
+	@PreDestroy
+	public void shutdownDownloadExecutor() {
+		wadoDownloadExecutor.shutdownNow();
 	}
 
 	/**
@@ -151,13 +184,26 @@ public class WADODownloaderService {
 	public List<String> downloadDicomFilesForURLsAsZip(final List<URL> urls, final ZipOutputStream zipOutputStream, String subjectName, Dataset dataset, String datasetFilePath) throws IOException, MessagingException {
 		int i = 0;
 		List<String> files = new ArrayList<>();
-		for (Iterator<URL> iterator = urls.iterator(); iterator.hasNext();) {
-			String url = ((URL) iterator.next()).toString();
-			String instanceUID = null;
-			// handle and check at first for WADO-RS URLs by "/instances/"
-			int indexInstanceUID = url.lastIndexOf(WADO_REQUEST_TYPE_WADO_RS);
-			if (indexInstanceUID > 0) {
-				instanceUID = url.substring(indexInstanceUID + WADO_REQUEST_TYPE_WADO_RS.length());
+		Deque<PendingInstance> window = new ArrayDeque<>();
+		try {
+			for (Iterator<URL> iterator = urls.iterator(); iterator.hasNext();) {
+				String url = ((URL) iterator.next()).toString();
+				String instanceUID = null;
+				// handle and check at first for WADO-RS URLs by "/instances/"
+				boolean wadoRS = true;
+				int indexInstanceUID = url.lastIndexOf(WADO_REQUEST_TYPE_WADO_RS);
+				if (indexInstanceUID > 0) {
+					instanceUID = url.substring(indexInstanceUID + WADO_REQUEST_TYPE_WADO_RS.length());
+				} else {
+					// handle and check secondly for WADO-URI URLs by "objectUID="
+					// instanceUID == objectUID
+					wadoRS = false;
+					indexInstanceUID = url.lastIndexOf(WADO_REQUEST_TYPE_WADO_URI);
+					if (indexInstanceUID <= 0) {
+						throw new IOException("URL for download is neither in WADO-RS nor in WADO-URI format. Please verify database contents.");
+					}
+					instanceUID = extractInstanceUID(url, instanceUID);
+				}
 
 				String serieDescription = dataset.getUpdatedMetadata().getName();
 				DateTimeFormatter formatter = DateTimeFormatter.ofPattern("YYYYMMdd");
@@ -172,62 +218,98 @@ public class WADODownloaderService {
 					name = datasetFilePath + File.separator + name;
 				}
 
-				byte[] responseBody = downloadFileFromPACS(url);
-
-				ZipEntry entry = new ZipEntry(name + DCM);
-				entry.setSize(responseBody.length);
-				zipOutputStream.putNextEntry(entry);
-				zipOutputStream.write(responseBody);
-				zipOutputStream.closeEntry();
-				files.add(name+DCM);
-			} else {
-				// handle and check secondly for WADO-URI URLs by "objectUID="
-				// instanceUID == objectUID
-				indexInstanceUID = url.lastIndexOf(WADO_REQUEST_TYPE_WADO_URI);
-				if (indexInstanceUID <= 0) {
-					throw new IOException("URL for download is neither in WADO-RS nor in WADO-URI format. Please verify database contents.");
+				// keep at most wadoDownloadParallel instances in flight: the oldest one
+				// is written to the zip before a new fetch is started, so that the order
+				// of the zip entries stays the one of the urls list
+				if (window.size() >= Math.max(1, wadoDownloadParallel)) {
+					i = writeToZip(window.poll(), zipOutputStream, files, i);
 				}
-				instanceUID = extractInstanceUID(url, instanceUID);
-
-				String serieDescription = dataset.getUpdatedMetadata().getName();
-				DateTimeFormatter formatter = DateTimeFormatter.ofPattern("YYYYMMdd");
-				String examDate = dataset.getDatasetAcquisition().getExamination().getExaminationDate().format(formatter);
-				String name = subjectName + "_" + examDate + "_" + serieDescription + "_" + instanceUID;
-
-				// Replace all forbidden characters.
-				name = name.replaceAll("[^a-zA-Z0-9\\.\\-]", "_");
+				window.add(submitDownload(url, name, wadoRS));
+			}
+			while (!window.isEmpty()) {
+				i = writeToZip(window.poll(), zipOutputStream, files, i);
+			}
+		} finally {
+			// in case of error: cancel the remaining downloads, their temporary files
+			// are deleted once their download thread does not write them anymore
+			for (PendingInstance pending : window) {
+				pending.abandon();
+			}
+		}
+		return files;
+	}
 
-				// add folder logic if necessary
-				if (datasetFilePath != null) {
-					name = datasetFilePath + File.separator + name;
-				}
+	/**
+	 * Starts the download of one instance from the PACS into a temporary file,
+	 * using the shared pool of download threads.
+	 * 
+	 * @param url
+	 * @param name
+	 * @param wadoRS
+	 * @return
+	 * @throws IOException
+	 */
+	private PendingInstance submitDownload(final String url, final String name, final boolean wadoRS) throws IOException {
+		Path tmpFile = Files.createTempFile(WADO_TMP_FILE_PREFIX, DCM);
+		PendingInstance pending = new PendingInstance(name, wadoRS, tmpFile);
+		pending.future = wadoDownloadExecutor.submit(() -> pending.download(() -> downloadFileFromPACS(url, tmpFile)));
+		return pending;
+	}
 
-				byte[] responseBody = null;
-				try {
-					responseBody = downloadFileFromPACS(url);
-					ZipEntry entry = new ZipEntry(name + DCM);
-					entry.setSize(responseBody.length);
-					zipOutputStream.putNextEntry(entry);
-					zipOutputStream.write(responseBody);
-					zipOutputStream.closeEntry();
-					files.add(name+DCM);
-				} catch (Exception e) {
-					String error = "An error occured during the download of this .DCM file, please contact a shanoir administrator if necessary.";
-					byte[] strToBytes = error.getBytes();
-
-					ZipEntry entry = new ZipEntry(ERROR + i + "_" + name + TXT);
-					entry.setSize(responseBody.length);
-					zipOutputStream.putNextEntry(entry);
-					zipOutputStream.write(strToBytes);
-					zipOutputStream.closeEntry();
-
-					// LOG the error
-					LOG.error("A dicom file could not be downloaded from the pacs:", e);
-					continue;
+	/**
+	 * Waits for the download of the given instance and copies its content into a new zip entry,
+	 * or one entry per DICOM part if the PACS answered with several ones.
+	 * For WADO-URI urls a failing download is replaced by an error entry in the zip,
+	 * for WADO-RS urls the error is thrown.
+	 * 
+	 * @param pending
+	 * @param zipOutputStream
+	 * @param files
+	 * @param errorIndex
+	 * @return the index to use for the next error entry
+	 * @throws IOException
+	 */
+	private int writeToZip(final PendingInstance pending, final ZipOutputStream zipOutputStream, final List<String> files, int errorIndex) throws IOException {
+		List<Path> partFiles = null;
+		try {
+			partFiles = pending.future.get();
+			for (int part = 0; part < partFiles.size(); part++) {
+				String entryName = part == 0 ? pending.name + DCM : pending.name + UNDER_SCORE + (part + 1) + DCM;
+				ZipEntry entry = new ZipEntry(entryName);
+				entry.setSize(Files.size(partFiles.get(part)));
+				zipOutputStream.putNextEntry(entry);
+				Files.copy(partFiles.get(part), zipOutputStream);
+				zipOutputStream.closeEntry();
+				files.add(entryName);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Download from the pacs has been interrupted.", e);
+		} catch (ExecutionException e) {
+			if (pending.wadoRS) {
+				throw new IOException("A dicom file could not be downloaded from the pacs.", e.getCause());
+			}
+			String error = "An error occured during the download of this .DCM file, please contact a shanoir administrator if necessary.";
+			byte[] strToBytes = error.getBytes();
+
+			ZipEntry entry = new ZipEntry(ERROR + errorIndex + "_" + pending.name + TXT);
+			entry.setSize(strToBytes.length);
+			zipOutputStream.putNextEntry(entry);
+			zipOutputStream.write(strToBytes);
+			zipOutputStream.closeEntry();
+			errorIndex++;
+
+			// LOG the error
+			LOG.error("A dicom file could not be downloaded from the pacs:", e.getCause());
+		} finally {
+			Files.deleteIfExists(pending.tmpFile);
+			if (partFiles != null) {
+				for (Path partFile : partFiles) {
+					Files.deleteIfExists(partFile);
 				}
 			}
 		}
-		return files;
+		return errorIndex;
 	}
 
 	/**
@@ -254,8 +336,10 @@ public class WADODownloaderService {
 			int indexInstanceUID = url.lastIndexOf(WADO_REQUEST_TYPE_WADO_RS);
 			if (indexInstanceUID > 0) {
 				instanceUID = url.substring(indexInstanceUID + WADO_REQUEST_TYPE_WADO_RS.length());
-				byte[] responseBody = downloadFileFromPACS(url);
-				extractDICOMFilesFromMHTMLFile(responseBody, instanceUID, workFolder);
+				File extractedDicomFile = new File(workFolder.getPath() + File.separator + instanceUID + DCM);
+				for (Path partFile : downloadFileFromPACS(url, extractedDicomFile.toPath())) {
+					files.add(partFile.toFile());
+				}
 			} else {
 				// handle and check secondly for WADO-URI URLs by "objectUID="
 				// instanceUID == objectUID
@@ -273,9 +357,10 @@ public class WADODownloaderService {
 
 					File extractedDicomFile = new File(workFolder.getPath() + File.separator + name + DCM);
 
-					byte[] responseBody = null;
 					try {
-						responseBody = downloadFileFromPACS(url);
+						for (Path partFile : downloadFileFromPACS(url, extractedDicomFile.toPath())) {
+							files.add(partFile.toFile());
+						}
 					} catch (Exception e) {
 						// Just insert an error log into the file for missing dicoms.
 						File errorFile = new File(workFolder.getPath() + File.separator + ERROR + i + "_" + name + TXT);
@@ -288,11 +373,6 @@ public class WADODownloaderService {
 
 						// LOG the error
 						LOG.error("A dicom file could not be downloaded from the pacs:", e);
-						continue;
-					}
-					try (ByteArrayInputStream bIS = new ByteArrayInputStream(responseBody)) {
-						Files.copy(bIS, extractedDicomFile.toPath());
-						files.add(extractedDicomFile);
 					}
 				} else {
 					throw new IOException("URL for download is neither in WADO-RS nor in WADO-URI format. Please verify database contents.");
@@ -317,24 +397,67 @@ public class WADODownloaderService {
 		List<URL> urls = new ArrayList<>();
 		try {
 			DatasetUtils.getDatasetFilePathURLs(dataset, urls, DatasetExpressionFormat.DICOM);
-			if (!urls.isEmpty()) {
-				String jsonMetadataStr = downloadDicomMetadataForURL(urls.get(0));
-				JsonParser parser = Json.createParser(new StringReader(jsonMetadataStr));
-				Attributes dicomAttributes = new JSONReader(parser).readDataset(null);
-				if (dicomAttributes != null) {
-					return dicomAttributes;
-				} else {
-					LOG.error("Could not find dicom attributes for dataset with id: " + dataset.getId());
-				}
+		} catch (MalformedURLException e) {
+			throw new PacsException("Can not get dicom attributes for dataset " + dataset.getId(), e);
+		}
+		if (!urls.isEmpty()) {
+			Attributes dicomAttributes = getDicomAttributesForURL(urls.get(0));
+			if (dicomAttributes != null) {
+				return dicomAttributes;
 			} else {
-				LOG.error("Could not find dicom attributes for dataset with id: " + dataset.getId()
-				+ " : no pacs url for this dataset");
+				LOG.error("Could not find dicom attributes for dataset with id: " + dataset.getId());
 			}
-		} catch (IOException | MessagingException | RestClientException e) {
-			throw new PacsException("Can not get dicom attributes for dataset " + dataset.getId(), e);
+		} else {
+			LOG.error("Could not find dicom attributes for dataset with id: " + dataset.getId()
+			+ " : no pacs url for this dataset");
 		}
 		return null;
-	}	
+	}
+
+	/**
+	 * Returns the attributes of the DICOM instance of the url, from the cache or from the PACS.
+	 * As it does not use the entities, it can be called outside of a transaction.
+	 *
+	 * @param url WADO url of an instance
+	 * @return
+	 * @throws PacsException
+	 */
+	public Attributes getDicomAttributesForURL(URL url) throws PacsException {
+		try {
+			String seriesInstanceUID = dicomAttributesCache.getSeriesInstanceUID(url);
+			String jsonMetadataStr = dicomAttributesCache.get(seriesInstanceUID);
+			if (jsonMetadataStr == null) {
+				jsonMetadataStr = downloadDicomMetadataForURL(url);
+				dicomAttributesCache.put(seriesInstanceUID, jsonMetadataStr);
+			}
+			JsonParser parser = Json.createParser(new StringReader(jsonMetadataStr));
+			return new JSONReader(parser).readDataset(null);
+		} catch (IOException | MessagingException | RestClientException e) {
+			throw new PacsException("Can not get dicom attributes for " + url, e);
+		}
+	}
+
+	/**
+	 * Returns the url of the first DICOM instance of an examination, the one used
+	 * by getDicomAttributesForExamination.
+	 *
+	 * @param examination
+	 * @return the url, or null if the examination has no DICOM dataset
+	 * @throws PacsException
+	 */
+	public URL getFirstDicomURL(Examination examination) throws PacsException {
+		DatasetAcquisition acquisition = getFirstIfExist(examination.getDatasetAcquisitions());
+		if (acquisition == null) return null;
+		Dataset ds = getFirstIfExist(acquisition.getDatasets());
+		if (ds == null) return null;
+		List<URL> urls = new ArrayList<>();
+		try {
+			DatasetUtils.getDatasetFilePathURLs(ds, urls, DatasetExpressionFormat.DICOM);
+		} catch (MalformedURLException e) {
+			throw new PacsException("Can not get dicom attributes for dataset " + ds.getId(), e);
+		}
+		return urls.isEmpty() ? null : urls.get(0);
+	}
 
 	private String getExaminationFirstDatasetUrl(Examination examination) {
 		if (examination != null && examination.getDatasetAcquisitions() != null && !examination.getDatasetAcquisitions().isEmpty()
@@ -430,28 +553,39 @@ public class WADODownloaderService {
 	}
 
 	/**
-	 * This method contacts the PACS with a WADO-RS url and does the actual download.
+	 * This method contacts the PACS with a WADO url and streams the response body
+	 * into the target file, without holding it in memory. Multipart/related responses
+	 * (WADO-RS) are parsed on the fly and only their DICOM parts are written.
 	 * 
 	 * @param url
 	 * @param targetFile
-	 * @return
+	 * @return the written files: the target file, followed by one file per additional DICOM part
 	 * @throws IOException
 	 */
-	private byte[] downloadFileFromPACS(final String url) throws IOException {
-		HttpHeaders headers = new HttpHeaders();
-		headers.add(HttpHeaders.ACCEPT, CONTENT_TYPE_MULTIPART + "; type=" + CONTENT_TYPE_DICOM + ";");
-		HttpEntity<String> entity = new HttpEntity<>(headers);
-		ResponseEntity<byte[]> response = restTemplate.exchange(url,
-				HttpMethod.GET, entity, byte[].class, "1");
-		if (response.getStatusCode() == HttpStatus.OK) {
-			return response.getBody();
-		} else {
-			throw new IOException("Download did not work: wrong status code received.");
-		}
+	private List<Path> downloadFileFromPACS(final String url, final Path targetFile) throws IOException {
+		RequestCallback requestCallback = request -> request.getHeaders().add(HttpHeaders.ACCEPT, CONTENT_TYPE_MULTIPART + "; type=" + CONTENT_TYPE_DICOM + ";");
+		ResponseExtractor<List<Path>> responseExtractor = response -> {
+			if (response.getStatusCode() != HttpStatus.OK) {
+				throw new IOException("Download did not work: wrong status code received.");
+			}
+			MediaType contentType = response.getHeaders().getContentType();
+			if (contentType != null && MediaType.MULTIPART_RELATED.includes(contentType)) {
+				String boundary = MultipartRelatedReader.extractBoundary(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+				return extractDICOMFilesFromMultipartStream(response.getBody(), boundary, targetFile);
+			}
+			try {
+				Files.copy(response.getBody(), targetFile, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				// a truncated file is not left for the conversion or the download
+				Files.deleteIfExists(targetFile);
+				throw e;
+			}
+			return Collections.singletonList(targetFile);
+		};
+		return restTemplate.execute(url, HttpMethod.GET, requestCallback, responseExtractor);
 	}
 
 	private String downloadMetadataFromPACS(final String url) throws IOException {
-		restTemplate.getMessageConverters().add(new ByteArrayHttpMessageConverter());
 		HttpHeaders headers = new HttpHeaders();
 		headers.add(HttpHeaders.ACCEPT, CONTENT_TYPE_DICOM_JSON);
 		HttpEntity<String> entity = new HttpEntity<>(headers);
@@ -466,44 +600,50 @@ public class WADODownloaderService {
 	}
 
 	/**
-	 * This method reads in a file in format MHTML, one representation of a multipart/related response, that is given from
-	 * a PACS server, that supports WADO-RS requests.
+	 * This method reads a multipart/related response, that is given from a PACS server,
+	 * that supports WADO-RS requests, directly from the HTTP stream: each DICOM part is
+	 * copied into its file while it arrives, so memory usage does not depend on the
+	 * size of the instance.
 	 * 
-	 * MHTML, short for MIME Encapsulation of Aggregate HTML Documents, is a web page archive format used to combine in a single document
-	 * the HTML code and its companion resources that are otherwise represented by external links (such as images, Flash animations, Java applets,
-	 * and audio files). The content of an MHTML file is encoded as if it were an HTML e-mail message, using the MIME type multipart/related.
-	 * 
-	 * @param responseBody
-	 * @param instanceUID
-	 * @param workFolder
-	 * @throws FileNotFoundException
+	 * @param inputStream
+	 * @param boundary
+	 * @param targetFile file of the first part, the next ones are written next to it
+	 * @return the written files
 	 * @throws IOException
-	 * @throws MessagingException
 	 */
-	private void extractDICOMFilesFromMHTMLFile(final byte[] responseBody, final String instanceUID, final File workFolder)
-			throws IOException, MessagingException {
-		try(ByteArrayInputStream bIS = new ByteArrayInputStream(responseBody)) {
-			ByteArrayDataSource datasource = new ByteArrayDataSource(bIS, CONTENT_TYPE_MULTIPART);
-			MimeMultipart multipart = new MimeMultipart(datasource);
-			int count = multipart.getCount();
-			for (int i = 0; i < count; i++) {
-				BodyPart bodyPart = multipart.getBodyPart(i);
-				if (bodyPart.isMimeType(CONTENT_TYPE_DICOM) || bodyPart.isMimeType(CONTENT_TYPE_DICOM_XML)) {
-					File extractedDicomFile = null;
-					if (count == 1) {
-						extractedDicomFile = new File(workFolder.getPath() + File.separator + instanceUID + DCM);
-					} else {
-						extractedDicomFile = new File(workFolder.getPath() + File.separator + instanceUID + UNDER_SCORE + count + DCM);
-					}
-					Files.copy(bodyPart.getInputStream(), extractedDicomFile.toPath());
-				} else {
+	private List<Path> extractDICOMFilesFromMultipartStream(final InputStream inputStream, final String boundary, final Path targetFile)
+			throws IOException {
+		if (boundary == null) {
+			throw new IOException("Answer file from PACS is a multipart without boundary, stop here.");
+		}
+		List<Path> extractedDicomFiles = new ArrayList<>();
+		try {
+			MultipartRelatedReader reader = new MultipartRelatedReader(inputStream, boundary);
+			while (reader.nextPart()) {
+				String partContentType = reader.getPartContentType();
+				if (partContentType == null
+						|| !(partContentType.startsWith(CONTENT_TYPE_DICOM_XML) || partContentType.startsWith(CONTENT_TYPE_DICOM))) {
 					throw new IOException("Answer file from PACS contains other content-type than DICOM, stop here.");
 				}
+				Path extractedDicomFile = targetFile;
+				if (!extractedDicomFiles.isEmpty()) {
+					String fileName = targetFile.getFileName().toString();
+					fileName = fileName.substring(0, fileName.length() - DCM.length()) + UNDER_SCORE + (extractedDicomFiles.size() + 1) + DCM;
+					extractedDicomFile = targetFile.resolveSibling(fileName);
+				}
+				// added before the copy, to be deleted if the copy fails
+				extractedDicomFiles.add(extractedDicomFile);
+				Files.copy(reader.getPartInputStream(), extractedDicomFile, StandardCopyOption.REPLACE_EXISTING);
 			}
+		} catch (IOException e) {
+			for (Path extractedDicomFile : extractedDicomFiles) {
+				Files.deleteIfExists(extractedDicomFile);
+			}
+			throw e;
 		}
+		return extractedDicomFiles;
 	}
 
-
 	private String wadoURItoWadoRS(String url) {
 		return url
 				.replace("wado?requestType=WADO", "rs")
@@ -513,4 +653,82 @@ public class WADODownloaderService {
 				.replace("&contentType=application/dicom&", "");
 	}
 
+	/**
+	 * One instance of a zip download, which download is running or done.
+	 */
+	private static class PendingInstance {
+
+		private final String name;
+
+		private final boolean wadoRS;
+
+		private final Path tmpFile;
+
+		private Future<List<Path>> future;
+
+		/** The files written by the download, once it is done */
+		private List<Path> partFiles;
+
+		private boolean running;
+
+		private boolean abandoned;
+
+		PendingInstance(String name, boolean wadoRS, Path tmpFile) {
+			this.name = name;
+			this.wadoRS = wadoRS;
+			this.tmpFile = tmpFile;
+		}
+
+		/**
+		 * Runs the download in a download thread: if the instance has been abandoned
+		 * in the meantime, its files are deleted by this thread at the end.
+		 */
+		List<Path> download(Callable<List<Path>> download) throws Exception {
+			synchronized (this) {
+				if (abandoned) {
+					return Collections.emptyList();
+				}
+				running = true;
+			}
+			List<Path> files = null;
+			try {
+				files = download.call();
+				return files;
+			} finally {
+				synchronized (this) {
+					running = false;
+					partFiles = files;
+					if (abandoned) {
+						deleteFiles();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Cancels the download: the files are deleted now if no download thread
+		 * writes them, or by the download thread when it stops.
+		 */
+		synchronized void abandon() {
+			abandoned = true;
+			future.cancel(true);
+			if (!running) {
+				deleteFiles();
+			}
+		}
+
+		private void deleteFiles() {
+			try {
+				Files.deleteIfExists(tmpFile);
+				if (partFiles != null) {
+					for (Path partFile : partFiles) {
+						Files.deleteIfExists(partFile);
+					}
+				}
+			} catch (IOException e) {
+				LOG.error("Temporary file of a cancelled download not deleted: {}", tmpFile, e);
+			}
+		}
+	}
+
 }
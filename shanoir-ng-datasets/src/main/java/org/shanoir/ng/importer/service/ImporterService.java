@@ -71,6 +71,7 @@ import org.shanoir.ng.studycard.model.QualityCard;
 import org.shanoir.ng.studycard.model.QualityException;
 import org.shanoir.ng.studycard.model.StudyCard;
 import org.shanoir.ng.studycard.repository.StudyCardRepository;
+import org.shanoir.ng.studycard.service.CompiledStudyCardCache;
 import org.shanoir.ng.studycard.service.QualityCardService;
 import org.shanoir.ng.utils.KeycloakUtil;
 import org.shanoir.ng.utils.SecurityContextUtil;
@@ -116,6 +117,9 @@ public class ImporterService {
     @Autowired
     private ShanoirEventService eventService;
 
+    @Autowired
+    private CompiledStudyCardCache compiledStudyCardCache;
+
     @Autowired
     private SolrService solrService;
 
@@ -157,6 +161,8 @@ public class ImporterService {
         SecurityContextUtil.initAuthenticationContext("ADMIN_ROLE");
         Set<DatasetAcquisition> generatedAcquisitions = null;
         try {
+            // the DICOM headers are read once for all the import, until the finally block
+            dicomProcessing.startImportCache();
             Examination examination = examinationRepository.findById(importJob.getExaminationId()).orElse(null);
             if (examination != null) {
                 // generate acquisitions
@@ -236,6 +242,8 @@ public class ImporterService {
             // Send mail
             mailService.sendFailureMail(importJob, userId, e.getMessage());
             throw new ShanoirException(event.getMessage(), e);
+        } finally {
+            dicomProcessing.clearImportCache();
         }
     }
     
@@ -261,7 +269,7 @@ public class ImporterService {
                     // apply study card if needed
                     if (studyCard != null) { 
                         importJob.setStudyCardName(studyCard.getName());
-                        studyCard.apply(acquisition, dicomAttributes);
+                        studyCard.apply(acquisition, dicomAttributes, compiledStudyCardCache.get(studyCard));
                     }
                     
                     // add acq to collection
@@ -406,6 +414,15 @@ public class ImporterService {
         }
     }
 
+    /**
+     * Get the storage dir of the processed datasets of a subject.
+     * @param subjectName the name of the subject, null when the datasets have several subjects
+     */
+    public File getProcessedDatasetDir(final String subjectName) {
+        final String subLabel = SUBJECT_PREFIX + subjectName;
+        return new File(niftiStorageDir + File.separator + PROCESSED_DATASET_PREFIX + File.separator + subLabel + File.separator);
+    }
+
     /**
      * Create a processed dataset dataset associated with a dataset processing.
      * @param importJob the import job from importer MS.
@@ -494,20 +511,20 @@ public class ImporterService {
             dataset.setStudyId(importJob.getStudyId());
 
             // Copy the data somewhere else
-            final String subLabel = SUBJECT_PREFIX + importJob.getSubjectName();
-
-            final File outDir = new File(niftiStorageDir + File.separator + PROCESSED_DATASET_PREFIX + File.separator + subLabel + File.separator);
+            final File outDir = getProcessedDatasetDir(importJob.getSubjectName());
             outDir.mkdirs();
             String filePath = importJob.getProcessedDatasetFilePath();
             File srcFile = new File(filePath);
             String originalNiftiName = srcFile.getName();
             File destFile = new File(outDir.getAbsolutePath() + File.separator + originalNiftiName);
 
-            // Save file
-            Path location;
+            // Save file: the results of an execution are already moved into their storage dir
+            Path location = destFile.toPath();
             try {
-                destFile.getParentFile().mkdirs();
-                location = Files.copy(srcFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                if (!destFile.exists() || !Files.isSameFile(srcFile.toPath(), location)) {
+                    destFile.getParentFile().mkdirs();
+                    location = Files.copy(srcFile.toPath(), location, StandardCopyOption.REPLACE_EXISTING);
+                }
             } catch (IOException e) {
                 LOG.error("IOException generating Processed Dataset Expression", e);
                 throw e;
@@ -42,6 +42,9 @@ public class DicomDatasetExpressionStrategy implements DatasetExpressionStrategy
 	/** Logger. */
 	private static final Logger LOG = LoggerFactory.getLogger(DicomDatasetExpressionStrategy.class);
 
+	/** The only tags read in each file */
+	private static final int[] DATASET_FILE_TAGS = { Tag.SOPInstanceUID, Tag.AcquisitionTime, Tag.ContentTime, Tag.StudyInstanceUID, Tag.SeriesInstanceUID };
+
 	@Autowired
 	DicomProcessing dicomProcessing;
 
@@ -86,7 +89,7 @@ public class DicomDatasetExpressionStrategy implements DatasetExpressionStrategy
 			Attributes dicomAttributes;
 
 			try {
-				dicomAttributes = dicomProcessing.getDicomObjectAttributes(datasetFile, serie.getIsEnhanced());
+				dicomAttributes = dicomProcessing.getSelectedDicomObjectAttributes(datasetFile, DATASET_FILE_TAGS);
 			} catch (IOException e) {
 				LOG.error("Error while reading DICOM attributes from file.", e);
 				throw e;
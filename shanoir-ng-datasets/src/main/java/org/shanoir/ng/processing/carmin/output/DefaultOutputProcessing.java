@@ -2,15 +2,23 @@ package org.shanoir.ng.processing.carmin.output;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ws.rs.NotFoundException;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -35,10 +43,12 @@ import org.shanoir.ng.shared.model.Study;
 import org.shanoir.ng.shared.model.Subject;
 import org.shanoir.ng.shared.repository.StudyRepository;
 import org.shanoir.ng.shared.repository.SubjectRepository;
+import org.shanoir.ng.utils.SecurityContextUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -68,26 +78,87 @@ public class DefaultOutputProcessing extends OutputProcessing {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DefaultOutputProcessing.class);
 
-	@Override
-	public void manageTarGzResult(File in, File parent, CarminDatasetProcessing processing) {
+	private static final String CACHE_FOLDER = "cache";
 
-		LOG.info("Processing result file [{}]...", in.getAbsolutePath());
+	/** Number of result archives extracted at the same time */
+	@Value("${vip.output-processing.threads:4}")
+	private int extractThreads;
 
-		try (TarArchiveInputStream fin = new TarArchiveInputStream(
-				new GzipCompressorInputStream(new FileInputStream(in)))) {
-			TarArchiveEntry entry;
+	private ExecutorService extractExecutor;
 
-			File cacheFolder = new File(parent.getAbsolutePath() + File.separator + "cache");
+	@PostConstruct
+	public void init() {
+		extractExecutor = Executors.newFixedThreadPool(Math.max(1, extractThreads), new CustomizableThreadFactory("vip-untar-"));
+	}
 
-			if (!cacheFolder.exists()) {
-				cacheFolder.mkdirs();
-			}
+	@PreDestroy
+	public void shutdown() {
+		extractExecutor.shutdownNow();
+	}
 
-			List<File> outputFiles = new ArrayList<>();
+	@Override
+	public void manageTarGzResult(File in, File parent, CarminDatasetProcessing processing) {
+		manageTarGzResults(Collections.singletonList(in), parent, processing);
+	}
 
-			File resultJson = null;
+	/**
+	 * The archives are extracted in parallel, each one in a single pass, then their
+	 * processed datasets are created in the thread, and the transaction, of the caller.
+	 */
+	@Override
+	public void manageTarGzResults(List<File> resultFiles, File parent, CarminDatasetProcessing processing) {
+		List<Future<TarGzResult>> extractions = new ArrayList<>();
+		for (File in : resultFiles) {
+			extractions.add(extractExecutor.submit(() -> extract(in, parent)));
+		}
+		for (int i = 0; i < resultFiles.size(); i++) {
+			File in = resultFiles.get(i);
+			TarGzResult result = null;
+			try {
+				result = extractions.get(i).get();
+				List<Dataset> inputDatasets = datasetService.findByIdIn(result.inputDatasetIds);
+				this.createProcessedDatasets(result.outputFiles, processing, inputDatasets);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				extractions.forEach(extraction -> extraction.cancel(true));
+				LOG.error("Interrupted while extracting result from result archive.", e);
+				importerService.createFailedJob(in.getPath());
+				return;
+			} catch (Exception e) {
+				LOG.error("An error occured while extracting result from result archive.", e instanceof ExecutionException ? e.getCause() : e);
+				if (result != null) {
+					// the files moved into the storage dir by the extraction are referenced by no dataset
+					result.storedFiles.forEach(File::delete);
+				}
+				importerService.createFailedJob(in.getPath());
+			} finally {
+				if (result != null) {
+					this.deleteCacheDir(result.stagingDir.toPath());
+				}
+			}
+		}
+	}
 
-			// first, find "result.json" file
+	/**
+	 * Extracts an archive in a single pass into its own staging folder, then moves
+	 * its processed files into their storage dir, once the whole archive is read and
+	 * the input datasets known. A file of the storage dir is never replaced: a file
+	 * whose name is already taken stays in the staging folder, to be copied by
+	 * ImporterService as before.
+	 */
+	private TarGzResult extract(File in, File parent) throws Exception {
+		LOG.info("Processing result file [{}]...", in.getAbsolutePath());
+		SecurityContextUtil.initAuthenticationContext("ROLE_ADMIN");
+		TarGzResult result = new TarGzResult();
+		File cacheFolder = new File(parent.getAbsolutePath() + File.separator + CACHE_FOLDER);
+		cacheFolder.mkdirs();
+		// unique, even for archives of the same name extracted at the same time
+		result.stagingDir = Files.createTempDirectory(cacheFolder.toPath(), in.getName() + "-").toFile();
+		List<File> stagedFiles = new ArrayList<>();
+		String resultJson = null;
+		try (TarArchiveInputStream fin = new TarArchiveInputStream(
+				new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(in))))) {
+			TarArchiveEntry entry;
 			while ((entry = fin.getNextTarEntry()) != null) {
 
 				String parsedEntry = entry.getName();
@@ -96,55 +167,97 @@ public class DefaultOutputProcessing extends OutputProcessing {
 					continue;
 				}
 
-				File currentFile = new File(cacheFolder, Paths.get(parsedEntry).getFileName().toString());
-				IOUtils.copy(fin, Files.newOutputStream(currentFile.toPath()));
-
 				if (parsedEntry.endsWith(this.resultFileName)) {
-					resultJson = currentFile;
-				} else {
-					// For all other files that are not a result.json or a folder, create a processed dataset and a dataset processing
-					outputFiles.add(currentFile);
-					LOG.info("Output file [{}] found in archive.", parsedEntry);
+					if (resultJson == null) {
+						LOG.info("Processing result JSON [{}]...", parsedEntry);
+						resultJson = IOUtils.toString(fin, StandardCharsets.UTF_8);
+					}
+					continue;
 				}
-			}
-
-			List<Dataset> inputDatasets = this.getInputDatasets(resultJson, in.getName());
 
-			if(inputDatasets.isEmpty()) {
-				throw new Exception("No input datasets found.");
+				// For all other files that are not a result.json or a folder, create a processed dataset and a dataset processing
+				File currentFile = new File(result.stagingDir, Paths.get(parsedEntry).getFileName().toString());
+				try (OutputStream out = Files.newOutputStream(currentFile.toPath())) {
+					IOUtils.copy(fin, out);
+				}
+				if (!stagedFiles.contains(currentFile)) {
+					stagedFiles.add(currentFile);
+				}
+				LOG.info("Output file [{}] found in archive.", parsedEntry);
 			}
 
-			if(outputFiles.isEmpty()){
+			if (resultJson == null) {
+				LOG.info("No result JSON found in archive.");
+			}
+			if (stagedFiles.isEmpty()) {
 				throw new Exception("No processable file found in Tar result.");
 			}
+			this.setInputDatasets(result, resultJson, in.getName());
+			this.moveToStorageDir(stagedFiles, result);
+			return result;
 
-			this.createProcessedDatasets(outputFiles, processing, inputDatasets);
+		} catch (Exception e) {
+			// only the files created by this extraction are deleted, with its staging folder
+			result.storedFiles.forEach(File::delete);
+			this.deleteCacheDir(result.stagingDir.toPath());
+			throw e;
+		} finally {
+			SecurityContextUtil.clearAuthentication();
+		}
+	}
 
-			this.deleteCacheDir(Paths.get(cacheFolder.getAbsolutePath()));
+	/**
+	 * Sets the input datasets of the result, and the storage dir of its processed
+	 * datasets, given by the subject of the input datasets.
+	 */
+	private void setInputDatasets(TarGzResult result, String resultJson, String tarName) throws Exception {
+		List<Dataset> inputDatasets = this.getInputDatasets(resultJson, tarName);
 
-		} catch (Exception e) {
-			LOG.error("An error occured while extracting result from result archive.", e);
-			importerService.createFailedJob(in.getPath());
+		if(inputDatasets.isEmpty()) {
+			throw new Exception("No input datasets found.");
 		}
+
+		result.inputDatasetIds = inputDatasets.stream().map(Dataset::getId).collect(Collectors.toList());
+		String subjectName = null;
+		Predicate<Long> predicate = obj -> Objects.equals(inputDatasets.get(0).getSubjectId(), obj);
+		if (inputDatasets.stream().map(Dataset::getSubjectId).allMatch(predicate)) {
+			Subject subject = subjectRepository.findById(inputDatasets.get(0).getSubjectId())
+					.orElseThrow(() -> new NotFoundException("Subject [" + inputDatasets.get(0).getSubjectId() + "] not found"));
+			subjectName = subject.getName();
+		}
+		result.storageDir = importerService.getProcessedDatasetDir(subjectName);
+		result.storageDir.mkdirs();
 	}
 
+	/**
+	 * Moves the staged files into the storage dir, each name being claimed first by
+	 * the atomic creation of the file, so that a file of another import is never replaced.
+	 */
+	private void moveToStorageDir(List<File> stagedFiles, TarGzResult result) throws IOException {
+		for (File stagedFile : stagedFiles) {
+			File storedFile = new File(result.storageDir, stagedFile.getName());
+			try {
+				Files.createFile(storedFile.toPath());
+			} catch (FileAlreadyExistsException e) {
+				LOG.warn("File [{}] already exists in storage dir, copied when its dataset is created.", storedFile.getAbsolutePath());
+				result.outputFiles.add(stagedFile);
+				continue;
+			}
+			result.storedFiles.add(storedFile);
+			Files.move(stagedFile.toPath(), storedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			result.outputFiles.add(storedFile);
+		}
+	}
 
-	private List<Dataset> getInputDatasets(File resultJson, String tarName) throws IOException, JSONException {
+	private List<Dataset> getInputDatasets(String resultJson, String tarName) throws IOException, JSONException {
 
 		List<Long> datasetIds = new ArrayList<>();
 		List<String> candidates = new ArrayList<>();
 
 		candidates.add(tarName);
 
-		if (resultJson == null) {
-			LOG.info("No result JSON found in archive.");
-		} else {
-			LOG.info("Processing result JSON [{}]...", resultJson.getName());
-
-			JSONObject json;
-			try (InputStream is = new FileInputStream(resultJson)) {
-				json = new JSONObject(IOUtils.toString(is, StandardCharsets.UTF_8));
-			}
+		if (resultJson != null) {
+			JSONObject json = new JSONObject(resultJson);
 
 			Iterator<String> keys = json.keys();
 			while (keys.hasNext()) {
@@ -273,4 +386,24 @@ public class DefaultOutputProcessing extends OutputProcessing {
 		int dotIndex = file.indexOf('.');
 		return (dotIndex == -1) ? file : file.substring(0, dotIndex);
 	}
+
+	/**
+	 * The extracted result of an archive.
+	 */
+	private static final class TarGzResult {
+
+		private List<Long> inputDatasetIds;
+
+		/** The folder the archive is extracted into, deleted once its datasets are created */
+		private File stagingDir;
+
+		/** The storage dir of the processed datasets, known once the input datasets are */
+		private File storageDir;
+
+		/** The files of the processed datasets, in the storage dir or still staged */
+		private final List<File> outputFiles = new ArrayList<>();
+
+		/** The files created by the extraction in the storage dir */
+		private final List<File> storedFiles = new ArrayList<>();
+	}
 }
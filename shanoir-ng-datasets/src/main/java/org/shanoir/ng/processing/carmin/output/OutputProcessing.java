@@ -1,6 +1,7 @@
 package org.shanoir.ng.processing.carmin.output;
 
 import java.io.File;
+import java.util.List;
 
 import org.shanoir.ng.processing.carmin.model.CarminDatasetProcessing;
 
@@ -19,4 +20,16 @@ public abstract class OutputProcessing {
 	 */
 	public abstract void manageTarGzResult(File resultFile, File parentFolder, CarminDatasetProcessing processing);
 
+	/**
+	 * This methods manages all the results of a Carmin dataset processing, one after the other by default
+	 * @param resultFiles the result files as tar.gz of the processing
+	 * @param parentFolder the temporary parent folder in which we are currently working
+	 * @param processing the corresponding dataset processing.
+	 */
+	public void manageTarGzResults(List<File> resultFiles, File parentFolder, CarminDatasetProcessing processing) {
+		for (File resultFile : resultFiles) {
+			manageTarGzResult(resultFile, parentFolder, processing);
+		}
+	}
+
 }
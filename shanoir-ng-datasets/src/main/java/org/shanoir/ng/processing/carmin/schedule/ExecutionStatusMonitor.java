@@ -5,20 +5,31 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.PathMatcher;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.keycloak.representations.AccessTokenResponse;
 import org.shanoir.ng.processing.carmin.model.CarminDatasetProcessing;
 import org.shanoir.ng.processing.carmin.model.Execution;
 import org.shanoir.ng.processing.carmin.model.ExecutionStatus;
 import org.shanoir.ng.processing.carmin.output.DefaultOutputProcessing;
 import org.shanoir.ng.processing.carmin.output.OutputProcessing;
+import org.shanoir.ng.processing.carmin.repository.CarminDatasetProcessingRepository;
 import org.shanoir.ng.processing.carmin.service.CarminDatasetProcessingService;
 import org.shanoir.ng.shared.event.ShanoirEvent;
 import org.shanoir.ng.shared.event.ShanoirEventService;
@@ -27,6 +38,7 @@ import org.shanoir.ng.shared.exception.EntityNotFoundException;
 import org.shanoir.ng.shared.exception.SecurityException;
 import org.shanoir.ng.shared.security.KeycloakServiceAccountUtils;
 import org.shanoir.ng.utils.KeycloakUtil;
+import org.shanoir.ng.utils.SecurityContextUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -35,18 +47,24 @@ import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 /**
- * CRON job to request VIP api and create processedDataset
- * 
+ * CRON job to request VIP api and create processedDataset: a single scheduled
+ * poller checks the status of all the running executions, with one service
+ * account token and a pooled HTTP client, instead of one sleeping thread by
+ * execution. The interval between two checks of a running execution grows up
+ * to vip.max-sleep-time, and the running executions are resumed from the
+ * database after a restart.
+ *
  * @author KhalilKes
  */
 @Service
@@ -54,18 +72,32 @@ public class ExecutionStatusMonitor implements ExecutionStatusMonitorService {
 
 	private static final String DEFAULT_OUTPUT = "default";
 
+	/** Number of failed requests to VIP before an execution is set in error */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Growth of the interval between two checks of a running execution */
+	private static final double BACKOFF_FACTOR = 1.5;
+
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	private static final int READ_TIMEOUT = 30000;
+
 	@Value("${vip.uri}")
 	private String VIP_URI;
 
 	@Value("${vip.upload-folder}")
 	private String importDir;
 
+	/** Interval between two checks of an execution, after its start */
 	@Value("${vip.sleep-time}")
 	private long sleepTime;
 
-	private ThreadLocal<Boolean> stop = new ThreadLocal<>();
+	/** Maximum interval between two checks of an execution */
+	@Value("${vip.max-sleep-time:300000}")
+	private long maxSleepTime;
 
-	private String identifier;
+	@Value("${vip.http.client.max.total:20}")
+	private int httpClientMaxTotal;
 
 	private static final Logger LOG = LoggerFactory.getLogger(ExecutionStatusMonitor.class);
 
@@ -73,51 +105,71 @@ public class ExecutionStatusMonitor implements ExecutionStatusMonitorService {
 	private CarminDatasetProcessingService carminDatasetProcessingService;
 
 	@Autowired
-	private KeycloakServiceAccountUtils keycloakServiceAccountUtils;
+	private CarminDatasetProcessingRepository carminDatasetProcessingRepository;
 
 	@Autowired
-	private ObjectMapper mapper;
+	private KeycloakServiceAccountUtils keycloakServiceAccountUtils;
 
 	@Autowired
 	private DefaultOutputProcessing defaultOutputProcessing;
 
 	@Autowired
 	private ShanoirEventService eventService;
-	
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
 	// Map of output methods to execute.
     private static Map<String, OutputProcessing> outputProcessingMap;
 
+	/** The monitored executions, by identifier */
+	private final Map<String, MonitoredExecution> executions = new ConcurrentHashMap<>();
+
+	/** True when the running executions of the database are monitored */
+	private boolean resumed;
+
+	private CloseableHttpClient httpClient;
+
+	private RestTemplate restTemplate;
+
+	/** The results are imported one execution after the other, out of the poller thread */
+	private ExecutorService outputProcessingExecutor;
+
 	@PostConstruct
 	public void Initialize() {
 		// Init output map
         Map<String, OutputProcessing> aMap =  new HashMap<>();
         aMap.put(DEFAULT_OUTPUT, defaultOutputProcessing);
         outputProcessingMap = Collections.unmodifiableMap(aMap);
+		final PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+		cm.setMaxTotal(httpClientMaxTotal);
+		cm.setDefaultMaxPerRoute(httpClientMaxTotal);
+		httpClient = HttpClients.custom().setConnectionManager(cm).build();
+		HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+		requestFactory.setConnectTimeout(CONNECT_TIMEOUT);
+		requestFactory.setReadTimeout(READ_TIMEOUT);
+		restTemplate = new RestTemplate(requestFactory);
+		outputProcessingExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("vip-output-"));
+	}
+
+	@PreDestroy
+	public void shutdown() throws IOException {
+		outputProcessingExecutor.shutdownNow();
+		httpClient.close();
 	}
 
-	@Async
+	/**
+	 * Adds the execution to the executions checked by the poller.
+	 */
 	@Override
-	@Transactional
 	public void startJob(String identifier) throws EntityNotFoundException, SecurityException {
-		int attempts = 1;
-		this.identifier = identifier;
-
-		stop.set(false);
-
-		String uri = VIP_URI + identifier + "/summary";
-		RestTemplate restTemplate = new RestTemplate();
-
-		// refresh the token
-		String token = this.refreshServiceAccountAccessToken();
-
 		CarminDatasetProcessing processing = this.carminDatasetProcessingService
-				.findByIdentifier(this.identifier)
+				.findByIdentifier(identifier)
 				.orElseThrow(() -> new EntityNotFoundException(
-						"Processing [" + this.identifier + "] not found"));
+						"Processing [" + identifier + "] not found"));
 
 		String execLabel = "VIP Execution [" + processing.getName() + "]";
 
-
 		ShanoirEvent event = new ShanoirEvent(
 				ShanoirEventType.IMPORT_DATASET_EVENT,
 				processing.getId().toString(),
@@ -127,141 +179,190 @@ public class ExecutionStatusMonitor implements ExecutionStatusMonitorService {
 				0.5f);
 		eventService.publishEvent(event);
 
-		processing.setProcessingDate(LocalDate.now());
+		executions.put(identifier, new MonitoredExecution(identifier, execLabel, event));
+	}
 
-		while (!stop.get()) {
+	/**
+	 * Checks the status of the executions whose next check is due, and imports the
+	 * results of the finished ones.
+	 */
+	@Scheduled(initialDelayString = "${vip.sleep-time}", fixedDelayString = "${vip.sleep-time}")
+	public void monitorExecutions() {
+		if (!resumed) {
+			resumeRunningExecutions();
+		}
+		final long now = System.currentTimeMillis();
+		List<MonitoredExecution> dueExecutions = executions.values().stream()
+				.filter(execution -> !execution.importing && execution.nextCheck <= now)
+				.collect(Collectors.toList());
+		if (dueExecutions.isEmpty()) {
+			return;
+		}
+		String token;
+		try {
+			token = this.refreshServiceAccountAccessToken();
+		} catch (Exception e) {
+			LOG.error("Failed to get the service account token, {} VIP executions not checked.", dueExecutions.size(), e);
+			return;
+		}
+		for (MonitoredExecution execution : dueExecutions) {
+			token = check(execution, token);
+		}
+	}
 
-			// init headers with the active access token
-			HttpHeaders headers = new HttpHeaders();
-			headers.set("Authorization", "Bearer " + token);
-			HttpEntity entity = new HttpEntity(headers);
+	/**
+	 * The executions still running in the database were monitored before a restart.
+	 * They are resumed without event, as their user is unknown.
+	 */
+	private void resumeRunningExecutions() {
+		try {
+			List<CarminDatasetProcessing> processings = carminDatasetProcessingRepository.findByStatus(ExecutionStatus.RUNNING);
+			for (CarminDatasetProcessing processing : processings) {
+				executions.putIfAbsent(processing.getIdentifier(), new MonitoredExecution(processing.getIdentifier(),
+						"VIP Execution [" + processing.getName() + "]", null));
+			}
+			resumed = true;
+			LOG.info("{} running VIP executions resumed.", processings.size());
+		} catch (Exception e) {
+			LOG.error("Failed to resume the running VIP executions.", e);
+		}
+	}
 
-			// check how many times the loop tried to get the execution's info without success (only UNAUTHORIZED error)
-			if(attempts >= 3){
-				String msg = "Failed to get execution details from VIP in " + attempts + " attempts";
-				LOG.error(msg);
-				LOG.error("Stopping the thread...");
-				stop.set(true);
-				this.setJobInError(event, execLabel + " : " + msg);
+	/**
+	 * @return the token, refreshed if VIP did not accept it
+	 */
+	private String check(MonitoredExecution execution, String token) {
+		// init headers with the active access token
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Authorization", "Bearer " + token);
+		HttpEntity<Void> entity = new HttpEntity<>(headers);
+		String uri = VIP_URI + execution.identifier + "/summary";
+		try {
+			Execution vipExecution = restTemplate.exchange(uri, HttpMethod.GET, entity, Execution.class).getBody();
+			if (vipExecution == null || vipExecution.getStatus() == null) {
+				failed(execution, "No response payload in execution infos from VIP", null);
+				return token;
+			}
+			// init attempts due to successful response
+			execution.attempts = 0;
+			switch (vipExecution.getStatus()) {
+			case RUNNING:
+				execution.backOff();
+				break;
+			case FINISHED:
+				LOG.info("{} status is [{}]", execution.label, ExecutionStatus.FINISHED.getRestLabel());
+				execution.importing = true;
+				outputProcessingExecutor.execute(() -> importResults(execution));
+				break;
+			case UNKOWN:
+			case EXECUTION_FAILED:
+			case KILLED:
+				LOG.warn("{} status is [{}]", execution.label, vipExecution.getStatus().getRestLabel());
+				executions.remove(execution.identifier);
+				updateStatus(execution.identifier, vipExecution.getStatus());
+				this.setJobInError(execution.event, execution.label + " : "  + vipExecution.getStatus().getRestLabel()
+						+ (vipExecution.getErrorCode() != null ? " (Error code : " + vipExecution.getErrorCode() + ")" : ""));
+				break;
+			default:
+				executions.remove(execution.identifier);
 				break;
 			}
-
-			try {
-				ResponseEntity<Execution> executionResponseEntity = restTemplate.exchange(uri, HttpMethod.GET, entity, Execution.class);
-				Execution execution = executionResponseEntity.getBody();
-				// init attempts due to successful response
-				attempts = 1;
-				switch (execution.getStatus()) {
-				case FINISHED:
-
-					processing.setStatus(ExecutionStatus.FINISHED);
-
-					this.carminDatasetProcessingService.updateCarminDatasetProcessing(processing);
-
-					LOG.info("{} status is [{}]", execLabel, ExecutionStatus.FINISHED.getRestLabel());
-					event.setMessage(execLabel + " : Finished. Processing imported results...");
-					eventService.publishEvent(event);
-
-					// untar the .tgz files
-					final File userImportDir = new File(
-							this.importDir + File.separator +
-							processing.getResultsLocation());
-
-					LOG.info("Processing result in import directory [{}]...", userImportDir.getAbsolutePath());
-
-					final PathMatcher matcher = userImportDir.toPath().getFileSystem()
-							.getPathMatcher("glob:**/*.{tgz,tar.gz}");
-					String outputProcessingKey = StringUtils.isEmpty(processing.getOutputProcessing()) ? DEFAULT_OUTPUT : processing.getOutputProcessing();
-
-
-					processing.setProcessingDate(LocalDate.now());
-
-					try (Stream<java.nio.file.Path> stream = Files.list(userImportDir.toPath())) {
-
-						stream.filter(matcher::matches)
-								.forEach(zipFile -> {
-									outputProcessingMap.get(outputProcessingKey).manageTarGzResult(zipFile.toFile(), userImportDir.getAbsoluteFile(), processing);
-								});
-
-					} catch (IOException e) {
-
-						String msg = "I/O error while listing files in import directory";
-						LOG.error(msg, e);
-						this.setJobInError(event, execLabel + " : " + msg);
-
-						stop.set(true);
-						break;
-					}
-
-					LOG.info("Execution status updated, stopping job...");
-
-					stop.set(true);
-
-					event.setMessage(execLabel + " : Finished");
-					event.setStatus(ShanoirEvent.SUCCESS);
-					event.setProgress(1f);
-					eventService.publishEvent(event);
-
-					break;
-
-				case UNKOWN:
-				case EXECUTION_FAILED:
-				case KILLED:
-
-					LOG.warn("{} status is [{}]", execLabel, execution.getStatus().getRestLabel());
-
-					processing.setStatus(execution.getStatus());
-					this.carminDatasetProcessingService.updateCarminDatasetProcessing(processing);
-
-					LOG.info("Execution status updated, stopping job...");
-
-					stop.set(true);
-
-					this.setJobInError(event, execLabel + " : "  + execution.getStatus().getRestLabel()
-							+ (execution.getErrorCode() != null ? " (Error code : " + execution.getErrorCode() + ")" : ""));
-
-					break;
-
-				case RUNNING:
-					Thread.sleep(sleepTime); // sleep/stop a thread for 20 seconds
-					break;
-				default:
-					stop.set(true);
-					break;
-				}
-			} catch (HttpStatusCodeException e) {
-				// in case of an error with response payload
-				if (e.getStatusCode() == HttpStatus.UNAUTHORIZED) {
-					LOG.info("Unauthorized : refreshing token... ({} attempts)", attempts);
+		} catch (HttpStatusCodeException e) {
+			// in case of an error with response payload
+			if (e.getStatusCode() == HttpStatus.UNAUTHORIZED) {
+				LOG.info("Unauthorized : refreshing token... ({} attempts)", execution.attempts + 1);
+				try {
 					token = this.refreshServiceAccountAccessToken();
-					// inc attempts.
-					attempts++;
-				} else {
-
-					String msg = "Failed to get execution details from VIP in " + attempts + " attempts";
-					LOG.error(msg , e);
-					this.setJobInError(event, execLabel + " : " + msg);
-
-					stop.set(true);
+				} catch (SecurityException se) {
+					LOG.error("Failed to refresh the service account token.", se);
 				}
-			} catch (RestClientException e) {
-				// in case of an error with no response payload
-				String msg = "No response payload in execution infos from VIP";
-				LOG.error(msg, e);
-				this.setJobInError(event, execLabel + " : " + msg);
-
-				stop.set(true);
-			} catch (InterruptedException e) {
+			}
+			failed(execution, "Failed to get execution details from VIP", e);
+		} catch (RestClientException e) {
+			// in case of an error with no response payload
+			failed(execution, "No response payload in execution infos from VIP", e);
+		} catch (Exception e) {
+			failed(execution, "Failed to check the execution", e);
+		}
+		return token;
+	}
 
-				String msg = "Thread exception";
-				LOG.error(msg, e);
-				this.setJobInError(event, execLabel + " : " + msg);
+	/**
+	 * The execution is checked again later, or set in error after MAX_ATTEMPTS failures.
+	 */
+	private void failed(MonitoredExecution execution, String msg, Exception e) {
+		execution.attempts++;
+		if (execution.attempts < MAX_ATTEMPTS) {
+			LOG.warn("{} : {} ({} attempts)", execution.label, msg, execution.attempts);
+			execution.backOff();
+			return;
+		}
+		msg = msg + " in " + execution.attempts + " attempts";
+		LOG.error("{} : {}", execution.label, msg, e);
+		executions.remove(execution.identifier);
+		this.setJobInError(execution.event, execution.label + " : " + msg);
+	}
 
-				stop.set(true);
-			}
+	private void importResults(MonitoredExecution execution) {
+		SecurityContextUtil.initAuthenticationContext("ROLE_ADMIN");
+		try {
+			new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+				CarminDatasetProcessing processing = carminDatasetProcessingRepository.findByIdentifier(execution.identifier)
+						.orElseThrow(() -> new IllegalStateException("Processing [" + execution.identifier + "] not found"));
+				processing.setStatus(ExecutionStatus.FINISHED);
+				processing.setProcessingDate(LocalDate.now());
+				processing = carminDatasetProcessingRepository.save(processing);
+				publish(execution.event, execution.label + " : Finished. Processing imported results...");
+
+				// untar the .tgz files
+				final File userImportDir = new File(
+						this.importDir + File.separator +
+						processing.getResultsLocation());
+
+				LOG.info("Processing result in import directory [{}]...", userImportDir.getAbsolutePath());
+
+				final PathMatcher matcher = userImportDir.toPath().getFileSystem()
+						.getPathMatcher("glob:**/*.{tgz,tar.gz}");
+				String outputProcessingKey = StringUtils.isEmpty(processing.getOutputProcessing()) ? DEFAULT_OUTPUT : processing.getOutputProcessing();
+
+				List<java.nio.file.Path> results = new ArrayList<>();
+				try (Stream<java.nio.file.Path> stream = Files.list(userImportDir.toPath())) {
+					stream.filter(matcher::matches).forEach(results::add);
+				} catch (IOException e) {
+					String msg = "I/O error while listing files in import directory";
+					LOG.error(msg, e);
+					this.setJobInError(execution.event, execution.label + " : " + msg);
+					return;
+				}
+				outputProcessingMap.get(outputProcessingKey).manageTarGzResults(
+						results.stream().map(java.nio.file.Path::toFile).collect(Collectors.toList()),
+						userImportDir.getAbsoluteFile(), processing);
+
+				LOG.info("{} results imported.", execution.label);
+				if (execution.event != null) {
+					execution.event.setStatus(ShanoirEvent.SUCCESS);
+					execution.event.setProgress(1f);
+				}
+				publish(execution.event, execution.label + " : Finished");
+			});
+		} catch (Exception e) {
+			String msg = "Failed to import the results";
+			LOG.error("{} : {}", execution.label, msg, e);
+			this.setJobInError(execution.event, execution.label + " : " + msg);
+		} finally {
+			executions.remove(execution.identifier);
+			SecurityContextUtil.clearAuthentication();
 		}
 	}
 
+	private void updateStatus(String identifier, ExecutionStatus executionStatus) {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status ->
+			carminDatasetProcessingRepository.findByIdentifier(identifier).ifPresent(processing -> {
+				processing.setStatus(executionStatus);
+				carminDatasetProcessingRepository.save(processing);
+			}));
+	}
+
 	/**
 	 * Get token from keycloak service account
 	 * @return
@@ -271,10 +372,55 @@ public class ExecutionStatusMonitor implements ExecutionStatusMonitorService {
 		return accessTokenResponse.getToken();
 	}
 
+	private void publish(ShanoirEvent event, String msg) {
+		if (event != null) {
+			event.setMessage(msg);
+			eventService.publishEvent(event);
+		}
+	}
+
 	private void setJobInError(ShanoirEvent event, String msg){
+		if (event == null) {
+			return;
+		}
 		event.setMessage(msg);
 		event.setStatus(ShanoirEvent.ERROR);
 		event.setProgress(1f);
 		eventService.publishEvent(event);
 	}
+
+	/**
+	 * An execution checked by the poller, with its event if its user is known.
+	 */
+	private final class MonitoredExecution {
+
+		private final String identifier;
+
+		private final String label;
+
+		private final ShanoirEvent event;
+
+		/** The interval before the next check */
+		private long interval = sleepTime;
+
+		private volatile long nextCheck;
+
+		private int attempts;
+
+		private volatile boolean importing;
+
+		private MonitoredExecution(String identifier, String label, ShanoirEvent event) {
+			this.identifier = identifier;
+			this.label = label;
+			this.event = event;
+		}
+
+		/**
+		 * A long execution is checked less and less often.
+		 */
+		private void backOff() {
+			nextCheck = System.currentTimeMillis() + interval;
+			interval = Math.min((long) (interval * BACKOFF_FACTOR), maxSleepTime);
+		}
+	}
 }
@@ -5,5 +5,10 @@ import org.shanoir.ng.shared.exception.SecurityException;
 
 public interface ExecutionStatusMonitorService {
 
+    /**
+     * Starts the monitoring of an execution, until its results are imported.
+     *
+     * @param identifier the identifier of the VIP execution
+     */
     void startJob(String identifier) throws EntityNotFoundException, SecurityException;
 }
@@ -3,6 +3,7 @@ package org.shanoir.ng.shared.repository;
 import java.util.List;
 
 import org.shanoir.ng.shared.model.SubjectStudy;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 
 public interface SubjectStudyRepository extends CrudRepository<SubjectStudy, Long>{
@@ -11,4 +12,10 @@ public interface SubjectStudyRepository extends CrudRepository<SubjectStudy, Lon
 
 	public List<SubjectStudy> findByStudy_Id(Long studyId);
 
+	/**
+	 * @return the tag names of the given subjects in the given studies, as [study id, subject id, tag name]
+	 */
+	@Query("SELECT ss.study.id, ss.subject.id, t.name FROM SubjectStudy ss JOIN ss.tags t WHERE ss.study.id IN :studyIds AND ss.subject.id IN :subjectIds")
+	public List<Object[]> findTagNamesByStudyIdInAndSubjectIdIn(List<Long> studyIds, List<Long> subjectIds);
+
 }
@@ -19,6 +19,7 @@
  */
 package org.shanoir.ng.solr.controler;
 
+import java.time.LocalDate;
 import java.util.List;
 
 import javax.validation.Valid;
@@ -30,9 +31,12 @@ import org.shanoir.ng.solr.model.ShanoirSolrQuery;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.solr.core.query.result.SolrResultPage;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
@@ -49,7 +53,7 @@ import io.swagger.annotations.ApiResponses;
 @Api(value = "solr", description = "the Solr API")
 @RequestMapping("/solr")
 public interface SolrApi {
-	@ApiOperation(value = "", notes = "Index all data to Solr", response = Void.class, tags={})
+	@ApiOperation(value = "", notes = "Index all data to Solr, or only the datasets created since the given date", response = Void.class, tags={})
     @ApiResponses(value = {
         @ApiResponse(code = 204, message = "indexed data", response = Void.class),
         @ApiResponse(code = 401, message = "unauthorized", response = Void.class),
@@ -58,7 +62,7 @@ public interface SolrApi {
         @ApiResponse(code = 500, message = "unexpected error", response = ErrorModel.class) })
     @RequestMapping(value = "/index", produces = { "application/json" }, method = RequestMethod.POST)
     @PreAuthorize("hasRole('ADMIN')")
-    ResponseEntity<Void> indexAll() throws RestServiceException;
+    ResponseEntity<Void> indexAll(@ApiParam(value = "only index the datasets created since this date (yyyy-MM-dd)") @RequestParam(value = "since", required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate since) throws RestServiceException;
 
 	@ApiOperation(value = "", notes = "Search with facets and returns solr documents and facets page", response = SolrResultPage.class, responseContainer = "List", tags = {})
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "found documents and facets", response = Page.class),
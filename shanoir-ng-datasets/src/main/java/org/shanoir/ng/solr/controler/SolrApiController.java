@@ -19,6 +19,7 @@
  */
 package org.shanoir.ng.solr.controler;
 
+import java.time.LocalDate;
 import java.util.List;
 
 import javax.validation.Valid;
@@ -31,10 +32,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.solr.core.query.result.SolrResultPage;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import io.swagger.annotations.ApiParam;
 
@@ -49,9 +53,13 @@ public class SolrApiController implements SolrApi {
 	private SolrService solrService;
 	
 	@Override
-	public ResponseEntity<Void> indexAll() throws RestServiceException {
-		
-		solrService.indexAll();		
+	public ResponseEntity<Void> indexAll(
+			@ApiParam(value = "only index the datasets created since this date (yyyy-MM-dd)") @RequestParam(value = "since", required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate since) throws RestServiceException {
+		if (since != null) {
+			solrService.indexSince(since);
+		} else {
+			solrService.indexAll();
+		}
 		return new ResponseEntity<>(HttpStatus.OK);
 	}
 	
@@ -19,6 +19,7 @@
  */
 package org.shanoir.ng.solr.repository;
 
+import java.time.LocalDate;
 import java.util.List;
 
 import org.shanoir.ng.solr.model.ShanoirMetadata;
@@ -28,14 +29,23 @@ import org.shanoir.ng.solr.model.ShanoirMetadata;
  *
  */
 public interface ShanoirMetadataRepositoryCustom {
-	/**
-	 * Find in all tables information to construct ShanoirSolrDocument.
-	 * 
-	 * @return list of ShanoirSolrDocument.
-	 */
-	List<ShanoirMetadata> findAllAsSolrDoc();
 
 	ShanoirMetadata findOneSolrDoc(Long datasetId);
 
 	List<ShanoirMetadata> findSolrDocs(List<Long> datasetIds);
+
+	/**
+	 * Keyset paging over the datasets: finds the ids of the next datasets to index.
+	 * 
+	 * @param lastDatasetId only the datasets with a greater id are returned
+	 * @param since if not null, only the datasets created since this date are returned
+	 * @param limit maximum number of ids
+	 * @return the ids, in ascending order
+	 */
+	List<Long> findDatasetIdsAfter(Long lastDatasetId, LocalDate since, int limit);
+
+	/**
+	 * @return the greatest dataset id, 0 if there is no dataset
+	 */
+	Long findMaxDatasetId();
 }
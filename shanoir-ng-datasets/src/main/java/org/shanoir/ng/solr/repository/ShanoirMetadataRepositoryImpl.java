@@ -19,9 +19,11 @@
  */
 package org.shanoir.ng.solr.repository;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
@@ -48,120 +50,6 @@ public class ShanoirMetadataRepositoryImpl implements ShanoirMetadataRepositoryC
 	@PersistenceContext
 	private EntityManager em;
 	
-	@Override
-	public List<ShanoirMetadata> findAllAsSolrDoc() {
-		List<ShanoirMetadata> result = new ArrayList<>();
-		Query mrQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, mdm.mr_dataset_nature as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, mrp.slice_thickness as sliceThickness, mrp.pixel_bandwidth as pixelBandwidth, mrp.magnetic_field_strength as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN mr_dataset_acquisition mda on mda.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN mr_protocol mrp on mrp.id = mda.mr_protocol_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, dataset_metadata dm, mr_dataset md"
-				+ " LEFT JOIN mr_dataset_metadata mdm ON md.updated_mr_metadata_id = mdm.id"
-				+ " WHERE d.updated_metadata_id = dm.id AND md.id = d.id", "SolrResult");
-		Query petQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, pet_dataset pd, dataset_metadata dm"
-				+ " WHERE d.updated_metadata_id = dm.id AND pd.id = d.id", "SolrResult");
-		Query ctQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, ct_dataset cd, dataset_metadata dm"
-				+ " WHERE d.updated_metadata_id = dm.id AND cd.id = d.id;", "SolrResult");
-		Query genericQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, generic_dataset cd, dataset_metadata dm"
-				+ " WHERE d.updated_metadata_id = dm.id AND cd.id = d.id", "SolrResult");
-		Query eegQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, eeg_dataset ed, dataset_metadata dm"
-				+ " WHERE d.origin_metadata_id = dm.id AND ed.id = d.id", "SolrResult");
-		Query bidsQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset_acquisition da on da.id = d.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, bids_dataset ed, dataset_metadata dm"
-				+ " WHERE d.updated_metadata_id = dm.id AND ed.id = d.id", "SolrResult");
-		Query processedQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId"
-				+ ", dm.name as datasetName"
-				+ ", dm.dataset_modality_type as datasetType"
-				+ ", null as datasetNature"
-				+ ", d.creation_date as datasetCreationDate"
-				+ ", e.id as examinationId"
-				+ ", e.comment as examinationComment"
-				+ ", e.examination_date as examinationDate"
-				+ ", su.name as subjectName"
-				+ ", su.id as subjectId"
-				+ ", st.name as studyName"
-				+ ", e.study_id as studyId"
-				+ ", c.name as centerName"
-				+ ", c.id as centerId"
-				+ ", null as sliceThickness"
-				+ ", null as pixelBandwidth"
-				+ ", null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset dp ON dp.id ="
-				+ " (SELECT dataset_id from input_of_dataset_processing WHERE processing_id = d.dataset_processing_id LIMIT 1)"
-				+ " LEFT JOIN dataset_acquisition da on da.id = dp.dataset_acquisition_id"
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, dataset_metadata dm"
-				+ " WHERE d.origin_metadata_id = dm.id"
-				+ " AND d.dataset_processing_id is not null;", "SolrResult");
-		Query measurementQuery = em.createNativeQuery(
-				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, null as datasetNature, "
-						+ "d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, e.examination_date as examinationDate, "
-						+ "su.name as subjectName, su.id as subjectId, st.name as studyName, e.study_id as studyId, c.name as centerName, c.id as centerId, "
-						+ "null as sliceThickness, null as pixelBandwidth, null as magneticFieldStrength\n"
-				+ " FROM dataset d"
-				+ " LEFT JOIN dataset refd ON refd.id = d.referenced_dataset_for_superimposition_id"
-				+ " LEFT JOIN dataset_acquisition da on da.id = refd.dataset_acquisition_id"				
-				+ " LEFT JOIN examination e ON e.id = da.examination_id"
-				+ " LEFT JOIN study st ON st.id = e.study_id"
-				+ " LEFT JOIN center c ON c.id = e.center_id"
-				+ " LEFT JOIN subject su ON su.id = d.subject_id, measurement_dataset md, dataset_metadata dm"
-				+ " WHERE d.updated_metadata_id = dm.id AND md.id = d.id", "SolrResult");
-
-		result.addAll(mrQuery.getResultList());
-		result.addAll(petQuery.getResultList());
-		result.addAll(ctQuery.getResultList());
-		result.addAll(eegQuery.getResultList());
-		result.addAll(bidsQuery.getResultList());
-		result.addAll(genericQuery.getResultList());
-		result.addAll(processedQuery.getResultList());
-		result.addAll(measurementQuery.getResultList());
-
-		return result;
-	}
-
 	@Override
 	public ShanoirMetadata findOneSolrDoc(Long datasetId) {
 		List<ShanoirMetadata> result = new ArrayList<>();
@@ -354,6 +242,35 @@ public class ShanoirMetadataRepositoryImpl implements ShanoirMetadataRepositoryC
 				+ " LEFT JOIN center c ON c.id = e.center_id"
 				+ " LEFT JOIN subject su ON su.id = d.subject_id, bids_dataset ed, dataset_metadata dm"
 				+ " WHERE d.updated_metadata_id = dm.id AND ed.id = d.id AND d.id IN (" + ids + ");", "SolrResult");
+		Query processedQuery = em.createNativeQuery(
+				"SELECT d.id as datasetId"
+				+ ", dm.name as datasetName"
+				+ ", dm.dataset_modality_type as datasetType"
+				+ ", null as datasetNature"
+				+ ", d.creation_date as datasetCreationDate"
+				+ ", e.id as examinationId"
+				+ ", e.comment as examinationComment"
+				+ ", e.examination_date as examinationDate"
+				+ ", su.name as subjectName"
+				+ ", su.id as subjectId"
+				+ ", st.name as studyName"
+				+ ", e.study_id as studyId"
+				+ ", c.name as centerName"
+				+ ", c.id as centerId"
+				+ ", null as sliceThickness"
+				+ ", null as pixelBandwidth"
+				+ ", null as magneticFieldStrength"
+				+ " FROM dataset d"
+				+ " LEFT JOIN dataset dp ON dp.id ="
+				+ " (SELECT dataset_id from input_of_dataset_processing WHERE processing_id = d.dataset_processing_id LIMIT 1)"
+				+ " LEFT JOIN dataset_acquisition da on da.id = dp.dataset_acquisition_id"
+				+ " LEFT JOIN examination e ON e.id = da.examination_id"
+				+ " LEFT JOIN study st ON st.id = e.study_id"
+				+ " LEFT JOIN center c ON c.id = e.center_id"
+				+ " LEFT JOIN subject su ON su.id = d.subject_id, dataset_metadata dm"
+				+ " WHERE d.origin_metadata_id = dm.id"
+				+ " AND d.id IN (" + ids + ")"
+				+ " AND d.dataset_processing_id is not null;", "SolrResult");
 		Query measurementQuery = em.createNativeQuery(
 				"SELECT d.id as datasetId, dm.name as datasetName, dm.dataset_modality_type as datasetType, "
 						+ "null as datasetNature, d.creation_date as datasetCreationDate, e.id as examinationId, e.comment as examinationComment, "
@@ -376,6 +293,35 @@ public class ShanoirMetadataRepositoryImpl implements ShanoirMetadataRepositoryC
 		result.addAll(genericQuery.getResultList());
 		result.addAll(measurementQuery.getResultList());
 
+		// as in findOneSolrDoc(), the metadata of a processed dataset come from its input
+		List<ShanoirMetadata> processedResult = processedQuery.getResultList();
+		if (!processedResult.isEmpty()) {
+			Set<Long> processedIds = processedResult.stream().map(ShanoirMetadata::getDatasetId).collect(Collectors.toSet());
+			result.removeIf(metadata -> processedIds.contains(metadata.getDatasetId()));
+			result.addAll(processedResult);
+		}
+
 		return result;
 	}
+
+	@Override
+	public List<Long> findDatasetIdsAfter(Long lastDatasetId, LocalDate since, int limit) {
+		Query query = em.createNativeQuery(
+				"SELECT d.id FROM dataset d WHERE d.id > :lastDatasetId"
+				+ (since != null ? " AND d.creation_date >= :since" : "")
+				+ " ORDER BY d.id");
+		query.setParameter("lastDatasetId", lastDatasetId);
+		if (since != null) {
+			query.setParameter("since", since);
+		}
+		query.setMaxResults(limit);
+		List<Number> ids = query.getResultList();
+		return ids.stream().map(Number::longValue).collect(Collectors.toList());
+	}
+
+	@Override
+	public Long findMaxDatasetId() {
+		Number maxId = (Number) em.createNativeQuery("SELECT MAX(d.id) FROM dataset d").getSingleResult();
+		return maxId != null ? maxId.longValue() : 0L;
+	}
 }
\ No newline at end of file
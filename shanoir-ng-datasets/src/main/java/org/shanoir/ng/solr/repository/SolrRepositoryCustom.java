@@ -3,8 +3,11 @@
  */
 package org.shanoir.ng.solr.repository;
 
+import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.shanoir.ng.shared.exception.RestServiceException;
 import org.shanoir.ng.solr.model.ShanoirSolrDocument;
@@ -22,4 +25,23 @@ public interface SolrRepositoryCustom {
 	
 	public SolrResultPage<ShanoirSolrDocument> findByStudyIdInAndFacetCriteria(Map<Long, List<String>> studiesCenter, ShanoirSolrQuery query, Pageable pageable) throws RestServiceException;
 
+	/**
+	 * Deletes the documents of the datasets of an id range, except the given ones.
+	 * 
+	 * @param afterDatasetId the range starts after this id
+	 * @param toDatasetId the range ends with this id
+	 * @param datasetIds the datasets of the range to keep
+	 * @throws RestServiceException
+	 */
+	public void deleteByDatasetIdInRangeNotIn(Long afterDatasetId, Long toDatasetId, Set<Long> datasetIds) throws RestServiceException;
+
+	/**
+	 * Saves the documents without an explicit commit: Solr makes them visible
+	 * within the given time, so that frequent updates share the same commit.
+	 * 
+	 * @param documents
+	 * @param commitWithin
+	 */
+	public void saveAllWithin(Collection<ShanoirSolrDocument> documents, Duration commitWithin);
+
 }
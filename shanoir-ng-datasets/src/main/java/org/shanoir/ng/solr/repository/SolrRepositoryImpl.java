@@ -4,6 +4,7 @@
 package org.shanoir.ng.solr.repository;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
@@ -12,6 +13,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.annotation.Resource;
 
@@ -25,6 +27,7 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.FacetParams;
 import org.shanoir.ng.shared.exception.ErrorModel;
 import org.shanoir.ng.shared.exception.RestServiceException;
@@ -102,6 +105,8 @@ public class SolrRepositoryImpl implements SolrRepositoryCustom {
 			TAGS_FACET,	
 	};
 
+	private static final int DELETE_PAGE_SIZE = 1000;
+
 	private static final String[] TEXTUAL_FACET_LIST = {
 			DATASET_NAME_FACET,
 			DATASET_TYPE_FACET,
@@ -268,6 +273,49 @@ public class SolrRepositoryImpl implements SolrRepositoryCustom {
 		return buildShanoirSolrPage(response, pageable, shanoirQuery.getFacetPaging());
 	}
 
+	@Override
+	public void deleteByDatasetIdInRangeNotIn(Long afterDatasetId, Long toDatasetId, Set<Long> datasetIds) throws RestServiceException {
+		SolrClient client = solrConfig.solrClient();
+		final SolrQuery query = new SolrQuery(DATASET_ID_FACET + ":{" + afterDatasetId + " TO " + toDatasetId + "]");
+		query.setFields(DOCUMENT_ID_FACET, DATASET_ID_FACET);
+		query.setRows(DELETE_PAGE_SIZE);
+		// a cursor needs a sort on the unique key
+		query.setSort(DOCUMENT_ID_FACET, ORDER.asc);
+		List<String> toDelete = new ArrayList<>();
+		try {
+			String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+			boolean done = false;
+			while (!done) {
+				query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+				QueryResponse response = client.query("shanoir", query);
+				for (SolrDocument document : response.getResults()) {
+					if (!datasetIds.contains((Long) document.getFirstValue(DATASET_ID_FACET))) {
+						toDelete.add((String) document.getFirstValue(DOCUMENT_ID_FACET));
+					}
+				}
+				done = cursorMark.equals(response.getNextCursorMark());
+				cursorMark = response.getNextCursorMark();
+			}
+			if (!toDelete.isEmpty()) {
+				LOG.info("Deleting {} Solr documents of removed datasets.", toDelete.size());
+				client.deleteById("shanoir", toDelete);
+				client.commit("shanoir");
+			}
+		} catch (IOException e) {
+			throw new RestServiceException(e, new ErrorModel(500, "Error querying Solr"));
+		} catch (SolrException | SolrServerException e) {
+			ErrorModel error = new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), "solr query failed");
+			throw new RestServiceException(e, error);
+		}
+	}
+
+	@Override
+	public void saveAllWithin(Collection<ShanoirSolrDocument> documents, Duration commitWithin) {
+		if (!documents.isEmpty()) {
+			solrTemplate.saveBeans("shanoir", documents, commitWithin);
+		}
+	}
+
 	private void addUserFiltering(SolrQuery query, ShanoirSolrQuery shanoirQuery) {
 		/* add user's filtering */
 		addFilterQuery(query, STUDY_NAME_FACET, shanoirQuery.getStudyName());
@@ -0,0 +1,217 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.solr.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Queue of the datasets to index in Solr. The ids added during a short window
+ * are coalesced and indexed together, with one metadata query and one Solr
+ * update, instead of one of each per dataset.
+ *
+ * When Solr is slower than the producers and the queue is full, the producers
+ * wait until the next batch has been taken.
+ */
+@Component
+public class SolrIndexQueue {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SolrIndexQueue.class);
+
+	@Lazy
+	@Autowired
+	private SolrService solrService;
+
+	/** Time during which the added ids are coalesced before being indexed */
+	@Value("${solr.index.window-ms:1000}")
+	private long windowMs;
+
+	@Value("${solr.index.batch-size:500}")
+	private int batchSize;
+
+	/** Maximum number of waiting ids, above which the producers are blocked */
+	@Value("${solr.index.capacity:10000}")
+	private int capacity;
+
+	private final Set<Long> pending = new LinkedHashSet<>();
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private final Condition stopping = lock.newCondition();
+
+	private volatile boolean running;
+
+	private ExecutorService worker;
+
+	@PostConstruct
+	public void start() {
+		running = true;
+		worker = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("solr-indexing-"));
+		worker.submit(this::indexPendingDatasets);
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		running = false;
+		lock.lock();
+		try {
+			notEmpty.signalAll();
+			notFull.signalAll();
+			stopping.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		worker.shutdown();
+		worker.awaitTermination(windowMs + 30000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a dataset to index. If a transaction is active, the dataset is added
+	 * once it is committed, so that the indexing reads the committed data.
+	 *
+	 * @param datasetId
+	 */
+	public void add(Long datasetId) {
+		addAll(Collections.singletonList(datasetId));
+	}
+
+	/**
+	 * Adds datasets to index, see add().
+	 *
+	 * @param datasetIds
+	 */
+	public void addAll(Collection<Long> datasetIds) {
+		if (datasetIds.isEmpty()) {
+			return;
+		}
+		List<Long> ids = new ArrayList<>(datasetIds);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					enqueue(ids);
+				}
+			});
+		} else {
+			enqueue(ids);
+		}
+	}
+
+	/**
+	 * @return the number of datasets waiting to be indexed
+	 */
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void enqueue(List<Long> datasetIds) {
+		lock.lock();
+		try {
+			while (running && pending.size() >= capacity) {
+				LOG.warn("Solr indexing queue is full ({} datasets), waiting.", pending.size());
+				notFull.await();
+			}
+			pending.addAll(datasetIds);
+			notEmpty.signal();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// do not lose the datasets, even if the queue is full
+			pending.addAll(datasetIds);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void indexPendingDatasets() {
+		while (running || getPendingCount() > 0) {
+			try {
+				lock.lock();
+				try {
+					while (running && pending.isEmpty()) {
+						notEmpty.await();
+					}
+					// let the other datasets of the same import or update arrive
+					long remaining = TimeUnit.MILLISECONDS.toNanos(windowMs);
+					while (running && remaining > 0) {
+						remaining = stopping.awaitNanos(remaining);
+					}
+				} finally {
+					lock.unlock();
+				}
+				List<Long> batch = takeBatch();
+				if (!batch.isEmpty()) {
+					long start = System.currentTimeMillis();
+					solrService.indexDatasetsInBatch(batch);
+					LOG.debug("{} datasets indexed in Solr in {} ms.", batch.size(), System.currentTimeMillis() - start);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				// the datasets will be indexed by the next full indexing
+				LOG.error("Error while indexing datasets in Solr.", e);
+			}
+		}
+	}
+
+	private List<Long> takeBatch() {
+		List<Long> batch = new ArrayList<>();
+		lock.lock();
+		try {
+			Iterator<Long> it = pending.iterator();
+			while (it.hasNext() && batch.size() < batchSize) {
+				batch.add(it.next());
+				it.remove();
+			}
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return batch;
+	}
+
+}
@@ -19,6 +19,7 @@
  */
 package org.shanoir.ng.solr.service;
 
+import java.time.LocalDate;
 import java.util.List;
 
 import org.shanoir.ng.shared.exception.RestServiceException;
@@ -44,9 +45,23 @@ public interface SolrService {
 	
 	void indexAll();
 
+	/**
+	 * Indexes the datasets created since the given date, without removing other documents.
+	 * 
+	 * @param since
+	 */
+	void indexSince(LocalDate since);
+
 	SolrResultPage<ShanoirSolrDocument> facetSearch(ShanoirSolrQuery query, Pageable pageable) throws RestServiceException;
 
 	void indexDataset(Long datasetId);
+
+	/**
+	 * Indexes the given datasets with one query and one Solr update, committed within solr.index.commit-within-ms.
+	 * 
+	 * @param datasetIds
+	 */
+	void indexDatasetsInBatch(List<Long> datasetIds);
 	
 	void indexDatasets(List<Long> datasetIds);
 
@@ -19,19 +19,21 @@
  */
 package org.shanoir.ng.solr.service;
 
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.shanoir.ng.shared.dateTime.DateTimeUtils;
 import org.shanoir.ng.shared.exception.RestServiceException;
 import org.shanoir.ng.shared.model.Center;
-import org.shanoir.ng.shared.model.SubjectStudy;
-import org.shanoir.ng.shared.model.Tag;
 import org.shanoir.ng.shared.paging.PageImpl;
 import org.shanoir.ng.shared.repository.CenterRepository;
 import org.shanoir.ng.shared.repository.SubjectStudyRepository;
@@ -45,7 +47,10 @@ import org.shanoir.ng.study.rights.StudyUser;
 import org.shanoir.ng.study.rights.StudyUserRightsRepository;
 import org.shanoir.ng.utils.KeycloakUtil;
 import org.shanoir.ng.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
@@ -53,8 +58,6 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.solr.core.query.result.SolrResultPage;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
-import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
 
@@ -65,7 +68,7 @@ import org.springframework.util.CollectionUtils;
 @Service
 public class SolrServiceImpl implements SolrService {
 
-	//	private static final Logger LOG = LoggerFactory.getLogger(SolrServiceImpl.class);
+	private static final Logger LOG = LoggerFactory.getLogger(SolrServiceImpl.class);
 
 	@Autowired
 	private SolrRepository solrRepository;
@@ -82,6 +85,15 @@ public class SolrServiceImpl implements SolrService {
 	@Autowired
 	private CenterRepository centerRepository;
 
+	@Autowired
+	private SolrIndexQueue indexQueue;
+
+	@Value("${solr.reindex.batch-size:1000}")
+	private int reindexBatchSize;
+
+	@Value("${solr.index.commit-within-ms:1000}")
+	private long commitWithinMs;
+
 	@Transactional
 	@Override
 	public void addToIndex (final ShanoirSolrDocument document) {
@@ -111,16 +123,67 @@ public class SolrServiceImpl implements SolrService {
 		solrRepository.deleteAll();
 	}
 
-	@Transactional
+	/**
+	 * Reindexes all the datasets: the documents are replaced batch after batch,
+	 * and the documents of the deleted datasets of the id range of each batch are
+	 * removed with it, so that the index stays complete during the reindexing.
+	 * The datasets created during the reindexing have a greater id than the one
+	 * read at the start: they are indexed by their own events, and their documents
+	 * are never removed here.
+	 */
 	@Override
 	@Scheduled(cron = "0 0 6 * * *", zone="Europe/Paris")
 	public void indexAll() {
-		// 1. delete all
-		deleteAll();
+		Long maxDatasetId = shanoirMetadataRepository.findMaxDatasetId();
+		indexByBatches(null, maxDatasetId != null ? maxDatasetId : 0L);
+	}
+
+	@Override
+	public void indexSince(LocalDate since) {
+		indexByBatches(since, null);
+	}
 
-		// 2. get all datasets
-		List<ShanoirMetadata> documents = shanoirMetadataRepository.findAllAsSolrDoc();
-		indexDocumentsInSolr(documents);
+	/**
+	 * Indexes the datasets by batches of ascending ids, so that only one batch is in memory.
+	 * 
+	 * @param since if not null, only the datasets created since this date are indexed
+	 * @param maxDatasetId if not null, the documents of the deleted datasets up to this id are removed
+	 */
+	private void indexByBatches(LocalDate since, Long maxDatasetId) {
+		int indexed = 0;
+		Long previousLastId = 0L;
+		List<Long> datasetIds = shanoirMetadataRepository.findDatasetIdsAfter(previousLastId, since, reindexBatchSize);
+		while (!datasetIds.isEmpty()) {
+			Long lastId = datasetIds.get(datasetIds.size() - 1);
+			List<ShanoirMetadata> metadatas = shanoirMetadataRepository.findSolrDocs(datasetIds);
+			indexDocumentsInSolr(metadatas);
+			indexed += metadatas.size();
+			if (maxDatasetId != null) {
+				deleteRemovedDatasets(previousLastId, Math.min(lastId, maxDatasetId),
+						metadatas.stream().map(ShanoirMetadata::getDatasetId).collect(Collectors.toSet()));
+			}
+			LOG.info("Solr indexing: {} datasets indexed, up to dataset {}.", indexed, lastId);
+			previousLastId = lastId;
+			datasetIds = shanoirMetadataRepository.findDatasetIdsAfter(previousLastId, since, reindexBatchSize);
+		}
+		if (maxDatasetId != null) {
+			// the datasets deleted after the last one
+			deleteRemovedDatasets(previousLastId, maxDatasetId, Collections.emptySet());
+		}
+	}
+
+	/**
+	 * Removes the documents of the datasets of the range (afterDatasetId, toDatasetId] that are not indexed.
+	 */
+	private void deleteRemovedDatasets(Long afterDatasetId, Long toDatasetId, Set<Long> indexedIds) {
+		if (toDatasetId <= afterDatasetId) {
+			return;
+		}
+		try {
+			solrRepository.deleteByDatasetIdInRangeNotIn(afterDatasetId, toDatasetId, indexedIds);
+		} catch (RestServiceException e) {
+			LOG.error("Solr indexing: the documents of the deleted datasets up to dataset {} could not be removed.", toDatasetId, e);
+		}
 	}
 
 	@Transactional
@@ -131,33 +194,34 @@ public class SolrServiceImpl implements SolrService {
 		indexDocumentsInSolr(shanoirMetadatas);
 	}
 
+	/**
+	 * The dataset is indexed asynchronously, with the other datasets created or updated
+	 * at the same time, once the current transaction is committed.
+	 */
 	@Override
-	@Transactional(isolation = Isolation.READ_UNCOMMITTED,  propagation = Propagation.REQUIRES_NEW)
 	public void indexDataset(Long datasetId) {
-		ShanoirMetadata shanoirMetadata = shanoirMetadataRepository.findOneSolrDoc(datasetId);
-		if (shanoirMetadata == null) throw new IllegalStateException("shanoir metadata with id " +  datasetId + " query failed to return any result");
-		ShanoirSolrDocument doc = getShanoirSolrDocument(shanoirMetadata);
-
-		// Get tags
-		List<SubjectStudy> list = subjectStudyRepo.findByStudy_IdInAndSubjectIdIn(Collections.singletonList(shanoirMetadata.getStudyId()), Collections.singletonList(shanoirMetadata.getSubjectId()));
-
-		List<String> tags = new ArrayList<>();
-		if (list != null) {
-			for (SubjectStudy susu : list) {
-				if (susu.getTags() != null) {
-					for (Tag tag : susu.getTags()) {
-						tags.add(tag.getName());
-					}
-				}
-			}
-		}
-
-		doc.setTags(tags);
+		indexQueue.add(datasetId);
+	}
 
-		solrRepository.save(doc);
+	@Transactional(readOnly = true)
+	@Override
+	public void indexDatasetsInBatch(List<Long> datasetIds) {
+		List<ShanoirMetadata> shanoirMetadatas = shanoirMetadataRepository.findSolrDocs(datasetIds);
+		solrRepository.saveAllWithin(getShanoirSolrDocuments(shanoirMetadatas), Duration.ofMillis(commitWithinMs));
 	}
 
 	private void indexDocumentsInSolr(List<ShanoirMetadata> metadatas) {
+		List<ShanoirSolrDocument> solrDocuments = getShanoirSolrDocuments(metadatas);
+		if (CollectionUtils.isEmpty(solrDocuments)) {
+			return;
+		}
+		this.addAllToIndex(solrDocuments);
+	}
+
+	/**
+	 * Builds the documents of the given datasets, with their subjects tags.
+	 */
+	private List<ShanoirSolrDocument> getShanoirSolrDocuments(List<ShanoirMetadata> metadatas) {
 		Iterator<ShanoirMetadata> docIt = metadatas.iterator();
 
 		List<ShanoirSolrDocument> solrDocuments = new ArrayList<>();
@@ -169,31 +233,32 @@ public class SolrServiceImpl implements SolrService {
 		}
 
 		if (CollectionUtils.isEmpty(solrDocuments)) {
-			return;
+			return solrDocuments;
 		}
 
-		List<SubjectStudy> subjstuds = Utils.toList(subjectStudyRepo.findAll());
-
-		Map<Long, Map<String, List<Tag>>> tags = new HashMap<>();
-
-		for (SubjectStudy subjstud : subjstuds) {
-			if (tags.get(subjstud.getStudy().getId()) == null) {
-				tags.put(subjstud.getStudy().getId(), new HashMap<>());
+		// Get the tags of the subjects of these documents only
+		List<Long> studyIds = solrDocuments.stream().map(ShanoirSolrDocument::getStudyId).filter(Objects::nonNull).distinct().collect(Collectors.toList());
+		List<Long> subjectIds = solrDocuments.stream().map(ShanoirSolrDocument::getSubjectId).filter(Objects::nonNull).distinct().collect(Collectors.toList());
+		Map<Long, Map<Long, List<String>>> tags = new HashMap<>();
+		if (!studyIds.isEmpty() && !subjectIds.isEmpty()) {
+			for (Object[] tag : subjectStudyRepo.findTagNamesByStudyIdInAndSubjectIdIn(studyIds, subjectIds)) {
+				tags.computeIfAbsent((Long) tag[0], studyId -> new HashMap<>())
+						.computeIfAbsent((Long) tag[1], subjectId -> new ArrayList<>())
+						.add((String) tag[2]);
 			}
-			tags.get(subjstud.getStudy().getId()).put(subjstud.getSubject().getName(), subjstud.getTags() != null ? subjstud.getTags() : Collections.emptyList());
 		}
 		
 		// Update tags
 		for (ShanoirSolrDocument doc : solrDocuments) {
-			if (doc != null && tags != null && tags.get(doc.getStudyId()) != null) {
-				List<Tag> list = tags.get(doc.getStudyId()).get(doc.getSubjectName());
+			if (doc != null && tags.get(doc.getStudyId()) != null) {
+				List<String> list = tags.get(doc.getStudyId()).get(doc.getSubjectId());
 				if (list != null && !list.isEmpty()) {
-					doc.setTags(list.stream().map(Tag::getName).collect(Collectors.toList()));
+					doc.setTags(list);
 				}				
 			}
 		}
 
-		this.addAllToIndex(solrDocuments);
+		return solrDocuments;
 	}
 
 	private ShanoirSolrDocument getShanoirSolrDocument(ShanoirMetadata shanoirMetadata) {
@@ -125,6 +125,32 @@ public interface QualityCardApi {
 	ResponseEntity<QualityCardResult> applyQualityCardOnStudy(
 		@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) throws RestServiceException, MicroServiceCommunicationException;
 	
+	@ApiOperation(value = "", notes = "Apply a quality card on a study for quality control, in background: the progress is published as a task", response = Void.class, tags = {})
+	@ApiResponses(value = {
+		@ApiResponse(code = 202, message = "quality card application started", response = Void.class),
+		@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+		@ApiResponse(code = 403, message = "forbidden", response = Void.class),
+		@ApiResponse(code = 404, message = "no quality card found", response = Void.class),
+		@ApiResponse(code = 500, message = "unexpected error", response = Void.class)
+	})
+	@RequestMapping(value = "/apply/{qualityCardId}/async", method = RequestMethod.POST)
+	@PreAuthorize("hasRole('ADMIN') or (hasRole('EXPERT') and @datasetSecurityService.hasRightOnQualityCard(#qualityCardId, 'CAN_ADMINISTRATE'))")
+	ResponseEntity<Void> applyQualityCardOnStudyAsync(
+		@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) throws RestServiceException;
+
+	@ApiOperation(value = "", notes = "Returns the result of the last application in background of a quality card", response = QualityCardResult.class, tags = {})
+	@ApiResponses(value = {
+		@ApiResponse(code = 200, message = "result of the quality card", response = QualityCardResult.class),
+		@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+		@ApiResponse(code = 403, message = "forbidden", response = Void.class),
+		@ApiResponse(code = 404, message = "no result found", response = Void.class),
+		@ApiResponse(code = 500, message = "unexpected error", response = Void.class)
+	})
+	@RequestMapping(value = "/apply/{qualityCardId}/result", method = RequestMethod.GET)
+	@PreAuthorize("hasRole('ADMIN') or (hasRole('EXPERT') and @datasetSecurityService.hasRightOnQualityCard(#qualityCardId, 'CAN_ADMINISTRATE'))")
+	ResponseEntity<QualityCardResult> findQualityCardAsyncResult(
+		@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId);
+	
 	@ApiOperation(value = "", notes = "Test a quality card on a study for quality control", response = Void.class, tags = {})
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = "applied a quality card on its study for quality control", response = Void.class),
@@ -17,6 +17,9 @@ package org.shanoir.ng.studycard.controler;
 import java.util.List;
 
 import org.shanoir.ng.shared.error.FieldErrorMap;
+import org.shanoir.ng.shared.event.ShanoirEvent;
+import org.shanoir.ng.shared.event.ShanoirEventService;
+import org.shanoir.ng.shared.event.ShanoirEventType;
 import org.shanoir.ng.shared.exception.EntityNotFoundException;
 import org.shanoir.ng.shared.exception.ErrorDetails;
 import org.shanoir.ng.shared.exception.ErrorModel;
@@ -27,6 +30,7 @@ import org.shanoir.ng.studycard.model.QualityCard;
 import org.shanoir.ng.studycard.service.CardsProcessingService;
 import org.shanoir.ng.studycard.service.QualityCardService;
 import org.shanoir.ng.studycard.service.QualityCardUniqueConstraintManager;
+import org.shanoir.ng.utils.KeycloakUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -55,11 +59,15 @@ public class QualityCardApiController implements QualityCardApi {
 	@Autowired
 	private CardsProcessingService cardProcessingService;
 
+	@Autowired
+	private ShanoirEventService eventService;
+
 	@Override
 	public ResponseEntity<Void> deleteQualityCard(
 			@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) throws RestServiceException {
 		try {
 			qualityCardService.deleteById(qualityCardId);
+			cardProcessingService.removeAsyncResult(qualityCardId);
 		} catch (EntityNotFoundException e) {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		} catch (MicroServiceCommunicationException e) {
@@ -161,6 +169,32 @@ public class QualityCardApiController implements QualityCardApi {
 		return new ResponseEntity<>(results, HttpStatus.OK);
 	}
 	
+	@Override
+	public ResponseEntity<Void> applyQualityCardOnStudyAsync(
+			@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) throws RestServiceException {
+		final QualityCard qualityCard = qualityCardService.findById(qualityCardId);
+		if (qualityCard == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		LOG.info("apply quality card in background: name:" + qualityCard.getName() + ", studyId: " + qualityCard.getStudyId());
+		ShanoirEvent event = new ShanoirEvent(ShanoirEventType.CHECK_QUALITY_EVENT, qualityCardId.toString(), KeycloakUtil.getTokenUserId(),
+				"Quality card " + qualityCard.getName() + " started", ShanoirEvent.IN_PROGRESS, qualityCard.getStudyId());
+		event.setProgress(0f);
+		eventService.publishEvent(event);
+		cardProcessingService.applyQualityCardOnStudyAsync(qualityCard, true, event);
+		return new ResponseEntity<>(HttpStatus.ACCEPTED);
+	}
+
+	@Override
+	public ResponseEntity<QualityCardResult> findQualityCardAsyncResult(
+			@ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) {
+		QualityCardResult result = cardProcessingService.getAsyncResult(qualityCardId);
+		if (result == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<>(result, HttpStatus.OK);
+	}
+
 	@Override
     public ResponseEntity<QualityCardResult> testQualityCardOnStudy(
             @ApiParam(value = "id of the quality card", required = true) @PathVariable("qualityCardId") Long qualityCardId) throws RestServiceException, MicroServiceCommunicationException {
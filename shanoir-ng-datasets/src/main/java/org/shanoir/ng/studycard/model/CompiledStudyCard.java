@@ -0,0 +1,328 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che3.data.Attributes;
+import org.shanoir.ng.dataset.model.Dataset;
+import org.shanoir.ng.datasetacquisition.model.DatasetAcquisition;
+import org.shanoir.ng.studycard.model.assignment.DatasetAcquisitionAssignment;
+import org.shanoir.ng.studycard.model.assignment.DatasetAssignment;
+import org.shanoir.ng.studycard.model.assignment.StudyCardAssignment;
+import org.shanoir.ng.studycard.model.condition.AcqMetadataCondOnAcq;
+import org.shanoir.ng.studycard.model.condition.AcqMetadataCondOnDatasets;
+import org.shanoir.ng.studycard.model.condition.CompiledDicomCondition;
+import org.shanoir.ng.studycard.model.condition.DatasetMetadataCondOnDataset;
+import org.shanoir.ng.studycard.model.condition.DicomTagValue;
+import org.shanoir.ng.studycard.model.condition.StudyCardCondition;
+import org.shanoir.ng.studycard.model.condition.StudyCardDICOMCondition;
+import org.shanoir.ng.studycard.model.rule.DatasetAcquisitionRule;
+import org.shanoir.ng.studycard.model.rule.DatasetRule;
+import org.shanoir.ng.studycard.model.rule.StudyCardRule;
+
+/**
+ * A study card compiled to be applied to many acquisitions: the rules and their
+ * conditions are sorted once, the DICOM conditions are grouped by tag, so that a
+ * tag is read once per acquisition whatever the number of conditions on it, and
+ * the result of a DICOM condition is shared by all the datasets of the acquisition.
+ * The conditions on the metadata are still evaluated when their rule is applied,
+ * as a previous rule can have changed the metadata.
+ *
+ * The compiled card copies the conditions and the assignments of the card, so it
+ * holds no entity and can be kept after the session that loaded the card, see
+ * {@link org.shanoir.ng.studycard.service.CompiledStudyCardCache}.
+ */
+public final class CompiledStudyCard {
+
+	private final Long lastEditTimestamp;
+
+	/** The tags read by the DICOM conditions, without duplicates */
+	private final int[] tags;
+
+	private final DicomTagType[] tagTypes;
+
+	private final CompiledDicomCondition[] dicomConditions;
+
+	/** For each DICOM condition, the index of its tag in tags */
+	private final int[] dicomConditionTags;
+
+	private final CompiledRule[] rules;
+
+	public CompiledStudyCard(StudyCard studyCard) {
+		this.lastEditTimestamp = studyCard.getLastEditTimestamp();
+		Map<Integer, Integer> tagIndexes = new LinkedHashMap<>();
+		List<DicomTagType> types = new ArrayList<>();
+		List<CompiledDicomCondition> conditions = new ArrayList<>();
+		List<Integer> conditionTags = new ArrayList<>();
+		List<CompiledRule> compiledRules = new ArrayList<>();
+		if (studyCard.getRules() != null) {
+			for (StudyCardRule<?> rule : studyCard.getRules()) {
+				if (!(rule instanceof DatasetAcquisitionRule) && !(rule instanceof DatasetRule)) {
+					throw new IllegalStateException("unknown type of rule");
+				}
+				List<Integer> ruleDicomConditions = new ArrayList<>();
+				List<StudyCardCondition> ruleOtherConditions = new ArrayList<>();
+				if (rule.getConditions() != null) {
+					for (StudyCardCondition condition : rule.getConditions()) {
+						if (condition instanceof StudyCardDICOMCondition) {
+							CompiledDicomCondition dicomCondition = new CompiledDicomCondition((StudyCardDICOMCondition) condition);
+							Integer tagIndex = tagIndexes.get(dicomCondition.getDicomTag());
+							if (tagIndex == null) {
+								tagIndex = tagIndexes.size();
+								tagIndexes.put(dicomCondition.getDicomTag(), tagIndex);
+								types.add(dicomCondition.getDicomTagType());
+							}
+							ruleDicomConditions.add(conditions.size());
+							conditions.add(dicomCondition);
+							conditionTags.add(tagIndex);
+						} else if (rule instanceof DatasetAcquisitionRule
+								&& (condition instanceof AcqMetadataCondOnAcq || condition instanceof AcqMetadataCondOnDatasets)
+								|| rule instanceof DatasetRule && condition instanceof DatasetMetadataCondOnDataset) {
+							ruleOtherConditions.add(copy(condition));
+						} else {
+							throw new IllegalStateException("There might be an unimplemented condition type here. Condition class : " + condition.getClass());
+						}
+					}
+				}
+				List<StudyCardAssignment<?>> assignments = new ArrayList<>();
+				if (rule.getAssignments() != null) {
+					for (StudyCardAssignment<?> assignment : rule.getAssignments()) {
+						assignments.add(copy(assignment));
+					}
+				}
+				compiledRules.add(new CompiledRule(rule instanceof DatasetAcquisitionRule,
+						ruleDicomConditions.stream().mapToInt(Integer::intValue).toArray(),
+						ruleOtherConditions.toArray(new StudyCardCondition[0]),
+						assignments.toArray(new StudyCardAssignment<?>[0])));
+			}
+		}
+		this.tags = tagIndexes.keySet().stream().mapToInt(Integer::intValue).toArray();
+		this.tagTypes = types.toArray(new DicomTagType[0]);
+		this.dicomConditions = conditions.toArray(new CompiledDicomCondition[0]);
+		this.dicomConditionTags = conditionTags.stream().mapToInt(Integer::intValue).toArray();
+		this.rules = compiledRules.toArray(new CompiledRule[0]);
+	}
+
+	/**
+	 * Applies the rules to an acquisition and its datasets, as {@link StudyCard#apply(DatasetAcquisition, Attributes)}.
+	 *
+	 * @param acquisition
+	 * @param dicomAttributes can be null: the DICOM conditions are then ignored
+	 * @return true if the application had any effect on acquisitions
+	 */
+	public boolean apply(DatasetAcquisition acquisition, Attributes dicomAttributes) {
+		Evaluation evaluation = new Evaluation(dicomAttributes);
+		boolean changeInAtLeastOneAcquisition = false;
+		for (CompiledRule rule : rules) {
+			if (rule.onAcquisition) {
+				changeInAtLeastOneAcquisition = true;
+				if (evaluation.fulfilled(rule, acquisition, null)) {
+					rule.applyAssignments(acquisition);
+				}
+			} else if (acquisition.getDatasets() != null) {
+				for (Dataset dataset : acquisition.getDatasets()) {
+					changeInAtLeastOneAcquisition = true;
+					if (evaluation.fulfilled(rule, acquisition, dataset)) {
+						rule.applyAssignments(dataset);
+					}
+				}
+			}
+		}
+		return changeInAtLeastOneAcquisition;
+	}
+
+	/**
+	 * @return the last edit timestamp of the card when it was compiled
+	 */
+	public Long getLastEditTimestamp() {
+		return lastEditTimestamp;
+	}
+
+	/**
+	 * @return the number of distinct tags read by the DICOM conditions
+	 */
+	public int getTagCount() {
+		return tags.length;
+	}
+
+	/**
+	 * @return a copy of a condition on the metadata, not attached to any session
+	 */
+	private static StudyCardCondition copy(StudyCardCondition condition) {
+		StudyCardCondition copy;
+		if (condition instanceof AcqMetadataCondOnAcq) {
+			AcqMetadataCondOnAcq acqCondition = new AcqMetadataCondOnAcq();
+			if (((AcqMetadataCondOnAcq) condition).getShanoirField() != null) {
+				acqCondition.setShanoirField(((AcqMetadataCondOnAcq) condition).getShanoirField());
+			}
+			copy = acqCondition;
+		} else if (condition instanceof AcqMetadataCondOnDatasets) {
+			AcqMetadataCondOnDatasets original = (AcqMetadataCondOnDatasets) condition;
+			AcqMetadataCondOnDatasets datasetsCondition = new AcqMetadataCondOnDatasets();
+			if (original.getShanoirField() != null) {
+				datasetsCondition.setShanoirField(original.getShanoirField());
+			}
+			datasetsCondition.setCardinality(original.getCardinality());
+			copy = datasetsCondition;
+		} else {
+			DatasetMetadataCondOnDataset datasetCondition = new DatasetMetadataCondOnDataset();
+			if (((DatasetMetadataCondOnDataset) condition).getShanoirField() != null) {
+				datasetCondition.setShanoirField(((DatasetMetadataCondOnDataset) condition).getShanoirField());
+			}
+			copy = datasetCondition;
+		}
+		copy.setId(condition.getId());
+		if (condition.getOperation() != null) {
+			copy.setOperation(condition.getOperation());
+		}
+		copy.setValues(condition.getValues() != null ? new ArrayList<>(condition.getValues()) : null);
+		return copy;
+	}
+
+	/**
+	 * @return a copy of an assignment, not attached to any session
+	 */
+	private static StudyCardAssignment<?> copy(StudyCardAssignment<?> assignment) {
+		StudyCardAssignment<?> copy;
+		if (assignment instanceof DatasetAcquisitionAssignment) {
+			DatasetAcquisitionAssignment acquisitionAssignment = new DatasetAcquisitionAssignment();
+			if (((DatasetAcquisitionAssignment) assignment).getField() != null) {
+				acquisitionAssignment.setField(((DatasetAcquisitionAssignment) assignment).getField());
+			}
+			copy = acquisitionAssignment;
+		} else if (assignment instanceof DatasetAssignment) {
+			DatasetAssignment datasetAssignment = new DatasetAssignment();
+			if (((DatasetAssignment) assignment).getField() != null) {
+				datasetAssignment.setField(((DatasetAssignment) assignment).getField());
+			}
+			copy = datasetAssignment;
+		} else {
+			throw new IllegalArgumentException("Unimplemented assignment type");
+		}
+		copy.setId(assignment.getId());
+		copy.setValue(assignment.getValue());
+		return copy;
+	}
+
+	/**
+	 * The tag values and the DICOM condition results of one acquisition.
+	 */
+	private final class Evaluation {
+
+		private static final byte UNKNOWN = 0;
+
+		private static final byte FULFILLED = 1;
+
+		private static final byte NOT_FULFILLED = 2;
+
+		private final Attributes dicomAttributes;
+
+		private final DicomTagValue[] values = new DicomTagValue[tags.length];
+
+		private final byte[] results = new byte[dicomConditions.length];
+
+		private Evaluation(Attributes dicomAttributes) {
+			this.dicomAttributes = dicomAttributes;
+		}
+
+		private boolean fulfilled(CompiledRule rule, DatasetAcquisition acquisition, Dataset dataset) {
+			for (int condition : rule.dicomConditions) {
+				if (!fulfilled(condition)) {
+					return false;
+				}
+			}
+			for (StudyCardCondition condition : rule.otherConditions) {
+				boolean fulfilled;
+				if (condition instanceof AcqMetadataCondOnAcq) {
+					fulfilled = ((AcqMetadataCondOnAcq) condition).fulfilled(acquisition);
+				} else if (condition instanceof AcqMetadataCondOnDatasets) {
+					fulfilled = ((AcqMetadataCondOnDatasets) condition).fulfilled(acquisition.getDatasets());
+				} else {
+					fulfilled = ((DatasetMetadataCondOnDataset) condition).fulfilled(dataset);
+				}
+				if (!fulfilled) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean fulfilled(int condition) {
+			// the DICOM conditions are ignored without DICOM data
+			if (dicomAttributes == null) {
+				return true;
+			}
+			if (results[condition] == UNKNOWN) {
+				int tag = dicomConditionTags[condition];
+				if (values[tag] == null) {
+					values[tag] = DicomTagValue.read(dicomAttributes, tags[tag], tagTypes[tag]);
+				}
+				results[condition] = dicomConditions[condition].fulfilled(values[tag], null) ? FULFILLED : NOT_FULFILLED;
+			}
+			return results[condition] == FULFILLED;
+		}
+	}
+
+	private static final class CompiledRule {
+
+		/** True for a rule on the acquisition, false for a rule on each dataset */
+		private final boolean onAcquisition;
+
+		/** Indexes of the DICOM conditions of the rule */
+		private final int[] dicomConditions;
+
+		private final StudyCardCondition[] otherConditions;
+
+		private final StudyCardAssignment<?>[] assignments;
+
+		private CompiledRule(boolean onAcquisition, int[] dicomConditions, StudyCardCondition[] otherConditions,
+				StudyCardAssignment<?>[] assignments) {
+			this.onAcquisition = onAcquisition;
+			this.dicomConditions = dicomConditions;
+			this.otherConditions = otherConditions;
+			this.assignments = assignments;
+		}
+
+		/**
+		 * As {@link DatasetAcquisitionRule}: the assignments on the datasets apply to every dataset of the acquisition.
+		 */
+		private void applyAssignments(DatasetAcquisition acquisition) {
+			for (StudyCardAssignment<?> assignment : assignments) {
+				if (assignment instanceof DatasetAssignment) {
+					for (Dataset dataset : acquisition.getDatasets()) {
+						((DatasetAssignment) assignment).apply(dataset);
+					}
+				} else {
+					((DatasetAcquisitionAssignment) assignment).apply(acquisition);
+				}
+			}
+		}
+
+		private void applyAssignments(Dataset dataset) {
+			for (StudyCardAssignment<?> assignment : assignments) {
+				if (assignment instanceof DatasetAssignment) {
+					((DatasetAssignment) assignment).apply(dataset);
+				} else {
+					throw new IllegalArgumentException("Unimplemented assignment type");
+				}
+			}
+		}
+	}
+
+}
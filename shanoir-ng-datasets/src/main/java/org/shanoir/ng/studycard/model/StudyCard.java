@@ -28,13 +28,10 @@ import javax.persistence.Table;
 import org.dcm4che3.data.Attributes;
 import org.hibernate.annotations.GenericGenerator;
 import org.hibernate.validator.constraints.NotBlank;
-import org.shanoir.ng.dataset.model.Dataset;
 import org.shanoir.ng.datasetacquisition.model.DatasetAcquisition;
 import org.shanoir.ng.shared.hateoas.HalEntity;
 import org.shanoir.ng.shared.hateoas.Links;
 import org.shanoir.ng.shared.validation.Unique;
-import org.shanoir.ng.studycard.model.rule.DatasetAcquisitionRule;
-import org.shanoir.ng.studycard.model.rule.DatasetRule;
 import org.shanoir.ng.studycard.model.rule.StudyCardRule;
 
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
@@ -146,22 +143,18 @@ public class StudyCard extends HalEntity implements Card {
     * @return true if the application had any effect on acquisitions
     */
     public boolean apply(DatasetAcquisition acquisition, Attributes dicomAttributes) {
-        boolean changeInAtLeastOneAcquisition = false;
-        if (this.getRules() != null) {
-            for (StudyCardRule<?> rule : this.getRules()) {
-                if (rule instanceof DatasetAcquisitionRule) {
-                    changeInAtLeastOneAcquisition = true;
-                    ((DatasetAcquisitionRule) rule).apply(acquisition, dicomAttributes);
-                } else if (rule instanceof DatasetRule && acquisition.getDatasets() != null) {
-                    for (Dataset dataset : acquisition.getDatasets()) {
-                        changeInAtLeastOneAcquisition = true;
-                        ((DatasetRule) rule).apply(dataset, dicomAttributes);                       
-                    }
-                } else {
-                    throw new IllegalStateException("unknown type of rule");
-                }
-            }
-        }
+        return apply(acquisition, dicomAttributes, new CompiledStudyCard(this));
+    }
+
+    /**
+    * Application with the card already compiled, see {@link org.shanoir.ng.studycard.service.CompiledStudyCardCache}.
+    * @param acquisition
+    * @param dicomAttributes
+    * @param compiled this card compiled
+    * @return true if the application had any effect on acquisitions
+    */
+    public boolean apply(DatasetAcquisition acquisition, Attributes dicomAttributes, CompiledStudyCard compiled) {
+        boolean changeInAtLeastOneAcquisition = compiled.apply(acquisition, dicomAttributes);
         acquisition.setStudyCard(this);
         acquisition.setStudyCardTimestamp(this.getLastEditTimestamp());
         return changeInAtLeastOneAcquisition;
@@ -0,0 +1,187 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.model.condition;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import org.apache.commons.lang3.StringUtils;
+import org.dcm4che3.data.Keyword;
+import org.dcm4che3.data.StandardElementDictionary;
+import org.dcm4che3.data.VR;
+import org.shanoir.ng.studycard.model.DicomTagType;
+import org.shanoir.ng.studycard.model.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DICOM condition with its values parsed once with the type of the tag:
+ * numbers, or times for the dates. An operand that can not be parsed is null,
+ * and an operation not compatible with the tag is kept as an error, both
+ * reported only when the condition is evaluated, as before compilation.
+ *
+ * It copies what it needs from the {@link StudyCardDICOMCondition}, so it can
+ * be kept after the session that loaded the condition.
+ */
+public final class CompiledDicomCondition {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CompiledDicomCondition.class);
+
+	private final Long conditionId;
+
+	private final int dicomTag;
+
+	private final Operation operation;
+
+	private final DicomTagType tagType;
+
+	private final String[] strings;
+
+	private final Double[] numbers;
+
+	private final BigDecimal[] decimals;
+
+	private final String error;
+
+	public CompiledDicomCondition(StudyCardDICOMCondition condition) {
+		conditionId = condition.getId();
+		dicomTag = condition.getDicomTag();
+		operation = condition.getOperation();
+		VR tagVr = StandardElementDictionary.INSTANCE.vrOf(dicomTag);
+		tagType = DicomTagType.valueOf(tagVr);
+		strings = condition.getValues() != null ? condition.getValues().toArray(new String[0]) : new String[0];
+		numbers = new Double[strings.length];
+		decimals = new BigDecimal[strings.length];
+		if (tagType != null && tagType.isNumerical()) {
+			error = operation.isNumerical() ? null : "Study card processing : operation " + operation
+					+ " is not compatible with dicom tag " + dicomTag + " of type " + tagType + "(condition id : " + conditionId + ")";
+			for (int i = 0; i < strings.length; i++) {
+				parse(i);
+			}
+		} else if (tagType != null && tagType.isTextual()) {
+			error = operation.isTextual() ? null : "Study card processing : operation " + operation
+					+ " is not compatible with dicom tag " + getDicomTagCodeAndLabel() + " of type " + tagType + "(condition id : " + conditionId + ")";
+		} else {
+			error = null;
+		}
+	}
+
+	public int getDicomTag() {
+		return dicomTag;
+	}
+
+	/**
+	 * @return the type of the tag, from its VR in the standard dictionary, null if not implemented
+	 */
+	public DicomTagType getDicomTagType() {
+		return tagType;
+	}
+
+	/**
+	 * Evaluates the condition on a value already read, so that the conditions on
+	 * the same tag read it only once.
+	 *
+	 * @param tagValue the value of {@link #getDicomTag()}, read with {@link #getDicomTagType()}
+	 * @param errorMsg can be null
+	 * @return true if one of the values of the condition is fulfilled
+	 */
+	public boolean fulfilled(DicomTagValue tagValue, StringBuffer errorMsg) {
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("conditionFulfilled: " + conditionId + " processing one condition with all its values: ");
+			for (String s : strings) {
+				LOG.debug(s);
+			}
+		}
+		if (!tagValue.isPresent()) {
+			if (errorMsg != null) errorMsg.append("condition [" + toString()
+				+ "] failed because no value was found in the dicom for the tag " + getDicomTagCodeAndLabel());
+			return false;
+		}
+		if (strings.length > 0 && tagType != null && (tagType.isNumerical() || tagType.isTextual())) {
+			if (error != null) {
+				throw new IllegalArgumentException(error);
+			}
+			if (!tagValue.isReadable()) {
+				if (tagType.isTextual()) {
+					LOG.warn("Could not find a value in the dicom for the tag " + getDicomTagCodeAndLabel());
+				}
+				if (errorMsg != null) errorMsg.append("condition [" + toString()
+					+ "] failed because there was a problem when reading the " + (DicomTagType.Date.equals(tagType) ? "date " : "")
+					+ "tag " + getDicomTagCodeAndLabel());
+				return false;
+			}
+			// get all possible values, that can fulfill the condition
+			for (int i = 0; i < strings.length; i++) {
+				boolean fulfilled;
+				if (tagType.isNumerical()) {
+					if (numbers[i] == null) {
+						if (DicomTagType.Date.equals(tagType)) {
+							if (errorMsg != null) errorMsg.append("condition [" + toString()
+								+ "] failed because there was a problem parsing the value as a date");
+							return false;
+						}
+						throw new NumberFormatException("Study card processing : value " + strings[i]
+								+ " is not a number (condition id : " + conditionId + ")");
+					}
+					fulfilled = StudyCardCondition.numericalCompare(operation, compare(tagValue.getNumber(), i));
+				} else {
+					fulfilled = StudyCardCondition.textualCompare(operation, tagValue.getString(), strings[i]);
+				}
+				if (fulfilled) {
+					if (errorMsg != null) errorMsg.append("condition [" + toString() + "] succeed");
+					return true; // as condition values are combined by OR: return if one is true
+				}
+			}
+		}
+		if (errorMsg != null) errorMsg.append("condition [" + toString() + "] failed ");
+		return false;
+	}
+
+	private void parse(int i) {
+		try {
+			if (DicomTagType.Date.equals(tagType)) {
+				numbers[i] = (double) new SimpleDateFormat("yyyyMMdd").parse(strings[i]).getTime();
+			} else {
+				decimals[i] = new BigDecimal(strings[i]);
+				numbers[i] = decimals[i].doubleValue();
+			}
+		} catch (ParseException | NumberFormatException e) {
+			numbers[i] = null;
+		}
+	}
+
+	/**
+	 * Compares as doubles, and as decimals only if equal as doubles, for the values
+	 * with more digits than a double: when the doubles differ, the decimals differ the same way.
+	 */
+	private int compare(double value, int i) {
+		int comparison = Double.compare(value, numbers[i]);
+		if (comparison == 0 && decimals[i] != null) {
+			comparison = BigDecimal.valueOf(value).compareTo(decimals[i]);
+		}
+		return comparison;
+	}
+
+	@Override
+	public String toString() {
+		return "DICOM field " + getDicomTagCodeAndLabel() + " " + operation.name() + " to " + StringUtils.join(strings, " or ");
+	}
+
+	private String getDicomTagCodeAndLabel() {
+		return StudyCardDICOMCondition.getDicomTagCodeAndLabel(dicomTag);
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.model.condition;
+
+import java.util.Date;
+
+import org.dcm4che3.data.Attributes;
+import org.shanoir.ng.studycard.model.DicomTagType;
+
+/**
+ * The value of a DICOM tag, read once from the attributes with the type of the tag,
+ * to evaluate all the conditions on this tag.
+ */
+public final class DicomTagValue {
+
+	private static final DicomTagValue MISSING = new DicomTagValue(false, false, null, 0d);
+
+	private static final DicomTagValue UNREADABLE = new DicomTagValue(true, false, null, 0d);
+
+	private final boolean present;
+
+	private final boolean readable;
+
+	private final String string;
+
+	/** The numerical value, or the time of a date */
+	private final double number;
+
+	private DicomTagValue(boolean present, boolean readable, String string, double number) {
+		this.present = present;
+		this.readable = readable;
+		this.string = string;
+		this.number = number;
+	}
+
+	/**
+	 * @param attributes
+	 * @param tag
+	 * @param tagType can be null, for the not implemented VRs: the value is then never compared
+	 * @return the value of the tag
+	 */
+	public static DicomTagValue read(Attributes attributes, int tag, DicomTagType tagType) {
+		if (!attributes.contains(tag)) {
+			return MISSING;
+		}
+		if (tagType == null) {
+			return new DicomTagValue(true, true, null, 0d);
+		}
+		switch (tagType) {
+			case Float:
+				float floatValue = attributes.getFloat(tag, Float.NaN);
+				return Float.isNaN(floatValue) ? UNREADABLE : new DicomTagValue(true, true, null, floatValue);
+			// There is no dicomAttributes.getLong() !
+			case Double:
+			case Long:
+				double doubleValue = attributes.getDouble(tag, Double.NaN);
+				return Double.isNaN(doubleValue) ? UNREADABLE : new DicomTagValue(true, true, null, doubleValue);
+			case Integer:
+				int integerValue = attributes.getInt(tag, Integer.MIN_VALUE);
+				return integerValue == Integer.MIN_VALUE ? UNREADABLE : new DicomTagValue(true, true, null, integerValue);
+			case Date:
+				Date dateValue = attributes.getDate(tag);
+				return dateValue == null ? UNREADABLE : new DicomTagValue(true, true, null, dateValue.getTime());
+			case String:
+				String stringValue = attributes.getString(tag);
+				return stringValue == null ? UNREADABLE : new DicomTagValue(true, true, stringValue, 0d);
+			default:
+				return new DicomTagValue(true, true, null, 0d);
+		}
+	}
+
+	public boolean isPresent() {
+		return present;
+	}
+
+	public boolean isReadable() {
+		return readable;
+	}
+
+	public String getString() {
+		return string;
+	}
+
+	public double getNumber() {
+		return number;
+	}
+
+}
@@ -77,7 +77,7 @@ public abstract class StudyCardCondition extends AbstractEntity {
         this.values = values;
     }
 
-    protected boolean numericalCompare(Operation operation, int comparison) {
+    protected static boolean numericalCompare(Operation operation, int comparison) {
         if (Operation.BIGGER_THAN.equals(operation)) {
             return comparison > 0;
         } else if (Operation.EQUALS.equals(operation)) {
@@ -88,7 +88,7 @@ public abstract class StudyCardCondition extends AbstractEntity {
         throw new IllegalArgumentException("Cannot use this method for non-numerical operations (" + operation + ")");
     }
     
-    protected boolean textualCompare(Operation operation, String original, String studycardStr) {
+    protected static boolean textualCompare(Operation operation, String original, String studycardStr) {
         if (original != null) {
             if (Operation.EQUALS.equals(operation)) {
                 return original.equals(studycardStr);
@@ -14,23 +14,19 @@
 
 package org.shanoir.ng.studycard.model.condition;
 
-import java.math.BigDecimal;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.List;
 
 import javax.persistence.DiscriminatorValue;
 import javax.persistence.Entity;
+import javax.persistence.Transient;
 
 import org.apache.commons.lang3.StringUtils;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Keyword;
-import org.dcm4che3.data.StandardElementDictionary;
-import org.dcm4che3.data.VR;
 import org.shanoir.ng.studycard.model.DicomTagType;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.shanoir.ng.studycard.model.Operation;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 
 @Entity
@@ -38,9 +34,11 @@ import com.fasterxml.jackson.annotation.JsonTypeName;
 @JsonTypeName("StudyCardDICOMCondition")
 public class StudyCardDICOMCondition extends StudyCardCondition {
 	
-    private static final Logger LOG = LoggerFactory.getLogger(StudyCardDICOMCondition.class);
-    
 	private int dicomTag;
+
+	/** The values of the condition, parsed once with the type of the tag */
+	@Transient
+	private transient volatile CompiledDicomCondition compiled;
 	
 	public Integer getDicomTag() {
         return dicomTag;
@@ -48,6 +46,19 @@ public class StudyCardDICOMCondition extends StudyCardCondition {
 
     public void setDicomTag(Integer dicomTag) {
         this.dicomTag = dicomTag;
+        this.compiled = null;
+    }
+
+    @Override
+    public void setValues(List<String> values) {
+        super.setValues(values);
+        this.compiled = null;
+    }
+
+    @Override
+    public void setOperation(Operation operation) {
+        super.setOperation(operation);
+        this.compiled = null;
     }
     
     public boolean fulfilled(Attributes dicomAttributes) {
@@ -55,92 +66,43 @@ public class StudyCardDICOMCondition extends StudyCardCondition {
     }
         
     public boolean fulfilled(Attributes dicomAttributes, StringBuffer errorMsg) {
-        LOG.debug("conditionFulfilled: " + this.getId() + " processing one condition with all its values: ");
-        this.getValues().stream().forEach(s -> LOG.debug(s));
         if (dicomAttributes == null) {
             if (errorMsg != null) errorMsg.append("condition [" + toString() 
                 + "] was ignored because no dicom data was provided");
             return true;
         }
-        if (!dicomAttributes.contains(getDicomTag())) {
-            if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                + "] failed because no value was found in the dicom for the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-            return false;
-        }
-        VR tagVr = StandardElementDictionary.INSTANCE.vrOf(this.getDicomTag());
-        DicomTagType tagType = DicomTagType.valueOf(tagVr);
-        // get all possible values, that can fulfill the condition
-        for (String value : this.getValues()) {
-            if (tagType.isNumerical()) {
-                if (!this.getOperation().isNumerical()) {
-                    throw new IllegalArgumentException("Study card processing : operation " + this.getOperation() + " is not compatible with dicom tag " 
-                            + this.getDicomTag() + " of type " + tagType + "(condition id : " + this.getId() + ")");
-                }
-                BigDecimal scValue = new BigDecimal(value);
-                Integer comparison = null;
-                if (DicomTagType.Float.equals(tagType)) {
-                    Float floatValue = dicomAttributes.getFloat(this.getDicomTag(), Float.NaN);
-                    if (floatValue.equals(Float.NaN)) {
-                        if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                            + "] failed because there was a problem when reading the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                        return false;
-                    } else comparison = BigDecimal.valueOf(floatValue).compareTo(scValue);
-                // There is no dicomAttributes.getLong() !
-                } else if (DicomTagType.Double.equals(tagType) || DicomTagType.Long.equals(tagType)) {
-                    Double doubleValue = dicomAttributes.getDouble(this.getDicomTag(), Double.NaN);
-                    if (doubleValue.equals(Double.NaN)) {
-                        if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                            + "] failed because there was a problem when reading the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                        return false;
-                    } else comparison = BigDecimal.valueOf(doubleValue).compareTo(scValue);
-                } else if (DicomTagType.Integer.equals(tagType)) {
-                    Integer integerValue = dicomAttributes.getInt(this.getDicomTag(), Integer.MIN_VALUE);
-                    if (integerValue.equals(Integer.MIN_VALUE)) {
-                        if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                            + "] failed because there was a problem when reading the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                        return false;
-                    } else comparison = BigDecimal.valueOf(integerValue).compareTo(scValue);
-                } else if (DicomTagType.Date.equals(tagType)) {
-                    Date dateValue = dicomAttributes.getDate(this.getDicomTag());
-                    if (dateValue.equals(null)) {
-                        if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                            + "] failed because there was a problem when reading the date tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                        return false;
-                    } else {
-                        try {
-                            Date scDate = new SimpleDateFormat("yyyyMMdd").parse(value);
-                            comparison = dateValue.compareTo(scDate);
-                        } catch (ParseException e) {
-                            if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                                + "] failed because there was a problem parsing the value as a date");
-                            return false;
-                        }
-                    }
-                }
-                if (comparison != null && numericalCompare(this.getOperation(), comparison)) {
-                    if (errorMsg != null) errorMsg.append("condition [" + toString() + "] succeed");
-                    return true; // as condition values are combined by OR: return if one is true
-                }
-            } else if (tagType.isTextual()) {
-                if (!this.getOperation().isTextual()) {
-                    throw new IllegalArgumentException("Study card processing : operation " + this.getOperation() + " is not compatible with dicom tag " 
-                            + getDicomTagCodeAndLabel(this.getDicomTag()) + " of type " + tagType + "(condition id : " + this.getId() + ")");
-                }   
-                String stringValue = dicomAttributes.getString(this.getDicomTag());
-                if (stringValue == null) {
-                    LOG.warn("Could not find a value in the dicom for the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                    if (errorMsg != null) errorMsg.append("condition [" + toString() 
-                        + "] failed because there was a problem when reading the tag " + getDicomTagCodeAndLabel(this.getDicomTag()));
-                    return false;
-                }               
-                if (textualCompare(this.getOperation(), stringValue, value)) {
-                    if (errorMsg != null) errorMsg.append("condition [" + toString() + "] succeed");
-                    return true; // as condition values are combined by OR: return if one is true
-                }
-            }
+        return fulfilled(DicomTagValue.read(dicomAttributes, getDicomTag(), getDicomTagType()), errorMsg);
+    }
+
+    /**
+     * Evaluates the condition on a value already read, see {@link CompiledDicomCondition#fulfilled(DicomTagValue, StringBuffer)}.
+     *
+     * @param tagValue the value of {@link #getDicomTag()}, read with {@link #getDicomTagType()}
+     * @param errorMsg can be null
+     * @return true if one of the values of the condition is fulfilled
+     */
+    public boolean fulfilled(DicomTagValue tagValue, StringBuffer errorMsg) {
+        return compile().fulfilled(tagValue, errorMsg);
+    }
+
+    /**
+     * @return the type of the tag, from its VR in the standard dictionary, null if not implemented
+     */
+    @JsonIgnore
+    public DicomTagType getDicomTagType() {
+        return compile().getDicomTagType();
+    }
+
+    /**
+     * @return the condition with its values parsed, compiled again after a change of the condition
+     */
+    public CompiledDicomCondition compile() {
+        CompiledDicomCondition compiledCondition = compiled;
+        if (compiledCondition == null) {
+            compiledCondition = new CompiledDicomCondition(this);
+            compiled = compiledCondition;
         }
-        if (errorMsg != null) errorMsg.append("condition [" + toString() + "] failed ");
-        return false;
+        return compiledCondition;
     }
     
     @Override
@@ -153,14 +115,15 @@ public class StudyCardDICOMCondition extends StudyCardCondition {
         return sb.toString();
     }
     
-    private String getDicomTagHexString(int tag) {
+    private static String getDicomTagHexString(int tag) {
         String hexStr = Integer.toHexString(tag);
         hexStr = StringUtils.leftPad(hexStr, 8, "0");
         hexStr = hexStr.substring(0, 5) + "," + hexStr.substring(5);
         return hexStr;
     }
     
-    private String getDicomTagCodeAndLabel(int tag) {
+    static String getDicomTagCodeAndLabel(int tag) {
         return Keyword.valueOf(tag) + " (" + getDicomTagHexString(tag) + ")";
     }
+
 }
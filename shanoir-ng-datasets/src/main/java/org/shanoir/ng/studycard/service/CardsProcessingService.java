@@ -14,11 +14,25 @@
 
 package org.shanoir.ng.studycard.service;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.apache.commons.collections4.CollectionUtils;
 import org.dcm4che3.data.Attributes;
 import org.shanoir.ng.configuration.amqp.RabbitMQSendService;
@@ -28,6 +42,8 @@ import org.shanoir.ng.datasetacquisition.service.DatasetAcquisitionService;
 import org.shanoir.ng.download.WADODownloaderService;
 import org.shanoir.ng.examination.model.Examination;
 import org.shanoir.ng.shared.configuration.RabbitMQConfiguration;
+import org.shanoir.ng.shared.event.ShanoirEvent;
+import org.shanoir.ng.shared.event.ShanoirEventService;
 import org.shanoir.ng.shared.exception.EntityNotFoundException;
 import org.shanoir.ng.shared.exception.MicroServiceCommunicationException;
 import org.shanoir.ng.shared.exception.PacsException;
@@ -39,13 +55,19 @@ import org.shanoir.ng.shared.service.StudyService;
 import org.shanoir.ng.shared.service.SubjectStudyService;
 import org.shanoir.ng.studycard.dto.QualityCardResult;
 import org.shanoir.ng.studycard.dto.QualityCardResultEntry;
+import org.shanoir.ng.studycard.model.CompiledStudyCard;
 import org.shanoir.ng.studycard.model.QualityCard;
 import org.shanoir.ng.studycard.model.StudyCard;
 import org.shanoir.ng.studycard.model.rule.QualityExaminationRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.RestClientException;
 
 @Service
@@ -65,6 +87,40 @@ public class CardsProcessingService {
 	@Autowired
 	private SubjectStudyService subjectStudyService;
 
+	@Autowired
+	private QualityCardService qualityCardService;
+
+	@Autowired
+	private CompiledStudyCardCache compiledStudyCardCache;
+
+	@Autowired
+	private ShanoirEventService eventService;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	/** Number of examinations whose DICOM metadata are read at the same time, for all the quality cards */
+	@Value("${quality-card.threads:8}")
+	private int qualityCardThreads;
+
+	/** Number of subject studies updated at once */
+	@Value("${quality-card.update-batch-size:100}")
+	private int updateBatchSize;
+
+	private ExecutorService dicomAttributesExecutor;
+
+	/** Result of the last application in background of each quality card, by quality card id */
+	private final Map<Long, QualityCardResult> asyncResults = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	public void init() {
+		dicomAttributesExecutor = Executors.newFixedThreadPool(Math.max(1, qualityCardThreads), new CustomizableThreadFactory("quality-card-"));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		dicomAttributesExecutor.shutdownNow();
+	}
 	
 	/**
 	 * Apply study card on given acquisitions
@@ -75,10 +131,11 @@ public class CardsProcessingService {
 	 */
 	public void applyStudyCard(StudyCard studyCard, List<DatasetAcquisition> acquisitions) throws PacsException {
         boolean changeInAtLeastOneAcquisition = false;
+        CompiledStudyCard compiledStudyCard = compiledStudyCardCache.get(studyCard);
         for (DatasetAcquisition acquisition : acquisitions) {
             if (CollectionUtils.isNotEmpty(acquisition.getDatasets()) && CollectionUtils.isNotEmpty(studyCard.getRules())) {
                 Attributes dicomAttributes = downloader.getDicomAttributesForAcquisition(acquisition);
-                changeInAtLeastOneAcquisition = studyCard.apply(acquisition, dicomAttributes);
+                changeInAtLeastOneAcquisition = studyCard.apply(acquisition, dicomAttributes, compiledStudyCard);
             }
         }
         if (changeInAtLeastOneAcquisition) { // no need to update, if nothing happened
@@ -93,62 +150,198 @@ public class CardsProcessingService {
 	 * @throws MicroServiceCommunicationException 
 	 */
 	public QualityCardResult applyQualityCardOnStudy(QualityCard qualityCard, boolean updateTags) throws MicroServiceCommunicationException {
-	    if (qualityCard == null) throw new IllegalArgumentException("qualityCard can't be null");
-		Study study = studyService.findById(qualityCard.getStudyId());
-		if (study == null ) throw new IllegalArgumentException("study can't be null");
-		if (qualityCard.getStudyId() != study.getId()) throw new IllegalStateException("study and studycard ids don't match");
-		if (CollectionUtils.isNotEmpty(qualityCard.getRules())) {	    
-		    QualityCardResult result = new QualityCardResult();
-		    resetSubjectStudies(study);
-            try {
-                subjectStudyService.update(study.getSubjectStudyList());
-            } catch (EntityNotFoundException e) {} // too bad
-			for (Examination examination : study.getExaminations()) {
-			    // For now, just take the first DICOM instance
-			    // Later, use DICOM json to have a hierarchical structure of DICOM metata (study -> serie -> instance) 
-                try {
-                    Attributes examinationDicomAttributes = downloader.getDicomAttributesForExamination(examination);
-                    List<DatasetAcquisition> acquisitions = examination.getDatasetAcquisitions();
-                    // today study cards are only used for MR modality
-                    // acquisitions = acquisitions.stream().filter(a -> a instanceof MrDatasetAcquisition).collect(Collectors.toList());
-                    if (CollectionUtils.isNotEmpty(acquisitions)) {
-                        LOG.info(acquisitions.size() + " acquisitions found for examination with id: " + examination.getId());
-                        LOG.info(qualityCard.getRules().size() + " rules found for study card with id: " + qualityCard.getId() + " and name: " + qualityCard.getName());
-                        for (QualityExaminationRule rule : qualityCard.getRules()) {
-                            rule.apply(examination, examinationDicomAttributes, result);
-                        }
-                    }				
-                } catch (PacsException e) {
-                    long ts = new Date().getTime();
-                    LOG.warn("Examination" + examination.getId() + " metadata could not be retreived from the Shanoir pacs (ts:" + ts + ")");
-                    QualityCardResultEntry resultEntry = initResult(examination);
-                    resultEntry.setTagSet(QualityTag.ERROR);
-                    resultEntry.setMessage("Examination " + examination.getId() + " could not be checked because its metadata could not be retreived from the Shanoir pacs (ts:" + ts + ")");
-                    result.add(resultEntry);
-                }
-			};
-			//result.removeUnchanged(study);
-			if (updateTags) {
-			    try {
-			        subjectStudyService.update(result.getUpdatedSubjectStudies());
-			    } catch (EntityNotFoundException e) {
-			        throw new IllegalStateException("Could not update subject-studies", e);
-			    }	    
-			}
-			return result;
-		} else {
-			throw new RestClientException("Study card used with emtpy rules.");
+		return applyQualityCardOnStudy(qualityCard, updateTags, null);
+	}
+
+	/**
+	 * Study cards for quality control: apply on entire study, in background.
+	 * The progress and the end are published with the given event, and the
+	 * result is kept until the next application of the quality card.
+	 * 
+	 * @param qualityCard
+	 * @param updateTags
+	 * @param event
+	 */
+	@Async
+	public void applyQualityCardOnStudyAsync(QualityCard qualityCard, boolean updateTags, ShanoirEvent event) {
+		try {
+			QualityCardResult result = applyQualityCardOnStudy(qualityCard, updateTags, event);
+			asyncResults.put(qualityCard.getId(), result);
+			event.setStatus(ShanoirEvent.SUCCESS);
+			event.setProgress(1f);
+			event.setMessage("Quality card " + qualityCard.getName() + " applied: " + result.size() + " result(s)"
+					+ (result.hasError() ? ", with errors." : "."));
+		} catch (Exception e) {
+			LOG.error("Error while applying quality card " + qualityCard.getId(), e);
+			event.setStatus(ShanoirEvent.ERROR);
+			event.setMessage("Quality card " + qualityCard.getName() + " could not be applied: " + e.getMessage());
 		}
+		eventService.publishEvent(event);
+	}
+
+	/**
+	 * @param qualityCardId
+	 * @return the result of the last application in background of the quality card, null if none
+	 */
+	public QualityCardResult getAsyncResult(Long qualityCardId) {
+		return asyncResults.get(qualityCardId);
+	}
+
+	/**
+	 * Forgets the result of the last application in background of a deleted quality card.
+	 * 
+	 * @param qualityCardId
+	 */
+	public void removeAsyncResult(Long qualityCardId) {
+		asyncResults.remove(qualityCardId);
 	}
-	
-	private void resetSubjectStudies(Study study) {
-        if (study != null && study.getSubjectStudyList() != null) {
-            for (SubjectStudy subjectStudy : study.getSubjectStudyList()) {
-                subjectStudy.setQualityTag(null);
-            }
-        }
-    }
 
+	/**
+	 * The DICOM metadata of the examinations are read from the PACS in parallel,
+	 * outside of any transaction, then the rules are evaluated in a short read-only
+	 * transaction, and the subject studies are updated by batches.
+	 */
+	private QualityCardResult applyQualityCardOnStudy(QualityCard qualityCard, boolean updateTags, ShanoirEvent event) throws MicroServiceCommunicationException {
+	    if (qualityCard == null) throw new IllegalArgumentException("qualityCard can't be null");
+	    TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+	    readOnlyTransaction.setReadOnly(true);
+	    // urls of the metadata of the examinations, and subject studies to reset
+	    Map<Long, URL> examinationUrls = new LinkedHashMap<>();
+	    Map<Long, PacsException> examinationErrors = new HashMap<>();
+	    List<SubjectStudy> subjectStudiesToReset = new ArrayList<>();
+	    readOnlyTransaction.executeWithoutResult(status -> {
+	        QualityCard card = reload(qualityCard);
+	        Study study = findStudy(card);
+	        if (CollectionUtils.isEmpty(card.getRules())) {
+	            throw new RestClientException("Study card used with emtpy rules.");
+	        }
+	        for (SubjectStudy subjectStudy : study.getSubjectStudyList()) {
+	            SubjectStudy reset = new SubjectStudy();
+	            reset.setId(subjectStudy.getId());
+	            subjectStudiesToReset.add(reset);
+	        }
+	        for (Examination examination : study.getExaminations()) {
+	            // For now, just take the first DICOM instance
+	            // Later, use DICOM json to have a hierarchical structure of DICOM metata (study -> serie -> instance) 
+	            try {
+	                examinationUrls.put(examination.getId(), downloader.getFirstDicomURL(examination));
+	            } catch (PacsException e) {
+	                examinationErrors.put(examination.getId(), e);
+	            }
+	        }
+	    });
+	    updateByBatches(subjectStudiesToReset, true);
+
+	    Map<Long, Attributes> examinationsDicomAttributes = readDicomAttributes(examinationUrls, examinationErrors, event);
+
+	    QualityCardResult result = readOnlyTransaction.execute(status -> {
+	        QualityCard card = reload(qualityCard);
+	        Study study = findStudy(card);
+	        QualityCardResult studyResult = new QualityCardResult();
+	        for (Examination examination : study.getExaminations()) {
+	            PacsException error = examinationErrors.get(examination.getId());
+	            if (error != null) {
+	                long ts = new Date().getTime();
+	                LOG.warn("Examination" + examination.getId() + " metadata could not be retreived from the Shanoir pacs (ts:" + ts + ")");
+	                QualityCardResultEntry resultEntry = initResult(examination);
+	                resultEntry.setTagSet(QualityTag.ERROR);
+	                resultEntry.setMessage("Examination " + examination.getId() + " could not be checked because its metadata could not be retreived from the Shanoir pacs (ts:" + ts + ")");
+	                studyResult.add(resultEntry);
+	                continue;
+	            }
+	            List<DatasetAcquisition> acquisitions = examination.getDatasetAcquisitions();
+	            // today study cards are only used for MR modality
+	            // acquisitions = acquisitions.stream().filter(a -> a instanceof MrDatasetAcquisition).collect(Collectors.toList());
+	            if (CollectionUtils.isNotEmpty(acquisitions)) {
+	                LOG.debug(acquisitions.size() + " acquisitions found for examination with id: " + examination.getId());
+	                for (QualityExaminationRule rule : card.getRules()) {
+	                    rule.apply(examination, examinationsDicomAttributes.get(examination.getId()), studyResult);
+	                }
+	            }
+	        }
+	        LOG.info(card.getRules().size() + " rules of quality card with id: " + card.getId() + " and name: " + card.getName()
+	                + " applied on " + study.getExaminations().size() + " examinations");
+	        return studyResult;
+	    });
+	    publishProgress(event, 0.9f, "Quality card rules evaluated");
+	    //result.removeUnchanged(study);
+	    if (updateTags) {
+	        updateByBatches(result.getUpdatedSubjectStudies(), false);
+	    }
+	    return result;
+	}
+
+	/**
+	 * Reads the DICOM attributes of the examinations in parallel, the concurrent
+	 * requests to the PACS being limited by the size of the pool.
+	 */
+	private Map<Long, Attributes> readDicomAttributes(Map<Long, URL> examinationUrls, Map<Long, PacsException> examinationErrors, ShanoirEvent event) {
+	    Map<Long, Future<Attributes>> futures = new LinkedHashMap<>();
+	    for (Entry<Long, URL> examinationUrl : examinationUrls.entrySet()) {
+	        URL url = examinationUrl.getValue();
+	        futures.put(examinationUrl.getKey(), url == null
+	                ? CompletableFuture.completedFuture(null)
+	                : dicomAttributesExecutor.submit(() -> downloader.getDicomAttributesForURL(url)));
+	    }
+	    Map<Long, Attributes> examinationsDicomAttributes = new HashMap<>();
+	    int done = 0;
+	    int progressStep = Math.max(1, futures.size() / 20);
+	    for (Entry<Long, Future<Attributes>> future : futures.entrySet()) {
+	        try {
+	            examinationsDicomAttributes.put(future.getKey(), future.getValue().get());
+	        } catch (ExecutionException e) {
+	            examinationErrors.put(future.getKey(), e.getCause() instanceof PacsException
+	                    ? (PacsException) e.getCause()
+	                    : new PacsException("Can not get dicom attributes for examination " + future.getKey(), (Exception) e.getCause()));
+	        } catch (InterruptedException e) {
+	            Thread.currentThread().interrupt();
+	            futures.values().forEach(f -> f.cancel(true));
+	            throw new IllegalStateException("Interrupted while reading the DICOM metadata of the examinations", e);
+	        }
+	        done++;
+	        if (done % progressStep == 0) {
+	            publishProgress(event, 0.8f * done / futures.size(), "DICOM metadata read for " + done + "/" + futures.size() + " examinations");
+	        }
+	    }
+	    return examinationsDicomAttributes;
+	}
+
+	private void updateByBatches(List<SubjectStudy> subjectStudies, boolean ignoreNotFound) throws MicroServiceCommunicationException {
+	    for (int i = 0; i < subjectStudies.size(); i += updateBatchSize) {
+	        List<SubjectStudy> batch = subjectStudies.subList(i, Math.min(i + updateBatchSize, subjectStudies.size()));
+	        try {
+	            subjectStudyService.update(batch);
+	        } catch (EntityNotFoundException e) {
+	            if (!ignoreNotFound) {
+	                throw new IllegalStateException("Could not update subject-studies", e);
+	            } // else too bad
+	        }
+	    }
+	}
+
+	private QualityCard reload(QualityCard qualityCard) {
+	    if (qualityCard.getId() == null) {
+	        return qualityCard;
+	    }
+	    QualityCard card = qualityCardService.findById(qualityCard.getId());
+	    return card != null ? card : qualityCard;
+	}
+
+	private Study findStudy(QualityCard qualityCard) {
+	    Study study = studyService.findById(qualityCard.getStudyId());
+	    if (study == null ) throw new IllegalArgumentException("study can't be null");
+	    if (qualityCard.getStudyId() != study.getId()) throw new IllegalStateException("study and studycard ids don't match");
+	    return study;
+	}
+
+	private void publishProgress(ShanoirEvent event, float progress, String message) {
+	    if (event != null) {
+	        event.setProgress(progress);
+	        event.setMessage(message);
+	        eventService.publishEvent(event);
+	    }
+	}
+	
     private QualityCardResultEntry initResult(Examination examination) {
         QualityCardResultEntry result = new QualityCardResultEntry();
         result.setSubjectName(examination.getSubject().getName());
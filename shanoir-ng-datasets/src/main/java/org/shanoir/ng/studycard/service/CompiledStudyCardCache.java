@@ -0,0 +1,87 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.shanoir.ng.studycard.model.CompiledStudyCard;
+import org.shanoir.ng.studycard.model.StudyCard;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * The compiled study cards, by study card id: a card is compiled again when it
+ * is edited, as its last edit timestamp changes, and the least recently used
+ * cards are removed above max-size.
+ */
+@Service
+public class CompiledStudyCardCache {
+
+	@Value("${study-card.compiled-cache-size:1000}")
+	private int maxSize;
+
+	/** In access order, guarded by itself */
+	private final Map<Long, CompiledStudyCard> cards = new LinkedHashMap<Long, CompiledStudyCard>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, CompiledStudyCard> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	/**
+	 * @param studyCard
+	 * @return the compiled card, from the cache if the card did not change since its compilation
+	 */
+	public CompiledStudyCard get(StudyCard studyCard) {
+		// a card never saved, or not edited since the timestamps exist, has no version
+		if (studyCard.getId() == null || studyCard.getLastEditTimestamp() == null) {
+			return new CompiledStudyCard(studyCard);
+		}
+		synchronized (cards) {
+			CompiledStudyCard compiled = cards.get(studyCard.getId());
+			if (compiled != null && compiled.getLastEditTimestamp().equals(studyCard.getLastEditTimestamp())) {
+				return compiled;
+			}
+		}
+		// compiled out of the lock, a card compiled twice at the same time is only put twice
+		CompiledStudyCard compiled = new CompiledStudyCard(studyCard);
+		synchronized (cards) {
+			cards.put(studyCard.getId(), compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Removes a deleted study card.
+	 *
+	 * @param studyCardId
+	 */
+	public void evict(Long studyCardId) {
+		synchronized (cards) {
+			cards.remove(studyCardId);
+		}
+	}
+
+	int size() {
+		synchronized (cards) {
+			return cards.size();
+		}
+	}
+
+}
@@ -38,6 +38,9 @@ public class StudyCardServiceImpl implements StudyCardService {
 	@Autowired
 	private StudyCardRepository studyCardRepository;
 
+	@Autowired
+	private CompiledStudyCardCache compiledStudyCardCache;
+
 	@Override
 	public void deleteById(final Long id) throws EntityNotFoundException, MicroServiceCommunicationException {
 		final StudyCard studyCard = studyCardRepository.findById(id).orElse(null);
@@ -45,6 +48,7 @@ public class StudyCardServiceImpl implements StudyCardService {
 			throw new EntityNotFoundException(StudyCard.class, id);
 		}
 		studyCardRepository.deleteById(id);
+		compiledStudyCardCache.evict(id);
 	}
 
 	@Override
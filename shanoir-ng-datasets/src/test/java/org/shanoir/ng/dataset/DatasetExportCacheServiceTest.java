@@ -0,0 +1,182 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.dataset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.shanoir.ng.dataset.service.DatasetExportCacheService;
+import org.shanoir.ng.dataset.service.DatasetExportCacheService.Archive;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class DatasetExportCacheServiceTest {
+
+	private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+	private static final String KEY = "key";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DatasetExportCacheService service;
+
+	private AtomicInteger writes = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		service = new DatasetExportCacheService();
+		ReflectionTestUtils.setField(service, "enabled", true);
+		ReflectionTestUtils.setField(service, "cacheFolder", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(service, "maxSizeMb", 10L);
+	}
+
+	@Test
+	public void testArchiveIsWrittenOnce() throws Exception {
+		String eTag;
+		try (Archive archive = getOrCreate(true)) {
+			assertTrue(archive.isCached());
+			eTag = archive.getETag();
+		}
+		try (Archive archive = getOrCreate(true)) {
+			assertEquals(eTag, archive.getETag());
+			assertArrayEquals(CONTENT, send(archive, null, null).getContentAsByteArray());
+		}
+		assertEquals(1, writes.get());
+	}
+
+	@Test
+	public void testArchiveWithErrorsIsNotCached() throws Exception {
+		try (Archive archive = getOrCreate(false)) {
+			assertFalse(archive.isCached());
+			assertArrayEquals(CONTENT, send(archive, null, null).getContentAsByteArray());
+		}
+		// the temporary file is deleted once sent
+		assertEquals(0, folder.getRoot().listFiles().length);
+		getOrCreate(true).close();
+		assertEquals(2, writes.get());
+	}
+
+	@Test
+	public void testRangeIsSentIfTheArchiveIsTheSame() throws Exception {
+		try (Archive archive = getOrCreate(true)) {
+			MockHttpServletResponse response = send(archive, "bytes=4-", archive.getETag());
+			assertEquals(206, response.getStatus());
+			assertEquals("bytes 4-9/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+			assertArrayEquals(Arrays.copyOfRange(CONTENT, 4, 10), response.getContentAsByteArray());
+		}
+	}
+
+	@Test
+	public void testWholeArchiveIsSentIfTheArchiveHasChanged() throws Exception {
+		String eTag;
+		try (Archive archive = getOrCreate(true)) {
+			eTag = archive.getETag();
+		}
+		service.invalidate(Collections.singletonList(2L));
+		// rebuilt at least one millisecond later
+		Thread.sleep(10);
+		try (Archive archive = getOrCreate(true)) {
+			assertNotEquals(eTag, archive.getETag());
+			MockHttpServletResponse response = send(archive, "bytes=4-", eTag);
+			assertEquals(200, response.getStatus());
+			assertArrayEquals(CONTENT, response.getContentAsByteArray());
+		}
+		assertEquals(2, writes.get());
+	}
+
+	@Test
+	public void testInvalidatedArchiveIsStillSentOnceOpened() throws Exception {
+		try (Archive archive = getOrCreate(true)) {
+			service.invalidate(Collections.singletonList(1L));
+			assertFalse(new File(folder.getRoot(), KEY + ".zip").exists());
+			assertArrayEquals(CONTENT, send(archive, null, null).getContentAsByteArray());
+		}
+		service.invalidate(Collections.singletonList(3L));
+		getOrCreate(true).close();
+		assertEquals(2, writes.get());
+	}
+
+	@Test
+	public void testArchiveIsNotBuiltTwiceAtTheSameTime() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		CountDownLatch firstWriteStarted = new CountDownLatch(1);
+		Callable<Boolean> download = () -> {
+			// with errors: the archive is never cached, and is built again by each request
+			try (Archive archive = service.getOrCreate(KEY, Arrays.asList(1L, 2L), outputStream -> {
+				writes.incrementAndGet();
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				firstWriteStarted.countDown();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				outputStream.write(CONTENT);
+				running.decrementAndGet();
+				return false;
+			})) {
+				return archive.isCached();
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<Boolean> first = executor.submit(download);
+			firstWriteStarted.await();
+			Future<Boolean> second = executor.submit(download);
+			assertFalse(first.get());
+			assertFalse(second.get());
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(2, writes.get());
+		assertEquals(1, maxRunning.get());
+	}
+
+	private Archive getOrCreate(boolean complete) throws Exception {
+		return service.getOrCreate(KEY, Arrays.asList(1L, 2L), outputStream -> {
+			writes.incrementAndGet();
+			outputStream.write(CONTENT);
+			return complete;
+		});
+	}
+
+	private MockHttpServletResponse send(Archive archive, String range, String ifRange) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		service.sendArchive(archive, range, ifRange, response);
+		return response;
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.dataset.security;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.shanoir.ng.dataset.dto.DatasetDTO;
+import org.shanoir.ng.dataset.model.Dataset;
+import org.shanoir.ng.dataset.repository.DatasetRepository;
+import org.shanoir.ng.datasetacquisition.model.DatasetAcquisition;
+import org.shanoir.ng.examination.model.Examination;
+import org.shanoir.ng.processing.model.DatasetProcessing;
+import org.shanoir.ng.shared.exception.EntityNotFoundException;
+import org.shanoir.ng.shared.model.Study;
+import org.shanoir.ng.shared.repository.StudyRepository;
+import org.shanoir.ng.study.rights.StudyRightsService;
+import org.shanoir.ng.study.rights.StudyUserRightsRepository;
+import org.shanoir.ng.utils.ModelsUtil;
+import org.shanoir.ng.utils.usermock.WithMockKeycloakUser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Checks that the rights on a list of datasets are resolved once per study and
+ * study/center pair, not once per dataset.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@ActiveProfiles("test")
+public class DatasetSecurityServiceTest {
+
+	private static final int NB_DATASETS = 100;
+
+	private static final String CAN_SEE_ALL = "CAN_SEE_ALL";
+
+	@Autowired
+	private DatasetSecurityService service;
+
+	@MockBean
+	private StudyRightsService rightsService;
+
+	@MockBean
+	private StudyUserRightsRepository rightsRepository;
+
+	@MockBean
+	private DatasetRepository datasetRepository;
+
+	@MockBean
+	private StudyRepository studyRepository;
+
+	@Test
+	@WithMockKeycloakUser(id = 2L, username = "logged", authorities = { "ROLE_USER" })
+	public void testFilterDatasetList() {
+		setRights();
+		List<Dataset> datasets = mockDatasets();
+
+		service.filterDatasetList(datasets, CAN_SEE_ALL);
+
+		// datasets of study 2 are removed, as the user has no right on the center 2
+		assertThat(datasets).hasSize(NB_DATASETS / 2 + 1);
+		Mockito.verify(rightsService, Mockito.times(1)).hasRightOnStudy(1L, CAN_SEE_ALL);
+		Mockito.verify(rightsService, Mockito.times(1)).hasRightOnStudy(2L, CAN_SEE_ALL);
+		Mockito.verify(rightsService, Mockito.times(1)).hasRightOnCenter(1L, 1L);
+		Mockito.verify(rightsService, Mockito.times(1)).hasRightOnCenter(2L, 2L);
+		Mockito.verify(studyRepository, Mockito.times(1)).findByDatasetId(1L);
+	}
+
+	@Test
+	@WithMockKeycloakUser(id = 2L, username = "logged", authorities = { "ROLE_USER" })
+	public void testFilterDatasetDTOList() throws EntityNotFoundException {
+		setRights();
+		List<Dataset> datasets = mockDatasets();
+		List<DatasetDTO> dtos = new ArrayList<>();
+		for (Dataset dataset : datasets) {
+			DatasetDTO dto = new DatasetDTO();
+			dto.setId(dataset.getId());
+			dtos.add(dto);
+		}
+		given(datasetRepository.findAllById(Mockito.anyIterable())).willReturn(datasets);
+
+		service.filterDatasetDTOList(dtos, CAN_SEE_ALL);
+
+		assertThat(dtos).hasSize(NB_DATASETS / 2 + 1);
+		// all the datasets are loaded with one query
+		Mockito.verify(datasetRepository, Mockito.times(1)).findAllById(Mockito.anyIterable());
+		Mockito.verify(datasetRepository, Mockito.never()).findById(Mockito.anyLong());
+		Mockito.verify(studyRepository, Mockito.times(1)).findByDatasetId(1L);
+		Mockito.verify(studyRepository, Mockito.times(1)).findByDatasetId(2L);
+	}
+
+	private void setRights() {
+		// right on study 1 and center 1, right on study 2 but not on center 2
+		given(rightsService.hasRightOnStudy(1L, CAN_SEE_ALL)).willReturn(true);
+		given(rightsService.hasRightOnStudy(2L, CAN_SEE_ALL)).willReturn(true);
+		given(rightsService.hasRightOnCenter(1L, 1L)).willReturn(true);
+		given(rightsService.hasRightOnCenter(2L, 2L)).willReturn(false);
+		given(rightsService.hasRightOnStudies(Mockito.anySet(), Mockito.eq(CAN_SEE_ALL))).willAnswer(invocation -> invocation.getArgument(0));
+		given(rightsService.hasRightOnCenter(Mockito.anySet(), Mockito.eq(1L))).willReturn(true);
+		given(rightsService.hasRightOnCenter(Mockito.anySet(), Mockito.eq(2L))).willReturn(false);
+		given(studyRepository.findByDatasetId(Mockito.anyLong())).willReturn(new ArrayList<>());
+	}
+
+	/**
+	 * Half of the datasets are in study 1 / center 1, the other half in study 2 / center 2,
+	 * and a processed dataset has inputs in study 1 / center 1.
+	 */
+	private List<Dataset> mockDatasets() {
+		List<Dataset> datasets = new ArrayList<>();
+		for (long id = 1; id <= NB_DATASETS; id++) {
+			long studyAndCenterId = id % 2 == 0 ? 2L : 1L;
+			datasets.add(mockDataset(id, studyAndCenterId, studyAndCenterId));
+		}
+		Dataset processed = ModelsUtil.createMrDataset();
+		processed.setId(NB_DATASETS + 1L);
+		processed.setDatasetAcquisition(null);
+		DatasetProcessing processing = new DatasetProcessing();
+		List<Dataset> inputs = new ArrayList<>();
+		inputs.add(datasets.get(0));
+		inputs.add(datasets.get(2));
+		processing.setInputDatasets(inputs);
+		processed.setDatasetProcessing(processing);
+		datasets.add(processed);
+		return datasets;
+	}
+
+	private Dataset mockDataset(Long id, Long centerId, Long studyId) {
+		Dataset dataset = ModelsUtil.createMrDataset();
+		dataset.setId(id);
+		Study study = new Study();
+		study.setId(studyId);
+		Examination exam = ModelsUtil.createExamination();
+		exam.setCenterId(centerId);
+		exam.setStudy(study);
+		DatasetAcquisition acquisition = ModelsUtil.createDatasetAcq();
+		acquisition.setExamination(exam);
+		dataset.setDatasetAcquisition(acquisition);
+		return dataset;
+	}
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.shanoir.ng.importer.dto.DatasetFile;
+
+public class DicomProcessingTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DicomProcessing dicomProcessing;
+
+	private DatasetFile image;
+
+	@Before
+	public void setUp() throws IOException {
+		dicomProcessing = new DicomProcessing();
+		image = new DatasetFile();
+		image.setPath(writeDicom(folder.newFile("1.dcm"), "T1").getAbsolutePath());
+	}
+
+	@After
+	public void tearDown() {
+		dicomProcessing.clearImportCache();
+	}
+
+	@Test
+	public void testHeaderIsReadOnceDuringAnImport() throws IOException {
+		dicomProcessing.startImportCache();
+		Attributes attributes = dicomProcessing.getDicomObjectAttributes(image, false);
+		assertSame(attributes, dicomProcessing.getDicomObjectAttributes(image, null));
+		assertEquals("T1", dicomProcessing.getSelectedDicomObjectAttributes(image, Tag.SeriesDescription).getString(Tag.SeriesDescription));
+	}
+
+	@Test
+	public void testHeaderIsCachedByReadingMode() throws IOException {
+		dicomProcessing.startImportCache();
+		Attributes attributes = dicomProcessing.getDicomObjectAttributes(image, false);
+		assertFalse(attributes.contains(Tag.PixelData));
+		// the Enhanced MR reading needs the reference to the pixel data
+		Attributes attributesWithBulkData = dicomProcessing.getDicomObjectAttributes(image, true);
+		assertNotSame(attributes, attributesWithBulkData);
+		assertTrue(attributesWithBulkData.contains(Tag.PixelData));
+		assertSame(attributesWithBulkData, dicomProcessing.getDicomObjectAttributes(image, true));
+		assertSame(attributes, dicomProcessing.getDicomObjectAttributes(image, false));
+	}
+
+	@Test
+	public void testHeaderIsReadAgainAfterTheImport() throws IOException {
+		dicomProcessing.startImportCache();
+		assertEquals("T1", dicomProcessing.getDicomObjectAttributes(image, false).getString(Tag.SeriesDescription));
+		dicomProcessing.clearImportCache();
+		writeDicom(new File(image.getPath()), "T2");
+		assertEquals("T2", dicomProcessing.getDicomObjectAttributes(image, false).getString(Tag.SeriesDescription));
+		// nothing is cached outside an import
+		writeDicom(new File(image.getPath()), "FLAIR");
+		assertEquals("FLAIR", dicomProcessing.getDicomObjectAttributes(image, false).getString(Tag.SeriesDescription));
+	}
+
+	private File writeDicom(File file, String seriesDescription) throws IOException {
+		Attributes attributes = new Attributes();
+		attributes.setString(Tag.SOPClassUID, VR.UI, UID.MRImageStorage);
+		attributes.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+		attributes.setString(Tag.SeriesDescription, VR.LO, seriesDescription);
+		attributes.setInt(Tag.Rows, VR.US, 2);
+		attributes.setInt(Tag.Columns, VR.US, 2);
+		attributes.setInt(Tag.BitsAllocated, VR.US, 8);
+		attributes.setBytes(Tag.PixelData, VR.OB, new byte[4]);
+		try (DicomOutputStream dos = new DicomOutputStream(file)) {
+			dos.writeDataset(attributes.createFileMetaInformation(UID.ExplicitVRLittleEndian), attributes);
+		}
+		return file;
+	}
+
+}
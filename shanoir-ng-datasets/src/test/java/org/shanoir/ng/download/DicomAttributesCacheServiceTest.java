@@ -0,0 +1,102 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class DicomAttributesCacheServiceTest {
+
+	private static final String SERIES_UID = "1.4.9.12.22.1.3337.609981376830290333333439326036686033499";
+
+	private static final String JSON = "{\"0020000E\":{\"vr\":\"UI\",\"Value\":[\"" + SERIES_UID + "\"]}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DicomAttributesCacheService cache;
+
+	@Before
+	public void setUp() {
+		cache = new DicomAttributesCacheService();
+		ReflectionTestUtils.setField(cache, "enabled", true);
+		ReflectionTestUtils.setField(cache, "cacheFolder", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(cache, "maxEntries", 10);
+		ReflectionTestUtils.setField(cache, "ttlHours", 1L);
+		cache.init();
+	}
+
+	@Test
+	public void testGetSeriesInstanceUID() throws MalformedURLException {
+		assertEquals(SERIES_UID, cache.getSeriesInstanceUID(new URL("http://dcm4chee-arc:8081/dcm4chee-arc/aets/AS_RECEIVED/rs/studies/1.2.3"
+				+ "/series/" + SERIES_UID + "/instances/1.2.3.4")));
+		assertEquals(SERIES_UID, cache.getSeriesInstanceUID(new URL("http://dcm4chee-arc:8081/dcm4chee-arc/aets/AS_RECEIVED/wado?requestType=WADO"
+				+ "&studyUID=1.2.3&seriesUID=" + SERIES_UID + "&objectUID=1.2.3.4&contentType=application/dicom")));
+		assertNull(cache.getSeriesInstanceUID(new URL("http://localhost/file.nii")));
+	}
+
+	@Test
+	public void testEntryIsKeptOnDisk() {
+		cache.put(SERIES_UID, JSON);
+		assertEquals(JSON, cache.get(SERIES_UID));
+
+		// a new instance, as after a restart, finds the entry
+		DicomAttributesCacheService restarted = new DicomAttributesCacheService();
+		ReflectionTestUtils.setField(restarted, "enabled", true);
+		ReflectionTestUtils.setField(restarted, "cacheFolder", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(restarted, "maxEntries", 10);
+		ReflectionTestUtils.setField(restarted, "ttlHours", 1L);
+		restarted.init();
+		assertEquals(JSON, restarted.get(SERIES_UID));
+	}
+
+	@Test
+	public void testExpiredEntryIsDeleted() {
+		cache.put(SERIES_UID, JSON);
+		File entry = new File(folder.getRoot(), SERIES_UID + ".json");
+		entry.setLastModified(System.currentTimeMillis() - 2 * 3600 * 1000);
+
+		assertNull(cache.get(SERIES_UID));
+		assertEquals(false, entry.exists());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted() throws InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			cache.put("1.2." + i, JSON);
+			Thread.sleep(2);
+		}
+		// the first entry is used again
+		cache.get("1.2.0");
+		Thread.sleep(2);
+		cache.put("1.2.10", JSON);
+
+		assertEquals(JSON, cache.get("1.2.0"));
+		assertNull(cache.get("1.2.1"));
+		assertNull(cache.get("1.2.2"));
+		assertEquals(JSON, cache.get("1.2.10"));
+	}
+
+}
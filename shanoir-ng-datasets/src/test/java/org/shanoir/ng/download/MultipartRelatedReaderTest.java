@@ -0,0 +1,114 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+public class MultipartRelatedReaderTest {
+
+	private static final String BOUNDARY = "myboundary";
+
+	@Test
+	public void testExtractBoundary() {
+		assertEquals(BOUNDARY, MultipartRelatedReader.extractBoundary("multipart/related; type=\"application/dicom\"; boundary=\"myboundary\""));
+		assertEquals(BOUNDARY, MultipartRelatedReader.extractBoundary("multipart/related;boundary=myboundary;type=application/dicom"));
+		assertNull(MultipartRelatedReader.extractBoundary("multipart/related; type=\"application/dicom\""));
+		assertNull(MultipartRelatedReader.extractBoundary(null));
+	}
+
+	@Test
+	public void testReadParts() throws IOException {
+		// GIVEN a multipart message with two parts bigger than the reader buffer
+		byte[] first = randomBytes(20000);
+		byte[] second = randomBytes(30000);
+		// the parts contain something that looks like the beginning of a boundary
+		first[100] = '\r';
+		first[101] = '\n';
+		first[102] = '-';
+		first[103] = '-';
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write("preamble\r\n".getBytes(StandardCharsets.US_ASCII));
+		writePart(message, "application/dicom", first);
+		writePart(message, "application/dicom", second);
+		message.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		// WHEN the message is read
+		MultipartRelatedReader reader = new MultipartRelatedReader(new ByteArrayInputStream(message.toByteArray()), BOUNDARY);
+
+		// THEN each part is retrieved unchanged
+		assertTrue(reader.nextPart());
+		assertEquals("application/dicom", reader.getPartContentType());
+		assertArrayEquals(first, StreamUtils.copyToByteArray(reader.getPartInputStream()));
+		assertTrue(reader.nextPart());
+		assertArrayEquals(second, StreamUtils.copyToByteArray(reader.getPartInputStream()));
+		assertFalse(reader.nextPart());
+	}
+
+	@Test
+	public void testSkipUnreadPart() throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		writePart(message, "application/dicom+xml", randomBytes(10000));
+		byte[] second = randomBytes(100);
+		writePart(message, "application/dicom", second);
+		message.write(("--" + BOUNDARY + "--").getBytes(StandardCharsets.US_ASCII));
+
+		MultipartRelatedReader reader = new MultipartRelatedReader(new ByteArrayInputStream(message.toByteArray()), BOUNDARY);
+
+		assertTrue(reader.nextPart());
+		assertEquals("application/dicom+xml", reader.getPartContentType());
+		assertTrue(reader.nextPart());
+		assertArrayEquals(second, StreamUtils.copyToByteArray(reader.getPartInputStream()));
+		assertFalse(reader.nextPart());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testTruncatedMessage() throws IOException {
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write(("--" + BOUNDARY + "\r\nContent-Type: application/dicom\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		message.write(randomBytes(10000));
+
+		MultipartRelatedReader reader = new MultipartRelatedReader(new ByteArrayInputStream(message.toByteArray()), BOUNDARY);
+
+		assertTrue(reader.nextPart());
+		StreamUtils.copyToByteArray(reader.getPartInputStream());
+	}
+
+	private void writePart(ByteArrayOutputStream message, String contentType, byte[] body) throws IOException {
+		message.write(("--" + BOUNDARY + "\r\nContent-Type: " + contentType + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		message.write(body);
+		message.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.processing.carmin.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withServerError;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.representations.AccessTokenResponse;
+import org.shanoir.ng.processing.carmin.model.CarminDatasetProcessing;
+import org.shanoir.ng.processing.carmin.model.ExecutionStatus;
+import org.shanoir.ng.processing.carmin.output.DefaultOutputProcessing;
+import org.shanoir.ng.processing.carmin.repository.CarminDatasetProcessingRepository;
+import org.shanoir.ng.processing.carmin.service.CarminDatasetProcessingService;
+import org.shanoir.ng.shared.event.ShanoirEventService;
+import org.shanoir.ng.shared.security.KeycloakServiceAccountUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.client.RestTemplate;
+
+public class ExecutionStatusMonitorTest {
+
+	private static final String VIP_URI = "http://vip/rest/executions/";
+
+	private static final String IDENTIFIER = "workflow-1";
+
+	private static final String SUMMARY_URI = VIP_URI + IDENTIFIER + "/summary";
+
+	private static final String RUNNING = "{\"identifier\":\"" + IDENTIFIER + "\",\"status\":\"Running\"}";
+
+	private static final long SLEEP_TIME = 1000;
+
+	private static final long MAX_SLEEP_TIME = 2000;
+
+	private CarminDatasetProcessingRepository repository;
+
+	private KeycloakServiceAccountUtils keycloakServiceAccountUtils;
+
+	private MockRestServiceServer vip;
+
+	private ExecutionStatusMonitor monitor;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = mock(CarminDatasetProcessingRepository.class);
+		keycloakServiceAccountUtils = mock(KeycloakServiceAccountUtils.class);
+		AccessTokenResponse accessTokenResponse = new AccessTokenResponse();
+		accessTokenResponse.setToken("token");
+		when(keycloakServiceAccountUtils.getServiceAccountAccessToken()).thenReturn(accessTokenResponse);
+		CarminDatasetProcessing processing = new CarminDatasetProcessing();
+		processing.setIdentifier(IDENTIFIER);
+		processing.setName("processing");
+		when(repository.findByStatus(ExecutionStatus.RUNNING)).thenReturn(Collections.singletonList(processing));
+
+		monitor = new ExecutionStatusMonitor();
+		ReflectionTestUtils.setField(monitor, "VIP_URI", VIP_URI);
+		ReflectionTestUtils.setField(monitor, "sleepTime", SLEEP_TIME);
+		ReflectionTestUtils.setField(monitor, "maxSleepTime", MAX_SLEEP_TIME);
+		ReflectionTestUtils.setField(monitor, "httpClientMaxTotal", 2);
+		ReflectionTestUtils.setField(monitor, "carminDatasetProcessingService", mock(CarminDatasetProcessingService.class));
+		ReflectionTestUtils.setField(monitor, "carminDatasetProcessingRepository", repository);
+		ReflectionTestUtils.setField(monitor, "keycloakServiceAccountUtils", keycloakServiceAccountUtils);
+		ReflectionTestUtils.setField(monitor, "defaultOutputProcessing", mock(DefaultOutputProcessing.class));
+		ReflectionTestUtils.setField(monitor, "eventService", mock(ShanoirEventService.class));
+		ReflectionTestUtils.setField(monitor, "transactionManager", mock(PlatformTransactionManager.class));
+		monitor.Initialize();
+		RestTemplate restTemplate = new RestTemplate();
+		vip = MockRestServiceServer.bindTo(restTemplate).build();
+		ReflectionTestUtils.setField(monitor, "restTemplate", restTemplate);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		monitor.shutdown();
+	}
+
+	@Test
+	public void testRunningExecutionsAreResumed() {
+		vip.expect(ExpectedCount.once(), requestTo(SUMMARY_URI))
+				.andExpect(method(HttpMethod.GET))
+				.andExpect(header("Authorization", "Bearer token"))
+				.andRespond(withSuccess(RUNNING, MediaType.APPLICATION_JSON));
+
+		monitor.monitorExecutions();
+		// the execution is not due yet, and the database is not read again
+		monitor.monitorExecutions();
+
+		vip.verify();
+		verify(repository, times(1)).findByStatus(ExecutionStatus.RUNNING);
+		assertTrue(executions().containsKey(IDENTIFIER));
+	}
+
+	@Test
+	public void testIntervalGrowsUpToMaximum() {
+		vip.expect(ExpectedCount.times(3), requestTo(SUMMARY_URI))
+				.andRespond(withSuccess(RUNNING, MediaType.APPLICATION_JSON));
+
+		long start = System.currentTimeMillis();
+		monitor.monitorExecutions();
+		Object execution = executions().get(IDENTIFIER);
+		assertTrue((long) ReflectionTestUtils.getField(execution, "nextCheck") >= start + SLEEP_TIME);
+		assertEquals(1500L, ReflectionTestUtils.getField(execution, "interval"));
+		checkNow(execution);
+		assertEquals(MAX_SLEEP_TIME, ReflectionTestUtils.getField(execution, "interval"));
+		checkNow(execution);
+		assertEquals(MAX_SLEEP_TIME, ReflectionTestUtils.getField(execution, "interval"));
+		vip.verify();
+	}
+
+	@Test
+	public void testExecutionIsDroppedAfterMaxAttempts() {
+		vip.expect(ExpectedCount.times(3), requestTo(SUMMARY_URI)).andRespond(withServerError());
+
+		monitor.monitorExecutions();
+		Object execution = executions().get(IDENTIFIER);
+		checkNow(execution);
+		assertTrue(executions().containsKey(IDENTIFIER));
+		checkNow(execution);
+		assertTrue(executions().isEmpty());
+		vip.verify();
+	}
+
+	@Test
+	public void testTokenIsRefreshedWhenRefused() throws Exception {
+		vip.expect(ExpectedCount.once(), requestTo(SUMMARY_URI)).andRespond(withStatus(HttpStatus.UNAUTHORIZED));
+		vip.expect(ExpectedCount.once(), requestTo(SUMMARY_URI)).andRespond(withSuccess(RUNNING, MediaType.APPLICATION_JSON));
+
+		monitor.monitorExecutions();
+		checkNow(executions().get(IDENTIFIER));
+
+		vip.verify();
+		verify(keycloakServiceAccountUtils, times(3)).getServiceAccountAccessToken();
+		assertEquals(0, ReflectionTestUtils.getField(executions().get(IDENTIFIER), "attempts"));
+	}
+
+	/**
+	 * Makes the execution due, and runs the poller.
+	 */
+	private void checkNow(Object execution) {
+		ReflectionTestUtils.setField(execution, "nextCheck", 0L);
+		monitor.monitorExecutions();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> executions() {
+		return (Map<String, Object>) ReflectionTestUtils.getField(monitor, "executions");
+	}
+
+}
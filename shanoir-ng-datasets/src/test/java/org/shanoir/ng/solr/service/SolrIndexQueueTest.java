@@ -0,0 +1,74 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.solr.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SolrIndexQueueTest {
+
+	private SolrIndexQueue queue;
+
+	private SolrService solrService;
+
+	@Before
+	public void setUp() {
+		solrService = Mockito.mock(SolrService.class);
+		queue = new SolrIndexQueue();
+		ReflectionTestUtils.setField(queue, "solrService", solrService);
+		ReflectionTestUtils.setField(queue, "windowMs", 200L);
+		ReflectionTestUtils.setField(queue, "batchSize", 3);
+		ReflectionTestUtils.setField(queue, "capacity", 100);
+		queue.start();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		queue.stop();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testDatasetsAreCoalesced() {
+		// the same dataset added twice is indexed once
+		queue.add(1L);
+		queue.addAll(Arrays.asList(2L, 1L, 3L, 4L));
+
+		ArgumentCaptor<List<Long>> batches = ArgumentCaptor.forClass(List.class);
+		Mockito.verify(solrService, Mockito.timeout(5000).times(2)).indexDatasetsInBatch(batches.capture());
+		assertEquals(Arrays.asList(1L, 2L, 3L), batches.getAllValues().get(0));
+		assertEquals(Arrays.asList(4L), batches.getAllValues().get(1));
+		assertEquals(0, queue.getPendingCount());
+	}
+
+	@Test
+	public void testPendingDatasetsAreIndexedOnStop() throws InterruptedException {
+		ReflectionTestUtils.setField(queue, "windowMs", 60000L);
+		queue.add(1L);
+		queue.stop();
+
+		Mockito.verify(solrService).indexDatasetsInBatch(Arrays.asList(1L));
+	}
+
+}
@@ -32,6 +32,7 @@ import org.shanoir.ng.shared.exception.EntityNotFoundException;
 import org.shanoir.ng.shared.exception.MicroServiceCommunicationException;
 import org.shanoir.ng.studycard.model.StudyCard;
 import org.shanoir.ng.studycard.repository.StudyCardRepository;
+import org.shanoir.ng.studycard.service.CompiledStudyCardCache;
 import org.shanoir.ng.studycard.service.StudyCardServiceImpl;
 import org.shanoir.ng.utils.ModelsUtil;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
@@ -52,6 +53,9 @@ public class StudyCardServiceTest {
 	@Mock
 	private StudyCardRepository studyCardRepository;
 
+	@Mock
+	private CompiledStudyCardCache compiledStudyCardCache;
+
 	@Autowired
 	private RabbitTemplate rabbitTemplate;
 
@@ -69,6 +73,7 @@ public class StudyCardServiceTest {
 	public void deleteByIdTest() throws EntityNotFoundException, MicroServiceCommunicationException {
 		studyCardService.deleteById(TEMPLATE_ID);
 		Mockito.verify(studyCardRepository, Mockito.times(1)).deleteById(Mockito.anyLong());
+		Mockito.verify(compiledStudyCardCache, Mockito.times(1)).evict(TEMPLATE_ID);
 	}
 
 	@Test
@@ -0,0 +1,181 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Test;
+import org.shanoir.ng.datasetacquisition.model.mr.MrDatasetAcquisition;
+import org.shanoir.ng.datasetacquisition.model.mr.MrProtocol;
+import org.shanoir.ng.shared.exception.CheckedIllegalClassException;
+import org.shanoir.ng.studycard.model.assignment.DatasetAcquisitionAssignment;
+import org.shanoir.ng.studycard.model.assignment.StudyCardAssignment;
+import org.shanoir.ng.studycard.model.condition.StudyCardCondition;
+import org.shanoir.ng.studycard.model.condition.StudyCardDICOMCondition;
+import org.shanoir.ng.studycard.model.field.DatasetAcquisitionMetadataField;
+import org.shanoir.ng.studycard.model.rule.DatasetAcquisitionRule;
+import org.shanoir.ng.studycard.model.rule.StudyCardRule;
+
+public class CompiledStudyCardTest {
+
+	private static final Operation[] TEXTUAL_OPERATIONS = { Operation.STARTS_WITH, Operation.EQUALS, Operation.ENDS_WITH, Operation.CONTAINS, Operation.DOES_NOT_CONTAIN };
+
+	private static final String[] DESCRIPTIONS = { "T1_MPRAGE", "T2_FLAIR", "DWI_b1000", "t1_se", "BOLD_rest" };
+
+	@Test
+	public void testEachTagIsReadOnce() {
+		StudyCard studyCard = new StudyCard();
+		studyCard.setRules(Arrays.asList(
+				rule("T1", condition(Tag.SeriesDescription, Operation.CONTAINS, "T1"), condition(Tag.RepetitionTime, Operation.BIGGER_THAN, "1000")),
+				rule("T2", condition(Tag.SeriesDescription, Operation.STARTS_WITH, "T2"), condition(Tag.RepetitionTime, Operation.SMALLER_THAN, "1000")),
+				rule("MPRAGE", condition(Tag.SeriesDescription, Operation.ENDS_WITH, "MPRAGE"))));
+		Attributes attributes = spy(attributes("T1_MPRAGE", "2300", "20200101"));
+
+		MrDatasetAcquisition acquisition = acquisition();
+		assertTrue(studyCard.apply(acquisition, attributes));
+
+		assertEquals("MPRAGE", protocolName(acquisition));
+		assertEquals(2, new CompiledStudyCard(studyCard).getTagCount());
+		verify(attributes, times(1)).getString(Tag.SeriesDescription);
+		verify(attributes, times(1)).getFloat(Tag.RepetitionTime, Float.NaN);
+	}
+
+	@Test
+	public void testNumericalAndDateOperands() {
+		StudyCardDICOMCondition equals = condition(Tag.RepetitionTime, Operation.EQUALS, "2300.00");
+		StudyCardDICOMCondition after = condition(Tag.AcquisitionDate, Operation.BIGGER_THAN, "20191231");
+		StudyCardDICOMCondition before = condition(Tag.AcquisitionDate, Operation.SMALLER_THAN, "20191231");
+		StudyCardDICOMCondition notADate = condition(Tag.AcquisitionDate, Operation.BIGGER_THAN, "not a date");
+		Attributes attributes = attributes("T1_MPRAGE", "2300", "20200101");
+
+		assertTrue(equals.fulfilled(attributes));
+		assertTrue(after.fulfilled(attributes));
+		assertFalse(before.fulfilled(attributes));
+		assertFalse(notADate.fulfilled(attributes));
+		assertFalse(equals.fulfilled(new Attributes()));
+		// the conditions are ignored without dicom data
+		assertTrue(equals.fulfilled((Attributes) null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncompatibleOperation() {
+		condition(Tag.RepetitionTime, Operation.CONTAINS, "23").fulfilled(attributes("T1_MPRAGE", "2300", "20200101"));
+	}
+
+	@Test
+	public void testSameResultsAsRules() {
+		Random random = new Random(42);
+		List<StudyCardRule<?>> rules = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			List<StudyCardDICOMCondition> conditions = new ArrayList<>();
+			conditions.add(condition(Tag.SeriesDescription, TEXTUAL_OPERATIONS[random.nextInt(TEXTUAL_OPERATIONS.length)],
+					DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)].substring(0, 2)));
+			if (random.nextBoolean()) {
+				conditions.add(condition(Tag.RepetitionTime, random.nextBoolean() ? Operation.BIGGER_THAN : Operation.SMALLER_THAN,
+						String.valueOf(random.nextInt(5000))));
+			}
+			if (random.nextBoolean()) {
+				conditions.add(condition(Tag.AcquisitionDate, Operation.BIGGER_THAN, "20" + (10 + random.nextInt(12)) + "0101"));
+			}
+			rules.add(rule("rule " + i, conditions.toArray(new StudyCardDICOMCondition[0])));
+		}
+		StudyCard studyCard = new StudyCard();
+		studyCard.setRules(rules);
+
+		for (int i = 0; i < 1000; i++) {
+			Attributes attributes = attributes(DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)],
+					String.valueOf(random.nextInt(5000)), "20" + (10 + random.nextInt(12)) + "0615");
+			MrDatasetAcquisition compiled = acquisition();
+			studyCard.apply(compiled, attributes);
+			MrDatasetAcquisition notCompiled = acquisition();
+			for (StudyCardRule<?> rule : rules) {
+				((DatasetAcquisitionRule) rule).apply(notCompiled, attributes);
+			}
+			assertEquals(protocolName(notCompiled), protocolName(compiled));
+		}
+	}
+
+	@Test
+	public void testCompiledCardDoesNotChangeWithTheEntities() {
+		StudyCardDICOMCondition condition = condition(Tag.SeriesDescription, Operation.CONTAINS, "T1");
+		DatasetAcquisitionRule rule = rule("T1", condition);
+		StudyCard studyCard = new StudyCard();
+		studyCard.setRules(Collections.singletonList(rule));
+		CompiledStudyCard compiled = new CompiledStudyCard(studyCard);
+
+		condition.setValues(Collections.singletonList("T2"));
+		((DatasetAcquisitionAssignment) rule.getAssignments().get(0)).setValue("T2");
+		MrDatasetAcquisition acquisition = acquisition();
+		compiled.apply(acquisition, attributes("T1_MPRAGE", "2300", "20200101"));
+		assertEquals("T1", protocolName(acquisition));
+	}
+
+	private static Attributes attributes(String seriesDescription, String repetitionTime, String acquisitionDate) {
+		Attributes attributes = new Attributes();
+		attributes.setString(Tag.SeriesDescription, VR.LO, seriesDescription);
+		attributes.setString(Tag.RepetitionTime, VR.DS, repetitionTime);
+		attributes.setString(Tag.AcquisitionDate, VR.DA, acquisitionDate);
+		return attributes;
+	}
+
+	private static StudyCardDICOMCondition condition(int tag, Operation operation, String value) {
+		StudyCardDICOMCondition condition = new StudyCardDICOMCondition();
+		condition.setDicomTag(tag);
+		condition.setOperation(operation);
+		condition.setValues(Collections.singletonList(value));
+		return condition;
+	}
+
+	private static DatasetAcquisitionRule rule(String protocolName, StudyCardDICOMCondition... conditions) {
+		DatasetAcquisitionAssignment assignment = new DatasetAcquisitionAssignment();
+		assignment.setField(DatasetAcquisitionMetadataField.PROTOCOL_NAME);
+		assignment.setValue(protocolName);
+		List<StudyCardAssignment<?>> assignments = new ArrayList<>();
+		assignments.add(assignment);
+		DatasetAcquisitionRule rule = new DatasetAcquisitionRule();
+		rule.setAssignments(assignments);
+		rule.setConditions(new ArrayList<StudyCardCondition>(Arrays.asList(conditions)));
+		return rule;
+	}
+
+	private static MrDatasetAcquisition acquisition() {
+		MrDatasetAcquisition acquisition = new MrDatasetAcquisition();
+		acquisition.setMrProtocol(new MrProtocol());
+		return acquisition;
+	}
+
+	private static String protocolName(MrDatasetAcquisition acquisition) {
+		try {
+			return DatasetAcquisitionMetadataField.PROTOCOL_NAME.get(acquisition);
+		} catch (CheckedIllegalClassException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
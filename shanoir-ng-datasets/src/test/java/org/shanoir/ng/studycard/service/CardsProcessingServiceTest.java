@@ -0,0 +1,239 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.studycard.service;
+
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+import java.net.URL;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Tag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.shanoir.ng.dataset.modality.MrDataset;
+import org.shanoir.ng.dataset.model.Dataset;
+import org.shanoir.ng.dataset.model.DatasetExpression;
+import org.shanoir.ng.dataset.model.DatasetExpressionFormat;
+import org.shanoir.ng.datasetacquisition.model.DatasetAcquisition;
+import org.shanoir.ng.datasetacquisition.model.mr.MrDatasetAcquisition;
+import org.shanoir.ng.datasetfile.DatasetFile;
+import org.shanoir.ng.download.DicomAttributesCacheService;
+import org.shanoir.ng.download.WADODownloaderService;
+import org.shanoir.ng.examination.model.Examination;
+import org.shanoir.ng.shared.event.ShanoirEvent;
+import org.shanoir.ng.shared.event.ShanoirEventService;
+import org.shanoir.ng.shared.event.ShanoirEventType;
+import org.shanoir.ng.shared.model.Study;
+import org.shanoir.ng.shared.model.Subject;
+import org.shanoir.ng.shared.model.SubjectStudy;
+import org.shanoir.ng.shared.quality.QualityTag;
+import org.shanoir.ng.shared.service.StudyService;
+import org.shanoir.ng.shared.service.SubjectStudyService;
+import org.shanoir.ng.studycard.dto.QualityCardResult;
+import org.shanoir.ng.studycard.model.Operation;
+import org.shanoir.ng.studycard.model.QualityCard;
+import org.shanoir.ng.studycard.model.condition.StudyCardCondition;
+import org.shanoir.ng.studycard.model.condition.StudyCardDICOMCondition;
+import org.shanoir.ng.studycard.model.rule.QualityExaminationRule;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.client.RestTemplate;
+
+public class CardsProcessingServiceTest {
+
+	private static final String PACS_URL = "http://dcm4chee-arc:8081/dcm4chee-arc/aets/AS_RECEIVED/rs/studies/1.2.3/series/";
+
+	private static final String SERIES_UID = "1.2.3.4";
+
+	private static final String JSON = "{\"0008103E\":{\"vr\":\"LO\",\"Value\":[\"T1\"]}}";
+
+	private static final int EXAMINATIONS = 50;
+
+	private static final Long STUDY_ID = 1L;
+
+	private static final Long QUALITY_CARD_ID = 2L;
+
+	private static final Long USER_ID = 3L;
+
+	private RestTemplate restTemplate;
+
+	private MockRestServiceServer pacs;
+
+	private SubjectStudyService subjectStudyService;
+
+	private ShanoirEventService eventService;
+
+	private CardsProcessingService service;
+
+	@Before
+	public void setUp() {
+		restTemplate = new RestTemplate();
+		pacs = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+		DicomAttributesCacheService dicomAttributesCache = mock(DicomAttributesCacheService.class);
+		when(dicomAttributesCache.getSeriesInstanceUID(any(URL.class))).thenReturn(SERIES_UID);
+		when(dicomAttributesCache.get(anyString())).thenReturn(null);
+
+		WADODownloaderService downloader = new WADODownloaderService();
+		ReflectionTestUtils.setField(downloader, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(downloader, "dicomAttributesCache", dicomAttributesCache);
+		ReflectionTestUtils.setField(downloader, "wadoDownloadThreads", 1);
+		downloader.initRestTemplate();
+
+		StudyService studyService = mock(StudyService.class);
+		when(studyService.findById(STUDY_ID)).thenReturn(study());
+		subjectStudyService = mock(SubjectStudyService.class);
+		eventService = mock(ShanoirEventService.class);
+
+		service = new CardsProcessingService();
+		ReflectionTestUtils.setField(service, "downloader", downloader);
+		ReflectionTestUtils.setField(service, "studyService", studyService);
+		ReflectionTestUtils.setField(service, "subjectStudyService", subjectStudyService);
+		ReflectionTestUtils.setField(service, "qualityCardService", mock(QualityCardService.class));
+		ReflectionTestUtils.setField(service, "eventService", eventService);
+		ReflectionTestUtils.setField(service, "transactionManager", mock(PlatformTransactionManager.class));
+		ReflectionTestUtils.setField(service, "qualityCardThreads", 8);
+		ReflectionTestUtils.setField(service, "updateBatchSize", 100);
+		service.init();
+	}
+
+	@After
+	public void tearDown() {
+		service.shutdown();
+	}
+
+	@Test
+	public void testDicomAttributesAreReadInParallel() throws Exception {
+		expectMetadataRequests();
+		int converters = restTemplate.getMessageConverters().size();
+
+		QualityCardResult result = service.applyQualityCardOnStudy(qualityCard(null), false);
+
+		// no examination in error, and the condition on the DICOM metadata fulfilled by all of them
+		assertTrue(result.isEmpty());
+		assertEquals(EXAMINATIONS, result.getUpdatedSubjectStudies().size());
+		// the downloads share the rest template of the service, without changing it
+		assertEquals(converters, restTemplate.getMessageConverters().size());
+		pacs.verify();
+	}
+
+	@Test
+	public void testResultOfTheApplicationInBackgroundIsKept() throws Exception {
+		expectMetadataRequests();
+		assertNull(service.getAsyncResult(QUALITY_CARD_ID));
+		ShanoirEvent event = new ShanoirEvent(ShanoirEventType.CHECK_QUALITY_EVENT, QUALITY_CARD_ID.toString(), USER_ID,
+				"Quality card started", ShanoirEvent.IN_PROGRESS, STUDY_ID);
+
+		service.applyQualityCardOnStudyAsync(qualityCard(QUALITY_CARD_ID), true, event);
+
+		assertEquals(ShanoirEvent.SUCCESS, event.getStatus());
+		QualityCardResult result = service.getAsyncResult(QUALITY_CARD_ID);
+		assertEquals(EXAMINATIONS, result.getUpdatedSubjectStudies().size());
+		// the progress, then the end
+		verify(eventService, atLeast(2)).publishEvent(event);
+		// the subject studies are reset, then tagged
+		verify(subjectStudyService, times(2)).update(anyList());
+		service.removeAsyncResult(QUALITY_CARD_ID);
+		assertNull(service.getAsyncResult(QUALITY_CARD_ID));
+		pacs.verify();
+	}
+
+	private void expectMetadataRequests() {
+		pacs.expect(ExpectedCount.times(EXAMINATIONS), requestTo(startsWith(PACS_URL)))
+				.andExpect(method(HttpMethod.GET))
+				.andRespond(withSuccess(JSON, MediaType.APPLICATION_JSON));
+	}
+
+	private QualityCard qualityCard(Long id) {
+		StudyCardDICOMCondition condition = new StudyCardDICOMCondition();
+		condition.setDicomTag(Tag.SeriesDescription);
+		condition.setOperation(Operation.EQUALS);
+		condition.setValues(Collections.singletonList("T1"));
+		List<StudyCardCondition> conditions = new ArrayList<>();
+		conditions.add(condition);
+		QualityExaminationRule rule = new QualityExaminationRule();
+		rule.setQualityTag(QualityTag.VALID);
+		rule.setConditions(conditions);
+		QualityCard qualityCard = new QualityCard();
+		qualityCard.setId(id);
+		qualityCard.setName("quality card");
+		qualityCard.setStudyId(STUDY_ID);
+		qualityCard.setRules(Collections.singletonList(rule));
+		return qualityCard;
+	}
+
+	private Study study() {
+		Study study = new Study();
+		study.setId(STUDY_ID);
+		List<SubjectStudy> subjectStudies = new ArrayList<>();
+		List<Examination> examinations = new ArrayList<>();
+		for (long id = 1; id <= EXAMINATIONS; id++) {
+			Subject subject = new Subject();
+			subject.setId(id);
+			subject.setName("subject " + id);
+			SubjectStudy subjectStudy = new SubjectStudy();
+			subjectStudy.setId(id);
+			subjectStudy.setStudy(study);
+			subjectStudy.setSubject(subject);
+			subject.setSubjectStudyList(Collections.singletonList(subjectStudy));
+			subjectStudies.add(subjectStudy);
+			examinations.add(examination(id, study, subject));
+		}
+		study.setSubjectStudyList(subjectStudies);
+		study.setExaminations(examinations);
+		return study;
+	}
+
+	private Examination examination(long id, Study study, Subject subject) {
+		DatasetFile datasetFile = new DatasetFile();
+		datasetFile.setPath(PACS_URL + SERIES_UID + "/instances/1.2.3.4." + id);
+		DatasetExpression expression = new DatasetExpression();
+		expression.setDatasetExpressionFormat(DatasetExpressionFormat.DICOM);
+		expression.setDatasetFiles(Collections.singletonList(datasetFile));
+		Dataset dataset = new MrDataset();
+		dataset.setDatasetExpressions(Collections.singletonList(expression));
+		DatasetAcquisition acquisition = new MrDatasetAcquisition();
+		acquisition.setDatasets(Collections.singletonList(dataset));
+		Examination examination = new Examination();
+		examination.setId(id);
+		examination.setStudy(study);
+		examination.setSubject(subject);
+		examination.setExaminationDate(LocalDate.of(2020, 1, 1));
+		examination.setDatasetAcquisitions(Collections.singletonList(acquisition));
+		return examination;
+	}
+
+}
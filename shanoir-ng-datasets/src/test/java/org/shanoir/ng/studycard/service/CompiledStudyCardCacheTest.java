@@ -0,0 +1,92 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+
+package org.shanoir.ng.studycard.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.shanoir.ng.studycard.model.CompiledStudyCard;
+import org.shanoir.ng.studycard.model.StudyCard;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class CompiledStudyCardCacheTest {
+
+	private CompiledStudyCardCache cache;
+
+	@Before
+	public void setup() {
+		cache = new CompiledStudyCardCache();
+		ReflectionTestUtils.setField(cache, "maxSize", 2);
+	}
+
+	@Test
+	public void testCardIsCompiledOncePerVersion() {
+		StudyCard studyCard = studyCard(1L, 1L);
+		CompiledStudyCard compiled = cache.get(studyCard);
+		assertSame(compiled, cache.get(studyCard));
+
+		studyCard.setLastEditTimestamp(2L);
+		CompiledStudyCard edited = cache.get(studyCard);
+		assertNotSame(compiled, edited);
+		assertSame(edited, cache.get(studyCard));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testUnsavedCardIsNotCached() {
+		StudyCard studyCard = studyCard(null, null);
+		assertNotSame(cache.get(studyCard), cache.get(studyCard));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedCardIsRemoved() {
+		StudyCard first = studyCard(1L, 1L);
+		StudyCard second = studyCard(2L, 1L);
+		CompiledStudyCard compiledFirst = cache.get(first);
+		CompiledStudyCard compiledSecond = cache.get(second);
+		// the first card becomes the most recently used
+		cache.get(first);
+		cache.get(studyCard(3L, 1L));
+
+		assertEquals(2, cache.size());
+		assertSame(compiledFirst, cache.get(first));
+		assertNotSame(compiledSecond, cache.get(second));
+	}
+
+	@Test
+	public void testDeletedCardIsEvicted() {
+		StudyCard studyCard = studyCard(1L, 1L);
+		CompiledStudyCard compiled = cache.get(studyCard);
+		cache.evict(1L);
+		assertEquals(0, cache.size());
+		assertNotSame(compiled, cache.get(studyCard));
+	}
+
+	private static StudyCard studyCard(Long id, Long lastEditTimestamp) {
+		StudyCard studyCard = new StudyCard();
+		studyCard.setId(id);
+		studyCard.setLastEditTimestamp(lastEditTimestamp);
+		studyCard.setRules(Collections.emptyList());
+		return studyCard;
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.shanoir.ng.shared.exception.ErrorModel;
+import org.shanoir.ng.shared.exception.RestServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+/**
+ * This service receives the files of an import by chunks, into its temp dir, for
+ * ShanoirUploader. A file is written in a .part file, that is renamed once all its
+ * bytes are received and its SHA-256 checksum verified: an interrupted upload is
+ * resumed from the received files and the size of the .part files, see
+ * {@link #getReceivedFiles(File)}. A .part file with all its bytes, but not verified,
+ * is completed by its last chunk sent again, even empty.
+ *
+ * The chunks of a file are sent in order, by one client stream: a chunk that does
+ * not start at the end of the received bytes is refused, with the received size
+ * the client has to continue from. Several files are uploaded in parallel.
+ */
+@Service
+public class ChunkedUploadService {
+
+	private static final String PART = ".part";
+
+	private static final String SHA_256 = "SHA-256";
+
+	private static final Pattern FILE_NAME = Pattern.compile("[\\w\\-.]+");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChunkedUploadService.class);
+
+	/**
+	 * Returns the manifest of the files received in a temp dir: the complete files
+	 * with their size, and the files not complete with the .part suffix and their
+	 * size received. A .part file is never complete, even with all its bytes, as long
+	 * as its checksum has not been verified.
+	 *
+	 * @param importJobDir
+	 * @return the received bytes by file name
+	 */
+	public Map<String, Long> getReceivedFiles(final File importJobDir) {
+		Map<String, Long> receivedFiles = new HashMap<>();
+		File[] files = importJobDir.listFiles(File::isFile);
+		if (files != null) {
+			for (File file : files) {
+				receivedFiles.put(file.getName(), file.length());
+			}
+		}
+		return receivedFiles;
+	}
+
+	/**
+	 * Writes a chunk of a file at the end of its .part file, and renames the .part
+	 * file once complete and its checksum verified.
+	 *
+	 * @param importJobDir the existing temp dir of the import
+	 * @param fileName
+	 * @param offset the position of the chunk in the file
+	 * @param totalSize the size of the complete file
+	 * @param checksum the hexadecimal SHA-256 of the complete file, can be null to not verify it
+	 * @param chunk
+	 * @return the number of bytes received of the file, after this chunk
+	 * @throws UnexpectedOffsetException if the chunk does not start at the end of the received bytes
+	 * @throws RestServiceException if the file name is invalid, the file bigger than expected, or its checksum wrong
+	 * @throws IOException
+	 */
+	public long writeChunk(final File importJobDir, final String fileName, final long offset, final long totalSize,
+			final String checksum, final InputStream chunk) throws UnexpectedOffsetException, RestServiceException, IOException {
+		if (!isValidFileName(fileName)) {
+			throw new RestServiceException(new ErrorModel(HttpStatus.BAD_REQUEST.value(), "Invalid file name: " + fileName, null));
+		}
+		File file = new File(importJobDir, fileName);
+		if (file.exists()) {
+			// the last chunk was received, but its response lost
+			if (file.length() == totalSize) {
+				return totalSize;
+			}
+			throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
+					"Duplicate file name in tempDir, could not create file as file exists already.", null));
+		}
+		File part = new File(importJobDir, fileName + PART);
+		long received = part.length();
+		if (offset != received) {
+			throw new UnexpectedOffsetException(received);
+		}
+		try (OutputStream out = Files.newOutputStream(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			received += chunk.transferTo(out);
+		}
+		if (received > totalSize) {
+			Files.deleteIfExists(part.toPath());
+			throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
+					"File " + fileName + " bigger than its announced size, upload it again.", null));
+		}
+		if (received == totalSize) {
+			if (checksum != null && !checksum.equalsIgnoreCase(sha256(part))) {
+				Files.deleteIfExists(part.toPath());
+				LOG.warn("Wrong checksum for file {} uploaded into {}, deleted.", fileName, importJobDir.getAbsolutePath());
+				throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
+						"Wrong checksum for file " + fileName + ", upload it again.", null));
+			}
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		return received;
+	}
+
+	/**
+	 * @param fileName
+	 * @return true if the name can not write outside of the temp dir, nor into a .part file
+	 */
+	public static boolean isValidFileName(final String fileName) {
+		return fileName != null && FILE_NAME.matcher(fileName).matches()
+				&& !fileName.equals(".") && !fileName.equals("..") && !fileName.endsWith(PART);
+	}
+
+	private static String sha256(final File file) throws IOException {
+		try (DigestInputStream in = new DigestInputStream(Files.newInputStream(file.toPath()), MessageDigest.getInstance(SHA_256))) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (in.read(buffer) != -1) {
+				// digests while reading
+			}
+			return Hex.encodeHexString(in.getMessageDigest().digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A chunk does not start at the end of the bytes received of its file.
+	 */
+	public static class UnexpectedOffsetException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long received;
+
+		public UnexpectedOffsetException(final long received) {
+			super("Chunk not starting at the " + received + " bytes received.");
+			this.received = received;
+		}
+
+		/**
+		 * @return the number of bytes received of the file, to continue from
+		 */
+		public long getReceived() {
+			return received;
+		}
+	}
+
+}
@@ -15,6 +15,8 @@
 package org.shanoir.ng.importer;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
 
 import java.io.FileNotFoundException;
 
@@ -23,16 +25,18 @@ import org.shanoir.ng.importer.dicom.query.DicomQuery;
 import org.shanoir.ng.importer.model.EegImportJob;
 import org.shanoir.ng.importer.model.ImportJob;
 import org.shanoir.ng.shared.exception.RestServiceException;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import io.swagger.annotations.Api;
@@ -67,6 +71,39 @@ public interface ImporterApi {
     ResponseEntity<Void> uploadFile(
     		@ApiParam(value = "tempDirId", required = true) @PathVariable("tempDirId") String tempDirId,
     		@ApiParam(value = "file") @RequestParam("file") MultipartFile file) throws RestServiceException, IOException;
+
+    @ApiOperation(value = "List the files received in a specific temp dir, with the number of bytes received of each",
+    		notes = "Manifest of a chunked upload, to resume it: a file not complete is listed with the .part suffix and its bytes received", response = Map.class)
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "received files", response = Map.class),
+			@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+			@ApiResponse(code = 403, message = "forbidden", response = Void.class),
+			@ApiResponse(code = 404, message = "temp dir not found", response = Void.class),
+			@ApiResponse(code = 500, message = "unexpected error", response = Error.class) })
+    @GetMapping(value = "{tempDirId}/files", produces = { "application/json" })
+    @PreAuthorize("hasRole('ADMIN') or (hasAnyRole('EXPERT', 'USER') and @importSecurityService.hasRightOnOneStudy('CAN_IMPORT'))")
+    ResponseEntity<Map<String, Long>> getUploadedFiles(
+    		@ApiParam(value = "tempDirId", required = true) @PathVariable("tempDirId") String tempDirId) throws RestServiceException;
+
+    @ApiOperation(value = "Upload a chunk of a file into a specific temp dir",
+    		notes = "The chunks of a file are sent in order, the file is complete when totalSize bytes are received, and its checksum then verified",
+    		response = Long.class)
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "chunk received, returns the bytes received of the file", response = Long.class),
+			@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+			@ApiResponse(code = 403, message = "forbidden", response = Void.class),
+			@ApiResponse(code = 409, message = "chunk not starting at the end of the received bytes, returns the bytes received of the file", response = Long.class),
+			@ApiResponse(code = 422, message = "temp dir not found, or wrong checksum", response = Error.class),
+			@ApiResponse(code = 500, message = "unexpected error", response = Error.class) })
+    @PutMapping(value = "{tempDirId}/files", consumes = { "application/octet-stream" }, produces = { "application/json" })
+    @PreAuthorize("hasRole('ADMIN') or (hasAnyRole('EXPERT', 'USER') and @importSecurityService.hasRightOnOneStudy('CAN_IMPORT'))")
+    ResponseEntity<Long> uploadFileChunk(
+    		@ApiParam(value = "tempDirId", required = true) @PathVariable("tempDirId") String tempDirId,
+    		@ApiParam(value = "file name", required = true) @RequestParam("fileName") String fileName,
+    		@ApiParam(value = "position of the chunk in the file", required = true) @RequestParam("offset") long offset,
+    		@ApiParam(value = "size of the complete file", required = true) @RequestParam("totalSize") long totalSize,
+    		@ApiParam(value = "hexadecimal SHA-256 of the complete file") @RequestParam(value = "checksum", required = false) String checksum,
+    		InputStream chunk) throws RestServiceException, IOException;
     
     @ApiOperation(value = "Start exchange", notes = "Start exchange", response = Void.class)
     @ApiResponses(value = {
@@ -89,6 +126,20 @@ public interface ImporterApi {
         consumes = { "multipart/form-data" })
     @PreAuthorize("hasRole('ADMIN') or (hasAnyRole('EXPERT', 'USER') and @importSecurityService.hasRightOnOneStudy('CAN_IMPORT'))")
     ResponseEntity<ImportJob> uploadDicomZipFile(@ApiParam(value = "file detail") @RequestPart("file") MultipartFile dicomZipFile) throws RestServiceException;
+
+    @ApiOperation(value = "Upload one DICOM .zip file as request body", notes = "The zip is unzipped while it is uploaded", response = ImportJob.class, tags={ "Upload one DICOM .zip file", })
+    @ApiResponses(value = {
+        @ApiResponse(code = 200, message = "success returns the import job", response = ImportJob.class),
+        @ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+        @ApiResponse(code = 403, message = "forbidden", response = Void.class),
+        @ApiResponse(code = 413, message = "zip bigger than the maximum size", response = Error.class),
+        @ApiResponse(code = 422, message = "invalid zip", response = Error.class),
+        @ApiResponse(code = 500, message = "unexpected error", response = Error.class) })
+    @PostMapping(value = "/upload_dicom_stream/",
+        produces = { "application/json" },
+        consumes = { "application/zip", "application/octet-stream" })
+    @PreAuthorize("hasRole('ADMIN') or (hasAnyRole('EXPERT', 'USER') and @importSecurityService.hasRightOnOneStudy('CAN_IMPORT'))")
+    ResponseEntity<ImportJob> uploadDicomZipStream(InputStream dicomZipStream) throws RestServiceException;
     
     @ApiOperation(value = "Upload multiple examinations DICOM .zip file", notes = "Upload DICOM .zip file", response = Void.class, tags={ "Upload one DICOM .zip file", })
     @ApiResponses(value = {
@@ -191,11 +242,16 @@ public interface ImporterApi {
     @ApiOperation(value = "Get dicom image", notes = "Get dicom image", response = Void.class, tags={ "", })
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = "get dicom image", response = Void.class),
+        @ApiResponse(code = 206, message = "get a range of the dicom image", response = Void.class),
+        @ApiResponse(code = 304, message = "dicom image not modified", response = Void.class),
         @ApiResponse(code = 400, message = "Invalid input / Bad Request", response = Void.class),
+        @ApiResponse(code = 404, message = "no dicom image found", response = Void.class),
         @ApiResponse(code = 500, message = "unexpected error", response = Error.class) })
     @GetMapping(value = "/get_dicom/", produces = { "application/dicom" })
     @PreAuthorize("hasRole('ADMIN') or (hasAnyRole('EXPERT', 'USER') and @importSecurityService.hasRightOnOneStudy('CAN_IMPORT'))")
-    ResponseEntity<ByteArrayResource> getDicomImage(@ApiParam(value = "path", required=true) @RequestParam(value = "path", required = true) String path) throws RestServiceException, IOException;
+    ResponseEntity<Resource> getDicomImage(@ApiParam(value = "path", required=true) @RequestParam(value = "path", required = true) String path,
+    		@ApiParam(value = "frame number, starting at 1, to get only this frame") @RequestParam(value = "frame", required = false) Integer frame,
+    		WebRequest webRequest) throws RestServiceException, IOException;
 
 
 }
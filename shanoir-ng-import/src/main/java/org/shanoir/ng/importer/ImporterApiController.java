@@ -14,23 +14,23 @@
 
 package org.shanoir.ng.importer;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,7 +44,11 @@ import org.shanoir.ng.exchange.model.ExStudy;
 import org.shanoir.ng.exchange.model.ExStudyCard;
 import org.shanoir.ng.exchange.model.ExSubject;
 import org.shanoir.ng.exchange.model.Exchange;
+import org.shanoir.ng.importer.ChunkedUploadService.UnexpectedOffsetException;
 import org.shanoir.ng.importer.dicom.DicomDirToModelService;
+import org.shanoir.ng.importer.dicom.DicomFrameExtractor;
+import org.shanoir.ng.importer.dicom.DicomZipStreamService;
+import org.shanoir.ng.importer.dicom.DicomZipStreamService.ZipTooLargeException;
 import org.shanoir.ng.importer.dicom.ImagesCreatorAndDicomFileAnalyzerService;
 import org.shanoir.ng.importer.dicom.query.DicomQuery;
 import org.shanoir.ng.importer.dicom.query.QueryPACSService;
@@ -81,6 +85,9 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
@@ -93,6 +100,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -128,12 +136,6 @@ public class ImporterApiController implements ImporterApi {
 
 	private static final String APPLICATION_ZIP = "application/zip";
 
-	/** The Constant KB. */
-	private static final int KB = 1024;
-
-	/** The Constant BUFFER_SIZE. */
-	private static final int BUFFER_SIZE = 10 * KB;
-
 	@Value("${ms.url.shanoir-ng-datasets-eeg}")
 	private String datasetsMsUrl;
 
@@ -158,6 +160,9 @@ public class ImporterApiController implements ImporterApi {
 	@Autowired
 	private DicomDirToModelService dicomDirToModel;
 
+	@Autowired
+	private DicomZipStreamService dicomZipStreamService;
+
 	@Autowired
 	private ImagesCreatorAndDicomFileAnalyzerService imagesCreatorAndDicomFileAnalyzer;
 
@@ -167,6 +172,9 @@ public class ImporterApiController implements ImporterApi {
 	@Autowired
 	private QueryPACSService queryPACSService;
 
+	@Autowired
+	private ChunkedUploadService chunkedUploadService;
+
 	@Autowired
 	private RabbitTemplate rabbitTemplate;
 
@@ -188,35 +196,46 @@ public class ImporterApiController implements ImporterApi {
 			throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
 					"Wrong content type of file upload, .zip required.", null));
 		}
-		try {
-			/**
-			 * 1. STEP: Handle file management. Always create a userId specific folder in
-			 * the import work folder (the root of everything): split imports to clearly
-			 * separate them into separate folders for each user
-			 */
-			File userImportDir = ImportUtils.getUserImportDir(importDir);
-			boolean createDicomDir = false;
-			File tempFile = ImportUtils.saveTempFile(userImportDir, dicomZipFile);
-			if (!ImportUtils.checkZipContainsFile(DICOMDIR, tempFile)) {
-				createDicomDir = true;
-			}
-
-			File importJobDir = ImportUtils.saveTempFileCreateFolderAndUnzip(tempFile, dicomZipFile, true);
+		try (InputStream dicomZipStream = dicomZipFile.getInputStream()) {
+			return importDicomZip(dicomZipStream);
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+			throw new RestServiceException(
+					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), ERROR_WHILE_SAVING_UPLOADED_FILE, null));
+		}
+	}
 
-			if (createDicomDir) {
-				LOG.info("DICOMDIR missing from zip file, generating one.");
-				final File dicomDir = new File(importJobDir, DICOMDIR);
-				if (!dicomDir.exists()) {
-					dicomDirGeneratorService.generateDicomDirFromDirectory(dicomDir, importJobDir);
-					LOG.info("DICOMDIR generated at path: {}", dicomDir.getAbsolutePath());
-				}
-			}
+	@Override
+	public ResponseEntity<ImportJob> uploadDicomZipStream(final InputStream dicomZipStream) throws RestServiceException {
+		return importDicomZip(dicomZipStream);
+	}
 
+	/**
+	 * Unzips a DICOM zip, while it is read, and creates the import job of its DICOM files.
+	 *
+	 * @param dicomZipStream
+	 * @return the import job
+	 * @throws RestServiceException
+	 */
+	private ResponseEntity<ImportJob> importDicomZip(final InputStream dicomZipStream) throws RestServiceException {
+		/**
+		 * 1. STEP: Handle file management. Always create a userId specific folder in
+		 * the import work folder (the root of everything): split imports to clearly
+		 * separate them into separate folders for each user
+		 */
+		File userImportDir = ImportUtils.getUserImportDir(importDir);
+		File importJobDir = new File(userImportDir, Long.toString(ImportUtils.createRandomLong()));
+		if (!importJobDir.mkdirs()) {
+			throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
+					"Error while unzipping file: folder already exists.", null));
+		}
+		boolean imported = false;
+		try {
 			/**
-			 * 2. STEP: prepare patients list to be put into ImportJob: read DICOMDIR and
-			 * complete with meta-data from files
+			 * 2. STEP: unzip the files as they arrive, and index them into the patients list
+			 * to be put into ImportJob: a DICOMDIR is not needed.
 			 */
-			List<Patient> patients = preparePatientsForImportJob(importJobDir);
+			List<Patient> patients = dicomZipStreamService.unzipAndIndex(dicomZipStream, importJobDir);
 
 			/**
 			 * 3. STEP: split instances into non-images and images and get additional meta-data
@@ -233,11 +252,21 @@ public class ImporterApiController implements ImporterApi {
 			// Work folder is always relative to general import directory
 			importJob.setWorkFolder(importJobDir.getName());
 			importJob.setPatients(patients);
+			imported = true;
 			return new ResponseEntity<>(importJob, HttpStatus.OK);
+		} catch (ZipTooLargeException e) {
+			LOG.warn(e.getMessage());
+			throw new RestServiceException(
+					new ErrorModel(HttpStatus.PAYLOAD_TOO_LARGE.value(), e.getMessage(), null));
 		} catch (IOException e) {
 			LOG.error(e.getMessage(), e);
 			throw new RestServiceException(
 					new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(), ERROR_WHILE_SAVING_UPLOADED_FILE, null));
+		} finally {
+			// the unzipped files are deleted on any error
+			if (!imported) {
+				FileUtils.deleteQuietly(importJobDir);
+			}
 		}
 	}
 
@@ -704,6 +733,45 @@ public class ImporterApiController implements ImporterApi {
 		return null;
 	}
 
+	@Override
+	public ResponseEntity<Map<String, Long>> getUploadedFiles(@PathVariable("tempDirId") String tempDirId) throws RestServiceException {
+		final File importJobDir = getExistingTempDir(tempDirId);
+		if (importJobDir == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<>(chunkedUploadService.getReceivedFiles(importJobDir), HttpStatus.OK);
+	}
+
+	@Override
+	public ResponseEntity<Long> uploadFileChunk(@PathVariable("tempDirId") String tempDirId,
+			@RequestParam("fileName") String fileName, @RequestParam("offset") long offset,
+			@RequestParam("totalSize") long totalSize, @RequestParam(value = "checksum", required = false) String checksum,
+			InputStream chunk) throws RestServiceException, IOException {
+		final File importJobDir = getExistingTempDir(tempDirId);
+		if (importJobDir == null) {
+			throw new RestServiceException(new ErrorModel(HttpStatus.UNPROCESSABLE_ENTITY.value(),
+					"Upload file chunk called with not existing tempDirId.", null));
+		}
+		try {
+			return new ResponseEntity<>(chunkedUploadService.writeChunk(importJobDir, fileName, offset, totalSize, checksum, chunk), HttpStatus.OK);
+		} catch (UnexpectedOffsetException e) {
+			return new ResponseEntity<>(e.getReceived(), HttpStatus.CONFLICT);
+		}
+	}
+
+	/**
+	 * @param tempDirId
+	 * @return the temp dir of the user, or null if it does not exist
+	 */
+	private File getExistingTempDir(final String tempDirId) {
+		// the temp dir ids are random positive longs, see createTempDir
+		if (tempDirId == null || !tempDirId.matches("\\d+")) {
+			return null;
+		}
+		final File importJobDir = new File(ImportUtils.getUserImportDir(importDir), tempDirId);
+		return importJobDir.isDirectory() ? importJobDir : null;
+	}
+
 	@Override
 	public ResponseEntity<Void> startImport(@RequestBody Exchange exchange)
 			throws RestServiceException, FileNotFoundException, IOException {
@@ -767,42 +835,56 @@ public class ImporterApiController implements ImporterApi {
 	}
 
 	/**
-	 * This methods returns a dicom file
+	 * This methods returns a dicom file of the import dir of the user, streamed from
+	 * the disk. The Range requests are handled by Spring for the resource, and the
+	 * conditional requests with the ETag and the last modified date are answered
+	 * before the file is read. With a frame number, only this frame of the file is
+	 * returned, as a single frame dicom file.
 	 *
 	 * @param path
-	 *            the dicom file path
-	 * @throws ShanoirException
-	 *             when something gets wrong during the import
+	 *            the dicom file path, relative to the import dir of the user
+	 * @param frame
+	 *            the number of the frame to return, starting at 1, or null for the whole file
+	 * @param webRequest
+	 *            the request, for its conditional headers
 	 * @throws IOException
 	 *             when IO fails
 	 * @throws RestServiceException
 	 */
 	@Override
-	public ResponseEntity<ByteArrayResource> getDicomImage(@ApiParam(value = "path", required=true)  @RequestParam(value = "path", required = true) String path)
+	public ResponseEntity<Resource> getDicomImage(@ApiParam(value = "path", required=true)  @RequestParam(value = "path", required = true) String path,
+			@RequestParam(value = "frame", required = false) Integer frame, WebRequest webRequest)
 			throws RestServiceException, IOException {
-
-		final File userImportDir = ImportUtils.getUserImportDir(importDir);
-		String pathInfo = userImportDir.getAbsolutePath() + File.separator + path;
-		URL url = new URL("file:///" + pathInfo);
-		final URLConnection uCon = url.openConnection();
-		final InputStream is = uCon.getInputStream();
-
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int nRead;
-		byte[] data = new byte[BUFFER_SIZE];
-		while ((nRead = is.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, nRead);
+		final Path userImportDir = ImportUtils.getUserImportDir(importDir).toPath().toAbsolutePath().normalize();
+		final Path dicomPath = userImportDir.resolve(path).normalize();
+		if (!dicomPath.startsWith(userImportDir)) {
+			throw new RestServiceException(new ErrorModel(HttpStatus.BAD_REQUEST.value(), "Path outside of the import directory.", null));
 		}
-
-		buffer.flush();
-		byte[] byteArray = buffer.toByteArray();
-
-		ByteArrayResource resource = new ByteArrayResource(byteArray);
-
-		return ResponseEntity.ok()
+		final File dicomFile = dicomPath.toFile();
+		if (!dicomFile.isFile()) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+		// the files of an import do not change: the ETag is computed without reading them
+		final long lastModified = dicomFile.lastModified();
+		final String eTag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(dicomFile.length())
+				+ (frame != null ? "-" + frame : "") + "\"";
+		if (webRequest.checkNotModified(eTag, lastModified)) {
+			// 304 already set, the frame is not extracted
+			return null;
+		}
+		final ResponseEntity.BodyBuilder response = ResponseEntity.ok()
 				.contentType(MediaType.parseMediaType("application/dicom"))
-				.contentLength(uCon.getContentLength())
-				.body(resource);
+				.cacheControl(CacheControl.maxAge(1, TimeUnit.HOURS).cachePrivate())
+				.eTag(eTag)
+				.lastModified(lastModified);
+		if (frame == null) {
+			return response.body(new FileSystemResource(dicomFile));
+		}
+		try {
+			return response.body(new ByteArrayResource(DicomFrameExtractor.extractFrame(dicomFile, frame)));
+		} catch (IllegalArgumentException e) {
+			throw new RestServiceException(new ErrorModel(HttpStatus.BAD_REQUEST.value(), e.getMessage(), null));
+		}
 	}
 
 	public ResponseEntity<ImportJob> uploadMultipleDicom(@ApiParam(value = "file detail") @RequestPart("file") MultipartFile dicomZipFile,
@@ -19,10 +19,28 @@ import java.io.FileNotFoundException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.FileUtils;
 import org.shanoir.anonymization.anonymization.AnonymizationServiceImpl;
 import org.shanoir.ng.importer.dcm2nii.DatasetsCreatorAndNIfTIConverterService;
 import org.shanoir.ng.importer.dicom.ImagesCreatorAndDicomFileAnalyzerService;
@@ -53,6 +71,7 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -78,8 +97,12 @@ public class ImporterManagerService {
 	 * anonymization project as simple as it is, without Spring annotations, to
 	 * be usable outside a Spring context, as e.g. in ShanoirUploader.
 	 * Maybe to change and think about deeper afterwards.
+	 * The files of a serie are anonymized in parallel, by the anonymization pool.
 	 */
-	private static final AnonymizationServiceImpl ANONYMIZER = new AnonymizationServiceImpl();
+	private AnonymizationServiceImpl anonymizer;
+
+	/** Pool anonymizing the DICOM files, shared by all the imports */
+	private ExecutorService anonymizationPool;
 	
 	@Autowired
 	private QueryPACSService queryPACSService;
@@ -107,6 +130,22 @@ public class ImporterManagerService {
 
 	@Value("${shanoir.import.directory}")
 	private String importDir;
+
+	/** Number of DICOM files anonymized in parallel, shared by all the imports, 0 for the number of processors */
+	@Value("${shanoir.import.anonymization.threads:0}")
+	private int anonymizationThreads;
+
+	@PostConstruct
+	public void init() {
+		int poolSize = anonymizationThreads > 0 ? anonymizationThreads : Runtime.getRuntime().availableProcessors();
+		anonymizationPool = Executors.newFixedThreadPool(poolSize, new CustomizableThreadFactory("anonymization-"));
+		anonymizer = new AnonymizationServiceImpl(anonymizationPool);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		anonymizationPool.shutdownNow();
+	}
 	
 	@Async("asyncExecutor")
 	public void manageImportJob(final ImportJob importJob) {
@@ -128,10 +167,9 @@ public class ImporterManagerService {
 			final File importJobDir;
 			if (importJob.isFromPacs()) {
 				importJobDir = createImportJobDir(userImportDir.getAbsolutePath());
-				// at first all dicom files arrive normally in /tmp/shanoir-dcmrcv (see config DicomStoreSCPServer)
-				downloadAndMoveDicomFilesToImportJobDir(importJobDir, patients, event);
-				// convert instances to images, as already done after zip file upload
-				imagesCreatorAndDicomFileAnalyzer.createImagesAndAnalyzeDicomFiles(patients, importJobDir.getAbsolutePath(), true, event);
+				// at first all dicom files arrive normally in /tmp/shanoir-dcmrcv (see config DicomStoreSCPServer),
+				// then the instances of each serie are converted to images, as already done after zip file upload
+				downloadAndAnalyzeDicomFiles(importJobDir, patients, event);
 			} else if (importJob.isFromShanoirUploader()) {
 				importJobDir = new File(importJob.getWorkFolder());
 				// convert instances to images, as already done after zip file upload
@@ -164,7 +202,7 @@ public class ImporterManagerService {
 					eventService.publishEvent(event);
 
 					try {
-						ANONYMIZER.anonymizeForShanoir(dicomFiles, importJob.getAnonymisationProfileToUse(), subjectName, subjectName);
+						anonymizer.anonymizeForShanoir(dicomFiles, importJob.getAnonymisationProfileToUse(), subjectName, subjectName);
 					} catch (Exception e) {
 						LOG.error(e.getMessage(), e);
 						throw new ShanoirException("Error during pseudonymization.");
@@ -261,49 +299,150 @@ public class ImporterManagerService {
 
 	/**
 	 * Calls a c-move for each serie involved, files are received via DicomStoreSCPServer.
+	 * The series are retrieved in parallel, and the files of each serie are moved to
+	 * the import job folder and analyzed as soon as the serie is received, while the
+	 * next series are still retrieved. If a serie fails, the series not yet retrieved
+	 * are cancelled, the running retrievals and analysis are awaited and their files deleted.
 	 * 
+	 * @param importJobDir
 	 * @param patients
+	 * @param event
 	 * @throws ShanoirException
+	 * @throws FileNotFoundException
 	 */
-	private void downloadAndMoveDicomFilesToImportJobDir(final File importJobDir, List<Patient> patients, ShanoirEvent event) throws ShanoirException {
-		for (Iterator<Patient> patientsIt = patients.iterator(); patientsIt.hasNext();) {
-			Patient patient = patientsIt.next();
-			List<Study> studies = patient.getStudies();
-			for (Iterator<Study> studiesIt = studies.iterator(); studiesIt.hasNext();) {
-				Study study = studiesIt.next();
-				List<Serie> series = study.getSelectedSeries();
-				int nbSeries = series.size();
-				int cpt = 1;
-				for (Iterator<Serie> seriesIt = series.iterator(); seriesIt.hasNext();) {
-					Serie serie = seriesIt.next();
-					event.setMessage("Downloading DICOM files from PACS for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] (" + cpt + "/" + nbSeries + ")");
+	private void downloadAndAnalyzeDicomFiles(final File importJobDir, List<Patient> patients, ShanoirEvent event) throws ShanoirException, FileNotFoundException {
+		Map<Serie, Patient> patientBySerie = new IdentityHashMap<>();
+		BlockingQueue<CompletableFuture<Serie>> downloadedSeries = new LinkedBlockingQueue<>();
+		Map<Serie, CompletableFuture<Serie>> downloads = new IdentityHashMap<>();
+		AtomicBoolean cancelled = new AtomicBoolean();
+		List<ForkJoinTask<Void>> analysis = new ArrayList<>();
+		boolean done = false;
+		try {
+			for (Iterator<Patient> patientsIt = patients.iterator(); patientsIt.hasNext();) {
+				Patient patient = patientsIt.next();
+				List<Study> studies = patient.getStudies();
+				for (Iterator<Study> studiesIt = studies.iterator(); studiesIt.hasNext();) {
+					Study study = studiesIt.next();
+					for (Serie serie : study.getSelectedSeries()) {
+						patientBySerie.put(serie, patient);
+						CompletableFuture<Serie> download = queryPACSService.queryCMOVEAsync(serie, cancelled);
+						download.whenComplete((downloadedSerie, error) -> downloadedSeries.add(download));
+						downloads.put(serie, download);
+					}
+				}
+			}
+			int nbSeries = downloads.size();
+			event.setMessage("Downloading DICOM files from PACS for " + nbSeries + " series");
+			eventService.publishEvent(event);
+			AtomicInteger analysisCpt = new AtomicInteger(1);
+			for (int cpt = 1; cpt <= nbSeries; cpt++) {
+				Serie serie;
+				try {
+					serie = downloadedSeries.take().join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ShanoirException("Interrupted while downloading DICOM files from PACS.");
+				} catch (CompletionException e) {
+					throw new ShanoirException(e.getCause().getMessage());
+				}
+				synchronized (event) {
+					event.setMessage("Downloaded DICOM files from PACS for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] (" + cpt + "/" + nbSeries + ")");
 					eventService.publishEvent(event);
+				}
+				moveDicomFilesToImportJobDir(importJobDir, serie);
+				analysis.add(imagesCreatorAndDicomFileAnalyzer.analyzeSerie(patientBySerie.get(serie), serie, importJobDir.getAbsolutePath(), true,
+						event, analysisCpt, nbSeries));
+			}
+			imagesCreatorAndDicomFileAnalyzer.waitForAnalysis(analysis);
+			done = true;
+		} finally {
+			if (!done) {
+				cancelDownloadAndAnalysis(importJobDir, downloads, cancelled, analysis);
+			}
+		}
+	}
 
-					queryPACSService.queryCMOVE(serie);
-					String serieID = serie.getSeriesInstanceUID();
-					File serieIDFolderDir = new File(importJobDir + File.separator + serieID);
-
-					if(!serieIDFolderDir.exists()) {
-						serieIDFolderDir.mkdirs();
-					} else {
-						throw new ShanoirException("Error while creating serie id folder: folder already exists.");
-					}
-					for (Iterator<Instance> iterator = serie.getInstances().iterator(); iterator.hasNext();) {
-						Instance instance = iterator.next();
-						String sopInstanceUID = instance.getSopInstanceUID();
-						File oldFile = new File(dicomStoreSCPServer.getStorageDirPath() + File.separator + serieID + File.separator + sopInstanceUID + DicomStoreSCPServer.DICOM_FILE_SUFFIX);
-						if (oldFile.exists()) {
-							File newFile = new File(importJobDir.getAbsolutePath() + File.separator + serieID + File.separator + oldFile.getName());
-							oldFile.renameTo(newFile);
-							LOG.debug("Moving file: {} to ", oldFile.getAbsolutePath(), newFile.getAbsolutePath());
-						} else {
-							throw new ShanoirException("Error while creating serie id folder: file to copy does not exist.");
-						}
+	/**
+	 * Stops the series retrievals not started yet, waits for the running ones and for
+	 * the analysis, so that no file is written anymore, then deletes the files received
+	 * by the retrievals started for this import.
+	 * 
+	 * @param importJobDir
+	 * @param downloads
+	 * @param cancelled
+	 * @param analysis
+	 */
+	private void cancelDownloadAndAnalysis(final File importJobDir, Map<Serie, CompletableFuture<Serie>> downloads, AtomicBoolean cancelled,
+			List<ForkJoinTask<Void>> analysis) {
+		cancelled.set(true);
+		boolean interrupted = Thread.interrupted();
+		List<Serie> startedSeries = new ArrayList<>();
+		for (Entry<Serie, CompletableFuture<Serie>> download : downloads.entrySet()) {
+			while (true) {
+				try {
+					download.getValue().get();
+					startedSeries.add(download.getKey());
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof CancellationException)) {
+						startedSeries.add(download.getKey()); // already logged, its files may be partially received
 					}
-					cpt++;
+					break;
 				}
 			}
 		}
+		// a running analysis can not be cancelled: it is awaited
+		for (ForkJoinTask<Void> task : analysis) {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break; // the first error is the one reported
+				}
+			}
+		}
+		for (Serie serie : startedSeries) {
+			FileUtils.deleteQuietly(new File(dicomStoreSCPServer.getStorageDirPath(), serie.getSeriesInstanceUID()));
+		}
+		FileUtils.deleteQuietly(importJobDir);
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Moves the files of a serie, received via DicomStoreSCPServer, to the import job folder.
+	 * 
+	 * @param importJobDir
+	 * @param serie
+	 * @throws ShanoirException
+	 */
+	private void moveDicomFilesToImportJobDir(final File importJobDir, Serie serie) throws ShanoirException {
+		String serieID = serie.getSeriesInstanceUID();
+		File serieIDFolderDir = new File(importJobDir + File.separator + serieID);
+
+		if(!serieIDFolderDir.exists()) {
+			serieIDFolderDir.mkdirs();
+		} else {
+			throw new ShanoirException("Error while creating serie id folder: folder already exists.");
+		}
+		for (Iterator<Instance> iterator = serie.getInstances().iterator(); iterator.hasNext();) {
+			Instance instance = iterator.next();
+			String sopInstanceUID = instance.getSopInstanceUID();
+			File oldFile = new File(dicomStoreSCPServer.getStorageDirPath() + File.separator + serieID + File.separator + sopInstanceUID + DicomStoreSCPServer.DICOM_FILE_SUFFIX);
+			if (oldFile.exists()) {
+				File newFile = new File(importJobDir.getAbsolutePath() + File.separator + serieID + File.separator + oldFile.getName());
+				oldFile.renameTo(newFile);
+				LOG.debug("Moving file: {} to ", oldFile.getAbsolutePath(), newFile.getAbsolutePath());
+			} else {
+				throw new ShanoirException("Error while creating serie id folder: file to copy does not exist.");
+			}
+		}
 	}
 
 	/**
@@ -31,11 +31,19 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.transaction.Transactional;
 
 import org.apache.commons.io.FileUtils;
@@ -65,6 +73,7 @@ import org.springframework.amqp.rabbit.annotation.RabbitHandler;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Service;
 
@@ -134,14 +143,40 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	@Value("${shanoir.conversion.dcm2nii.converters.clidcm.path.windows}")
 	private String clidcmPathWindows;
 
-	/** Logs of the conversion. */
-	private String conversionLogs;
+	/** Number of series converted in parallel, shared by all the imports, 0 for the number of processors */
+	@Value("${shanoir.conversion.threads:0}")
+	private int conversionThreads;
 
-	/** Output files mapped by series UID. */
-	private HashMap<String, List<String>> outputFiles = new HashMap<>();
+	private ExecutorService conversionPool;
 
 	Random rand = new Random();
 
+	/**
+	 * State of the conversion of one serie, as the series are converted in parallel.
+	 */
+	private static class SerieConversion {
+
+		/** Logs of the conversion. */
+		private final StringBuilder logs = new StringBuilder();
+
+		/** Output files mapped by series UID. */
+		private final Map<String, List<String>> outputFiles = new HashMap<>();
+
+		/** Duration of the converter executions, in ms. */
+		private long duration;
+	}
+
+	@PostConstruct
+	public void init() {
+		int poolSize = conversionThreads > 0 ? conversionThreads : Runtime.getRuntime().availableProcessors();
+		conversionPool = Executors.newFixedThreadPool(poolSize, new CustomizableThreadFactory("nifti-conversion-"));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		conversionPool.shutdownNow();
+	}
+
 	@PreAuthorize("hasAnyRole('ADMIN', 'EXPERT', 'USER')")
 	public NIfTIConverter findById(Long id) {
 		return niftiConverterRepository.findById(id).orElse(null);
@@ -152,6 +187,16 @@ public class DatasetsCreatorAndNIfTIConverterService {
 		return niftiConverterRepository.findAll().stream().filter(converter -> converter.getIsActive()).collect(Collectors.toList());
 	}
 
+	/**
+	 * Separates the datasets of each serie, then converts the series in parallel:
+	 * each serie is converted in its own folder, with its own conversion state.
+	 * 
+	 * @param patient
+	 * @param workFolder
+	 * @param converterId
+	 * @param importJob
+	 * @throws ShanoirException
+	 */
 	@PreAuthorize("hasAnyRole('ADMIN', 'EXPERT', 'USER')")
 	public void createDatasetsAndRunConversion(Patient patient, File workFolder, Long converterId, ImportJob importJob) throws ShanoirException {
 		File seriesFolderFile = new File(workFolder.getAbsolutePath() + File.separator + SERIES);
@@ -160,24 +205,17 @@ public class DatasetsCreatorAndNIfTIConverterService {
 		} else {
 			throw new ShanoirException("Error while creating series folder: folder already exists.");
 		}
-		conversionLogs = "";
+		NIfTIConverter converter = niftiConverterRepository.findById(converterId).orElse(null);
+		List<Future<?>> conversions = new ArrayList<>();
 		List<Study> studies = patient.getStudies();
 		for (Iterator<Study> studiesIt = studies.iterator(); studiesIt.hasNext();) {
 			Study study = studiesIt.next();
 			List<Serie> series = study.getSelectedSeries();
-			float progress = 0;
-
 			int nbSeries = series.size();
-			int cpt = 1;
+			AtomicInteger cpt = new AtomicInteger(1);
 
 			for (Iterator<Serie> seriesIt = series.iterator(); seriesIt.hasNext();) {
 				Serie serie = seriesIt.next();
-
-				progress = progress + (0.5f / series.size());
-				importJob.getShanoirEvent().setProgress(progress);
-				importJob.getShanoirEvent().setMessage("Converting to NIfTI for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] (" + cpt + "/" + nbSeries + ")...");
-				shanoirEventService.publishEvent(importJob.getShanoirEvent());
-
 				File serieIDFolderFile = createSerieIDFolderAndMoveFiles(workFolder, seriesFolderFile, serie);
 				boolean serieIdentifiedForNotSeparating;
 				try {
@@ -188,7 +226,14 @@ public class DatasetsCreatorAndNIfTIConverterService {
 					constructDicom(serieIDFolderFile, serie, serieIdentifiedForNotSeparating);
 					// we exclude MR Spectroscopy (MRS) from NIfTI conversion, see MRS on GitHub Wiki
 					if (!serie.getIsSpectroscopy()) {
-						constructNifti(serieIDFolderFile, serie, converterId);
+						conversions.add(conversionPool.submit(() -> {
+							publishConversionProgress(importJob, serie, cpt.getAndIncrement(), nbSeries);
+							try {
+								constructNifti(serieIDFolderFile, serie, converter);
+							} catch (NoSuchFieldException | SecurityException e) {
+								LOG.error(e.getMessage());
+							}
+						}));
 					}
 				} catch (NoSuchFieldException | SecurityException e) {
 					LOG.error(e.getMessage());
@@ -196,9 +241,43 @@ public class DatasetsCreatorAndNIfTIConverterService {
 				// as images/non-images are migrated to datasets, clear the list now
 				serie.getImages().clear();
 				serie.getNonImages().clear();
-				cpt++;
 			}
 		}
+		waitForConversions(conversions);
+	}
+
+	private void publishConversionProgress(ImportJob importJob, Serie serie, int cpt, int nbSeries) {
+		synchronized (importJob.getShanoirEvent()) {
+			importJob.getShanoirEvent().setProgress(cpt * 0.5f / nbSeries);
+			importJob.getShanoirEvent().setMessage("Converting to NIfTI for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] (" + cpt + "/" + nbSeries + ")...");
+			shanoirEventService.publishEvent(importJob.getShanoirEvent());
+		}
+	}
+
+	/**
+	 * Waits for the end of all the conversions, then throws the first error if any.
+	 * 
+	 * @param conversions
+	 * @throws ShanoirException
+	 */
+	private void waitForConversions(List<Future<?>> conversions) throws ShanoirException {
+		Throwable error = null;
+		for (Future<?> conversion : conversions) {
+			try {
+				conversion.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				conversions.forEach(c -> c.cancel(true));
+				throw new ShanoirException("NIfTI conversion interrupted.", e);
+			} catch (ExecutionException e) {
+				if (error == null) {
+					error = e.getCause();
+				}
+			}
+		}
+		if (error != null) {
+			throw new ShanoirException("Error during NIfTI conversion: " + error.getMessage(), error);
+		}
 	}
 
 	/**
@@ -333,7 +412,7 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	 * @param boolean is convert to clidcm
 	 *
 	 */
-	private void convertToNiftiExec(NIfTIConverter converter, String inputFolder, String outputFolder, boolean is4D) {
+	private void convertToNiftiExec(NIfTIConverter converter, String inputFolder, String outputFolder, boolean is4D, SerieConversion conversion) {
 		if (converter == null) {
 			return;
 		}
@@ -341,11 +420,11 @@ public class DatasetsCreatorAndNIfTIConverterService {
 		// Mcverter
 		if (converter.isMcverter()) {
 			is4D = true;
-			conversionLogs += shanoirExec.mcverterExec(inputFolder, converterPath, outputFolder, is4D);
+			conversion.logs.append(shanoirExec.mcverterExec(inputFolder, converterPath, outputFolder, is4D));
 			// Clidcm
 		} else if (converter.isClidcm()) {
 			try {
-				conversionLogs += shanoirExec.clidcmExec(inputFolder, converterPath, outputFolder);
+				conversion.logs.append(shanoirExec.clidcmExec(inputFolder, converterPath, outputFolder));
 			} catch (Exception e) {
 				LOG.debug("Error converting with clidcm outputfolder : " + outputFolder + " - is4D :" + is4D + " - ", e);
 			}
@@ -354,16 +433,16 @@ public class DatasetsCreatorAndNIfTIConverterService {
 			 * and '.bval' files because this is the type of files normally created by
 			 * dcm2nii .
 			 */
-			createBvecAndBval(outputFolder);
+			createBvecAndBval(outputFolder, conversion);
 			// Dicom2Nifti
 		} else if (converter.isDicom2Nifti()) {
-			conversionLogs += shanoirExec.dicom2niftiExec(inputFolder, converterPath, outputFolder);
+			conversion.logs.append(shanoirExec.dicom2niftiExec(inputFolder, converterPath, outputFolder));
 			// dcm2nii
 		} else if (converter.isDicomifier()) {
-			conversionLogs += shanoirExec.dicomifier(inputFolder, outputFolder);
+			conversion.logs.append(shanoirExec.dicomifier(inputFolder, outputFolder));
 		} else {
 			is4D = true;
-			conversionLogs += shanoirExec.dcm2niiExec(inputFolder, converterPath, outputFolder, is4D);
+			conversion.logs.append(shanoirExec.dcm2niiExec(inputFolder, converterPath, outputFolder, is4D));
 		}
 	}
 
@@ -372,8 +451,9 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	 * file from the '.prop' file.
 	 *
 	 * @param path
+	 * @param conversion
 	 */
-	private List<File> createBvecAndBval(final String path) {
+	private List<File> createBvecAndBval(final String path, final SerieConversion conversion) {
 		LOG.debug("createBvecAndBval : Begin, params : path={}", path);
 		List<File> bvecAndBval = new ArrayList<>();
 		final FilenameFilter filter = new FilenameFilter() {
@@ -392,7 +472,7 @@ public class DatasetsCreatorAndNIfTIConverterService {
 			}
 		}
 		if(bvecAndBval.isEmpty()) {
-			conversionLogs += "There was an error creating bvec and bval. DiffusionGradientOrientation and/or B0 values may be missing in DICOM file.";
+			conversion.logs.append("There was an error creating bvec and bval. DiffusionGradientOrientation and/or B0 values may be missing in DICOM file.");
 		}
 		LOG.debug("createBvecAndBval : end");
 		return bvecAndBval;
@@ -461,9 +541,9 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	/**
 	 * Remove unused files that are created during the conversion process.
 	 */
-	private void removeUnusedFiles() {
+	private void removeUnusedFiles(SerieConversion conversion) {
 		final List<File> toBeRemovedList = new ArrayList<>();
-		for (final List<String> listPath : outputFiles.values()) {
+		for (final List<String> listPath : conversion.outputFiles.values()) {
 			for (final String path : listPath) {
 				File file = new File(path);
 				if (file.getName().startsWith("o") || file.getName().startsWith("x")) {
@@ -473,7 +553,7 @@ public class DatasetsCreatorAndNIfTIConverterService {
 		}
 		for (final File toBeRemovedFile : toBeRemovedList) {
 			// TODO : ne marche pas
-			outputFiles.remove(toBeRemovedFile);
+			conversion.outputFiles.remove(toBeRemovedFile);
 			boolean success = toBeRemovedFile.delete();
 			if (!success) {
 				LOG.error("removeUnusedFiles : error while deleting {}", toBeRemovedFile);
@@ -531,17 +611,14 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	 * @throws SecurityException
 	 * @throws NoSuchFieldException
 	 */
-	private NIfTIConverter datasetToNiftiConversionLauncher(Dataset dataset, File directory, Serie serie, Long converterId, boolean isConvertAs4D, boolean isConvertWithClidcm) throws NoSuchFieldException, SecurityException {
-		// search for the existing files in the destination folder
-		if (conversionLogs != null && !"".equals(conversionLogs)) {
-			conversionLogs += "\n";
-		} else {
-			conversionLogs = "";
+	private void datasetToNiftiConversionLauncher(Dataset dataset, File directory, Serie serie, NIfTIConverter converter, boolean isConvertAs4D, boolean isConvertWithClidcm, SerieConversion conversion) throws SecurityException {
+		if (conversion.logs.length() > 0) {
+			conversion.logs.append("\n");
 		}
-		NIfTIConverter converter = findById(converterId);
-		convertToNiftiExec(converter, directory.getPath(), directory.getPath(), isConvertAs4D);
-		LOG.debug("conversionLogs : {}", conversionLogs);
-		return converter;
+		long start = System.currentTimeMillis();
+		convertToNiftiExec(converter, directory.getPath(), directory.getPath(), isConvertAs4D, conversion);
+		conversion.duration += System.currentTimeMillis() - start;
+		LOG.debug("conversionLogs : {}", conversion.logs);
 	}
 
 
@@ -550,9 +627,10 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	 * 
 	 * @return List of nifti files
 	 */
-	private List<File> niftiFileSorting(List<File> existingFiles, File directory, File serieIDFolderFile) {
+	private List<File> niftiFileSorting(List<File> existingFiles, File directory, File serieIDFolderFile, SerieConversion conversion) {
 		// If one of the output files is a prop file, there has been an error
 		List<File> niftiFileResult = null;
+		Map<String, List<String>> outputFiles = conversion.outputFiles;
 		if (outputFiles.get(serieIDFolderFile.getName()) != null) {
 			List<File> niiFiles = diff(existingFiles, directory.getPath());
 			niftiFileResult = niiFiles;
@@ -575,7 +653,7 @@ public class DatasetsCreatorAndNIfTIConverterService {
 			}
 		}
 		// delete the unused files
-		removeUnusedFiles();
+		removeUnusedFiles(conversion);
 		return niftiFileResult;
 	}
 
@@ -615,15 +693,16 @@ public class DatasetsCreatorAndNIfTIConverterService {
 	 * @param serieIDFolderFile
 	 * @param serie
 	 * @param serieIdentifiedForNotSeparating
-	 * @param convertedId
+	 * @param converter
 	 * @throws NoSuchFieldException
 	 * 
 	 */
-	private void constructNifti(File serieIDFolderFile, final Serie serie, Long converterId) throws NoSuchFieldException {
+	private void constructNifti(File serieIDFolderFile, final Serie serie, NIfTIConverter converter) throws NoSuchFieldException {
 
 		LOG.debug("convertToNifti : create nifti files for the serie : {}", serieIDFolderFile.getAbsolutePath());
 
 		if (serie != null) {
+			SerieConversion conversion = new SerieConversion();
 			boolean isConvertAs4D=false;
 			boolean isConvertWithClidcm=false;
 			try {
@@ -640,13 +719,12 @@ public class DatasetsCreatorAndNIfTIConverterService {
 					if (directory.isDirectory()) {
 						LOG.debug("convertToNifti : create nifti files for the dataset {} in directory : {}", dataset.getName(), directory.getName());
 						final List<File> existingFiles = Arrays.asList(directory.listFiles());
-						NIfTIConverter converter = null;
 						try {
-							converter = datasetToNiftiConversionLauncher(dataset, directory, serie, converterId, isConvertAs4D, isConvertWithClidcm);
+							datasetToNiftiConversionLauncher(dataset, directory, serie, converter, isConvertAs4D, isConvertWithClidcm, conversion);
 						} catch (SecurityException e) {
 							LOG.error(e.getMessage());
 						}
-						List<File> niftiGeneratedFiles = converter.isDicomifier() ? niftiFileSortingDicom2Nifti(existingFiles, directory, dataset) : niftiFileSorting(existingFiles, directory, serieIDFolderFile);
+						List<File> niftiGeneratedFiles = converter.isDicomifier() ? niftiFileSortingDicom2Nifti(existingFiles, directory, dataset) : niftiFileSorting(existingFiles, directory, serieIDFolderFile, conversion);
 						constructNiftiExpressionAndDatasetFiles(converter, dataset, serie, niftiGeneratedFiles);
 						++index;
 					}
@@ -657,16 +735,17 @@ public class DatasetsCreatorAndNIfTIConverterService {
 				if (serieIDFolderFile.isDirectory()) {
 					LOG.debug("convertToNifti : create nifti files for the dataset {} in directory : {}", dataset.getName(), serieIDFolderFile.getName());
 					final List<File> existingFiles = Arrays.asList(serieIDFolderFile.listFiles());
-					NIfTIConverter converter = null;
 					try {
-						converter = datasetToNiftiConversionLauncher(dataset, serieIDFolderFile, serie, converterId, isConvertAs4D, isConvertWithClidcm);
+						datasetToNiftiConversionLauncher(dataset, serieIDFolderFile, serie, converter, isConvertAs4D, isConvertWithClidcm, conversion);
 					} catch (SecurityException e) {
 						LOG.error(e.getMessage());
 					}
-					List<File> niftiGeneratedFiles = converter.isDicomifier() ? niftiFileSortingDicom2Nifti(existingFiles, serieIDFolderFile, dataset) : niftiFileSorting(existingFiles, serieIDFolderFile, serieIDFolderFile);
+					List<File> niftiGeneratedFiles = converter.isDicomifier() ? niftiFileSortingDicom2Nifti(existingFiles, serieIDFolderFile, dataset) : niftiFileSorting(existingFiles, serieIDFolderFile, serieIDFolderFile, conversion);
 					constructNiftiExpressionAndDatasetFiles(converter, dataset, serie, niftiGeneratedFiles);
 				}
 			}
+			LOG.info("NIfTI conversion of serie {} ({} datasets) with {} done in {} ms.", serie.getSeriesInstanceUID(),
+					serie.getDatasets().size(), converter == null ? null : converter.getName(), conversion.duration);
 		}
 	}
 
@@ -915,14 +994,15 @@ public class DatasetsCreatorAndNIfTIConverterService {
 
 		result.mkdirs();
 
-		this.convertToNiftiExec(converter, workFolder, workFolderResult, false);
+		SerieConversion conversion = new SerieConversion();
+		this.convertToNiftiExec(converter, workFolder, workFolderResult, false, conversion);
 		
 		if (converter.isDicomifier()) {
 			Dataset dataset = new Dataset();
 			dataset.setName("name");
 			niftiFileSortingDicom2Nifti(Collections.emptyList(), result, dataset);
 		} else {
-			niftiFileSorting(Collections.emptyList(), result, new File("serieId"));
+			niftiFileSorting(Collections.emptyList(), result, new File("serieId"), conversion);
 		}
 		
 		return true;
@@ -0,0 +1,118 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer.dicom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * This class extracts one frame of a DICOM file into a single frame DICOM file,
+ * e.g. for a thumbnail of a multi-frame image in the import preview: only the
+ * header and the pixel data of the frame are read, the pixel data of the other
+ * frames are neither read nor returned.
+ */
+public final class DicomFrameExtractor {
+
+	private DicomFrameExtractor() {
+	}
+
+	/**
+	 * @param dicomFile
+	 * @param frame the number of the frame, starting at 1
+	 * @return the single frame DICOM file, with the transfer syntax of the file
+	 * @throws IOException if the file can not be read
+	 * @throws IllegalArgumentException if the file has no pixel data, or not this frame
+	 */
+	public static byte[] extractFrame(final File dicomFile, final int frame) throws IOException {
+		Attributes fmi;
+		Attributes dataset;
+		try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
+			// the pixel data are only referenced, with their position in the file
+			dIS.setIncludeBulkData(DicomInputStream.IncludeBulkData.URI);
+			fmi = dIS.readFileMetaInformation();
+			dataset = dIS.readDataset(-1, -1);
+		}
+		final int numberOfFrames = dataset.getInt(Tag.NumberOfFrames, 1);
+		if (frame < 1 || frame > numberOfFrames) {
+			throw new IllegalArgumentException("Frame " + frame + " not in the " + numberOfFrames + " frames of the file.");
+		}
+		final Object pixelData = dataset.getValue(Tag.PixelData);
+		Attributes frameDataset = new Attributes(dataset.bigEndian(), dataset.size());
+		// the tags not copied, in ascending order
+		frameDataset.addNotSelected(dataset, Tag.PerFrameFunctionalGroupsSequence, Tag.PixelData);
+		frameDataset.setInt(Tag.NumberOfFrames, VR.IS, 1);
+		Sequence perFrameGroups = dataset.getSequence(Tag.PerFrameFunctionalGroupsSequence);
+		if (perFrameGroups != null && perFrameGroups.size() >= frame) {
+			frameDataset.newSequence(Tag.PerFrameFunctionalGroupsSequence, 1).add(new Attributes(perFrameGroups.get(frame - 1)));
+		}
+		if (pixelData instanceof Fragments) {
+			// encapsulated: an offset table, then one fragment by frame, or all the fragments of a single frame
+			Fragments fragments = (Fragments) pixelData;
+			int first = frame;
+			int last = frame;
+			if (numberOfFrames == 1) {
+				last = fragments.size() - 1;
+			} else if (fragments.size() != numberOfFrames + 1) {
+				throw new IllegalArgumentException("Encapsulated pixel data without one fragment by frame.");
+			}
+			Fragments frameFragments = frameDataset.newFragments(Tag.PixelData, fragments.vr(), last - first + 2);
+			frameFragments.add(new byte[0]);
+			for (int i = first; i <= last; i++) {
+				Object fragment = fragments.get(i);
+				frameFragments.add(fragment instanceof BulkData
+						? ((BulkData) fragment).toBytes(fragments.vr(), fragments.bigEndian()) : fragment);
+			}
+		} else if (pixelData instanceof BulkData) {
+			BulkData bulkData = (BulkData) pixelData;
+			final int frameLength = bulkData.length() / numberOfFrames;
+			byte[] bytes = new byte[frameLength];
+			try (RandomAccessFile file = new RandomAccessFile(dicomFile, "r")) {
+				file.seek(bulkData.offset() + (long) (frame - 1) * frameLength);
+				file.readFully(bytes);
+			}
+			frameDataset.setBytes(Tag.PixelData, dataset.getVR(Tag.PixelData), bytes);
+		} else if (pixelData instanceof byte[]) {
+			byte[] bytes = (byte[]) pixelData;
+			final int frameLength = bytes.length / numberOfFrames;
+			byte[] frameBytes = new byte[frameLength];
+			System.arraycopy(bytes, (frame - 1) * frameLength, frameBytes, 0, frameLength);
+			frameDataset.setBytes(Tag.PixelData, dataset.getVR(Tag.PixelData), frameBytes);
+		} else {
+			throw new IllegalArgumentException("File without pixel data.");
+		}
+		String transferSyntax = fmi != null ? fmi.getString(Tag.TransferSyntaxUID) : null;
+		if (transferSyntax == null) {
+			transferSyntax = UID.ImplicitVRLittleEndian;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (DicomOutputStream dOS = new DicomOutputStream(out, transferSyntax)) {
+			dOS.writeDataset(frameDataset.createFileMetaInformation(transferSyntax), frameDataset);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,277 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer.dicom;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.shanoir.ng.importer.model.Instance;
+import org.shanoir.ng.importer.model.Patient;
+import org.shanoir.ng.importer.model.Serie;
+import org.shanoir.ng.importer.model.Study;
+import org.shanoir.ng.utils.ImportUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * This class unzips a zip of DICOM files in one pass, from a stream: each entry is
+ * written into the import job folder as it is read, possibly while the upload is
+ * still arriving, and the header of each DICOM file is read just after, to index
+ * the file into the Shanoir Dicom model: patient - study - serie - instance. The
+ * model is the one of DicomDirToModelService, so a DICOMDIR is neither required
+ * in the zip nor generated by scanning all the files again.
+ *
+ * The zip stream is not limited by the multipart configuration when it is the raw
+ * request body: the same maximum size is then enforced while it is read.
+ */
+@Service
+public class DicomZipStreamService {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DicomZipStreamService.class);
+
+	private static final String DICOMDIR = "DICOMDIR";
+
+	private static final int PROGRESS_LOG_INTERVAL = 1000;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Autowired
+	private DicomSerieAndInstanceAnalyzer dicomSerieAndInstanceAnalyzer;
+
+	/** Maximum size of a zip stream, the one of a zip uploaded as a multipart file */
+	@Value("${spring.servlet.multipart.max-file-size:5000MB}")
+	private DataSize maxZipSize;
+
+	/**
+	 * Unzips a zip stream into a folder and indexes its DICOM files.
+	 *
+	 * @param zipStream the zip, read until its end
+	 * @param importJobDir the existing folder to unzip into
+	 * @return the patients of the DICOM files, in the DICOM specific tree order
+	 * @throws ZipTooLargeException if the zip is bigger than the maximum size
+	 * @throws IOException if the zip can not be read, or an entry is outside of the folder
+	 */
+	public List<Patient> unzipAndIndex(final InputStream zipStream, final File importJobDir) throws IOException {
+		final Path root = importJobDir.toPath().toAbsolutePath().normalize();
+		final DicomIndex index = new DicomIndex();
+		long bytes = 0;
+		int files = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new LimitedInputStream(zipStream, maxZipSize.toBytes()), BUFFER_SIZE))) {
+			ZipEntry entry;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				final Path path = root.resolve(entry.getName()).normalize();
+				if (!path.startsWith(root) || path.equals(root)) {
+					throw new IOException("Zip entry outside of the import folder: " + entry.getName());
+				}
+				if (entry.isDirectory()) {
+					Files.createDirectories(path);
+					continue;
+				}
+				Files.createDirectories(path.getParent());
+				try (OutputStream out = Files.newOutputStream(path)) {
+					int read;
+					while ((read = zipIn.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
+						bytes += read;
+					}
+				}
+				files++;
+				// the header is read back from the file just written, still in the page cache
+				if (!DICOMDIR.equalsIgnoreCase(path.getFileName().toString())) {
+					index.add(root.relativize(path), path.toFile());
+				}
+				if (files % PROGRESS_LOG_INTERVAL == 0) {
+					LOG.info("Unzipped {} files ({}) into {}, {} DICOM instances indexed.", files,
+							ImportUtils.readableFileSize(bytes), importJobDir.getName(), index.instances);
+				}
+			}
+		}
+		LOG.info("Unzip of {} files ({}) into {} finished, {} DICOM instances indexed.", files,
+				ImportUtils.readableFileSize(bytes), importJobDir.getName(), index.instances);
+		return index.toPatients();
+	}
+
+	/**
+	 * A zip stream bigger than the maximum size.
+	 */
+	public static class ZipTooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public ZipTooLargeException(final long maxBytes) {
+			super("Zip bigger than the maximum size of " + ImportUtils.readableFileSize(maxBytes) + ".");
+		}
+	}
+
+	/**
+	 * Fails as soon as more bytes than the maximum are read.
+	 */
+	private static final class LimitedInputStream extends FilterInputStream {
+
+		private final long maxBytes;
+
+		private long bytes;
+
+		private LimitedInputStream(final InputStream in, final long maxBytes) {
+			super(in);
+			this.maxBytes = maxBytes;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(final long read) throws ZipTooLargeException {
+			bytes += read;
+			if (bytes > maxBytes) {
+				throw new ZipTooLargeException(maxBytes);
+			}
+		}
+	}
+
+	/**
+	 * The DICOM files indexed by patient id, study and serie instance UIDs, in their
+	 * order of arrival.
+	 */
+	private final class DicomIndex {
+
+		private final Map<String, Patient> patients = new LinkedHashMap<>();
+
+		private final Map<String, Map<String, Study>> studies = new LinkedHashMap<>();
+
+		private final Map<String, Map<String, Serie>> series = new LinkedHashMap<>();
+
+		private final Map<String, List<Instance>> serieInstances = new LinkedHashMap<>();
+
+		private int instances;
+
+		private void add(final Path relativePath, final File file) {
+			Attributes attributes;
+			try (DicomInputStream dIS = new DicomInputStream(file)) {
+				dIS.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+				attributes = dIS.readDataset(-1, Tag.PixelData);
+			} catch (IOException e) {
+				LOG.debug("File {} ignored, not a DICOM file: {}", relativePath, e.getMessage());
+				return;
+			}
+			final String sopInstanceUID = attributes.getString(Tag.SOPInstanceUID);
+			final String studyInstanceUID = attributes.getString(Tag.StudyInstanceUID);
+			final String seriesInstanceUID = attributes.getString(Tag.SeriesInstanceUID);
+			if (sopInstanceUID == null || studyInstanceUID == null || seriesInstanceUID == null) {
+				LOG.debug("File {} ignored, not a DICOM instance.", relativePath);
+				return;
+			}
+			final String patientID = attributes.getString(Tag.PatientID, "");
+			patients.computeIfAbsent(patientID, id -> new Patient(attributes));
+			Map<String, Study> patientStudies = studies.computeIfAbsent(patientID, id -> new LinkedHashMap<>());
+			patientStudies.computeIfAbsent(studyInstanceUID, uid -> new Study(attributes));
+			Map<String, Serie> studySeries = series.computeIfAbsent(studyInstanceUID, uid -> new LinkedHashMap<>());
+			if (!studySeries.containsKey(seriesInstanceUID)) {
+				if (dicomSerieAndInstanceAnalyzer.checkSerieIsIgnored(attributes)) {
+					LOG.warn("Serie found with non imaging modality and therefore ignored (SerieInstanceUID: {}).", seriesInstanceUID);
+					studySeries.put(seriesInstanceUID, null);
+				} else {
+					studySeries.put(seriesInstanceUID, new Serie(attributes));
+					serieInstances.put(seriesInstanceUID, new ArrayList<>());
+				}
+			}
+			if (studySeries.get(seriesInstanceUID) == null || dicomSerieAndInstanceAnalyzer.checkInstanceIsIgnored(attributes)) {
+				return;
+			}
+			Instance instance = new Instance();
+			instance.setSopInstanceUID(sopInstanceUID);
+			instance.setInstanceNumber(attributes.getString(Tag.InstanceNumber));
+			instance.setReferencedSOPClassUIDInFile(attributes.getString(Tag.SOPClassUID));
+			String[] referencedFileID = new String[relativePath.getNameCount()];
+			for (int i = 0; i < referencedFileID.length; i++) {
+				referencedFileID[i] = relativePath.getName(i).toString();
+			}
+			instance.setReferencedFileID(referencedFileID);
+			serieInstances.get(seriesInstanceUID).add(instance);
+			instances++;
+		}
+
+		private List<Patient> toPatients() {
+			List<Patient> patientList = new ArrayList<>();
+			for (Map.Entry<String, Patient> patient : patients.entrySet()) {
+				List<Study> studyList = new ArrayList<>();
+				for (Study study : studies.get(patient.getKey()).values()) {
+					List<Serie> serieList = new ArrayList<>();
+					for (Serie serie : series.get(study.getStudyInstanceUID()).values()) {
+						if (serie == null) {
+							continue;
+						}
+						List<Instance> instanceList = serieInstances.get(serie.getSeriesInstanceUID());
+						if (instanceList.isEmpty()) {
+							LOG.warn("Serie found with empty instances and therefore ignored (SerieInstanceUID: {}).", serie.getSeriesInstanceUID());
+							continue;
+						}
+						instanceList.sort(new InstanceNumberSorter());
+						serie.setInstances(instanceList);
+						serieList.add(serie);
+					}
+					serieList.sort(new SeriesNumberSorter());
+					study.setSeries(serieList);
+					studyList.add(study);
+				}
+				patient.getValue().setStudies(studyList);
+				patientList.add(patient.getValue());
+			}
+			return patientList;
+		}
+	}
+
+}
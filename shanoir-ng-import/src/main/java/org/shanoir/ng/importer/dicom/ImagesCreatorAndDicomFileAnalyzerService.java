@@ -22,6 +22,13 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.dcm4che3.data.Attributes;
@@ -29,6 +36,7 @@ import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.emf.MultiframeExtractor;
 import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 import org.shanoir.ng.importer.model.EchoTime;
 import org.shanoir.ng.importer.model.EquipmentDicom;
 import org.shanoir.ng.importer.model.Image;
@@ -83,8 +91,36 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 	@Value("${shanoir.import.upload.folder}")
 	private String uploadFolder;
 
+	/** Number of series analyzed in parallel, 0 for the number of processors */
+	@Value("${shanoir.import.analysis.threads:0}")
+	private int analysisThreads;
+
+	private ForkJoinPool analysisPool;
+
+	@PostConstruct
+	public void init() {
+		int parallelism = analysisThreads > 0 ? analysisThreads : Runtime.getRuntime().availableProcessors();
+		analysisPool = new ForkJoinPool(parallelism);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		analysisPool.shutdownNow();
+	}
+
+	/**
+	 * Analyzes the DICOM files of all the series. The series are analyzed in parallel
+	 * in a pool shared by all the imports, each serie being analyzed by one thread.
+	 * 
+	 * @param patients
+	 * @param folderFileAbsolutePath
+	 * @param isImportFromPACS
+	 * @param event
+	 * @throws FileNotFoundException
+	 */
 	public void createImagesAndAnalyzeDicomFiles(List<Patient> patients, String folderFileAbsolutePath, boolean isImportFromPACS, ShanoirEvent event)
 			throws FileNotFoundException {
+		List<ForkJoinTask<Void>> tasks = new ArrayList<>();
 		// patient level
 		for (Iterator<Patient> patientsIt = patients.iterator(); patientsIt.hasNext();) {
 			Patient patient = patientsIt.next();
@@ -95,33 +131,82 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 				// serie level
 				List<Serie> series = study.getSeries();
 				int nbSeries = series.size();
-				int cpt = 1;
+				AtomicInteger cpt = new AtomicInteger(1);
 				for (Iterator<Serie> seriesIt = series.iterator(); seriesIt.hasNext();) {
 					Serie serie = seriesIt.next();
-					if(event != null){
-						event.setMessage("Creating images and analyzing DICOM files for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] " + cpt + "/" + nbSeries + ")");
-						eventService.publishEvent(event);
-					}
-					filterAndCreateImages(folderFileAbsolutePath, serie, isImportFromPACS);
-					getAdditionalMetaDataFromFirstInstanceOfSerie(folderFileAbsolutePath, serie, patient, isImportFromPACS);
-					cpt++;
+					tasks.add(analyzeSerie(patient, serie, folderFileAbsolutePath, isImportFromPACS, event, cpt, nbSeries));
 				}
 			}
 		}
+		waitForAnalysis(tasks);
 	}
 
 	/**
-	 * @param folderFileAbsolutePath
+	 * Starts the analysis of the DICOM files of one serie in the pool, for the
+	 * imports that receive their series one by one, as from the PACS.
+	 * 
+	 * @param patient
 	 * @param serie
+	 * @param folderFileAbsolutePath
+	 * @param isImportFromPACS
+	 * @param event can be null
+	 * @param cpt the number of the serie in the import, incremented when its analysis starts
+	 * @param nbSeries the number of series of the import
+	 * @return the analysis, to wait for with {@link #waitForAnalysis(List)}
+	 */
+	public ForkJoinTask<Void> analyzeSerie(Patient patient, Serie serie, String folderFileAbsolutePath, boolean isImportFromPACS,
+			ShanoirEvent event, AtomicInteger cpt, int nbSeries) {
+		return analysisPool.submit(() -> {
+			if (event != null) {
+				synchronized (event) {
+					event.setMessage("Creating images and analyzing DICOM files for serie [" + (serie.getProtocolName() == null ? serie.getSeriesInstanceUID() : serie.getProtocolName()) + "] " + cpt.getAndIncrement() + "/" + nbSeries + ")");
+					eventService.publishEvent(event);
+				}
+			}
+			Attributes firstInstanceAttributes = filterAndCreateImages(folderFileAbsolutePath, serie, isImportFromPACS);
+			getAdditionalMetaDataFromFirstInstanceOfSerie(firstInstanceAttributes, serie, patient);
+			return null;
+		});
+	}
+
+	/**
+	 * Waits for the end of all the series analysis, then throws the first error if any.
+	 * 
+	 * @param tasks
 	 * @throws FileNotFoundException
 	 */
-	private void getAdditionalMetaDataFromFirstInstanceOfSerie(String folderFileAbsolutePath, Serie serie, Patient patient, boolean isImportFromPACS)
-			throws FileNotFoundException {
-		List<Instance> instances = serie.getInstances();
-		if (!instances.isEmpty()) {
-			Instance firstInstance = instances.get(0);
-			File firstInstanceFile = getFileFromInstance(firstInstance, serie, folderFileAbsolutePath, isImportFromPACS);
-			processDicomFileForFirstInstance(firstInstanceFile, serie, patient);
+	public void waitForAnalysis(List<ForkJoinTask<Void>> tasks) throws FileNotFoundException {
+		Throwable error = null;
+		for (ForkJoinTask<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				tasks.forEach(t -> t.cancel(true));
+				throw new IllegalStateException("DICOM files analysis interrupted.", e);
+			} catch (ExecutionException e) {
+				if (error == null) {
+					error = e.getCause();
+				}
+			}
+		}
+		if (error instanceof FileNotFoundException) {
+			throw (FileNotFoundException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error != null) {
+			throw new IllegalStateException("Error during DICOM files analysis.", error);
+		}
+	}
+
+	/**
+	 * @param firstInstanceAttributes
+	 * @param serie
+	 * @param patient
+	 */
+	private void getAdditionalMetaDataFromFirstInstanceOfSerie(Attributes firstInstanceAttributes, Serie serie, Patient patient) {
+		if (firstInstanceAttributes != null) {
+			processDicomFileForFirstInstance(firstInstanceAttributes, serie, patient);
 		}
 	}
 
@@ -132,21 +217,27 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 	 * 
 	 * @param folderFileAbsolutePath
 	 * @param serie
+	 * @return the attributes of the first instance, to avoid reading it twice
 	 * @throws FileNotFoundException
 	 */
-	private void filterAndCreateImages(String folderFileAbsolutePath, Serie serie, boolean isImportFromPACS) throws FileNotFoundException {
+	private Attributes filterAndCreateImages(String folderFileAbsolutePath, Serie serie, boolean isImportFromPACS) throws FileNotFoundException {
 		List<Image> images = new ArrayList<Image>();
 		List<Object> nonImages = new ArrayList<Object>();
 		List<Instance> instances = serie.getInstances();
+		Attributes firstInstanceAttributes = null;
 		for (Iterator<Instance> instancesIt = instances.iterator(); instancesIt.hasNext();) {
 			Instance instance = instancesIt.next();
 			File instanceFile = getFileFromInstance(instance, serie, folderFileAbsolutePath, isImportFromPACS);
-			processDicomFileForAllInstances(instanceFile, images, folderFileAbsolutePath);
+			Attributes attributes = processDicomFileForAllInstances(instanceFile, images, folderFileAbsolutePath);
+			if (instance == instances.get(0)) {
+				firstInstanceAttributes = attributes;
+			}
 		}
 		serie.setNonImages(nonImages);
 		serie.setNonImagesNumber(nonImages.size());
 		serie.setImages(images);
 		serie.setImagesNumber(images.size());
+		return firstInstanceAttributes;
 	}
 
 	/**
@@ -197,16 +288,13 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 	 * and extracts meta-data from the dicom, that will be used later.
 	 * 
 	 * @param dicomFile
-	 * @param serie
-	 * @param instances
-	 * @param instance
-	 * @param index
-	 * @param nonImages
 	 * @param images
+	 * @param folderFileAbsolutePath
+	 * @return the attributes of the file, without the pixel data, or null if it could not be read
 	 */
-	private void processDicomFileForAllInstances(File dicomFile, List<Image> images, String folderFileAbsolutePath) {
-		try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
-			Attributes attributes = dIS.readDataset(-1, -1);
+	private Attributes processDicomFileForAllInstances(File dicomFile, List<Image> images, String folderFileAbsolutePath) {
+		try {
+			Attributes attributes = readHeader(dicomFile);
 			// Some DICOM files with a particular SOPClassUID are ignored: such as Raw Data Storage etc.
 			if (dicomSerieAndInstanceAnalyzer.checkInstanceIsIgnored(attributes)) {
 				// do nothing here as instances list will be emptied after split between images and non-images
@@ -219,32 +307,46 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 				 */
 				String relativeFilePath = dicomFile.getAbsolutePath().replace(folderFileAbsolutePath + SLASH, "");
 				image.setPath(relativeFilePath);
-				addImageSeparateDatasetsInfo(image, attributes);
+				addImageSeparateDatasetsInfo(image, attributes, dicomFile);
 				images.add(image);
 			}
+			return attributes;
 		} catch (IOException e) {
 			LOG.error("Error during DICOM file process.", e);
+			return null;
 		}
 	}
-	
+
 	/**
-	 * This method reads the first dicom file of a serie to complete missing informations.
+	 * Reads the attributes of a dicom file until the pixel data, that are neither read nor skipped:
+	 * all the attributes used by the import are before them.
 	 * 
 	 * @param dicomFile
+	 * @return
+	 * @throws IOException
+	 */
+	private Attributes readHeader(File dicomFile) throws IOException {
+		try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
+			return dIS.readDataset(-1, Tag.PixelData);
+		}
+	}
+
+	/**
+	 * This method completes the serie and the patient with the first dicom file of the serie.
+	 * 
+	 * @param attributes
 	 * @param serie
 	 * @param patient
 	 */
-	private void processDicomFileForFirstInstance(File dicomFile, Serie serie, Patient patient) {
-		try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
-			LOG.debug("Process first DICOM file of serie {} path {}", serie.getSeriesInstanceUID() + " " + serie.getSeriesDescription(), dicomFile.getAbsolutePath());
-			Attributes attributes = dIS.readDataset(-1, -1);
+	private void processDicomFileForFirstInstance(Attributes attributes, Serie serie, Patient patient) {
+		LOG.debug("Process first DICOM file of serie {}", serie.getSeriesInstanceUID() + " " + serie.getSeriesDescription());
+		// the series of the same patient are analyzed in parallel
+		synchronized (patient) {
 			checkPatientData(patient, attributes);
-			checkSerieData(serie, attributes);
-			addSeriesEquipment(serie, attributes);
-			addSeriesCenter(serie, attributes);
-		} catch (IOException e) {
-			LOG.error("Error during processing of DICOM file:", e);
 		}
+		checkSerieData(serie, attributes);
+		addSeriesEquipment(serie, attributes);
+		addSeriesCenter(serie, attributes);
 	}
 
 	/**
@@ -252,10 +354,17 @@ public class ImagesCreatorAndDicomFileAnalyzerService {
 	 * each image.
 	 * 
 	 * @param image
-	 * @param datasetAttributes
+	 * @param attributes
+	 * @param dicomFile
+	 * @throws IOException
 	 */
-	private void addImageSeparateDatasetsInfo(Image image, Attributes attributes) {
+	private void addImageSeparateDatasetsInfo(Image image, Attributes attributes, File dicomFile) throws IOException {
 		if (UID.EnhancedMRImageStorage.equals(attributes.getString(Tag.SOPClassUID))) {
+			// the extraction of a frame needs the pixel data: they are only referenced, not loaded
+			try (DicomInputStream dIS = new DicomInputStream(dicomFile)) {
+				dIS.setIncludeBulkData(IncludeBulkData.URI);
+				attributes = dIS.readDataset(-1, -1);
+			}
 			MultiframeExtractor emf = new MultiframeExtractor();
 			attributes = emf.extract(attributes, 0);
 		}
@@ -16,15 +16,29 @@ package org.shanoir.ng.importer.dicom.query;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.QueryOption;
+import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.QueryRetrieveLevel;
 import org.dcm4che3.tool.findscu.FindSCU.InformationModel;
 import org.shanoir.ng.importer.dicom.DicomSerieAndInstanceAnalyzer;
@@ -41,6 +55,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import org.weasis.dicom.op.CFind;
 import org.weasis.dicom.op.CMove;
@@ -56,6 +71,8 @@ public class QueryPACSService {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(QueryPACSService.class);
 
+	private static final int MAX_CACHED_RESPONSES = 1000;
+
 	@Value("${shanoir.import.pacs.query.aet.calling.name}")
 	private String callingName;
 
@@ -83,6 +100,25 @@ public class QueryPACSService {
 	
 	@Value("${shanoir.import.pacs.store.aet.called.name}")
 	private String calledNameSCP;
+
+	/** Number of series retrieved at the same time from the PACS, for all the imports */
+	@Value("${shanoir.import.pacs.query.cmove.parallel:4}")
+	private int cMoveParallel;
+
+	private ExecutorService cMoveExecutor;
+
+	/** Number of C-FIND sub-queries (studies, series, instances) sent at the same time to the PACS, for all the queries */
+	@Value("${shanoir.import.pacs.query.cfind.parallel:4}")
+	private int cFindParallel;
+
+	/** Duration of the C-FIND responses in the cache, 0 to disable the cache */
+	@Value("${shanoir.import.pacs.query.cfind.cache-ttl-seconds:300}")
+	private long cFindCacheTtlSeconds;
+
+	private ExecutorService cFindExecutor;
+
+	/** The C-FIND responses, by level and parameters */
+	private final Map<String, CachedResponse> cFindCache = new ConcurrentHashMap<>();
 	
 	@Autowired
 	private DicomSerieAndInstanceAnalyzer dicomSerieAndInstanceAnalyzer;
@@ -92,6 +128,14 @@ public class QueryPACSService {
 		// Initialize connection configuration parameters here: to be used for all queries
 		this.calling = new DicomNode(callingName, callingHost, callingPort);
 		this.called = new DicomNode(calledName, calledHost, calledPort);
+		this.cMoveExecutor = Executors.newFixedThreadPool(Math.max(1, cMoveParallel), new CustomizableThreadFactory("pacs-cmove-"));
+		this.cFindExecutor = Executors.newFixedThreadPool(Math.max(1, cFindParallel), new CustomizableThreadFactory("pacs-cfind-"));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		cMoveExecutor.shutdownNow();
+		cFindExecutor.shutdownNow();
 	}
 	
 	public ImportJob queryCFIND(DicomQuery dicomQuery) throws ShanoirImportException {
@@ -127,19 +171,54 @@ public class QueryPACSService {
 		return importJob;
 	}
 	
-	public void queryCMOVE(Serie serie) {
+	/**
+	 * Retrieves a serie from the PACS, in the thread of the caller. The files are
+	 * received by DicomStoreSCPServer.
+	 * 
+	 * @param serie
+	 * @return true if the PACS sent all the instances of the serie
+	 */
+	public boolean queryCMOVE(Serie serie) {
 		DicomProgress progress = new DicomProgress();
 		progress.addProgressListener(new ProgressListener() {
 			@Override
 			public void handleProgression(DicomProgress progress) {
-				LOG.debug("Remaining operations:{}", progress.getNumberOfRemainingSuboperations());
+				LOG.debug("Serie {}: remaining operations:{}", serie.getSeriesInstanceUID(), progress.getNumberOfRemainingSuboperations());
 			}
 		});
 		DicomParam[] params = { new DicomParam(Tag.QueryRetrieveLevel, "SERIES"),
 				new DicomParam(Tag.SeriesInstanceUID, serie.getSeriesInstanceUID()) };
 		AdvancedParams options = new AdvancedParams();
 		options.getQueryOptions().add(QueryOption.RELATIONAL); // Required for QueryRetrieveLevel other than study
-		CMove.process(options, calling, called, calledNameSCP, progress, params);
+		DicomState state = CMove.process(options, calling, called, calledNameSCP, progress, params);
+		boolean success = Integer.valueOf(Status.Success).equals(state.getStatus()) && progress.getNumberOfFailedSuboperations() == 0;
+		if (success) {
+			LOG.debug("Serie {}: {} instances received.", serie.getSeriesInstanceUID(), progress.getNumberOfCompletedSuboperations());
+		} else {
+			LOG.error("Serie {}: C-MOVE ended with status {} ({}), {} instances received, {} failed.", serie.getSeriesInstanceUID(),
+					state.getStatus(), state.getMessage(), progress.getNumberOfCompletedSuboperations(), progress.getNumberOfFailedSuboperations());
+		}
+		return success;
+	}
+
+	/**
+	 * Retrieves a serie from the PACS in the C-MOVE pool, shared by all the imports,
+	 * so that at most cmove.parallel series are retrieved at the same time from the PACS.
+	 * 
+	 * @param serie
+	 * @param cancelled once set, the serie is not retrieved if its C-MOVE has not started yet
+	 * @return the serie, once retrieved
+	 */
+	public CompletableFuture<Serie> queryCMOVEAsync(Serie serie, AtomicBoolean cancelled) {
+		return CompletableFuture.supplyAsync(() -> {
+			if (cancelled.get()) {
+				throw new CancellationException("Retrieval of serie " + serie.getSeriesInstanceUID() + " cancelled.");
+			}
+			if (!queryCMOVE(serie)) {
+				throw new IllegalStateException("Error while retrieving serie " + serie.getSeriesInstanceUID() + " from the PACS.");
+			}
+			return serie;
+		}, cMoveExecutor);
 	}
 
 	/**
@@ -167,9 +246,10 @@ public class QueryPACSService {
 				boolean patientExists = patients.stream().anyMatch(p -> p.getPatientID().equals(patient.getPatientID()));
 				if (!patientExists) {
 					patients.add(patient);
-					queryStudies(calling, called, dicomQuery, patient);
 				}
 			}
+			List<Study> studies = queryStudies(calling, called, dicomQuery, patients);
+			querySeries(calling, called, studies);
 			importJob.setPatients(patients);
 		}
 	}
@@ -190,6 +270,7 @@ public class QueryPACSService {
 		List<Attributes> attributesStudies = queryCFIND(params, QueryRetrieveLevel.STUDY, calling, called);
 		if (attributesStudies != null) {
 			List<Patient> patients = new ArrayList<>();
+			List<Study> studies = new ArrayList<>();
 			for (int i = 0; i < attributesStudies.size(); i++) {
 				// handle patients
 				Patient patient = new Patient(attributesStudies.get(i));
@@ -197,8 +278,9 @@ public class QueryPACSService {
 				// handle studies
 				Study study = new Study(attributesStudies.get(i));
 				patient.getStudies().add(study);
-				querySeries(calling, called, study);
+				studies.add(study);
 			}
+			querySeries(calling, called, studies);
 			// Limit the max number of patients returned
 			if (maxPatientsFromPACS < patients.size()) {
 				patients = patients.subList(0, maxPatientsFromPACS);
@@ -242,75 +324,156 @@ public class QueryPACSService {
 
 	/**
 	 * This method queries for studies, creates studies and adds them to patients.
+	 * The patients are queried at the same time.
 	 * @param calling
 	 * @param called
 	 * @param dicomQuery 
-	 * @param patient
+	 * @param patients
+	 * @return the studies of all the patients
 	 */
-	private void queryStudies(DicomNode calling, DicomNode called, DicomQuery dicomQuery, Patient patient) {
-		DicomParam[] params = {
-			new DicomParam(Tag.PatientID, patient.getPatientID()),
-			new DicomParam(Tag.PatientName, patient.getPatientName()),
-			new DicomParam(Tag.StudyInstanceUID),
-			new DicomParam(Tag.StudyDate, dicomQuery.getStudyDate()),
-			new DicomParam(Tag.StudyDescription, dicomQuery.getStudyDescription())
-		};
-		List<Attributes> attributesStudies = queryCFIND(params, QueryRetrieveLevel.STUDY, calling, called);
-		if (attributesStudies != null) {
-			List<Study> studies = new ArrayList<>();
-			for (int i = 0; i < attributesStudies.size(); i++) {
-				Study study = new Study(attributesStudies.get(i));
-				studies.add(study);
-				querySeries(calling, called, study);
+	private List<Study> queryStudies(DicomNode calling, DicomNode called, DicomQuery dicomQuery, List<Patient> patients) {
+		List<Callable<List<Attributes>>> queries = new ArrayList<>();
+		for (Patient patient : patients) {
+			DicomParam[] params = {
+				new DicomParam(Tag.PatientID, patient.getPatientID()),
+				new DicomParam(Tag.PatientName, patient.getPatientName()),
+				new DicomParam(Tag.StudyInstanceUID),
+				new DicomParam(Tag.StudyDate, dicomQuery.getStudyDate()),
+				new DicomParam(Tag.StudyDescription, dicomQuery.getStudyDescription())
+			};
+			queries.add(() -> queryCFIND(params, QueryRetrieveLevel.STUDY, calling, called));
+		}
+		List<List<Attributes>> responses = queryConcurrently(queries);
+		List<Study> allStudies = new ArrayList<>();
+		for (int p = 0; p < patients.size(); p++) {
+			List<Attributes> attributesStudies = responses.get(p);
+			if (attributesStudies != null) {
+				List<Study> studies = new ArrayList<>();
+				for (int i = 0; i < attributesStudies.size(); i++) {
+					Study study = new Study(attributesStudies.get(i));
+					studies.add(study);
+				}
+				studies.sort((p1, p2) -> p1.getStudyDate().compareTo(p2.getStudyDate()));
+				patients.get(p).setStudies(studies);
+				allStudies.addAll(studies);
 			}
-			studies.sort((p1, p2) -> p1.getStudyDate().compareTo(p2.getStudyDate()));
-			patient.setStudies(studies);
 		}
+		return allStudies;
 	}
 
 	/**
 	 * This method queries for series, creates them and adds them to studies.
+	 * The series of all the studies are queried at the same time, then the
+	 * instances of all the series.
 	 * @param calling
 	 * @param called
-	 * @param study
+	 * @param studies
 	 */
-	private void querySeries(DicomNode calling, DicomNode called, Study study) {
-		DicomParam[] params = {
-			new DicomParam(Tag.StudyInstanceUID, study.getStudyInstanceUID()),
-			new DicomParam(Tag.SeriesInstanceUID),
-			new DicomParam(Tag.SOPClassUID),
-			new DicomParam(Tag.SeriesDescription),
-			new DicomParam(Tag.SeriesDate),
-			new DicomParam(Tag.SeriesNumber),
-			new DicomParam(Tag.Modality),
-			new DicomParam(Tag.ProtocolName),
-			new DicomParam(Tag.Manufacturer),
-			new DicomParam(Tag.ManufacturerModelName),
-			new DicomParam(Tag.DeviceSerialNumber)
-		};
-		List<Attributes> attributesList = queryCFIND(params, QueryRetrieveLevel.SERIES, calling, called);
-		if (attributesList != null) {
-			List<Serie> series = new ArrayList<Serie>();
-			for (int i = 0; i < attributesList.size(); i++) {
-				Attributes attributes = attributesList.get(i);
-				Serie serie = new Serie(attributes);
-				if (!dicomSerieAndInstanceAnalyzer.checkSerieIsIgnored(attributes)) {
-					queryInstances(calling, called, serie, study);
-					if (!serie.getInstances().isEmpty()) {
-						dicomSerieAndInstanceAnalyzer.checkSerieIsEnhanced(serie, attributes);
-						dicomSerieAndInstanceAnalyzer.checkSerieIsSpectroscopy(serie);
+	private void querySeries(DicomNode calling, DicomNode called, List<Study> studies) {
+		List<Callable<List<Attributes>>> queries = new ArrayList<>();
+		for (Study study : studies) {
+			DicomParam[] params = {
+				new DicomParam(Tag.StudyInstanceUID, study.getStudyInstanceUID()),
+				new DicomParam(Tag.SeriesInstanceUID),
+				new DicomParam(Tag.SOPClassUID),
+				new DicomParam(Tag.SeriesDescription),
+				new DicomParam(Tag.SeriesDate),
+				new DicomParam(Tag.SeriesNumber),
+				new DicomParam(Tag.Modality),
+				new DicomParam(Tag.ProtocolName),
+				new DicomParam(Tag.Manufacturer),
+				new DicomParam(Tag.ManufacturerModelName),
+				new DicomParam(Tag.DeviceSerialNumber)
+			};
+			queries.add(() -> queryCFIND(params, QueryRetrieveLevel.SERIES, calling, called));
+		}
+		List<List<Attributes>> responses = queryConcurrently(queries);
+		// the series to keep, with their study and their attributes, to query their instances
+		List<Serie> series = new ArrayList<>();
+		List<Study> seriesStudies = new ArrayList<>();
+		List<Attributes> seriesAttributes = new ArrayList<>();
+		for (int s = 0; s < studies.size(); s++) {
+			List<Attributes> attributesList = responses.get(s);
+			if (attributesList != null) {
+				for (int i = 0; i < attributesList.size(); i++) {
+					Attributes attributes = attributesList.get(i);
+					Serie serie = new Serie(attributes);
+					if (!dicomSerieAndInstanceAnalyzer.checkSerieIsIgnored(attributes)) {
 						series.add(serie);
+						seriesStudies.add(studies.get(s));
+						seriesAttributes.add(attributes);
 					} else {
-						LOG.warn("Serie found with empty instances and therefore ignored (SerieInstanceUID: {}).", serie.getSeriesInstanceUID());
+						LOG.warn("Serie found with non imaging modality and therefore ignored (SerieInstanceUID: {}).", serie.getSeriesInstanceUID());
 					}
-				} else {
-					LOG.warn("Serie found with non imaging modality and therefore ignored (SerieInstanceUID: {}).", serie.getSeriesInstanceUID());
 				}
+				studies.get(s).setSeries(new ArrayList<Serie>());
+			}
+		}
+		List<Callable<Void>> instancesQueries = new ArrayList<>();
+		for (int i = 0; i < series.size(); i++) {
+			Serie serie = series.get(i);
+			Study study = seriesStudies.get(i);
+			instancesQueries.add(() -> {
+				queryInstances(calling, called, serie, study);
+				return null;
+			});
+		}
+		queryConcurrently(instancesQueries);
+		for (int i = 0; i < series.size(); i++) {
+			Serie serie = series.get(i);
+			if (serie.getInstances() != null && !serie.getInstances().isEmpty()) {
+				dicomSerieAndInstanceAnalyzer.checkSerieIsEnhanced(serie, seriesAttributes.get(i));
+				dicomSerieAndInstanceAnalyzer.checkSerieIsSpectroscopy(serie);
+				seriesStudies.get(i).getSeries().add(serie);
+			} else {
+				LOG.warn("Serie found with empty instances and therefore ignored (SerieInstanceUID: {}).", serie.getSeriesInstanceUID());
+			}
+		}
+		for (Study study : studies) {
+			if (study.getSeries() != null) {
+				study.getSeries().sort(new SeriesNumberSorter());
 			}
-			series.sort(new SeriesNumberSorter());
-			study.setSeries(series);
 		}
 	}
+
+	/**
+	 * Sends the queries to the PACS in the C-FIND pool, and waits for all the responses.
+	 * 
+	 * @param queries
+	 * @return the responses, in the order of the queries
+	 */
+	private <T> List<T> queryConcurrently(List<Callable<T>> queries) {
+		if (queries.size() == 1) {
+			try {
+				return Collections.singletonList(queries.get(0).call());
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		List<Future<T>> futures = new ArrayList<>();
+		for (Callable<T> query : queries) {
+			futures.add(cFindExecutor.submit(query));
+		}
+		List<T> responses = new ArrayList<>();
+		try {
+			for (Future<T> future : futures) {
+				responses.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			futures.forEach(f -> f.cancel(true));
+			throw new IllegalStateException("PACS query interrupted.", e);
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(true));
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Error during PACS query.", e.getCause());
+		}
+		return responses;
+	}
 	
 	/**
 	 * This method queries for instances/images, creates them and adds them to series.
@@ -349,6 +512,14 @@ public class QueryPACSService {
 	 * @return
 	 */
 	private List<Attributes> queryCFIND(DicomParam[] params, QueryRetrieveLevel level, final DicomNode calling, final DicomNode called) {
+		String cacheKey = getCacheKey(params, level);
+		if (cFindCacheTtlSeconds > 0) {
+			CachedResponse cached = cFindCache.get(cacheKey);
+			if (cached != null && System.currentTimeMillis() < cached.expiration) {
+				LOG.debug("C-FIND response from cache: {}", cacheKey);
+				return cached.attributes;
+			}
+		}
 		AdvancedParams options = new AdvancedParams();
 		if (level.equals(QueryRetrieveLevel.PATIENT)) {
 			options.setInformationModel(InformationModel.PatientRoot);
@@ -361,7 +532,32 @@ public class QueryPACSService {
 		}
 		logQuery(params, options);
 		DicomState state = CFind.process(options, calling, called, 0, level, params);
-		return state.getDicomRSP();
+		List<Attributes> response = state.getDicomRSP();
+		if (cFindCacheTtlSeconds > 0 && response != null && Integer.valueOf(Status.Success).equals(state.getStatus())) {
+			if (cFindCache.size() >= MAX_CACHED_RESPONSES) {
+				long now = System.currentTimeMillis();
+				cFindCache.values().removeIf(cached -> cached.expiration <= now);
+				if (cFindCache.size() >= MAX_CACHED_RESPONSES) {
+					cFindCache.clear();
+				}
+			}
+			response = Collections.unmodifiableList(response);
+			cFindCache.put(cacheKey, new CachedResponse(response, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cFindCacheTtlSeconds)));
+		}
+		return response;
+	}
+
+	/**
+	 * @param params
+	 * @param level
+	 * @return the key of a query in the cache: its level, its tags and their values
+	 */
+	private String getCacheKey(DicomParam[] params, QueryRetrieveLevel level) {
+		StringBuilder key = new StringBuilder(level.name());
+		for (DicomParam param : params) {
+			key.append('|').append(param.getTag()).append('=').append(Arrays.toString(param.getValues()));
+		}
+		return key.toString();
 	}
 
 	/**
@@ -376,4 +572,19 @@ public class QueryPACSService {
 		}
 	}
 
+	/**
+	 * A C-FIND response, read only, shared by the queries until its expiration.
+	 */
+	private static final class CachedResponse {
+
+		private final List<Attributes> attributes;
+
+		private final long expiration;
+
+		private CachedResponse(List<Attributes> attributes, long expiration) {
+			this.attributes = attributes;
+			this.expiration = expiration;
+		}
+	}
+
 }
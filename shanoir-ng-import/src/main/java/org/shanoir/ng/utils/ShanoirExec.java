@@ -17,6 +17,7 @@ package org.shanoir.ng.utils;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import org.shanoir.ng.shared.exception.RestServiceException;
 import org.slf4j.Logger;
@@ -49,6 +50,10 @@ public class ShanoirExec {
 	@Value("${ms.url.dicom2nifti}")
 	private String dicomifierMsUrl;
 
+	/** Maximum duration of a command, after which its process is killed */
+	@Value("${shanoir.conversion.timeout-minutes:120}")
+	private long timeoutMinutes;
+
 	@Autowired
 	RestTemplate restTemplate;
 	
@@ -547,7 +552,11 @@ public class ShanoirExec {
 			outputGobbler.start();
 
 			// any error???
-			final int exitVal = proc.waitFor();
+			if (!proc.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+				LOG.error("exec : {} still running after {} minutes, killed.", cmd[0], timeoutMinutes);
+				proc.destroyForcibly().waitFor();
+			}
+			final int exitVal = proc.exitValue();
 
 			if (exitVal != 0) {
 				LOG.error("The exit value is {}, an error has probably occured", exitVal);
@@ -0,0 +1,120 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.shanoir.ng.importer.ChunkedUploadService.UnexpectedOffsetException;
+import org.shanoir.ng.shared.exception.RestServiceException;
+
+public class ChunkedUploadServiceTest {
+
+	private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.UTF_8);
+
+	private static final String CHECKSUM = DigestUtils.sha256Hex(CONTENT);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ChunkedUploadService service;
+
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		service = new ChunkedUploadService();
+		tempDir = folder.newFolder("123");
+	}
+
+	@Test
+	public void testFileIsCompleteAfterLastChunk() throws Exception {
+		assertEquals(4, write("file.dcm", 0, 0, 4, CHECKSUM));
+		assertFalse(new File(tempDir, "file.dcm").exists());
+		assertEquals(Long.valueOf(4), service.getReceivedFiles(tempDir).get("file.dcm.part"));
+		assertNull(service.getReceivedFiles(tempDir).get("file.dcm"));
+
+		assertEquals(10, write("file.dcm", 4, 4, 10, CHECKSUM));
+		assertArrayEquals(CONTENT, Files.readAllBytes(new File(tempDir, "file.dcm").toPath()));
+		Map<String, Long> receivedFiles = service.getReceivedFiles(tempDir);
+		assertEquals(1, receivedFiles.size());
+		assertEquals(Long.valueOf(10), receivedFiles.get("file.dcm"));
+		// the last chunk is sent again when its response was lost
+		assertEquals(10, write("file.dcm", 4, 4, 10, CHECKSUM));
+	}
+
+	@Test
+	public void testPartWithAllItsBytesIsNotComplete() throws Exception {
+		// the server stopped before the verification of the last chunk
+		Files.write(new File(tempDir, "file.dcm.part").toPath(), CONTENT);
+		Map<String, Long> receivedFiles = service.getReceivedFiles(tempDir);
+		assertEquals(Long.valueOf(10), receivedFiles.get("file.dcm.part"));
+		assertNull(receivedFiles.get("file.dcm"));
+
+		// the last chunk sent again, empty, completes the file
+		assertEquals(10, write("file.dcm", 10, 10, 10, CHECKSUM));
+		receivedFiles = service.getReceivedFiles(tempDir);
+		assertEquals(1, receivedFiles.size());
+		assertEquals(Long.valueOf(10), receivedFiles.get("file.dcm"));
+	}
+
+	@Test
+	public void testChunkAfterMissingBytesIsRefused() throws Exception {
+		write("file.dcm", 0, 0, 4, CHECKSUM);
+		try {
+			write("file.dcm", 6, 6, 10, CHECKSUM);
+			fail();
+		} catch (UnexpectedOffsetException e) {
+			assertEquals(4, e.getReceived());
+		}
+	}
+
+	@Test
+	public void testWrongChecksumDeletesTheFile() throws Exception {
+		try {
+			write("file.dcm", 0, 0, 10, DigestUtils.sha256Hex("another content"));
+			fail();
+		} catch (RestServiceException e) {
+			assertTrue(service.getReceivedFiles(tempDir).isEmpty());
+		}
+	}
+
+	@Test(expected = RestServiceException.class)
+	public void testFileNameOutsideOfTempDirIsRefused() throws Exception {
+		write("../file.dcm", 0, 0, 10, CHECKSUM);
+	}
+
+	private long write(String fileName, long offset, int from, int to, String checksum) throws Exception {
+		return service.writeChunk(tempDir, fileName, offset, CONTENT.length, checksum,
+				new ByteArrayInputStream(Arrays.copyOfRange(CONTENT, from, to)));
+	}
+
+}
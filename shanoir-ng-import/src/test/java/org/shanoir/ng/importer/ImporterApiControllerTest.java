@@ -37,6 +37,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.shanoir.ng.exchange.imports.dicom.DicomDirGeneratorService;
 import org.shanoir.ng.importer.dicom.DicomDirToModelService;
+import org.shanoir.ng.importer.dicom.DicomZipStreamService;
 import org.shanoir.ng.importer.dicom.ImagesCreatorAndDicomFileAnalyzerService;
 import org.shanoir.ng.importer.dicom.ImportJobConstructorService;
 import org.shanoir.ng.importer.dicom.query.QueryPACSService;
@@ -93,6 +94,9 @@ public class ImporterApiControllerTest {
 	@MockBean
 	private DicomDirToModelService dicomDirToModel;
 
+	@MockBean
+	private DicomZipStreamService dicomZipStreamService;
+
 	@MockBean
 	private ImportJobConstructorService importJobConstructorService;
 
@@ -105,6 +109,9 @@ public class ImporterApiControllerTest {
 	@MockBean
 	private QueryPACSService queryPACSService;
 
+	@MockBean
+	private ChunkedUploadService chunkedUploadService;
+
 	@MockBean
 	private RabbitTemplate rabbitTemplate;
 	
@@ -178,7 +185,16 @@ public class ImporterApiControllerTest {
 		
 		mvc.perform(MockMvcRequestBuilders.get(GET_DICOM)
 				.param("path", ""))
-		.andExpect(status().is(200));
+		.andExpect(status().is(404));
+	}
+
+	@Test
+	@WithMockKeycloakUser(id = 3, username = "jlouis", authorities = { "ROLE_ADMIN" })
+	public void testGetDicomImageOutsideOfImportDir() throws Exception {
+		
+		mvc.perform(MockMvcRequestBuilders.get(GET_DICOM)
+				.param("path", "../../etc/passwd"))
+		.andExpect(status().is(400));
 	}
 
 }
@@ -0,0 +1,174 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.shanoir.ng.importer.dicom.ImagesCreatorAndDicomFileAnalyzerService;
+import org.shanoir.ng.importer.dicom.query.DicomStoreSCPServer;
+import org.shanoir.ng.importer.dicom.query.QueryPACSService;
+import org.shanoir.ng.importer.model.ImportJob;
+import org.shanoir.ng.importer.model.Instance;
+import org.shanoir.ng.importer.model.Patient;
+import org.shanoir.ng.importer.model.Serie;
+import org.shanoir.ng.importer.model.Study;
+import org.shanoir.ng.shared.event.ShanoirEvent;
+import org.shanoir.ng.shared.event.ShanoirEventService;
+import org.shanoir.ng.study.rights.StudyUserRightsRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ImporterManagerServiceTest {
+
+	private static final Long USER_ID = 1L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private QueryPACSService queryPACSService;
+
+	private ImagesCreatorAndDicomFileAnalyzerService analyzer;
+
+	private ImporterManagerService service;
+
+	private File importDir;
+
+	private File storageDir;
+
+	@Before
+	public void setUp() throws Exception {
+		importDir = folder.newFolder("import");
+		storageDir = folder.newFolder("shanoir-dcmrcv");
+		queryPACSService = mock(QueryPACSService.class);
+		analyzer = mock(ImagesCreatorAndDicomFileAnalyzerService.class);
+		DicomStoreSCPServer dicomStoreSCPServer = mock(DicomStoreSCPServer.class);
+		when(dicomStoreSCPServer.getStorageDirPath()).thenReturn(storageDir.getAbsolutePath());
+		StudyUserRightsRepository studyUserRightRepo = mock(StudyUserRightsRepository.class);
+		when(studyUserRightRepo.findByStudyId(any())).thenReturn(Collections.emptyList());
+
+		service = new ImporterManagerService();
+		ReflectionTestUtils.setField(service, "queryPACSService", queryPACSService);
+		ReflectionTestUtils.setField(service, "dicomStoreSCPServer", dicomStoreSCPServer);
+		ReflectionTestUtils.setField(service, "imagesCreatorAndDicomFileAnalyzer", analyzer);
+		ReflectionTestUtils.setField(service, "eventService", mock(ShanoirEventService.class));
+		ReflectionTestUtils.setField(service, "studyUserRightRepo", studyUserRightRepo);
+		ReflectionTestUtils.setField(service, "importDir", importDir.getAbsolutePath());
+	}
+
+	@Test
+	public void testFailedSerieStopsTheImport() throws Exception {
+		Serie received = serie("1.1");
+		Serie failed = serie("1.2");
+		Serie running = serie("1.3");
+		List<AtomicBoolean> cancelledFlags = new ArrayList<>();
+		when(queryPACSService.queryCMOVEAsync(eq(received), any())).thenAnswer(invocation -> {
+			cancelledFlags.add(invocation.getArgument(1));
+			return CompletableFuture.completedFuture(received);
+		});
+		when(queryPACSService.queryCMOVEAsync(eq(failed), any()))
+				.thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Error while retrieving serie 1.2 from the PACS.")));
+		// a C-MOVE still receiving files when the import fails
+		CompletableFuture<Serie> runningDownload = CompletableFuture.supplyAsync(() -> {
+			File serieDir = new File(storageDir, running.getSeriesInstanceUID());
+			serieDir.mkdirs();
+			sleep(300);
+			touch(new File(serieDir, "1.3.1.dcm"));
+			return running;
+		});
+		when(queryPACSService.queryCMOVEAsync(eq(running), any())).thenReturn(runningDownload);
+		AtomicBoolean analysisDone = new AtomicBoolean();
+		ForkJoinTask<Void> analysis = ForkJoinPool.commonPool().submit(() -> {
+			sleep(300);
+			analysisDone.set(true);
+			return null;
+		});
+		when(analyzer.analyzeSerie(any(), eq(received), anyString(), anyBoolean(), any(), any(), anyInt())).thenReturn(analysis);
+
+		ImportJob importJob = importJob(received, failed, running);
+		service.manageImportJob(importJob);
+
+		assertEquals(ShanoirEvent.ERROR, importJob.getShanoirEvent().getStatus());
+		// the series not retrieved yet are cancelled
+		assertTrue(cancelledFlags.get(0).get());
+		// the running retrieval and analysis are awaited before the clean up
+		assertTrue(runningDownload.isDone());
+		assertTrue(analysisDone.get());
+		assertFalse(new File(storageDir, running.getSeriesInstanceUID()).exists());
+		assertEquals(0, new File(importDir, USER_ID.toString()).list().length);
+	}
+
+	private ImportJob importJob(Serie... series) {
+		Study study = new Study();
+		study.setSeries(Arrays.asList(series));
+		Patient patient = new Patient();
+		patient.setStudies(Collections.singletonList(study));
+		ImportJob importJob = new ImportJob();
+		importJob.setFromPacs(true);
+		importJob.setUserId(USER_ID);
+		importJob.setStudyId(2L);
+		importJob.setExaminationId(3L);
+		importJob.setPatients(Collections.singletonList(patient));
+		return importJob;
+	}
+
+	private Serie serie(String seriesInstanceUID) {
+		Serie serie = new Serie();
+		serie.setSeriesInstanceUID(seriesInstanceUID);
+		serie.setSelected(true);
+		serie.setInstances(new ArrayList<Instance>());
+		return serie;
+	}
+
+	private static void touch(File file) {
+		try {
+			file.createNewFile();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DicomFrameExtractorTest {
+
+	private static final byte[][] FRAMES = { { 1, 1, 1, 1 }, { 2, 2, 2, 2 }, { 3, 3, 3, 3 } };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFrameOfNativeMultiFrameFile() throws IOException {
+		Attributes attributes = header(FRAMES.length);
+		Sequence perFrameGroups = attributes.newSequence(Tag.PerFrameFunctionalGroupsSequence, FRAMES.length);
+		for (int i = 1; i <= FRAMES.length; i++) {
+			Attributes frameGroup = new Attributes();
+			frameGroup.setString(Tag.FrameLabel, VR.LO, "frame " + i);
+			perFrameGroups.add(frameGroup);
+		}
+		byte[] pixelData = new byte[FRAMES.length * FRAMES[0].length];
+		for (int i = 0; i < FRAMES.length; i++) {
+			System.arraycopy(FRAMES[i], 0, pixelData, i * FRAMES[i].length, FRAMES[i].length);
+		}
+		attributes.setBytes(Tag.PixelData, VR.OB, pixelData);
+		File file = write(attributes, UID.ExplicitVRLittleEndian);
+
+		Attributes frame = read(DicomFrameExtractor.extractFrame(file, 2));
+
+		assertEquals(1, frame.getInt(Tag.NumberOfFrames, 0));
+		assertEquals("1.2.3.4", frame.getString(Tag.SOPInstanceUID));
+		assertArrayEquals(FRAMES[1], frame.getBytes(Tag.PixelData));
+		Sequence framePerFrameGroups = frame.getSequence(Tag.PerFrameFunctionalGroupsSequence);
+		assertEquals(1, framePerFrameGroups.size());
+		assertEquals("frame 2", framePerFrameGroups.get(0).getString(Tag.FrameLabel));
+	}
+
+	@Test
+	public void testSingleFrameEncapsulatedFile() throws IOException {
+		Attributes attributes = header(1);
+		Fragments fragments = attributes.newFragments(Tag.PixelData, VR.OB, 3);
+		// the offset table, then a frame in two fragments
+		fragments.add(new byte[0]);
+		fragments.add(FRAMES[0]);
+		fragments.add(FRAMES[1]);
+		File file = write(attributes, UID.JPEGBaseline1);
+
+		Attributes frame = read(DicomFrameExtractor.extractFrame(file, 1));
+
+		Fragments frameFragments = (Fragments) frame.getValue(Tag.PixelData);
+		// a new empty offset table, then the fragments of the frame
+		assertEquals(3, frameFragments.size());
+		assertArrayEquals(FRAMES[0], (byte[]) frameFragments.get(1));
+		assertArrayEquals(FRAMES[1], (byte[]) frameFragments.get(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFrameOutOfTheFileIsRefused() throws IOException {
+		Attributes attributes = header(1);
+		attributes.setBytes(Tag.PixelData, VR.OB, FRAMES[0]);
+		DicomFrameExtractor.extractFrame(write(attributes, UID.ExplicitVRLittleEndian), 2);
+	}
+
+	private Attributes header(int numberOfFrames) {
+		Attributes attributes = new Attributes();
+		attributes.setString(Tag.SOPClassUID, VR.UI, UID.EnhancedMRImageStorage);
+		attributes.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+		attributes.setInt(Tag.NumberOfFrames, VR.IS, numberOfFrames);
+		attributes.setInt(Tag.Rows, VR.US, 2);
+		attributes.setInt(Tag.Columns, VR.US, 2);
+		attributes.setInt(Tag.BitsAllocated, VR.US, 8);
+		return attributes;
+	}
+
+	private File write(Attributes attributes, String transferSyntax) throws IOException {
+		File file = folder.newFile();
+		try (DicomOutputStream dos = new DicomOutputStream(file)) {
+			dos.writeDataset(attributes.createFileMetaInformation(transferSyntax), attributes);
+		}
+		return file;
+	}
+
+	private Attributes read(byte[] dicom) throws IOException {
+		try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(dicom))) {
+			return dis.readDataset(-1, -1);
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.importer.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.shanoir.ng.importer.dicom.DicomZipStreamService.ZipTooLargeException;
+import org.shanoir.ng.importer.model.Patient;
+import org.shanoir.ng.importer.model.Serie;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+
+public class DicomZipStreamServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DicomZipStreamService service;
+
+	@Before
+	public void setUp() {
+		service = new DicomZipStreamService();
+		ReflectionTestUtils.setField(service, "dicomSerieAndInstanceAnalyzer", new DicomSerieAndInstanceAnalyzer());
+		ReflectionTestUtils.setField(service, "maxZipSize", DataSize.ofMegabytes(1));
+	}
+
+	@Test
+	public void testFilesAreIndexedWithoutDicomDir() throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+			addDicom(zipOut, "exam/t1/2.dcm", "1.2.3.2", "2", "MR", "1.2.2");
+			addDicom(zipOut, "exam/t1/1.dcm", "1.2.3.2", "1", "MR", "1.2.1");
+			addDicom(zipOut, "exam/presentation.dcm", "1.2.3.9", "1", "PR", "1.2.9");
+			addDicom(zipOut, "exam/t2/1.dcm", "1.2.3.1", "1", "MR", "1.2.3");
+			zipOut.putNextEntry(new ZipEntry("readme.txt"));
+			zipOut.write("not a DICOM file".getBytes(StandardCharsets.UTF_8));
+			zipOut.closeEntry();
+		}
+		File importJobDir = folder.newFolder("123");
+
+		List<Patient> patients = service.unzipAndIndex(new ByteArrayInputStream(zip.toByteArray()), importJobDir);
+
+		assertTrue(new File(importJobDir, "readme.txt").exists());
+		assertEquals(1, patients.size());
+		assertEquals("P1", patients.get(0).getPatientID());
+		assertEquals(1, patients.get(0).getStudies().size());
+		// the presentation state serie is ignored, the series are sorted by number
+		List<Serie> series = patients.get(0).getStudies().get(0).getSeries();
+		assertEquals(2, series.size());
+		assertEquals("1.2.3.1", series.get(0).getSeriesInstanceUID());
+		assertEquals("1.2.3.2", series.get(1).getSeriesInstanceUID());
+		assertEquals(2, series.get(1).getInstances().size());
+		assertEquals("1.2.1", series.get(1).getInstances().get(0).getSopInstanceUID());
+		assertArrayEquals(new String[] { "exam", "t1", "1.dcm" }, series.get(1).getInstances().get(0).getReferencedFileID());
+	}
+
+	@Test(expected = IOException.class)
+	public void testEntryOutsideOfFolderIsRefused() throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+			zipOut.putNextEntry(new ZipEntry("../evil.dcm"));
+			zipOut.closeEntry();
+		}
+		service.unzipAndIndex(new ByteArrayInputStream(zip.toByteArray()), folder.newFolder("123"));
+	}
+
+	@Test(expected = ZipTooLargeException.class)
+	public void testZipBiggerThanMaximumSizeIsRefused() throws IOException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+			zipOut.setLevel(Deflater.NO_COMPRESSION);
+			zipOut.putNextEntry(new ZipEntry("big.dcm"));
+			zipOut.write(new byte[4096]);
+			zipOut.closeEntry();
+		}
+		ReflectionTestUtils.setField(service, "maxZipSize", DataSize.ofBytes(1024));
+		service.unzipAndIndex(new ByteArrayInputStream(zip.toByteArray()), folder.newFolder("123"));
+	}
+
+	private static void addDicom(ZipOutputStream zipOut, String name, String seriesInstanceUID, String seriesNumber,
+			String modality, String sopInstanceUID) throws IOException {
+		Attributes attributes = new Attributes();
+		attributes.setString(Tag.SOPClassUID, VR.UI, UID.MRImageStorage);
+		attributes.setString(Tag.SOPInstanceUID, VR.UI, sopInstanceUID);
+		attributes.setString(Tag.PatientID, VR.LO, "P1");
+		attributes.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+		attributes.setString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUID);
+		attributes.setString(Tag.SeriesNumber, VR.IS, seriesNumber);
+		attributes.setString(Tag.Modality, VR.CS, modality);
+		attributes.setString(Tag.InstanceNumber, VR.IS, sopInstanceUID.substring(sopInstanceUID.lastIndexOf('.') + 1));
+		ByteArrayOutputStream dicom = new ByteArrayOutputStream();
+		try (DicomOutputStream out = new DicomOutputStream(dicom, UID.ExplicitVRLittleEndian)) {
+			out.writeDataset(attributes.createFileMetaInformation(UID.ExplicitVRLittleEndian), attributes);
+		}
+		zipOut.putNextEntry(new ZipEntry(name));
+		zipOut.write(dicom.toByteArray());
+		zipOut.closeEntry();
+	}
+
+}
@@ -40,7 +40,12 @@ public class ShanoirEventService {
 			.append("message=").append(event.getMessage()).append(";")
 			.append("status=").append(event.getStatus()).append(";")
 			.append("progress=").append(event.getProgress()).append("]");
-		LOG.info(builder.toString());
+		// the progress updates are frequent: only logged in debug
+		if (event.getStatus() == ShanoirEvent.IN_PROGRESS) {
+			LOG.debug(builder.toString());
+		} else {
+			LOG.info(builder.toString());
+		}
 		try {
 			String str = mapper.writeValueAsString(event);
 			rabbitTemplate.convertAndSend(RabbitMQConfiguration.EVENTS_EXCHANGE, event.getEventType(), str);
@@ -77,6 +77,9 @@ public class ShanoirEventType {
 	/** Download dataset. */
 	public static final String DOWNLOAD_DATASET_EVENT = "downloadDataset.event";
 
+	/** Quality card applied on a study, in background. */
+	public static final String CHECK_QUALITY_EVENT = "checkQuality.event";
+
 	/** User subscribed to a challenge. */
 	public static final String CHALLENGE_SUBSCRIPTION_EVENT = "challengeSubscription.event";
 	
@@ -0,0 +1,223 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.study.rights;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.shanoir.ng.shared.security.rights.StudyUserRight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Cache of the study users of an user, keyed by study id. All the study users
+ * of an user are loaded at once, with one query for the rights and one for the
+ * centers, then kept:
+ * - for the current HTTP request, so that a page of entities is checked with one load,
+ * - and for all the requests during ttl-seconds (0 to disable), until an update of
+ * the study users of the user is received by the StudyUserUpdateService.
+ * A load that was started before an eviction of its user is not cached, as it
+ * can have read the study users before their update.
+ */
+@Component
+public class StudyRightsCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StudyRightsCache.class);
+
+	private static final String REQUEST_ATTRIBUTE_PREFIX = StudyRightsCache.class.getName() + ".";
+
+	@Autowired
+	private StudyUserRightsRepository repo;
+
+	@Value("${study-rights.cache.ttl-seconds:300}")
+	private long ttlSeconds;
+
+	private final ConcurrentMap<Long, UserStudyRights> cache = new ConcurrentHashMap<>();
+
+	/** Number of evictions of each user, to detect an eviction during a load */
+	private final ConcurrentMap<Long, Long> evictionCounts = new ConcurrentHashMap<>();
+
+	private final AtomicLong evictAllCount = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Returns the study users of the given user, keyed by study id.
+	 *
+	 * @param userId
+	 * @return
+	 */
+	public Map<Long, CachedStudyUser> getStudyUsers(Long userId) {
+		RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+		String attributeName = REQUEST_ATTRIBUTE_PREFIX + userId;
+		if (requestAttributes != null) {
+			Object inRequest = requestAttributes.getAttribute(attributeName, RequestAttributes.SCOPE_REQUEST);
+			if (inRequest instanceof UserStudyRights) {
+				hitCount.incrementAndGet();
+				return ((UserStudyRights) inRequest).studyUsers;
+			}
+		}
+		UserStudyRights rights = cache.get(userId);
+		if (rights != null && System.currentTimeMillis() - rights.loadingTime < ttlSeconds * 1000) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+			long evictAllCountBefore = evictAllCount.get();
+			long evictionCountBefore = evictionCounts.getOrDefault(userId, 0L);
+			UserStudyRights loaded = load(userId);
+			if (ttlSeconds > 0) {
+				// evict() updates the count under the lock of the same entry, so either the
+				// eviction is seen here or it removes the loaded rights afterwards
+				cache.compute(userId, (id, cached) -> evictAllCount.get() == evictAllCountBefore
+						&& evictionCounts.getOrDefault(id, 0L) == evictionCountBefore ? loaded : cached);
+			}
+			rights = loaded;
+			LOG.debug("Study rights of user {} loaded, cache hits: {}, misses: {}", userId, hitCount.get(), missCount.get());
+		}
+		if (requestAttributes != null) {
+			requestAttributes.setAttribute(attributeName, rights, RequestAttributes.SCOPE_REQUEST);
+		}
+		return rights.studyUsers;
+	}
+
+	/**
+	 * Removes the given users from the cache, after a change of their study users.
+	 *
+	 * @param userIds
+	 */
+	public void evict(Collection<Long> userIds) {
+		for (Long userId : userIds) {
+			cache.compute(userId, (id, cached) -> {
+				evictionCounts.merge(id, 1L, Long::sum);
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Removes all the users from the cache.
+	 */
+	public void evictAll() {
+		evictAllCount.incrementAndGet();
+		cache.clear();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public int getSize() {
+		return cache.size();
+	}
+
+	private UserStudyRights load(Long userId) {
+		Map<Long, Set<Long>> centerIdsByStudyUserId = new HashMap<>();
+		for (Object[] studyUserCenter : repo.findCenterIdsByUserId(userId)) {
+			centerIdsByStudyUserId.computeIfAbsent((Long) studyUserCenter[0], id -> new HashSet<>()).add((Long) studyUserCenter[1]);
+		}
+		Map<Long, CachedStudyUser> studyUsers = new HashMap<>();
+		for (StudyUser su : repo.findByUserIdFetchRights(userId)) {
+			Set<Long> centerIds = centerIdsByStudyUserId.getOrDefault(su.getId(), Collections.emptySet());
+			studyUsers.put(su.getStudyId(), new CachedStudyUser(su.getStudyId(), su.isConfirmed(), su.getStudyUserRights(), centerIds));
+		}
+		return new UserStudyRights(Collections.unmodifiableMap(studyUsers));
+	}
+
+	private static class UserStudyRights {
+
+		private final long loadingTime = System.currentTimeMillis();
+
+		private final Map<Long, CachedStudyUser> studyUsers;
+
+		UserStudyRights(Map<Long, CachedStudyUser> studyUsers) {
+			this.studyUsers = studyUsers;
+		}
+	}
+
+	/**
+	 * Immutable copy of a study user, that can be shared between threads and requests.
+	 */
+	public static class CachedStudyUser {
+
+		private final Long studyId;
+
+		private final boolean confirmed;
+
+		private final Set<StudyUserRight> studyUserRights;
+
+		private final Set<Long> centerIds;
+
+		CachedStudyUser(Long studyId, boolean confirmed, List<StudyUserRight> studyUserRights, Set<Long> centerIds) {
+			this.studyId = studyId;
+			this.confirmed = confirmed;
+			this.studyUserRights = studyUserRights == null || studyUserRights.isEmpty()
+					? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(studyUserRights));
+			this.centerIds = Collections.unmodifiableSet(new HashSet<>(centerIds));
+		}
+
+		public Long getStudyId() {
+			return studyId;
+		}
+
+		public boolean isConfirmed() {
+			return confirmed;
+		}
+
+		public Set<StudyUserRight> getStudyUserRights() {
+			return studyUserRights;
+		}
+
+		public Set<Long> getCenterIds() {
+			return centerIds;
+		}
+
+		/**
+		 * @param right
+		 * @return true if the study user is confirmed and has the given right
+		 */
+		public boolean hasRight(StudyUserRight right) {
+			return confirmed && studyUserRights.contains(right);
+		}
+
+		/**
+		 * @param centerId
+		 * @return true if the study user is not restricted to some centers, or has the given center
+		 */
+		public boolean hasCenter(Long centerId) {
+			return centerIds.isEmpty() || centerIds.contains(centerId);
+		}
+	}
+
+}
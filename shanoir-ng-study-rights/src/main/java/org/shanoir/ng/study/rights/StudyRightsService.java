@@ -15,21 +15,25 @@
 package org.shanoir.ng.study.rights;
 
 import java.util.HashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.shanoir.ng.shared.security.rights.StudyUserRight;
+import org.shanoir.ng.study.rights.StudyRightsCache.CachedStudyUser;
 import org.shanoir.ng.utils.KeycloakUtil;
-import org.shanoir.ng.utils.Utils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
 
+/**
+ * Checks the rights of the connected user on studies. The study users of the
+ * user are read from the StudyRightsCache, so that the checks of one request
+ * do not query the database again.
+ */
 @Service
 public class StudyRightsService {
 		
 	@Autowired
-	private StudyUserRightsRepository repo;
+	private StudyRightsCache cache;
 	
 	
 	/**
@@ -44,12 +48,8 @@ public class StudyRightsService {
 		if (userId == null) {
 			throw new IllegalStateException("UserId should not be null. Cannot check rights on the study " + studyId);
 		}
-		StudyUser founded = repo.findByUserIdAndStudyId(userId, studyId);
-		return
-				founded != null
-				&& founded.getStudyUserRights() != null
-				&& founded.getStudyUserRights().contains(StudyUserRight.valueOf(rightStr))
-				&& founded.isConfirmed();
+		CachedStudyUser founded = cache.getStudyUsers(userId).get(studyId);
+		return founded != null && founded.hasRight(StudyUserRight.valueOf(rightStr));
     }
    
     public boolean hasRightOnCenter(Long studyId, Long centerId) {
@@ -57,12 +57,8 @@ public class StudyRightsService {
 		if (userId == null) {
 			throw new IllegalStateException("UserId should not be null. Cannot check rights on the study " + studyId);
 		}
-		StudyUser founded = repo.findByUserIdAndStudyId(userId, studyId);
-		
-		return
-				founded != null
-				&& 
-				( founded.getCenterIds().isEmpty() || founded.getCenterIds().contains(centerId) );
+		CachedStudyUser founded = cache.getStudyUsers(userId).get(studyId);
+		return founded != null && founded.hasCenter(centerId);
     }
 
     /*
@@ -73,16 +69,14 @@ public class StudyRightsService {
 		if (userId == null) {
 			throw new IllegalStateException("UserId should not be null. Cannot check rights");
 		}
-		List<StudyUser> founded = Utils.toList(repo.findByUserIdAndStudyIdIn(userId, studies));
-		
-		if (CollectionUtils.isEmpty(founded)) {
-			return false;
-		}
-		boolean hasRight = false;
-		for (StudyUser su  : founded) {
-			hasRight = hasRight || CollectionUtils.isEmpty(su.getCenterIds()) || su.getCenterIds().contains(centerId);
+		Map<Long, CachedStudyUser> founded = cache.getStudyUsers(userId);
+		for (Long studyId : studies) {
+			CachedStudyUser su = founded.get(studyId);
+			if (su != null && su.hasCenter(centerId)) {
+				return true;
+			}
 		}
-		return hasRight;
+		return false;
     }
 
     /**
@@ -95,10 +89,10 @@ public class StudyRightsService {
     public boolean hasOneRightOnStudy(Long studyId, String... rightStrs) {
 		Long userId = KeycloakUtil.getTokenUserId();
 		if (userId == null) throw new IllegalStateException("UserId should not be null. Cannot check rights on the study " + studyId);
-		StudyUser founded = repo.findByUserIdAndStudyId(userId, studyId);
-		if (founded != null && founded.getStudyUserRights() != null) {
+		CachedStudyUser founded = cache.getStudyUsers(userId).get(studyId);
+		if (founded != null) {
 			for (String rightStr : rightStrs) {
-				if (founded.getStudyUserRights().contains(StudyUserRight.valueOf(rightStr)) && founded.isConfirmed()) return true;
+				if (founded.hasRight(StudyUserRight.valueOf(rightStr))) return true;
 			}
 		}
 		return false;
@@ -116,14 +110,14 @@ public class StudyRightsService {
 		if (userId == null) {
 			throw new IllegalStateException("UserId should not be null. Cannot check rights on the studies " + studyIds);
 		}
-		Iterable<StudyUser> founded = repo.findByUserIdAndStudyIdIn(userId, studyIds);
+		StudyUserRight right = StudyUserRight.valueOf(rightStr);
+		Map<Long, CachedStudyUser> founded = cache.getStudyUsers(userId);
 		Set<Long> validIds = new HashSet<>();
-		if (founded != null) {
-			for (StudyUser su : founded) {
-				if (su.getStudyUserRights().contains(StudyUserRight.valueOf(rightStr)) && su.isConfirmed()) {
-					validIds.add(su.getStudyId());
-				}
-			}			
+		for (Long studyId : studyIds) {
+			CachedStudyUser su = founded.get(studyId);
+			if (su != null && su.hasRight(right)) {
+				validIds.add(studyId);
+			}
 		}
 		return validIds;
 	}
@@ -139,13 +133,11 @@ public class StudyRightsService {
 		if (userId == null) {
 			throw new IllegalStateException("UserId should not be null. Cannot check rights.");
 		}
-		Iterable<StudyUser> founded = repo.findByUserId(userId);
-		if (founded != null) {
-			for (StudyUser su : founded) {
-				if (su.getStudyUserRights().contains(StudyUserRight.valueOf(rightStr)) && su.isConfirmed()) {
-					return true;
-				}
-			}			
+		StudyUserRight right = StudyUserRight.valueOf(rightStr);
+		for (CachedStudyUser su : cache.getStudyUsers(userId).values()) {
+			if (su.hasRight(right)) {
+				return true;
+			}
 		}
 		return false;
 	}
@@ -46,5 +46,14 @@ public interface StudyUserRightsRepository extends CrudRepository<StudyUser, Lon
 	
 	@Query("select su from StudyUser su where su.studyId = :studyId and :right in elements(su.studyUserRights)")
 	Iterable<StudyUser> findByStudyIdAndRight(Long studyId, int right);
+
+	@Query("select distinct su from StudyUser su left join fetch su.studyUserRights where su.userId = :userId")
+	List<StudyUser> findByUserIdFetchRights(Long userId);
+
+	/**
+	 * @return pairs of study user id and center id, for all the study users of the user
+	 */
+	@Query("select su.id, centerId from StudyUser su join su.centerIds centerId where su.userId = :userId")
+	List<Object[]> findCenterIdsByUserId(Long userId);
 	
 }
@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.shanoir.ng.shared.security.rights.StudyUserRight;
+import org.shanoir.ng.study.rights.StudyRightsCache;
 import org.shanoir.ng.study.rights.StudyUser;
 import org.shanoir.ng.study.rights.StudyUserRightsRepository;
 import org.shanoir.ng.study.rights.command.CommandType;
@@ -41,6 +42,9 @@ public class StudyUserUpdateService {
 	@Autowired
 	private StudyUserRightsRepository studyUserRepository;
 
+	@Autowired
+	private StudyRightsCache studyRightsCache;
+
     public void processCommands(Iterable<StudyUserCommand> commands) {
         
         List<StudyUser> toBeCreated = new ArrayList<>();
@@ -95,5 +99,19 @@ public class StudyUserUpdateService {
         	LOG.debug("Deleting {} study-user(s)", toBeDeleted.size());
         	studyUserRepository.deleteByIdIn(toBeDeleted);
         }
+
+        // the commands only give the ids of the deleted study users: forget all the cached rights
+        if (!toBeDeleted.isEmpty()) {
+        	studyRightsCache.evictAll();
+        } else {
+        	Set<Long> userIds = new HashSet<>();
+        	for (StudyUser su : toBeCreated) {
+        		userIds.add(su.getUserId());
+        	}
+        	for (StudyUser su : toBeUpdatedDb) {
+        		userIds.add(su.getUserId());
+        	}
+        	studyRightsCache.evict(userIds);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.study.rights;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.shanoir.ng.shared.security.rights.StudyUserRight;
+import org.shanoir.ng.study.rights.StudyRightsCache.CachedStudyUser;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class StudyRightsCacheTest {
+
+	private static final Long USER_ID = 1L;
+
+	private static final Long STUDY_ID = 2L;
+
+	private StudyUserRightsRepository repo;
+
+	private StudyRightsCache cache;
+
+	@Before
+	public void setUp() {
+		repo = mock(StudyUserRightsRepository.class);
+		cache = new StudyRightsCache();
+		ReflectionTestUtils.setField(cache, "repo", repo);
+		ReflectionTestUtils.setField(cache, "ttlSeconds", 300L);
+		when(repo.findCenterIdsByUserId(USER_ID)).thenReturn(Collections.singletonList(new Object[] { 3L, 4L }));
+		when(repo.findByUserIdFetchRights(USER_ID)).thenReturn(Collections.singletonList(studyUser()));
+	}
+
+	@Test
+	public void testStudyUsersAreLoadedOnce() {
+		Map<Long, CachedStudyUser> studyUsers = cache.getStudyUsers(USER_ID);
+		assertTrue(studyUsers.get(STUDY_ID).hasRight(StudyUserRight.CAN_SEE_ALL));
+		assertTrue(studyUsers.get(STUDY_ID).hasCenter(4L));
+		cache.getStudyUsers(USER_ID);
+		verify(repo, times(1)).findByUserIdFetchRights(USER_ID);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testStudyUsersAreReloadedAfterEviction() {
+		cache.getStudyUsers(USER_ID);
+		cache.evict(Collections.singletonList(USER_ID));
+		assertEquals(0, cache.getSize());
+		cache.getStudyUsers(USER_ID);
+		verify(repo, times(2)).findByUserIdFetchRights(USER_ID);
+	}
+
+	@Test
+	public void testLoadDuringEvictionIsNotCached() {
+		when(repo.findByUserIdFetchRights(USER_ID)).thenAnswer(invocation -> {
+			// the study users are updated while they are read
+			cache.evict(Collections.singletonList(USER_ID));
+			return Collections.singletonList(studyUser());
+		});
+		cache.getStudyUsers(USER_ID);
+		assertEquals(0, cache.getSize());
+		cache.getStudyUsers(USER_ID);
+		verify(repo, times(2)).findByUserIdFetchRights(USER_ID);
+	}
+
+	@Test
+	public void testLoadDuringEvictAllIsNotCached() {
+		when(repo.findByUserIdFetchRights(USER_ID)).thenAnswer(invocation -> {
+			cache.evictAll();
+			return Collections.singletonList(studyUser());
+		});
+		cache.getStudyUsers(USER_ID);
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testEvictionOfAnotherUserDoesNotPreventCaching() {
+		when(repo.findByUserIdFetchRights(USER_ID)).thenAnswer(invocation -> {
+			cache.evict(Collections.singletonList(5L));
+			return Collections.singletonList(studyUser());
+		});
+		cache.getStudyUsers(USER_ID);
+		assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testNothingIsCachedWithoutTtl() {
+		ReflectionTestUtils.setField(cache, "ttlSeconds", 0L);
+		cache.getStudyUsers(USER_ID);
+		cache.getStudyUsers(USER_ID);
+		assertEquals(0, cache.getSize());
+		verify(repo, times(2)).findByUserIdFetchRights(USER_ID);
+	}
+
+	private StudyUser studyUser() {
+		StudyUser studyUser = new StudyUser();
+		studyUser.setId(3L);
+		studyUser.setUserId(USER_ID);
+		studyUser.setStudyId(STUDY_ID);
+		studyUser.setConfirmed(true);
+		studyUser.setStudyUserRights(Arrays.asList(StudyUserRight.CAN_SEE_ALL, StudyUserRight.CAN_IMPORT));
+		return studyUser;
+	}
+
+}
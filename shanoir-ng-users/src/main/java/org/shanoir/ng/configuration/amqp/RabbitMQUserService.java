@@ -64,7 +64,7 @@ public class RabbitMQUserService {
 	        	autoDelete = "false", durable = "true", type=ExchangeTypes.TOPIC))
 	)
 	public void receiveEvent(String eventAsString) throws AmqpRejectAndDontRequeueException {
-		LOG.info("Receiving event: " + eventAsString);
+		LOG.debug("Receiving event: {}", eventAsString);
 		try {
 			ShanoirEvent event = mapper.readValue(eventAsString, ShanoirEvent.class);
 			eventsService.addEvent(event);
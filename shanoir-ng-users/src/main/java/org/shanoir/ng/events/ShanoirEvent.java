@@ -20,7 +20,7 @@ import org.hibernate.annotations.UpdateTimestamp;
 @Entity
 @Table(name = "events",
 		indexes = {
-			@Index(name = "i_user_type", columnList = "userId,eventType"),
+			@Index(name = "i_user_type_update", columnList = "userId,eventType,lastUpdate"),
 		}
 	)
 public class ShanoirEvent {
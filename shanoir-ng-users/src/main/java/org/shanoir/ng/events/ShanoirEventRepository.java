@@ -1,22 +1,47 @@
 package org.shanoir.ng.events;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface ShanoirEventRepository extends CrudRepository<ShanoirEvent, Long> {
+public interface ShanoirEventRepository extends CrudRepository<ShanoirEvent, Long>, ShanoirEventRepositoryCustom {
 
 	/**
-	 * Find event by userId and eventType
+	 * Find the events by userId and eventTypes updated after a date, the most recent first
 	 *
 	 * @param userId
-	 * @param eventType
+	 * @param eventTypes
+	 * @param since
+	 * @param pageable the number of events to return
 	 * @return a list of ShanoirEvents with given userID and event type
 	 */
-	List<ShanoirEvent> findByUserIdAndEventType(Long userId, String eventType);
+	List<ShanoirEvent> findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(Long userId,
+			Collection<String> eventTypes, Date since, Pageable pageable);
+
+	/**
+	 * Find the events by userId and eventTypes updated after a date, and before the last
+	 * event of the previous page, the most recent first
+	 *
+	 * @param userId
+	 * @param eventTypes
+	 * @param since
+	 * @param before last update of the last event of the previous page
+	 * @param beforeId id of the last event of the previous page
+	 * @param pageable the number of events to return
+	 * @return a list of ShanoirEvents with given userID and event type
+	 */
+	@Query("SELECT e FROM ShanoirEvent e WHERE e.userId = :userId AND e.eventType IN :eventTypes AND e.lastUpdate > :since"
+			+ " AND (e.lastUpdate < :before OR (e.lastUpdate = :before AND e.id < :beforeId))"
+			+ " ORDER BY e.lastUpdate DESC, e.id DESC")
+	List<ShanoirEvent> findPageBefore(@Param("userId") Long userId, @Param("eventTypes") Collection<String> eventTypes,
+			@Param("since") Date since, @Param("before") Date before, @Param("beforeId") Long beforeId, Pageable pageable);
 
 	/**
 	 * Deletes all events older than a date.
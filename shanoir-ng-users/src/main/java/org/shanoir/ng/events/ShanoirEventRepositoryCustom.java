@@ -0,0 +1,33 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import java.util.List;
+
+/**
+ * Custom repository for events.
+ */
+public interface ShanoirEventRepositoryCustom {
+
+	/**
+	 * Saves the latest states of events in one transaction: the saved events are
+	 * read with one query and updated, the others are inserted, so that the
+	 * statements are sent in JDBC batches without one select per event.
+	 *
+	 * @param events states of events, with their id
+	 */
+	void saveStates(List<ShanoirEvent> events);
+
+}
@@ -0,0 +1,65 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Implementation of custom repository for events.
+ */
+@Repository
+public class ShanoirEventRepositoryImpl implements ShanoirEventRepositoryCustom {
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Override
+	@Transactional
+	public void saveStates(List<ShanoirEvent> events) {
+		List<Long> ids = events.stream().map(ShanoirEvent::getId).collect(Collectors.toList());
+		Map<Long, ShanoirEvent> savedEvents = new HashMap<>();
+		for (ShanoirEvent saved : entityManager.createQuery("SELECT e FROM ShanoirEvent e WHERE e.id IN :ids", ShanoirEvent.class)
+				.setParameter("ids", ids).getResultList()) {
+			savedEvents.put(saved.getId(), saved);
+		}
+		for (ShanoirEvent event : events) {
+			ShanoirEvent saved = savedEvents.get(event.getId());
+			if (saved == null) {
+				// first state of the event: the received object is not managed by any other session
+				entityManager.persist(event);
+			} else {
+				// the creation date is kept, and the last update generated again by the update
+				saved.setEventType(event.getEventType());
+				saved.setObjectId(event.getObjectId());
+				saved.setUserId(event.getUserId());
+				saved.setMessage(event.getMessage());
+				saved.setStatus(event.getStatus());
+				saved.setProgress(event.getProgress());
+				saved.setStudyId(event.getStudyId());
+				saved.setLastUpdate(event.getLastUpdate());
+			}
+		}
+	}
+
+}
@@ -1,21 +1,27 @@
 package org.shanoir.ng.events;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.shanoir.ng.shared.event.ShanoirEventType;
-import org.shanoir.ng.tasks.AsyncTaskApiController;
-import org.shanoir.ng.utils.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.MediaType;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * Service managing ShanoirEvents
@@ -28,21 +34,169 @@ public class ShanoirEventsService {
 	@Autowired
 	ShanoirEventRepository repository;
 
+	@Autowired
+	UserEventEmitters emitters;
+
 	private static final Logger LOG = LoggerFactory.getLogger(ShanoirEventsService.class);
 
 
+	/** The types of the events shown to their user as tasks */
+	public static final List<String> TASK_EVENT_TYPES = Arrays.asList(ShanoirEventType.IMPORT_DATASET_EVENT,
+			ShanoirEventType.CHECK_QUALITY_EVENT);
+
+	private static final Comparator<ShanoirEvent> MOST_RECENT_FIRST = Comparator
+			.comparing(ShanoirEvent::getLastUpdate).thenComparing(ShanoirEvent::getId).reversed();
+
+	/**
+	 * Latest states of the events in progress, not yet saved, by event id:
+	 * the progress updates are saved by batches, only the last state of each event.
+	 */
+	private final Map<Long, ShanoirEvent> pendingEvents = new ConcurrentHashMap<>();
+
+	/** Orders the saves of the batches and of the terminated events */
+	private final Object saveLock = new Object();
+
 	public void addEvent(ShanoirEvent event) {
-		// Call repository
-		repository.save(event);
+		if (event.getId() != null && !isTerminated(event)) {
+			// saved by the next flush
+			event.setLastUpdate(new Date());
+			pendingEvents.put(event.getId(), event);
+		} else {
+			synchronized (saveLock) {
+				if (event.getId() != null) {
+					pendingEvents.remove(event.getId());
+				}
+				repository.save(event);
+			}
+		}
 
 		// Push notification to UI
-		if (ShanoirEventType.IMPORT_DATASET_EVENT.equals(event.getEventType())) {
+		if (TASK_EVENT_TYPES.contains(event.getEventType())) {
 			sendSseEventsToUI(event);
 		}
 	}
 
-	public List<ShanoirEvent> getEventsByUserAndType(Long userId, String eventType) {
-		return Utils.toList(repository.findByUserIdAndEventType(userId, eventType));
+	/**
+	 * Returns the events of a user updated after a date, the most recent first,
+	 * with their latest state, saved or not.
+	 *
+	 * @param userId
+	 * @param eventTypes
+	 * @param since
+	 * @param before cursor of the page: last update of the last event of the previous page, null for the first page
+	 * @param beforeId id of the last event of the previous page
+	 * @param limit maximum number of events to return, null for all
+	 * @return
+	 */
+	public List<ShanoirEvent> getEventsByUserAndTypes(Long userId, Collection<String> eventTypes, Date since, Date before, Long beforeId, Integer limit) {
+		Pageable pageable = limit != null ? PageRequest.of(0, limit) : Pageable.unpaged();
+		List<ShanoirEvent> savedEvents = before != null
+				? repository.findPageBefore(userId, eventTypes, since, before, beforeId, pageable)
+				: repository.findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(userId, eventTypes, since, pageable);
+		Map<Long, ShanoirEvent> events = new HashMap<>();
+		for (ShanoirEvent event : savedEvents) {
+			events.put(event.getId(), event);
+		}
+		// the events in progress have been updated since: they can move to a more recent page
+		List<ShanoirEvent> pendingInPage = new ArrayList<>();
+		for (ShanoirEvent event : pendingEvents.values()) {
+			if (Objects.equals(userId, event.getUserId()) && eventTypes.contains(event.getEventType())) {
+				if (isInPage(event, since, before, beforeId)) {
+					pendingInPage.add(event);
+				} else {
+					events.remove(event.getId());
+				}
+			}
+		}
+		mergePendingEvents(events, pendingInPage);
+		List<ShanoirEvent> page = new ArrayList<>(events.values());
+		page.sort(MOST_RECENT_FIRST);
+		if (limit != null && page.size() > limit) {
+			return new ArrayList<>(page.subList(0, limit));
+		}
+		return page;
+	}
+
+	/**
+	 * Puts the pending states into the page, with the creation date of their saved event:
+	 * the pending states have none, as it is generated by the first save.
+	 *
+	 * @param events the saved events of the page, by id
+	 * @param pendingInPage
+	 */
+	private void mergePendingEvents(Map<Long, ShanoirEvent> events, List<ShanoirEvent> pendingInPage) {
+		Map<Long, Date> creationDates = new HashMap<>();
+		List<Long> notInPage = new ArrayList<>();
+		for (ShanoirEvent pending : pendingInPage) {
+			ShanoirEvent saved = events.get(pending.getId());
+			if (pending.getCreationDate() != null) {
+				creationDates.put(pending.getId(), pending.getCreationDate());
+			} else if (saved != null) {
+				creationDates.put(pending.getId(), saved.getCreationDate());
+			} else {
+				notInPage.add(pending.getId());
+			}
+		}
+		if (!notInPage.isEmpty()) {
+			for (ShanoirEvent saved : repository.findAllById(notInPage)) {
+				creationDates.put(saved.getId(), saved.getCreationDate());
+			}
+		}
+		for (ShanoirEvent pending : pendingInPage) {
+			// never saved: created since the last flush
+			Date creationDate = creationDates.containsKey(pending.getId()) ? creationDates.get(pending.getId()) : pending.getLastUpdate();
+			events.put(pending.getId(), copyWithCreationDate(pending, creationDate));
+		}
+	}
+
+	/**
+	 * Copies a pending state, that stays as received until it is saved.
+	 */
+	private ShanoirEvent copyWithCreationDate(ShanoirEvent event, Date creationDate) {
+		ShanoirEvent copy = new ShanoirEvent();
+		copy.setId(event.getId());
+		copy.setEventType(event.getEventType());
+		copy.setObjectId(event.getObjectId());
+		copy.setUserId(event.getUserId());
+		copy.setMessage(event.getMessage());
+		copy.setCreationDate(creationDate);
+		copy.setLastUpdate(event.getLastUpdate());
+		copy.setStatus(event.getStatus());
+		copy.setProgress(event.getProgress());
+		copy.setStudyId(event.getStudyId());
+		return copy;
+	}
+
+	private boolean isInPage(ShanoirEvent event, Date since, Date before, Long beforeId) {
+		if (!event.getLastUpdate().after(since)) {
+			return false;
+		}
+		return before == null || event.getLastUpdate().before(before)
+				|| (event.getLastUpdate().equals(before) && event.getId() < beforeId);
+	}
+
+	/**
+	 * Saves the latest state of the events in progress, with JDBC batches of
+	 * hibernate.jdbc.batch_size updates, after one select of the saved events.
+	 */
+	@Scheduled(fixedDelayString = "${events.flush-interval-ms:1000}")
+	@PreDestroy
+	public void flushPendingEvents() {
+		if (pendingEvents.isEmpty()) {
+			return;
+		}
+		synchronized (saveLock) {
+			List<ShanoirEvent> batch = new ArrayList<>(pendingEvents.values());
+			repository.saveStates(batch);
+			// the events updated meanwhile stay for the next flush
+			batch.forEach(event -> pendingEvents.remove(event.getId(), event));
+			LOG.debug("{} events in progress saved.", batch.size());
+		}
+	}
+
+	private boolean isTerminated(ShanoirEvent event) {
+		return event.getStatus() == org.shanoir.ng.shared.event.ShanoirEvent.SUCCESS
+				|| event.getStatus() == org.shanoir.ng.shared.event.ShanoirEvent.ERROR;
 	}
 
 	/**
@@ -56,40 +210,15 @@ public class ShanoirEventsService {
 	}
 
 	/**
-	 * Sends an event using an emiter
+	 * Sends an event to the connections of its user, without waiting for it to be sent.
 	 * @param notification the event to send
 	 */
 	public void sendSseEventsToUI(ShanoirEvent notification) {
-        List<SseEmitter> sseEmitterListToRemove = new ArrayList<>();
-        AsyncTaskApiController.emitters.forEach((SseEmitter emitter) -> {
-            try {
-                emitter.send(notification, MediaType.APPLICATION_JSON);
-            } catch (IOException e2) {
-            	emitter.complete();
-                sseEmitterListToRemove.add(emitter);
-                LOG.error("Error while send task to UI ", e2);
-            } catch (Exception e) {
-            	emitter.complete();
-                sseEmitterListToRemove.add(emitter);
-                LOG.error("Error while send task to UI ", e);
-                throw e;
-            }
-        });
-        AsyncTaskApiController.emitters.removeAll(sseEmitterListToRemove);
-    }
+		emitters.send(notification);
+	}
 
 	@Scheduled(fixedDelay = 30000)
 	private void keepConnectionAlive( ) {
-        List<SseEmitter> sseEmitterListToRemove = new ArrayList<>();
-        AsyncTaskApiController.emitters.forEach((SseEmitter emitter) -> {
-            try {
-                emitter.send("{}", MediaType.APPLICATION_JSON);
-            } catch (Exception e) {
-            	// This happens when the user's connection reset, do not log anything.
-            	emitter.complete();
-                sseEmitterListToRemove.add(emitter);
-            }
-        });
-        AsyncTaskApiController.emitters.removeAll(sseEmitterListToRemove);
+		emitters.sendKeepAlive();
 	}
 }
@@ -0,0 +1,343 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Server-sent events connections of the users, by user id.
+ *
+ * An event is only sent to the connections of its user. The events are queued
+ * per connection and sent by the sender threads, one at a time per connection,
+ * so that a slow browser never blocks the event reception, nor the other browsers.
+ * A send that lasts more than send-timeout-ms closes its connection: the browser
+ * reconnects and reads the events it missed.
+ *
+ * In a queue, a new state of an event replaces its previous state not yet sent.
+ * When a queue is full, its oldest progress update is dropped: the terminal
+ * states, success or error, are always sent.
+ */
+@Component
+public class UserEventEmitters {
+
+	private static final Logger LOG = LoggerFactory.getLogger(UserEventEmitters.class);
+
+	private static final String KEEP_ALIVE = "{}";
+
+	/** Key of the keep-alive messages in the queues */
+	private static final Long KEEP_ALIVE_KEY = Long.MIN_VALUE;
+
+	/** Maximum number of events waiting to be sent to a browser */
+	@Value("${sse.queue-capacity:100}")
+	private int queueCapacity;
+
+	/** Maximum duration of the send of an event to a browser */
+	@Value("${sse.send-timeout-ms:10000}")
+	private long sendTimeoutMs;
+
+	private final Map<Long, List<UserEmitter>> emittersByUser = new ConcurrentHashMap<>();
+
+	private final AtomicLong droppedEvents = new AtomicLong();
+
+	private final AtomicLong coalescedEvents = new AtomicLong();
+
+	private final AtomicLong timedOutSends = new AtomicLong();
+
+	/** Key of the events without id, that are never coalesced */
+	private final AtomicLong noIdKeys = new AtomicLong(KEEP_ALIVE_KEY);
+
+	/** At most one thread per connection with events to send, blocked at most send-timeout-ms */
+	private ExecutorService senders;
+
+	/** Closes the connections whose send lasts too long */
+	private ScheduledExecutorService watchdog;
+
+	@PostConstruct
+	public void start() {
+		senders = Executors.newCachedThreadPool(new CustomizableThreadFactory("sse-sender-"));
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory("sse-watchdog-"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		watchdog = scheduler;
+	}
+
+	@PreDestroy
+	public void stop() {
+		watchdog.shutdownNow();
+		senders.shutdownNow();
+		emittersByUser.values().forEach(emitters -> emitters.forEach(emitter -> emitter.sseEmitter.complete()));
+		emittersByUser.clear();
+	}
+
+	/**
+	 * Creates a connection receiving the events of a user.
+	 *
+	 * @param userId
+	 * @return the emitter to return to the browser
+	 */
+	public SseEmitter register(Long userId) {
+		return register(userId, new SseEmitter(-1L));
+	}
+
+	SseEmitter register(Long userId, SseEmitter sseEmitter) {
+		UserEmitter emitter = new UserEmitter(userId, sseEmitter);
+		emittersByUser.computeIfAbsent(userId, id -> new CopyOnWriteArrayList<>()).add(emitter);
+		sseEmitter.onCompletion(() -> unregister(emitter));
+		sseEmitter.onTimeout(() -> unregister(emitter));
+		sseEmitter.onError(e -> unregister(emitter));
+		return sseEmitter;
+	}
+
+	/**
+	 * Queues an event for the connections of its user, without waiting for it to be sent.
+	 *
+	 * @param event
+	 */
+	public void send(ShanoirEvent event) {
+		if (event.getUserId() == null) {
+			return;
+		}
+		List<UserEmitter> emitters = emittersByUser.get(event.getUserId());
+		if (emitters != null) {
+			Long key = event.getId() != null ? event.getId() : noIdKeys.incrementAndGet();
+			emitters.forEach(emitter -> emitter.offer(key, event));
+		}
+	}
+
+	/**
+	 * Queues a keep-alive message for the connections whose queue is empty:
+	 * the others will receive an event anyway.
+	 */
+	public void sendKeepAlive() {
+		emittersByUser.values().forEach(emitters -> emitters.forEach(emitter -> emitter.offerKeepAlive()));
+		long dropped = droppedEvents.get();
+		long timedOut = timedOutSends.get();
+		if (dropped > 0 || timedOut > 0) {
+			LOG.warn("SSE: {} connections, {} events waiting, {} dropped and {} coalesced, {} connections closed after a send timeout since the start.",
+					getConnectionCount(), getQueueDepth(), dropped, coalescedEvents.get(), timedOut);
+		} else if (LOG.isDebugEnabled()) {
+			LOG.debug("SSE: {} connections, {} events waiting, {} coalesced since the start.",
+					getConnectionCount(), getQueueDepth(), coalescedEvents.get());
+		}
+	}
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount() {
+		return emittersByUser.values().stream().mapToInt(List::size).sum();
+	}
+
+	/**
+	 * @return the number of events waiting to be sent, for all the connections
+	 */
+	public int getQueueDepth() {
+		return emittersByUser.values().stream().flatMap(List::stream).mapToInt(UserEmitter::size).sum();
+	}
+
+	/**
+	 * @return the number of progress updates dropped because a queue was full
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+
+	/**
+	 * @return the number of connections closed because a send lasted more than send-timeout-ms
+	 */
+	public long getTimedOutSends() {
+		return timedOutSends.get();
+	}
+
+	/**
+	 * @return the number of events replaced in a queue by a newer state of the same event
+	 */
+	public long getCoalescedEvents() {
+		return coalescedEvents.get();
+	}
+
+	/**
+	 * @return true if the message is the success or the error of an event
+	 */
+	private static boolean isTerminal(Object message) {
+		if (message instanceof ShanoirEvent) {
+			int status = ((ShanoirEvent) message).getStatus();
+			return status == org.shanoir.ng.shared.event.ShanoirEvent.SUCCESS
+					|| status == org.shanoir.ng.shared.event.ShanoirEvent.ERROR;
+		}
+		return false;
+	}
+
+	private void unregister(UserEmitter emitter) {
+		emitter.close();
+		emittersByUser.computeIfPresent(emitter.userId, (id, emitters) -> {
+			emitters.remove(emitter);
+			return emitters.isEmpty() ? null : emitters;
+		});
+	}
+
+	/**
+	 * A connection and its queue, drained by one sender at a time to keep the order.
+	 */
+	private class UserEmitter {
+
+		private final Long userId;
+
+		private final SseEmitter sseEmitter;
+
+		private final LinkedHashMap<Long, Object> pending = new LinkedHashMap<>();
+
+		private boolean draining;
+
+		private boolean closed;
+
+		UserEmitter(Long userId, SseEmitter sseEmitter) {
+			this.userId = userId;
+			this.sseEmitter = sseEmitter;
+		}
+
+		void offer(Long key, Object message) {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				if (pending.containsKey(key)) {
+					// keeps the place of the previous state, not yet sent
+					coalescedEvents.incrementAndGet();
+				} else if (pending.size() >= queueCapacity && !dropOldestProgress() && !isTerminal(message)) {
+					// only terminal states are waiting: they are sent before this update
+					droppedEvents.incrementAndGet();
+					return;
+				}
+				pending.put(key, message);
+				if (draining) {
+					return;
+				}
+				draining = true;
+			}
+			senders.execute(this::drain);
+		}
+
+		/**
+		 * Removes the oldest waiting message that is not a terminal state.
+		 *
+		 * @return false if only terminal states are waiting
+		 */
+		private boolean dropOldestProgress() {
+			Iterator<Object> it = pending.values().iterator();
+			while (it.hasNext()) {
+				if (!isTerminal(it.next())) {
+					it.remove();
+					droppedEvents.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void offerKeepAlive() {
+			synchronized (this) {
+				if (!pending.isEmpty() || draining) {
+					return;
+				}
+			}
+			offer(KEEP_ALIVE_KEY, KEEP_ALIVE);
+		}
+
+		synchronized int size() {
+			return pending.size();
+		}
+
+		synchronized void close() {
+			closed = true;
+			pending.clear();
+		}
+
+		synchronized boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Closes the connection whose send is blocked. The emitter is completed by another
+		 * thread, as it waits for the end of the send.
+		 */
+		private void sendTimedOut() {
+			timedOutSends.incrementAndGet();
+			LOG.debug("SSE: a send to user {} lasted more than {} ms, connection closed.", userId, sendTimeoutMs);
+			unregister(this);
+			senders.execute(() -> sseEmitter.completeWithError(new IOException("SSE send timeout")));
+		}
+
+		private void drain() {
+			while (true) {
+				Object message;
+				synchronized (this) {
+					Iterator<Entry<Long, Object>> it = pending.entrySet().iterator();
+					if (closed || !it.hasNext()) {
+						draining = false;
+						return;
+					}
+					message = it.next().getValue();
+					it.remove();
+				}
+				ScheduledFuture<?> timeout = watchdog.schedule(this::sendTimedOut, sendTimeoutMs, TimeUnit.MILLISECONDS);
+				try {
+					sseEmitter.send(message, MediaType.APPLICATION_JSON);
+				} catch (Exception e) {
+					// This happens when the user's connection reset, do not log the keep-alive errors.
+					if (message != KEEP_ALIVE) {
+						LOG.debug("Error while sending event to UI, connection closed.", e);
+					}
+					// already completed after a send timeout
+					if (!isClosed()) {
+						sseEmitter.complete();
+					}
+					unregister(this);
+					synchronized (this) {
+						draining = false;
+					}
+					return;
+				} finally {
+					timeout.cancel(false);
+				}
+			}
+		}
+	}
+
+}
@@ -9,10 +9,12 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
@@ -36,6 +38,18 @@ public interface AsyncTaskApi {
 	@PreAuthorize("hasAnyRole('ADMIN', 'EXPERT', 'USER')")
 	ResponseEntity<List<ShanoirEvent>> findTasks();
 
+	@ApiOperation(value = "", notes = "Returns a page of the tasks of the user, the most recent first. The next page is requested with the last update and the id of the last task of the page", response = ShanoirEvent.class, tags = {})
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "found tasks", response = ShanoirEvent.class),
+			@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
+			@ApiResponse(code = 403, message = "forbidden", response = Void.class),
+			@ApiResponse(code = 500, message = "unexpected error", response = Void.class) })
+	@GetMapping(value = "/page", produces = { "application/json" })
+	@PreAuthorize("hasAnyRole('ADMIN', 'EXPERT', 'USER')")
+	ResponseEntity<List<ShanoirEvent>> findTasksPage(
+			@ApiParam(value = "maximum number of tasks") @RequestParam(value = "size", required = false, defaultValue = "50") int size,
+			@ApiParam(value = "last update, in ms, of the last task of the previous page") @RequestParam(value = "before", required = false) Long before,
+			@ApiParam(value = "id of the last task of the previous page") @RequestParam(value = "beforeId", required = false) Long beforeId);
+
 	@ApiOperation(value = "", notes = "Pushes a new event emitter to front", response = SseEmitter.class, tags = {})
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "found tasks", response = SseEmitter.class),
 			@ApiResponse(code = 401, message = "unauthorized", response = Void.class),
@@ -0,0 +1,165 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import springfox.documentation.spring.web.plugins.DocumentationPluginsBootstrapper;
+import springfox.documentation.spring.web.plugins.WebMvcRequestHandlerProvider;
+
+/**
+ * Tests for repository 'events': keyset paging by last update, then id.
+ *
+ */
+@RunWith(SpringRunner.class)
+@DataJpaTest
+@ActiveProfiles("test")
+public class ShanoirEventRepositoryTest {
+
+	private static final Long USER_ID = 1L;
+	private static final String EVENT_TYPE = "importDataset.event";
+	private static final List<String> EVENT_TYPES = Collections.singletonList(EVENT_TYPE);
+	private static final long T0 = 1600000000000L;
+	private static final Date SINCE = new Date(T0);
+
+	@Autowired
+	private ShanoirEventRepository repository;
+
+	@Autowired
+	private TestEntityManager entityManager;
+
+	/*
+	 * Mocks used to avoid unsatisfied dependency exceptions.
+	 */
+	@MockBean
+	private AuthenticationManager authenticationManager;
+	@MockBean
+	private DocumentationPluginsBootstrapper documentationPluginsBootstrapper;
+	@MockBean
+	private WebMvcRequestHandlerProvider webMvcRequestHandlerProvider;
+
+	@Before
+	public void setUp() {
+		// the last update is generated by Hibernate on save: the events are inserted directly
+		insertEvent(1L, USER_ID, EVENT_TYPE, T0 + 3000);
+		insertEvent(2L, USER_ID, EVENT_TYPE, T0 + 2000);
+		insertEvent(3L, USER_ID, EVENT_TYPE, T0 + 2000);
+		insertEvent(4L, USER_ID, EVENT_TYPE, T0 + 1000);
+		insertEvent(5L, USER_ID, EVENT_TYPE, T0 - 1000);
+		insertEvent(6L, 2L, EVENT_TYPE, T0 + 2000);
+		insertEvent(7L, USER_ID, "other.event", T0 + 2000);
+	}
+
+	@Test
+	public void findFirstPageTest() throws Exception {
+		List<ShanoirEvent> page = repository.findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(
+				USER_ID, EVENT_TYPES, SINCE, PageRequest.of(0, 2));
+		// same last update: the greatest id first
+		assertThat(ids(page)).containsExactly(1L, 3L);
+	}
+
+	@Test
+	public void findAllTest() throws Exception {
+		List<ShanoirEvent> events = repository.findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(
+				USER_ID, EVENT_TYPES, SINCE, PageRequest.of(0, 10));
+		assertThat(ids(events)).containsExactly(1L, 3L, 2L, 4L);
+	}
+
+	@Test
+	public void findAllOfSeveralTypesTest() throws Exception {
+		List<ShanoirEvent> events = repository.findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(
+				USER_ID, Arrays.asList(EVENT_TYPE, "other.event"), SINCE, PageRequest.of(0, 10));
+		assertThat(ids(events)).containsExactly(1L, 7L, 3L, 2L, 4L);
+	}
+
+	@Test
+	public void findPageBeforeTest() throws Exception {
+		List<ShanoirEvent> firstPage = repository.findByUserIdAndEventTypeInAndLastUpdateAfterOrderByLastUpdateDescIdDesc(
+				USER_ID, EVENT_TYPES, SINCE, PageRequest.of(0, 2));
+		ShanoirEvent last = firstPage.get(firstPage.size() - 1);
+		// the event with the same last update as the cursor, and a lower id, is on the next page
+		List<ShanoirEvent> secondPage = repository.findPageBefore(USER_ID, EVENT_TYPES, SINCE,
+				last.getLastUpdate(), last.getId(), PageRequest.of(0, 2));
+		assertThat(ids(secondPage)).containsExactly(2L, 4L);
+		last = secondPage.get(secondPage.size() - 1);
+		assertThat(repository.findPageBefore(USER_ID, EVENT_TYPES, SINCE,
+				last.getLastUpdate(), last.getId(), PageRequest.of(0, 2))).isEmpty();
+	}
+
+	@Test
+	public void saveStatesTest() throws Exception {
+		ShanoirEvent update = state(1L, 0.5f);
+		ShanoirEvent creation = state(8L, 0.1f);
+		repository.saveStates(Arrays.asList(update, creation));
+		entityManager.flush();
+		entityManager.clear();
+
+		ShanoirEvent updated = repository.findById(1L).get();
+		assertThat(updated.getProgress()).isEqualTo(0.5f);
+		// the creation date of the saved event is kept
+		assertThat(updated.getCreationDate().getTime()).isEqualTo(T0 + 3000);
+		assertThat(updated.getLastUpdate().getTime()).isGreaterThan(T0 + 3000);
+		ShanoirEvent created = repository.findById(8L).get();
+		assertThat(created.getProgress()).isEqualTo(0.1f);
+		assertThat(created.getCreationDate()).isNotNull();
+	}
+
+	private ShanoirEvent state(Long id, float progress) {
+		ShanoirEvent event = new ShanoirEvent();
+		event.setId(id);
+		event.setUserId(USER_ID);
+		event.setEventType(EVENT_TYPE);
+		event.setStatus(org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS);
+		event.setProgress(progress);
+		event.setLastUpdate(new Date());
+		return event;
+	}
+
+	private void insertEvent(Long id, Long userId, String eventType, long lastUpdate) {
+		entityManager.getEntityManager()
+				.createNativeQuery("INSERT INTO events (id, user_id, event_type, status, creation_date, last_update) VALUES (?, ?, ?, ?, ?, ?)")
+				.setParameter(1, id)
+				.setParameter(2, userId)
+				.setParameter(3, eventType)
+				.setParameter(4, 1)
+				.setParameter(5, new Timestamp(lastUpdate))
+				.setParameter(6, new Timestamp(lastUpdate))
+				.executeUpdate();
+	}
+
+	private List<Long> ids(List<ShanoirEvent> events) {
+		return events.stream().map(ShanoirEvent::getId).collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.shanoir.ng.shared.event.ShanoirEventType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ShanoirEventsServiceTest {
+
+	private static final Long USER_ID = 1L;
+
+	private static final String TYPE = ShanoirEventType.IMPORT_DATASET_EVENT;
+
+	private static final Date CREATION_DATE = new Date(1000L);
+
+	private static final Date SINCE = new Date(0L);
+
+	private ShanoirEventRepository repository;
+
+	private UserEventEmitters emitters;
+
+	private ShanoirEventsService service;
+
+	@Before
+	public void setUp() {
+		repository = mock(ShanoirEventRepository.class);
+		service = new ShanoirEventsService();
+		ReflectionTestUtils.setField(service, "repository", repository);
+		emitters = mock(UserEventEmitters.class);
+		ReflectionTestUtils.setField(service, "emitters", emitters);
+	}
+
+	@Test
+	public void testPendingStateIsMergedWithTheSavedEvent() {
+		ShanoirEvent saved = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.1f);
+		saved.setCreationDate(CREATION_DATE);
+		saved.setLastUpdate(new Date(2000L));
+		when(repository.findByUserIdAndEventTypeAndLastUpdateAfterOrderByLastUpdateDescIdDesc(any(), any(), any(), any(Pageable.class)))
+				.thenReturn(Collections.singletonList(saved));
+		service.addEvent(event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.5f));
+
+		List<ShanoirEvent> events = service.getEventsByUserAndTypes(USER_ID, ShanoirEventsService.TASK_EVENT_TYPES, SINCE, null, null, null);
+		assertEquals(1, events.size());
+		assertEquals(0.5f, events.get(0).getProgress(), 0f);
+		assertEquals(CREATION_DATE, events.get(0).getCreationDate());
+		verify(repository, never()).findAllById(anyList());
+	}
+
+	@Test
+	public void testCreationDateOfAPendingStateOutsideThePageIsRead() {
+		ShanoirEvent saved = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.1f);
+		saved.setCreationDate(CREATION_DATE);
+		when(repository.findByUserIdAndEventTypeAndLastUpdateAfterOrderByLastUpdateDescIdDesc(any(), any(), any(), any(Pageable.class)))
+				.thenReturn(Collections.emptyList());
+		when(repository.findAllById(Collections.singletonList(10L))).thenReturn(Collections.singletonList(saved));
+		service.addEvent(event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.5f));
+
+		List<ShanoirEvent> events = service.getEventsByUserAndTypes(USER_ID, ShanoirEventsService.TASK_EVENT_TYPES, SINCE, null, null, null);
+		assertEquals(1, events.size());
+		assertEquals(CREATION_DATE, events.get(0).getCreationDate());
+	}
+
+	@Test
+	public void testOnlyTheLatestStatesAreFlushed() {
+		service.addEvent(event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.1f));
+		service.addEvent(event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.2f));
+		service.addEvent(event(11L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.3f));
+		verify(repository, never()).save(any());
+
+		service.flushPendingEvents();
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<List<ShanoirEvent>> batch = ArgumentCaptor.forClass(List.class);
+		verify(repository).saveStates(batch.capture());
+		assertEquals(2, batch.getValue().size());
+		for (ShanoirEvent event : batch.getValue()) {
+			assertEquals(event.getId() == 10L ? 0.2f : 0.3f, event.getProgress(), 0f);
+		}
+		// nothing left to save
+		service.flushPendingEvents();
+		verify(repository, times(1)).saveStates(anyList());
+	}
+
+	@Test
+	public void testTerminatedEventReplacesItsPendingState() {
+		service.addEvent(event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.5f));
+		ShanoirEvent success = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.SUCCESS, 1f);
+		service.addEvent(success);
+		verify(repository).save(success);
+
+		service.flushPendingEvents();
+		verify(repository, never()).saveStates(anyList());
+		when(repository.findByUserIdAndEventTypeAndLastUpdateAfterOrderByLastUpdateDescIdDesc(any(), any(), any(), any(Pageable.class)))
+				.thenReturn(Collections.emptyList());
+		assertEquals(0, service.getEventsByUserAndTypes(USER_ID, ShanoirEventsService.TASK_EVENT_TYPES, SINCE, null, null, null).size());
+	}
+
+	@Test
+	public void testPendingStateIsNotChangedByTheMerge() {
+		ShanoirEvent pending = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.5f);
+		ShanoirEvent saved = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.1f);
+		saved.setCreationDate(CREATION_DATE);
+		when(repository.findByUserIdAndEventTypeAndLastUpdateAfterOrderByLastUpdateDescIdDesc(any(), any(), any(), any(Pageable.class)))
+				.thenReturn(Collections.singletonList(saved));
+		service.addEvent(pending);
+		service.getEventsByUserAndTypes(USER_ID, ShanoirEventsService.TASK_EVENT_TYPES, SINCE, null, null, null);
+		assertNull(pending.getCreationDate());
+	}
+
+	@Test
+	public void testTaskEventsArePushed() {
+		ShanoirEvent qualityCheck = event(10L, org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS, 0.5f);
+		qualityCheck.setEventType(ShanoirEventType.CHECK_QUALITY_EVENT);
+		service.addEvent(qualityCheck);
+		ShanoirEvent other = event(11L, org.shanoir.ng.shared.event.ShanoirEvent.SUCCESS, 1f);
+		other.setEventType(ShanoirEventType.CREATE_STUDY_EVENT);
+		service.addEvent(other);
+
+		verify(emitters).send(qualityCheck);
+		verify(emitters, never()).send(other);
+	}
+
+	private ShanoirEvent event(Long id, int status, float progress) {
+		ShanoirEvent event = new ShanoirEvent();
+		event.setId(id);
+		event.setUserId(USER_ID);
+		event.setEventType(TYPE);
+		event.setStatus(status);
+		event.setProgress(progress);
+		return event;
+	}
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Shanoir NG - Import, manage and share neuroimaging data
+ * Copyright (C) 2009-2019 Inria - https://www.inria.fr/
+ * Contact us on https://project.inria.fr/shanoir/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/gpl-3.0.html
+ */
+
+package org.shanoir.ng.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+public class UserEventEmittersTest {
+
+	private static final int IN_PROGRESS = org.shanoir.ng.shared.event.ShanoirEvent.IN_PROGRESS;
+
+	private static final int SUCCESS = org.shanoir.ng.shared.event.ShanoirEvent.SUCCESS;
+
+	private static final int ERROR = org.shanoir.ng.shared.event.ShanoirEvent.ERROR;
+
+	private UserEventEmitters emitters;
+
+	@Before
+	public void setUp() {
+		emitters = new UserEventEmitters();
+		ReflectionTestUtils.setField(emitters, "queueCapacity", 2);
+		ReflectionTestUtils.setField(emitters, "sendTimeoutMs", 10000L);
+		emitters.start();
+	}
+
+	@After
+	public void tearDown() {
+		emitters.stop();
+	}
+
+	@Test
+	public void testSlowBrowserDoesNotBlockTheOthers() throws Exception {
+		ReflectionTestUtils.setField(emitters, "sendTimeoutMs", 200L);
+		TestEmitter slow = new TestEmitter(new CountDownLatch(1));
+		TestEmitter fast = new TestEmitter(null);
+		emitters.register(1L, slow);
+		emitters.register(2L, fast);
+		emitters.send(event(1L, 1L, IN_PROGRESS));
+		assertTrue(slow.sending.await(5, TimeUnit.SECONDS));
+		for (long id = 2; id <= 5; id++) {
+			emitters.send(event(2L, id, SUCCESS));
+		}
+		fast.awaitMessages(4);
+		// the blocked send closes its connection
+		assertTrue(slow.completedWithError.await(5, TimeUnit.SECONDS));
+		assertEquals(1, emitters.getTimedOutSends());
+		assertEquals(1, emitters.getConnectionCount());
+		slow.release.countDown();
+	}
+
+	@Test
+	public void testOnlyProgressUpdatesAreDropped() throws Exception {
+		TestEmitter emitter = new TestEmitter(new CountDownLatch(1));
+		emitters.register(1L, emitter);
+		emitters.send(event(1L, 1L, IN_PROGRESS));
+		assertTrue(emitter.sending.await(5, TimeUnit.SECONDS));
+		// queue of 2 events, while the first one is being sent
+		emitters.send(event(1L, 2L, SUCCESS));
+		emitters.send(event(1L, 3L, IN_PROGRESS));
+		emitters.send(event(1L, 4L, IN_PROGRESS));
+		emitters.send(event(1L, 5L, ERROR));
+		emitters.send(event(1L, 6L, SUCCESS));
+		emitters.send(event(1L, 7L, IN_PROGRESS));
+		emitter.release.countDown();
+		emitter.awaitMessages(4);
+		assertEquals(Arrays.asList(1L, 2L, 5L, 6L), emitter.messages.stream()
+				.map(message -> ((ShanoirEvent) message).getId()).collect(Collectors.toList()));
+		assertEquals(3, emitters.getDroppedEvents());
+	}
+
+	@Test
+	public void testNewStateReplacesTheWaitingOne() throws Exception {
+		TestEmitter emitter = new TestEmitter(new CountDownLatch(1));
+		emitters.register(1L, emitter);
+		emitters.send(event(1L, 1L, IN_PROGRESS));
+		assertTrue(emitter.sending.await(5, TimeUnit.SECONDS));
+		emitters.send(event(1L, 2L, IN_PROGRESS));
+		emitters.send(event(1L, 2L, SUCCESS));
+		emitter.release.countDown();
+		emitter.awaitMessages(2);
+		assertEquals(SUCCESS, ((ShanoirEvent) emitter.messages.get(1)).getStatus());
+		assertEquals(1, emitters.getCoalescedEvents());
+		assertEquals(0, emitters.getDroppedEvents());
+	}
+
+	private ShanoirEvent event(Long userId, Long id, int status) {
+		ShanoirEvent event = new ShanoirEvent();
+		event.setId(id);
+		event.setUserId(userId);
+		event.setStatus(status);
+		return event;
+	}
+
+	/**
+	 * Records the sent messages, the first send waiting for the release latch if any.
+	 */
+	private static class TestEmitter extends SseEmitter {
+
+		private final List<Object> messages = new CopyOnWriteArrayList<>();
+
+		private final CountDownLatch sending = new CountDownLatch(1);
+
+		private final CountDownLatch release;
+
+		private final CountDownLatch completedWithError = new CountDownLatch(1);
+
+		TestEmitter(CountDownLatch release) {
+			this.release = release;
+		}
+
+		@Override
+		public void send(Object object, MediaType mediaType) {
+			sending.countDown();
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			messages.add(object);
+		}
+
+		@Override
+		public void completeWithError(Throwable ex) {
+			completedWithError.countDown();
+		}
+
+		void awaitMessages(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while (messages.size() < count && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertEquals(count, messages.size());
+		}
+	}
+
+}
@@ -69,6 +69,14 @@ public class ShUpConfig {
 	public static final int UPLOAD_SERVICE_INTERVAL = 5;
 
 	public static final String RANDOM_SEED = "random.seed";
+
+	public static final String UPLOAD_PARALLEL_STREAMS = "upload.parallel.streams";
+
+	public static final int UPLOAD_PARALLEL_STREAMS_DEFAULT = 4;
+
+	public static final String UPLOAD_CHUNK_SIZE_MB = "upload.chunk.size.mb";
+
+	public static final int UPLOAD_CHUNK_SIZE_MB_DEFAULT = 8;
 	
 	/**
 	 * Static variables
@@ -119,4 +127,27 @@ public class ShUpConfig {
 		return Boolean.parseBoolean(profileProperties.getProperty(MODE_SUBJECT_STUDY_IDENTIFIER));
 	}
 
+	/**
+	 * @return the number of files uploaded in parallel, from basic.properties
+	 */
+	public static int getUploadParallelStreams() {
+		return getIntProperty(basicProperties, UPLOAD_PARALLEL_STREAMS, UPLOAD_PARALLEL_STREAMS_DEFAULT);
+	}
+
+	/**
+	 * @return the size in bytes of the chunks of the uploaded files, from basic.properties
+	 */
+	public static int getUploadChunkSize() {
+		return getIntProperty(basicProperties, UPLOAD_CHUNK_SIZE_MB, UPLOAD_CHUNK_SIZE_MB_DEFAULT) * 1024 * 1024;
+	}
+
+	private static int getIntProperty(Properties properties, String key, int defaultValue) {
+		try {
+			int value = Integer.parseInt(properties.getProperty(key, Integer.toString(defaultValue)).trim());
+			return value > 0 ? value : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 }
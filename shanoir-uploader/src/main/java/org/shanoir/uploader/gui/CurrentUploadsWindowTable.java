@@ -205,8 +205,9 @@ public class CurrentUploadsWindowTable implements Observer {
 						nbErrorUpload++;
 					} else {
 						nbStartUpload++;
+						// the percentage can be followed by the throughput: "42 % (3.1 MB/s)"
 						int percent = Integer.valueOf(entry.getValue().getUploadPercentage().substring(0,
-								entry.getValue().getUploadPercentage().length() - 2));
+								entry.getValue().getUploadPercentage().indexOf(" %")));
 						totalUploadPercent += percent;
 					}
 				}
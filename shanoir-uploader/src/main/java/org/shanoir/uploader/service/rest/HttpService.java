@@ -30,6 +30,7 @@ import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.http.ssl.TLS;
 import org.apache.hc.core5.ssl.SSLContexts;
@@ -68,6 +69,9 @@ public class HttpService {
 
 	private static final String BOUNDARY = "--import_dicom_shanoir--";
 
+	/** The maximum number of parallel requests to the server */
+	public static final int MAX_CONNECTIONS_PER_ROUTE = 16;
+
 	private CloseableHttpClient httpClient;
 	
 	private HttpClientContext context;
@@ -181,6 +185,20 @@ public class HttpService {
 		return null;
 	}
 
+	public CloseableHttpResponse putBytes(String url, byte[] bytes, int length) {
+		try {
+			HttpPut httpPut = new HttpPut(url);
+			httpPut.addHeader("Authorization", "Bearer " + ShUpOnloadConfig.getTokenString());
+			ByteArrayEntity requestEntity = new ByteArrayEntity(bytes, 0, length, ContentType.APPLICATION_OCTET_STREAM);
+			httpPut.setEntity(requestEntity);
+			CloseableHttpResponse response = httpClient.execute(httpPut, context);
+			return response;
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return null;
+	}
+
 	private CloseableHttpClient buildHttpClient(String url) throws Exception {
 		SSLContext sslContextDev = null;
 		if (url.equals(DEV_LOCAL)) {
@@ -275,8 +293,11 @@ public class HttpService {
 					.build();
 			logger.info("Standard SSLSocketFactory used with CustomHostnameVerifier.");
 		}
+		// the files are uploaded with several connections, see ChunkedUploader
 		final HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
 					.setSSLSocketFactory(sslSocketFactory)
+					.setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+					.setMaxConnTotal(2 * MAX_CONNECTIONS_PER_ROUTE)
 					.build();
 		if (proxyHost != null && credentialsProvider != null) {
 			final DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxyHost);
@@ -77,6 +77,9 @@ public class ShanoirUploaderServiceClient {
 	
 	private static final String SERVICE_IMPORTER_UPLOAD_DICOM = "service.importer.upload.dicom";
 
+	/** Sub-path of a temp dir for the chunked upload of its files */
+	private static final String FILES = "/files";
+
 	private static final String SERVICE_EXAMINATIONS_BY_SUBJECT_ID = "service.examinations.find.by.subject.id";
 
 	private static final String SERVICE_SUBJECTS_BY_STUDY_ID = "service.subjects.by.study.id";
@@ -435,6 +438,82 @@ public class ShanoirUploaderServiceClient {
 		}
 	}
 	
+	/**
+	 * Returns the manifest of a chunked upload: the files received in a temp dir,
+	 * with the number of bytes received of each.
+	 * 
+	 * @param tempDirId
+	 * @return the received bytes by file name, or null if the temp dir does not exist anymore
+	 * @throws Exception
+	 */
+	public Map<String, Long> getUploadedFiles(String tempDirId) throws Exception {
+		try (CloseableHttpResponse response = httpService.get(this.serviceURLImporterCreateTempDir + tempDirId + FILES)) {
+			int code = response.getCode();
+			if (code == HttpStatus.SC_OK) {
+				Map<String, Long> uploadedFiles = new HashMap<String, Long>();
+				Map<?, ?> mappedFiles = Util.getMappedObject(response, Map.class);
+				if (mappedFiles == null) {
+					throw new Exception("Error in getUploadedFiles: could not read the uploaded files");
+				}
+				for (Map.Entry<?, ?> entry : mappedFiles.entrySet()) {
+					uploadedFiles.put((String) entry.getKey(), ((Number) entry.getValue()).longValue());
+				}
+				return uploadedFiles;
+			} else if (code == HttpStatus.SC_NOT_FOUND) {
+				logger.warn("tempDirId " + tempDirId + " does not exist anymore on server.");
+				return null;
+			} else {
+				logger.error("Error in getUploadedFiles: with tempDirId " + tempDirId + " (status code: " + code
+						+ ", message: " + apiResponseMessages.getOrDefault(code, "unknown status code") + ")");
+				throw new Exception("Error in getUploadedFiles");
+			}
+		}
+	}
+
+	/**
+	 * Uploads a chunk of a file into a temp dir. The chunks of a file have to be
+	 * sent in order, the checksum with the last one.
+	 * 
+	 * @param tempDirId
+	 * @param fileName
+	 * @param offset the position of the chunk in the file
+	 * @param totalSize the size of the file
+	 * @param checksum the hexadecimal SHA-256 of the file, for the last chunk
+	 * @param bytes
+	 * @param length
+	 * @return the number of bytes of the file received by the server, that is not offset + length
+	 * if the chunk was refused as not starting at the end of the received bytes
+	 * @throws Exception
+	 */
+	public long uploadFileChunk(String tempDirId, String fileName, long offset, long totalSize, String checksum,
+			byte[] bytes, int length) throws Exception {
+		URIBuilder b = new URIBuilder(this.serviceURLImporterCreateTempDir + tempDirId + FILES);
+		b.addParameter("fileName", fileName);
+		b.addParameter("offset", Long.toString(offset));
+		b.addParameter("totalSize", Long.toString(totalSize));
+		if (checksum != null) {
+			b.addParameter("checksum", checksum);
+		}
+		try (CloseableHttpResponse response = httpService.putBytes(b.build().toString(), bytes, length)) {
+			if (response == null) {
+				throw new IOException("No response in uploadFileChunk for file " + fileName);
+			}
+			int code = response.getCode();
+			Long received = null;
+			if (code == HttpStatus.SC_OK || code == HttpStatus.SC_CONFLICT) {
+				received = Util.getMappedObject(response, Long.class);
+			}
+			if (received != null) {
+				return received;
+			} else {
+				logger.error("Error in uploadFileChunk: with tempDirId " + tempDirId + " with file " + fileName
+						+ " at offset " + offset + " (status code: " + code + ", message: "
+						+ apiResponseMessages.getOrDefault(code, "unknown status code") + ")");
+				throw new Exception("Error in uploadFileChunk");
+			}
+		}
+	}
+
 	public ImportJob uploadDicom(File file) throws Exception {
 		try (CloseableHttpResponse response = httpService.postFile(this.serviceURLImporterUploadDicom, file)) {
 			try (response) {
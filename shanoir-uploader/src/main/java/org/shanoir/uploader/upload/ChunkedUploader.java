@@ -0,0 +1,278 @@
+package org.shanoir.uploader.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.shanoir.uploader.service.rest.HttpService;
+import org.shanoir.uploader.service.rest.ShanoirUploaderServiceClient;
+
+/**
+ * This class uploads the files of an upload job into a temp dir on the server,
+ * by chunks, several files in parallel. The server verifies the SHA-256 checksum
+ * of each file, sent with its last chunk, and keeps the received bytes: with the
+ * manifest of the received files, an interrupted upload sends only the missing
+ * bytes. A file received but not verified yet, listed with the .part suffix, is
+ * completed by its last chunk sent again, even empty.
+ */
+public class ChunkedUploader {
+
+	private static Logger logger = Logger.getLogger(ChunkedUploader.class);
+
+	private static final int MAX_RETRIES = 3;
+
+	private static final String PART = ".part";
+
+	private static final long PROGRESS_INTERVAL_MS = 500;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Receives the progress of an upload, from the upload threads.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * @param uploadedBytes the bytes uploaded, including the bytes received before a resume
+		 * @param totalBytes
+		 * @param bytesPerSecond the throughput since the start of the upload
+		 */
+		void progress(long uploadedBytes, long totalBytes, double bytesPerSecond);
+
+	}
+
+	private final ShanoirUploaderServiceClient uploadServiceClient;
+
+	private final int streams;
+
+	private final int chunkSize;
+
+	private long totalBytes;
+
+	private long uploadedBytes;
+
+	private long sentBytes;
+
+	private long startTime;
+
+	private long lastProgressTime;
+
+	private ProgressListener listener;
+
+	/**
+	 * An instance uploads the files of one upload job.
+	 *
+	 * @param uploadServiceClient
+	 * @param streams the number of files uploaded in parallel
+	 * @param chunkSize the maximum size in bytes of a chunk
+	 */
+	public ChunkedUploader(ShanoirUploaderServiceClient uploadServiceClient, int streams, int chunkSize) {
+		this.uploadServiceClient = uploadServiceClient;
+		this.streams = Math.min(streams, HttpService.MAX_CONNECTIONS_PER_ROUTE);
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Uploads the files not yet received, and completes the files partially received.
+	 *
+	 * @param tempDirId
+	 * @param files
+	 * @param receivedFiles the manifest of the files received by the server
+	 * @param listener
+	 * @throws Exception if a file could not be uploaded after retries
+	 */
+	public void upload(final String tempDirId, final List<File> files, final Map<String, Long> receivedFiles,
+			final ProgressListener listener) throws Exception {
+		this.listener = listener;
+		this.startTime = System.currentTimeMillis();
+		int resumedFiles = 0;
+		ExecutorService executor = Executors.newFixedThreadPool(streams);
+		try {
+			CompletionService<File> completionService = new ExecutorCompletionService<File>(executor);
+			int submittedFiles = 0;
+			for (File file : files) {
+				final long size = file.length();
+				final long received = Math.min(getReceivedBytes(receivedFiles, file.getName()), size);
+				totalBytes += size;
+				uploadedBytes += received;
+				if (received == size && receivedFiles.containsKey(file.getName())) {
+					resumedFiles++;
+					continue;
+				}
+				completionService.submit(new FileUpload(tempDirId, file, received));
+				submittedFiles++;
+			}
+			if (resumedFiles > 0) {
+				logger.info("Upload resumed into tempDirId " + tempDirId + ": " + resumedFiles + " files already received.");
+			}
+			for (int i = 0; i < submittedFiles; i++) {
+				try {
+					completionService.take().get();
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		progress(true);
+		logger.info("Upload: " + sentBytes + " bytes sent in " + (System.currentTimeMillis() - startTime) + " ms ("
+				+ String.format("%.2f", getBytesPerSecond() / (1024 * 1024)) + " MB/s) with " + streams + " streams.");
+	}
+
+	private synchronized void addUploadedBytes(long uploaded, long sent) {
+		uploadedBytes += uploaded;
+		sentBytes += sent;
+		progress(false);
+	}
+
+	private synchronized void progress(boolean force) {
+		long now = System.currentTimeMillis();
+		if (listener != null && (force || now - lastProgressTime >= PROGRESS_INTERVAL_MS)) {
+			lastProgressTime = now;
+			listener.progress(uploadedBytes, totalBytes, getBytesPerSecond());
+		}
+	}
+
+	private synchronized double getBytesPerSecond() {
+		long elapsedTime = Math.max(System.currentTimeMillis() - startTime, 1);
+		return sentBytes * 1000d / elapsedTime;
+	}
+
+	/**
+	 * The upload of one file, from the bytes already received, that starts again
+	 * from the bytes received by the server after an error.
+	 */
+	private final class FileUpload implements Callable<File> {
+
+		private final String tempDirId;
+
+		private final File file;
+
+		/** The bytes of the file counted as uploaded in the progress */
+		private long counted;
+
+		private FileUpload(final String tempDirId, final File file, final long received) {
+			this.tempDirId = tempDirId;
+			this.file = file;
+			this.counted = received;
+		}
+
+		@Override
+		public File call() throws Exception {
+			long received = counted;
+			int failures = 0;
+			while (true) {
+				try {
+					received = sendFrom(received);
+					if (received == file.length()) {
+						logger.debug("ChunkedUploader finished to upload file: " + file.getName());
+						return file;
+					}
+					// the server has not the bytes expected: continue from its ones
+					logger.warn("Upload of file " + file.getName() + " continued from the " + received + " bytes received by server.");
+					count(received, 0);
+					if (++failures > MAX_RETRIES) {
+						throw new Exception("Upload of file " + file.getName() + " not consistent with server.");
+					}
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					if (++failures > MAX_RETRIES) {
+						throw e;
+					}
+					logger.warn("Upload of file " + file.getName() + " failed, retry " + failures + ": " + e.getMessage());
+					Thread.sleep(failures * 1000L);
+					Map<String, Long> receivedFiles = uploadServiceClient.getUploadedFiles(tempDirId);
+					if (receivedFiles == null) {
+						throw new Exception("tempDirId " + tempDirId + " does not exist anymore on server.");
+					}
+					received = getReceivedBytes(receivedFiles, file.getName());
+					count(received, 0);
+				}
+			}
+		}
+
+		/**
+		 * Sends the chunks of the file, from an offset: the bytes before the offset
+		 * are only read, for the checksum.
+		 *
+		 * @return the bytes of the file received by the server
+		 */
+		private long sendFrom(final long offset) throws Exception {
+			final long size = file.length();
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			final byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(size, 1))];
+			try (InputStream in = new FileInputStream(file)) {
+				long position = 0;
+				while (position < offset) {
+					int length = read(in, buffer, (int) Math.min(buffer.length, offset - position));
+					digest.update(buffer, 0, length);
+					position += length;
+				}
+				do {
+					int length = read(in, buffer, (int) Math.min(buffer.length, size - position));
+					digest.update(buffer, 0, length);
+					String checksum = position + length == size ? toHex(digest.digest()) : null;
+					long received = uploadServiceClient.uploadFileChunk(tempDirId, file.getName(), position, size, checksum, buffer, length);
+					if (received != position + length) {
+						return received;
+					}
+					position = received;
+					count(position, length);
+				} while (position < size);
+				return position;
+			}
+		}
+
+		private void count(final long received, final long sent) {
+			addUploadedBytes(received - counted, sent);
+			counted = received;
+		}
+
+	}
+
+	/**
+	 * @return the bytes of a file received by the server, complete or in its .part file
+	 */
+	private static long getReceivedBytes(final Map<String, Long> receivedFiles, final String fileName) {
+		Long received = receivedFiles.get(fileName);
+		return received != null ? received : receivedFiles.getOrDefault(fileName + PART, 0L);
+	}
+
+	/**
+	 * Reads length bytes, as a chunk is sent with its exact size.
+	 */
+	private static int read(final InputStream in, final byte[] buffer, final int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			int n = in.read(buffer, read, length - read);
+			if (n < 0) {
+				throw new IOException("File shorter than expected, modified during upload?");
+			}
+			read += n;
+		}
+		return read;
+	}
+
+	private static String toHex(final byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+}
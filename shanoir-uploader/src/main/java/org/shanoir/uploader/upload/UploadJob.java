@@ -63,6 +63,9 @@ public class UploadJob {
 	
 	private PreImportData preImportdata;
 
+	/** The temp dir of the upload on the server, kept to resume an interrupted upload */
+	private String tempDirId;
+
 	public PreImportData getPreImportdata() {
 		return preImportdata;
  	}
@@ -71,6 +74,14 @@ public class UploadJob {
 		this.preImportdata = preImportdata;
 	}
 
+	public String getTempDirId() {
+		return tempDirId;
+	}
+
+	public void setTempDirId(String tempDirId) {
+		this.tempDirId = tempDirId;
+	}
+
 	public UploadState getUploadState() {
 		return uploadState;
 	}
@@ -5,8 +5,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
@@ -139,21 +141,32 @@ public class UploadServiceJob implements Job {
 			UploadJobManager uploadJobManager, NominativeDataUploadJobManager nominativeDataUploadJobManager,
 			CurrentNominativeDataController currentNominativeDataController) {
 		try {
-			String tempDirId = uploadServiceClient.createTempDir();
+			// resume the upload into its temp dir, if the server still has it
+			String tempDirId = uploadJob.getTempDirId();
+			Map<String, Long> receivedFiles = null;
+			if (tempDirId != null) {
+				receivedFiles = uploadServiceClient.getUploadedFiles(tempDirId);
+			}
+			if (receivedFiles == null) {
+				tempDirId = uploadServiceClient.createTempDir();
+				if (tempDirId == null) {
+					throw new Exception("Could not create tempDir on server.");
+				}
+				receivedFiles = new HashMap<String, Long>();
+				uploadJob.setTempDirId(tempDirId);
+				uploadJobManager.writeUploadJob(uploadJob);
+			}
 			logger.info("Upload: tempDirId for import: " + tempDirId);
-			int i = 0;
-			for (Iterator<File> iterator = allFiles.iterator(); iterator.hasNext();) {
-				File file = (File) iterator.next();
-				i++;
-				logger.debug("UploadServiceJob started to upload file: " + file.getName());
-				uploadServiceClient.uploadFile(tempDirId, file);
-				logger.debug("UploadServiceJob finished to upload file: " + file.getName());
-				uploadPercentage = i * 100 / allFiles.size() + " %";
+			ChunkedUploader chunkedUploader = new ChunkedUploader(uploadServiceClient,
+					ShUpConfig.getUploadParallelStreams(), ShUpConfig.getUploadChunkSize());
+			chunkedUploader.upload(tempDirId, allFiles, receivedFiles, (uploadedBytes, totalBytes, bytesPerSecond) -> {
+				long percentage = totalBytes == 0 ? 100 : uploadedBytes * 100 / totalBytes;
+				uploadPercentage = percentage + " % (" + String.format("%.1f", bytesPerSecond / (1024 * 1024)) + " MB/s)";
 				nominativeDataUploadJob.setUploadPercentage(uploadPercentage);
 				currentNominativeDataController.updateNominativeDataPercentage(folder, uploadPercentage);
 				nominativeDataUploadJobManager.writeUploadDataJob(nominativeDataUploadJob);
 				logger.debug("Upload percentage of folder " + folder.getName() + " = " + uploadPercentage + ".");
-			}
+			});
 			logger.info("Upload: " + allFiles.size() + " uploaded files to tempDirId: " + tempDirId);
 			/**
 			 * Explicitly upload the upload-job.xml as the last file to avoid sync problems on server in case of